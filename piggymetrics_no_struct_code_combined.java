@@ -17,20 +17,28 @@ public class StatisticsServiceApplicationTests {
 
 package com.piggymetrics.statistics.repository;
 
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Sets;
 import com.piggymetrics.statistics.domain.timeseries.DataPoint;
 import com.piggymetrics.statistics.domain.timeseries.DataPointId;
 import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
 import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.util.CloseableIterator;
 import org.springframework.test.context.junit4.SpringRunner;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 
 import static org.junit.Assert.assertEquals;
@@ -101,6 +109,519 @@ public class DataPointRepositoryTest {
 		assertEquals(1, points.size());
 		assertEquals(lateAmount, points.get(0).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
 	}
+
+	@Test
+	public void shouldUpsertDataPointsInBulk() {
+
+		DataPointId existingId = new DataPointId("bulk-account", new Date(0));
+		DataPointId newId = new DataPointId("bulk-account", new Date(86_400_000));
+
+		DataPoint existing = new DataPoint();
+		existing.setId(existingId);
+		existing.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal(100)
+		));
+
+		repository.save(existing);
+
+		DataPoint replacement = new DataPoint();
+		replacement.setId(existingId);
+		replacement.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal(200)
+		));
+
+		DataPoint inserted = new DataPoint();
+		inserted.setId(newId);
+		inserted.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal(300)
+		));
+
+		repository.bulkUpsert(ImmutableList.of(replacement, inserted));
+
+		List<DataPoint> points = repository.findByIdAccount(existingId.getAccount());
+
+		assertEquals(2, points.size());
+		assertEquals(new BigDecimal(200), repository.findById(existingId).get().getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(new BigDecimal(300), repository.findById(newId).get().getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+	}
+
+	@Test
+	public void shouldNotKeepStaleFieldsOfReplacedDataPoint() {
+
+		DataPointId pointId = new DataPointId("stale-account", new Date(0));
+
+		DataPoint earlier = new DataPoint();
+		earlier.setId(pointId);
+		earlier.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal(100),
+				StatisticMetric.INCOMES_AMOUNT, new BigDecimal(200)
+		));
+
+		repository.replace(earlier);
+
+		DataPoint later = new DataPoint();
+		later.setId(pointId);
+		later.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal(300)
+		));
+
+		DataPoint replaced = repository.replace(later);
+		assertEquals(2, replaced.getStatistics().size());
+
+		assertEquals(1, repository.findById(pointId).get().getStatistics().size());
+
+		later.setStatistics(ImmutableMap.of(
+				StatisticMetric.EXPENSES_AMOUNT, new BigDecimal(400)
+		));
+
+		repository.bulkUpsert(ImmutableList.of(later));
+
+		DataPoint found = repository.findById(pointId).get();
+		assertEquals(1, found.getStatistics().size());
+		assertEquals(new BigDecimal(400), found.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT));
+	}
+
+	@Test
+	public void shouldDownsampleDataPointsByMonth() {
+
+		LocalDate start = LocalDate.of(2017, 1, 30);
+
+		for (int day = 0; day < 4; day++) {
+			DataPoint point = new DataPoint();
+			point.setId(new DataPointId("downsample-account", toDate(start.plusDays(day))));
+			point.setStatistics(ImmutableMap.of(
+					StatisticMetric.SAVING_AMOUNT, new BigDecimal(day),
+					StatisticMetric.INCOMES_AMOUNT, new BigDecimal(100)
+			));
+			repository.save(point);
+		}
+
+		List<DataPoint> points = repository.findDownsampled("downsample-account",
+				toDate(start), toDate(start.plusDays(3)),
+				Resolution.MONTH, EnumSet.of(StatisticMetric.SAVING_AMOUNT));
+
+		assertEquals(2, points.size());
+
+		assertEquals(toDate(start.plusDays(1)), points.get(0).getId().getDate());
+		assertEquals(new BigDecimal(1), points.get(0).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(1, points.get(0).getStatistics().size());
+
+		assertEquals(toDate(start.plusDays(3)), points.get(1).getId().getDate());
+		assertEquals(new BigDecimal(3), points.get(1).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+	}
+
+	@Test
+	public void shouldStreamDataPointsOfAccountsAfterGivenOne() {
+
+		LocalDate start = LocalDate.of(2017, 1, 30);
+
+		for (String account : Arrays.asList("stream-b", "stream-a")) {
+			for (int day = 1; day >= 0; day--) {
+				DataPoint point = new DataPoint();
+				point.setId(new DataPointId(account, toDate(start.plusDays(day))));
+				repository.save(point);
+			}
+		}
+
+		List<DataPointId> ids = new ArrayList<>();
+
+		try (CloseableIterator<DataPoint> cursor = repository.streamAfter("stream-a")) {
+			cursor.forEachRemaining(point -> {
+				if (point.getId().getAccount().startsWith("stream-")) {
+					ids.add(point.getId());
+				}
+			});
+		}
+
+		assertEquals(Arrays.asList(
+				new DataPointId("stream-b", toDate(start)),
+				new DataPointId("stream-b", toDate(start.plusDays(1)))), ids);
+	}
+
+	private Date toDate(LocalDate date) {
+		return Date.from(date.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+	}
+}
+
+package com.piggymetrics.statistics.repository;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointBucket;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import org.bson.Document;
+import org.bson.RawBsonDocument;
+import org.bson.codecs.DocumentCodec;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest(properties = "statistics.storage.bucketed=true")
+public class BucketedDataPointRepositoryTest {
+
+	@Autowired
+	private DataPointRepository repository;
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	@Test
+	public void shouldPackDataPointsOfAMonthIntoSingleBucket() {
+
+		LocalDate start = LocalDate.of(2017, 3, 1);
+
+		for (int day = 0; day < 10; day++) {
+			repository.save(createDataPoint("packed-account", start.plusDays(day), new BigDecimal("1000.5")));
+		}
+
+		List<DataPointBucket> buckets = mongoTemplate.find(
+				query(where("account").is("packed-account")), DataPointBucket.class);
+
+		assertEquals(1, buckets.size());
+		assertEquals(10, buckets.get(0).getPoints().size());
+		assertEquals(3, buckets.get(0).getTitles().size());
+		assertEquals(1, buckets.get(0).getRateTables().size());
+	}
+
+	@Test
+	public void shouldStoreMonthOfDataPointsInLessThanHalfOfTheSpace() {
+
+		LocalDate start = LocalDate.of(2017, 5, 1);
+		int unpackedSize = 0;
+
+		for (int day = 0; day < 31; day++) {
+			DataPoint point = createDataPoint("size-account", start.plusDays(day), new BigDecimal(1000 + day));
+			repository.save(point);
+
+			Document document = new Document();
+			mongoTemplate.getConverter().write(point, document);
+			unpackedSize += new RawBsonDocument(document, new DocumentCodec()).getByteBuffer().remaining();
+		}
+
+		RawBsonDocument bucket = mongoTemplate.getCollection(mongoTemplate.getCollectionName(DataPointBucket.class))
+				.withDocumentClass(RawBsonDocument.class)
+				.find(new Document("a", "size-account"))
+				.first();
+
+		assertTrue(bucket.getByteBuffer().remaining() * 2 < unpackedSize);
+	}
+
+	@Test
+	public void shouldFindDataPointPackedIntoBucketById() {
+
+		DataPoint point = createDataPoint("id-account", LocalDate.of(2017, 3, 2), new BigDecimal("1000.5"));
+		repository.save(point);
+		repository.save(createDataPoint("id-account", LocalDate.of(2017, 3, 3), BigDecimal.ONE));
+
+		DataPoint found = repository.findById(point.getId()).get();
+
+		assertEquals(point.getId(), found.getId());
+		assertEquals(point.getExpenses(), found.getExpenses());
+		assertFalse(repository.findById(new DataPointId("id-account", toDate(LocalDate.of(2017, 3, 4)))).isPresent());
+	}
+
+	@Test
+	public void shouldReadDataPointsPackedIntoBuckets() {
+
+		DataPoint point = createDataPoint("read-account", LocalDate.of(2017, 3, 31), new BigDecimal("1000.5"));
+		repository.save(point);
+		repository.save(createDataPoint("read-account", LocalDate.of(2017, 4, 1), new BigDecimal("2000")));
+
+		List<DataPoint> points = repository.findByIdAccount("read-account");
+
+		assertEquals(2, points.size());
+
+		DataPoint found = points.get(0);
+		assertEquals(point.getId(), found.getId());
+		assertEquals(point.getIncomes(), found.getIncomes());
+		assertEquals(point.getExpenses(), found.getExpenses());
+
+		ItemMetric grocery = found.getExpenses().stream()
+				.filter(i -> i.getTitle().equals("grocery"))
+				.findFirst().get();
+
+		assertTrue(new BigDecimal("33.3333").compareTo(grocery.getAmount()) == 0);
+		assertTrue(new BigDecimal("1000.5").compareTo(found.getStatistics().get(StatisticMetric.SAVING_AMOUNT)) == 0);
+		assertTrue(new BigDecimal("0.8").compareTo(found.getRates().get(Currency.EUR)) == 0);
+		assertEquals(point.getStatistics().size(), found.getStatistics().size());
+	}
+
+	@Test
+	public void shouldKeepOriginalAmountsOfDataPointPackedIntoBucket() {
+
+		DataPoint point = createDataPoint("source-account", LocalDate.of(2017, 3, 1), new BigDecimal(100));
+		point.setIncomes(Sets.newHashSet(new ItemMetric("salary", new BigDecimal("98.5626"),
+				new BigDecimal(3000), Currency.EUR, TimePeriod.MONTH)));
+		point.setSavingAmount(new BigDecimal(80));
+		point.setSavingCurrency(Currency.EUR);
+		repository.save(point);
+
+		DataPoint found = repository.findByIdAccount("source-account").get(0);
+		ItemMetric salary = found.getIncomes().iterator().next();
+
+		assertEquals(0, new BigDecimal(3000).compareTo(salary.getSourceAmount()));
+		assertEquals(Currency.EUR, salary.getCurrency());
+		assertEquals(TimePeriod.MONTH, salary.getPeriod());
+		assertFalse(found.getExpenses().iterator().next().hasSource());
+		assertEquals(0, new BigDecimal(80).compareTo(found.getSavingAmount()));
+		assertEquals(Currency.EUR, found.getSavingCurrency());
+	}
+
+	@Test
+	public void shouldRewriteDataPointWithinADay() {
+
+		LocalDate date = LocalDate.of(2017, 3, 1);
+
+		repository.save(createDataPoint("rewrite-account", date, new BigDecimal(100)));
+		repository.bulkUpsert(ImmutableList.of(createDataPoint("rewrite-account", date, new BigDecimal(200))));
+
+		List<DataPoint> points = repository.findByIdAccount("rewrite-account");
+
+		assertEquals(1, points.size());
+		assertEquals(new BigDecimal(200), points.get(0).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+	}
+
+	@Test
+	public void shouldKeepAmountsWhichDoNotFitIntoScaledLong() {
+
+		BigDecimal precise = new BigDecimal("0.123456789012");
+		BigDecimal large = new BigDecimal("123456789012345.5");
+
+		DataPoint point = createDataPoint("exact-account", LocalDate.of(2017, 3, 1), large);
+		point.setRates(ImmutableMap.of(Currency.EUR, precise, Currency.USD, BigDecimal.ONE));
+		repository.save(point);
+
+		DataPoint found = repository.findByIdAccount("exact-account").get(0);
+
+		assertEquals(0, large.compareTo(found.getStatistics().get(StatisticMetric.SAVING_AMOUNT)));
+		assertEquals(0, precise.compareTo(found.getRates().get(Currency.EUR)));
+	}
+
+	@Test
+	public void shouldDownsampleDataPointsPackedIntoBuckets() {
+
+		LocalDate start = LocalDate.of(2017, 1, 30);
+
+		for (int day = 0; day < 4; day++) {
+			repository.save(createDataPoint("downsample-account", start.plusDays(day), new BigDecimal(day)));
+		}
+
+		List<DataPoint> points = repository.findDownsampled("downsample-account",
+				toDate(start), toDate(start.plusDays(3)),
+				Resolution.MONTH, EnumSet.of(StatisticMetric.SAVING_AMOUNT));
+
+		assertEquals(2, points.size());
+		assertEquals(new BigDecimal(1), points.get(0).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(new BigDecimal(3), points.get(1).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(1, points.get(1).getStatistics().size());
+	}
+
+	@Test
+	public void shouldReadDataPointsWrittenBeforeBucketing() {
+
+		DataPoint legacy = createDataPoint("legacy-account", LocalDate.of(2017, 2, 27), new BigDecimal(100));
+		DataPoint replaced = createDataPoint("legacy-account", LocalDate.of(2017, 2, 28), new BigDecimal(200));
+		mongoTemplate.save(legacy);
+		mongoTemplate.save(replaced);
+
+		repository.save(createDataPoint("legacy-account", LocalDate.of(2017, 3, 1), new BigDecimal(300)));
+		DataPoint previous = repository.replace(createDataPoint("legacy-account", LocalDate.of(2017, 2, 28), new BigDecimal(250)));
+
+		assertEquals(new BigDecimal(200), previous.getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(legacy.getId(), repository.findById(legacy.getId()).get().getId());
+
+		List<DataPoint> points = repository.findByIdAccount("legacy-account");
+
+		assertEquals(3, points.size());
+		assertEquals(new BigDecimal(100), points.get(0).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(new BigDecimal(250), points.get(1).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(new BigDecimal(300), points.get(2).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+
+		List<DataPoint> downsampled = repository.findDownsampled("legacy-account",
+				toDate(LocalDate.of(2017, 2, 1)), toDate(LocalDate.of(2017, 3, 31)),
+				Resolution.MONTH, EnumSet.of(StatisticMetric.SAVING_AMOUNT));
+
+		assertEquals(2, downsampled.size());
+		assertEquals(new BigDecimal(250), downsampled.get(0).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+
+		assertTrue(repository.findAccountsWithPointOn(legacy.getId().getDate()).contains("legacy-account"));
+	}
+
+	@Test
+	public void shouldStreamPackedAndLegacyDataPointsInOrder() {
+
+		mongoTemplate.save(createDataPoint("stream-account-1", LocalDate.of(2017, 3, 1), BigDecimal.ONE));
+		mongoTemplate.save(createDataPoint("stream-account-1", LocalDate.of(2017, 3, 2), BigDecimal.ONE));
+		repository.save(createDataPoint("stream-account-1", LocalDate.of(2017, 3, 2), BigDecimal.TEN));
+		repository.save(createDataPoint("stream-account-1", LocalDate.of(2017, 3, 3), BigDecimal.TEN));
+		mongoTemplate.save(createDataPoint("stream-account-2", LocalDate.of(2017, 3, 1), BigDecimal.ONE));
+
+		List<DataPoint> points = new ArrayList<>();
+
+		try (CloseableIterator<DataPoint> iterator = repository.streamAfter("stream-account-0")) {
+			iterator.forEachRemaining(point -> {
+				if (point.getId().getAccount().startsWith("stream-account-")) {
+					points.add(point);
+				}
+			});
+		}
+
+		assertEquals(4, points.size());
+		assertEquals(toDate(LocalDate.of(2017, 3, 1)), points.get(0).getId().getDate());
+		assertEquals(BigDecimal.TEN, points.get(1).getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(toDate(LocalDate.of(2017, 3, 3)), points.get(2).getId().getDate());
+		assertEquals("stream-account-2", points.get(3).getId().getAccount());
+	}
+
+	private DataPoint createDataPoint(String account, LocalDate date, BigDecimal saving) {
+
+		DataPoint point = new DataPoint();
+		point.setId(new DataPointId(account, toDate(date)));
+		point.setIncomes(Sets.newHashSet(new ItemMetric("salary", new BigDecimal("298.9802"))));
+		point.setExpenses(Sets.newHashSet(
+				new ItemMetric("grocery", new BigDecimal("33.3333")),
+				new ItemMetric("vacation", new BigDecimal("11.6361"))
+		));
+		point.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, saving,
+				StatisticMetric.INCOMES_AMOUNT, new BigDecimal("298.9802"),
+				StatisticMetric.EXPENSES_AMOUNT, new BigDecimal("44.9694")
+		));
+		point.setRates(ImmutableMap.of(
+				Currency.EUR, new BigDecimal("0.8"),
+				Currency.RUB, new BigDecimal("80"),
+				Currency.USD, BigDecimal.ONE
+		));
+
+		return point;
+	}
+
+	private Date toDate(LocalDate date) {
+		return Date.from(date.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+	}
+}
+
+package com.piggymetrics.statistics.repository;
+
+import com.google.common.collect.ImmutableList;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.data.domain.Sort;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+public class RollupRepositoryTest {
+
+	@Autowired
+	private RollupRepository repository;
+
+	@Test
+	public void shouldIncrementRollups() {
+
+		LocalDate start = LocalDate.of(2017, 3, 1);
+
+		repository.increment(ImmutableList.of(createDelta("increment-account", start, 1, 500)));
+		repository.increment(ImmutableList.of(createDelta("increment-account", start, 1, 300)));
+		repository.increment(ImmutableList.of(createDelta("increment-account", start, 0, -100)));
+
+		Rollup rollup = repository.findById(new Rollup("increment-account", RollupPeriod.MONTH, start).getId()).get();
+
+		assertEquals(2, rollup.getCount());
+		assertEquals(Long.valueOf(700), rollup.getSums().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(RollupPeriod.MONTH, rollup.getPeriod());
+		assertEquals(toDate(start), rollup.getStart());
+	}
+
+	@Test
+	public void shouldFindRollupsStartedWithinRange() {
+
+		repository.increment(ImmutableList.of(
+				createDelta("range-account", LocalDate.of(2017, 1, 1), 1, 100),
+				createDelta("range-account", LocalDate.of(2017, 2, 1), 1, 200),
+				createDelta("range-account", LocalDate.of(2017, 3, 1), 1, 300)
+		));
+
+		List<Rollup> rollups = repository.findStartedWithin("range-account", RollupPeriod.MONTH,
+				toDate(LocalDate.of(2017, 2, 1)), toDate(LocalDate.of(2017, 3, 1)), Sort.by("start"));
+
+		assertEquals(2, rollups.size());
+		assertEquals(toDate(LocalDate.of(2017, 2, 1)), rollups.get(0).getStart());
+		assertEquals(toDate(LocalDate.of(2017, 3, 1)), rollups.get(1).getStart());
+	}
+
+	@Test
+	public void shouldNotReplaceRollupIncrementedSinceItWasRead() {
+
+		LocalDate start = LocalDate.of(2017, 3, 1);
+		String id = new Rollup("replace-account", RollupPeriod.MONTH, start).getId();
+
+		assertTrue(repository.replace(createDelta("replace-account", start, 1, 100), null));
+		assertFalse(repository.replace(createDelta("replace-account", start, 1, 200), null));
+
+		Long version = repository.findById(id).get().getVersion();
+		repository.increment(ImmutableList.of(createDelta("replace-account", start, 1, 50)));
+
+		assertFalse(repository.replace(createDelta("replace-account", start, 1, 300), version));
+		assertTrue(repository.replace(createDelta("replace-account", start, 1, 300), version + 1));
+
+		Rollup rollup = repository.findById(id).get();
+
+		assertEquals(1, rollup.getCount());
+		assertEquals(Long.valueOf(300), rollup.getSums().get(StatisticMetric.SAVING_AMOUNT));
+		assertEquals(Long.valueOf(version + 2), rollup.getVersion());
+	}
+
+	private Rollup createDelta(String account, LocalDate start, long count, long saving) {
+		Rollup delta = new Rollup(account, RollupPeriod.MONTH, start);
+		delta.setCount(count);
+		delta.getSums().put(StatisticMetric.SAVING_AMOUNT, saving);
+		return delta;
+	}
+
+	private Date toDate(LocalDate date) {
+		return Date.from(date.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+	}
 }
 
 package com.piggymetrics.statistics.controller;
@@ -114,6 +635,8 @@ import com.piggymetrics.statistics.domain.Saving;
 import com.piggymetrics.statistics.domain.TimePeriod;
 import com.piggymetrics.statistics.domain.timeseries.DataPoint;
 import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
 import com.piggymetrics.statistics.service.StatisticsService;
 import com.sun.security.auth.UserPrincipal;
 import org.junit.Before;
@@ -129,9 +652,11 @@ import org.springframework.test.web.servlet.setup.MockMvcBuilders;
 
 import java.math.BigDecimal;
 import java.util.Date;
+import java.util.EnumSet;
 
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
@@ -223,18 +748,48 @@ public class StatisticsControllerTest {
 
 		verify(statisticsService, times(1)).save(anyString(), any(Account.class));
 	}
-}
-package com.piggymetrics.statistics.service;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.statistics.domain.Account;
-import com.piggymetrics.statistics.domain.Currency;
-import com.piggymetrics.statistics.domain.Item;
-import com.piggymetrics.statistics.domain.Saving;
-import com.piggymetrics.statistics.domain.TimePeriod;
-import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+	@Test
+	public void shouldGetCurrentAccountSeries() throws Exception {
+
+		final DataPoint dataPoint = new DataPoint();
+		dataPoint.setId(new DataPointId("test", new Date()));
+
+		when(statisticsService.findByAccountName(eq("test"), any(Date.class), any(Date.class),
+				eq(Resolution.MONTH), eq(EnumSet.of(StatisticMetric.SAVING_AMOUNT))))
+				.thenReturn(ImmutableList.of(dataPoint));
+
+		mockMvc.perform(get("/current/series").principal(new UserPrincipal("test"))
+				.param("from", "2017-01-01")
+				.param("to", "2017-12-31")
+				.param("resolution", "MONTH")
+				.param("metrics", "SAVING_AMOUNT"))
+				.andExpect(jsonPath("$[0].id.account").value("test"))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldFailToGetSeriesWithoutRange() throws Exception {
+		mockMvc.perform(get("/test/series"))
+				.andExpect(status().isBadRequest());
+	}
+}
+package com.piggymetrics.statistics.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.statistics.domain.Account;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import com.piggymetrics.statistics.domain.ExchangeRatesSnapshot;
+import com.piggymetrics.statistics.domain.Item;
+import com.piggymetrics.statistics.domain.Saving;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
 import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
 import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
 import com.piggymetrics.statistics.repository.DataPointRepository;
 import org.junit.Before;
@@ -243,17 +798,22 @@ import org.mockito.InjectMocks;
 import org.mockito.Mock;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.ZoneId;
+import java.util.Collections;
 import java.util.Date;
+import java.util.EnumSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertTrue;
-import static org.mockito.AdditionalAnswers.returnsFirstArg;
 import static org.mockito.Mockito.any;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -270,6 +830,15 @@ public class StatisticsServiceImplTest {
 	@Mock
 	private DataPointRepository repository;
 
+	@Mock
+	private DataPointWriteBuffer writeBuffer;
+
+	@Mock
+	private RollupService rollupService;
+
+	@Mock
+	private RollupReconciler reconciler;
+
 	@Before
 	public void setup() {
 		initMocks(this);
@@ -341,13 +910,7 @@ public class StatisticsServiceImplTest {
 		 * When
 		 */
 
-		when(ratesService.convert(any(Currency.class),any(Currency.class),any(BigDecimal.class)))
-				.then(i -> ((BigDecimal)i.getArgument(2))
-						.divide(rates.get(i.getArgument(0)), 4, RoundingMode.HALF_UP));
-
-		when(ratesService.getCurrentRates()).thenReturn(rates);
-
-		when(repository.save(any(DataPoint.class))).then(returnsFirstArg());
+		when(ratesService.getCurrentSnapshot()).thenReturn(createSnapshot(rates));
 
 		DataPoint dataPoint = statisticsService.save("test", account);
 
@@ -388,4182 +951,16921 @@ public class StatisticsServiceImplTest {
 
 		assertEquals(rates, dataPoint.getRates());
 
-		verify(repository, times(1)).save(dataPoint);
+		verify(repository, times(1)).replace(dataPoint);
+		verify(rollupService, times(1)).apply(null, dataPoint);
 	}
-}
-package com.piggymetrics.statistics.service;
 
-import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.statistics.client.ExchangeRatesClient;
-import com.piggymetrics.statistics.domain.Currency;
-import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
+	@Test
+	public void shouldOfferDataPointToBufferWhenBufferedIngestionIsEnabled() {
 
-import java.math.BigDecimal;
-import java.util.Map;
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(1000));
+		saving.setCurrency(Currency.USD);
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
-import static org.mockito.Mockito.*;
-import static org.mockito.MockitoAnnotations.initMocks;
+		Account account = new Account();
+		account.setIncomes(ImmutableList.of());
+		account.setExpenses(ImmutableList.of());
+		account.setSaving(saving);
 
-public class ExchangeRatesServiceImplTest {
+		when(ratesService.getCurrentSnapshot()).thenReturn(createSnapshot(ImmutableMap.of(
+				Currency.EUR, BigDecimal.ONE, Currency.RUB, BigDecimal.ONE, Currency.USD, BigDecimal.ONE)));
+		when(writeBuffer.isEnabled()).thenReturn(true);
 
-	@InjectMocks
-	private ExchangeRatesServiceImpl ratesService;
+		DataPoint dataPoint = statisticsService.save("test", account);
 
-	@Mock
-	private ExchangeRatesClient client;
+		verify(writeBuffer, times(1)).offer(dataPoint);
+		verify(repository, never()).replace(any(DataPoint.class));
+	}
 
-	@Before
-	public void setup() {
-		initMocks(this);
+	@Test
+	public void shouldFindDownsampledDataPointsWithAllMetricsByDefault() {
+
+		final Date from = new Date(0);
+		final Date to = new Date();
+		final List<DataPoint> list = ImmutableList.of(new DataPoint());
+
+		when(repository.findDownsampled("test", from, to, Resolution.MONTH, EnumSet.allOf(StatisticMetric.class)))
+				.thenReturn(list);
+
+		List<DataPoint> result = statisticsService.findByAccountName("test", from, to, Resolution.MONTH, null);
+		assertEquals(list, result);
 	}
 
 	@Test
-	public void shouldReturnCurrentRatesWhenContainerIsEmptySoFar() {
+	public void shouldFindDownsampledDataPointsWithRequestedMetrics() {
 
-		ExchangeRatesContainer container = new ExchangeRatesContainer();
-		container.setRates(ImmutableMap.of(
-				Currency.EUR.name(), new BigDecimal("0.8"),
-				Currency.RUB.name(), new BigDecimal("80")
-		));
+		final Date from = new Date(0);
+		final Date to = new Date();
+		final Set<StatisticMetric> metrics = EnumSet.of(StatisticMetric.SAVING_AMOUNT);
 
-		when(client.getRates(Currency.getBase())).thenReturn(container);
+		statisticsService.findByAccountName("test", from, to, Resolution.WEEK, metrics);
 
-		Map<Currency, BigDecimal> result = ratesService.getCurrentRates();
-		verify(client, times(1)).getRates(Currency.getBase());
+		verify(repository, times(1)).findDownsampled("test", from, to, Resolution.WEEK, metrics);
+	}
 
-		assertEquals(container.getRates().get(Currency.EUR.name()), result.get(Currency.EUR));
-		assertEquals(container.getRates().get(Currency.RUB.name()), result.get(Currency.RUB));
-		assertEquals(BigDecimal.ONE, result.get(Currency.USD));
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailToFindDownsampledDataPointsWhenRangeIsInverted() {
+		statisticsService.findByAccountName("test", new Date(), new Date(0), Resolution.DAY, null);
 	}
 
 	@Test
-	public void shouldNotRequestRatesWhenTodaysContainerAlreadyExists() {
+	public void shouldRetractReplacedDataPointFromRollups() {
 
-		ExchangeRatesContainer container = new ExchangeRatesContainer();
-		container.setRates(ImmutableMap.of(
-				Currency.EUR.name(), new BigDecimal("0.8"),
-				Currency.RUB.name(), new BigDecimal("80")
-		));
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(1000));
+		saving.setCurrency(Currency.USD);
 
-		when(client.getRates(Currency.getBase())).thenReturn(container);
+		Account account = new Account();
+		account.setIncomes(ImmutableList.of());
+		account.setExpenses(ImmutableList.of());
+		account.setSaving(saving);
 
-		// initialize container
-		ratesService.getCurrentRates();
+		final DataPoint previous = new DataPoint();
 
-		// use existing container
-		ratesService.getCurrentRates();
+		when(ratesService.getCurrentSnapshot()).thenReturn(createSnapshot(ImmutableMap.of(
+				Currency.EUR, BigDecimal.ONE, Currency.RUB, BigDecimal.ONE, Currency.USD, BigDecimal.ONE)));
+		when(repository.replace(any(DataPoint.class))).thenReturn(previous);
 
-		verify(client, times(1)).getRates(Currency.getBase());
+		DataPoint dataPoint = statisticsService.save("test", account);
+
+		verify(rollupService, times(1)).apply(previous, dataPoint);
 	}
 
 	@Test
-	public void shouldConvertCurrency() {
+	public void shouldMarkRollupsStaleWhenRollupUpdateFails() {
 
-		ExchangeRatesContainer container = new ExchangeRatesContainer();
-		container.setRates(ImmutableMap.of(
-				Currency.EUR.name(), new BigDecimal("0.8"),
-				Currency.RUB.name(), new BigDecimal("80")
-		));
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(1000));
+		saving.setCurrency(Currency.USD);
 
-		when(client.getRates(Currency.getBase())).thenReturn(container);
+		Account account = new Account();
+		account.setIncomes(ImmutableList.of());
+		account.setExpenses(ImmutableList.of());
+		account.setSaving(saving);
 
-		final BigDecimal amount = new BigDecimal(100);
-		final BigDecimal expectedConvertionResult = new BigDecimal("1.25");
+		when(ratesService.getCurrentSnapshot()).thenReturn(createSnapshot(ImmutableMap.of(
+				Currency.EUR, BigDecimal.ONE, Currency.RUB, BigDecimal.ONE, Currency.USD, BigDecimal.ONE)));
+		doThrow(new IllegalStateException()).when(rollupService).apply(any(), any(DataPoint.class));
 
-		BigDecimal result = ratesService.convert(Currency.RUB, Currency.USD, amount);
+		DataPoint dataPoint = statisticsService.save("test", account);
 
-		assertTrue(expectedConvertionResult.compareTo(result) == 0);
+		verify(repository, times(1)).replace(dataPoint);
+		verify(reconciler, times(1)).markStale(Collections.singletonList(dataPoint));
 	}
 
-	@Test(expected = IllegalArgumentException.class)
-	public void shouldFailToConvertWhenAmountIsNull() {
-		ratesService.convert(Currency.EUR, Currency.RUB, null);
+	@Test
+	public void shouldFindRollups() {
+
+		final Date from = new Date(0);
+		final Date to = new Date();
+		final List<Rollup> list = ImmutableList.of(new Rollup());
+
+		when(rollupService.findByAccountName("test", RollupPeriod.MONTH, from, to)).thenReturn(list);
+
+		List<Rollup> result = statisticsService.findRollups("test", RollupPeriod.MONTH, from, to);
+		assertEquals(list, result);
+	}
+
+	private ExchangeRatesSnapshot createSnapshot(Map<Currency, BigDecimal> rates) {
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(rates.entrySet().stream()
+				.collect(Collectors.toMap(e -> e.getKey().name(), Map.Entry::getValue)));
+		return ExchangeRatesSnapshot.of(container, Instant.now());
 	}
 }
-package com.piggymetrics.statistics.client;
 
+package com.piggymetrics.statistics.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Sets;
+import com.piggymetrics.statistics.domain.Account;
 import com.piggymetrics.statistics.domain.Currency;
 import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import com.piggymetrics.statistics.domain.ExchangeRatesSnapshot;
+import com.piggymetrics.statistics.domain.Item;
+import com.piggymetrics.statistics.domain.Saving;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
 
-import java.time.LocalDate;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.stream.Collectors;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class ExchangeRatesClientTest {
+public class StatisticsCalculatorTest {
 
-	@Autowired
-	private ExchangeRatesClient client;
+	private static final String[] TITLES = {"Salary", "Rent", "rent", "Grocery", "Vacation", "Gym"};
+
+	/**
+	 * Baseline computation divided by {@code new BigDecimal(double)} period ratios, which
+	 * differ from the exact ones by less than 2^-53 relatively. So a normalized amount may
+	 * differ by one unit in the last digit, when it is close to a rounding boundary,
+	 * and by the relative error of the ratio for very large amounts.
+	 */
+	private static final BigDecimal UNIT_TOLERANCE = new BigDecimal("0.0001");
+
+	private static final BigDecimal RELATIVE_TOLERANCE = new BigDecimal("1E-15");
 
 	@Test
-	public void shouldRetrieveExchangeRates() {
+	public void shouldMatchBaselineComputationOnRandomAccounts() {
 
-		ExchangeRatesContainer container = client.getRates(Currency.getBase());
+		Random random = new Random(20181018);
 
-		assertEquals(container.getDate(), LocalDate.now());
-		assertEquals(container.getBase(), Currency.getBase());
+		for (int i = 0; i < 5000; i++) {
 
-		assertNotNull(container.getRates());
-		assertNotNull(container.getRates().get(Currency.USD.name()));
-		assertNotNull(container.getRates().get(Currency.EUR.name()));
-		assertNotNull(container.getRates().get(Currency.RUB.name()));
+			ExchangeRatesSnapshot rates = createSnapshot(ImmutableMap.of(
+					Currency.EUR, randomRate(random),
+					Currency.RUB, randomRate(random)));
+
+			Account account = createAccount(randomItems(random), randomItems(random), randomAmount(random));
+
+			assertMatchesBaseline(rates, account);
+		}
 	}
 
 	@Test
-	public void shouldRetrieveExchangeRatesForSpecifiedCurrency() {
+	public void shouldRoundHalfUp() {
 
-		Currency requestedCurrency = Currency.EUR;
-		ExchangeRatesContainer container = client.getRates(Currency.getBase());
+		// 1 / 48.0769 = 0.0208 and 0.0001 * 0.0208 / 0.0416 = 0.00005
+		ExchangeRatesSnapshot rates = createSnapshot(ImmutableMap.of(
+				Currency.EUR, BigDecimal.ONE,
+				Currency.RUB, new BigDecimal("48.0769")));
 
-		assertEquals(container.getDate(), LocalDate.now());
-		assertEquals(container.getBase(), Currency.getBase());
+		Account account = createAccount(
+				ImmutableList.of(createItem("Salary", new BigDecimal("0.0001"), Currency.RUB, TimePeriod.HOUR)),
+				ImmutableList.of(createItem("Rent", new BigDecimal("-0.0001"), Currency.RUB, TimePeriod.HOUR)),
+				BigDecimal.ONE);
 
-		assertNotNull(container.getRates());
-		assertNotNull(container.getRates().get(requestedCurrency.name()));
+		DataPoint point = assertSameResults(rates, account);
+
+		assertEquals(new BigDecimal("0.0001"), point.getStatistics().get(StatisticMetric.INCOMES_AMOUNT));
+		assertEquals(new BigDecimal("-0.0001"), point.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT));
 	}
-}
-package com.piggymetrics.statistics;
 
-import com.piggymetrics.statistics.repository.converter.DataPointIdReaderConverter;
-import com.piggymetrics.statistics.repository.converter.DataPointIdWriterConverter;
-import com.piggymetrics.statistics.service.security.CustomUserInfoTokenServices;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
-import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
-import org.springframework.cloud.openfeign.EnableFeignClients;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.core.convert.CustomConversions;
-import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
-import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+	@Test
+	public void shouldFallBackToBigDecimalForAmountsOutOfRange() {
 
-import java.util.Arrays;
+		ExchangeRatesSnapshot rates = createSnapshot(ImmutableMap.of(
+				Currency.EUR, new BigDecimal("0.8"),
+				Currency.RUB, new BigDecimal("80")));
 
-@SpringBootApplication
-@EnableDiscoveryClient
-@EnableOAuth2Client
-@EnableFeignClients
-@EnableGlobalMethodSecurity(prePostEnabled = true)
-public class StatisticsApplication {
+		Account account = createAccount(
+				ImmutableList.of(createItem("Salary", new BigDecimal("12345678901234567890.5"), Currency.EUR, TimePeriod.MONTH)),
+				ImmutableList.of(createItem("Rent", new BigDecimal("0.123456"), Currency.RUB, TimePeriod.DAY)),
+				new BigDecimal("1000.00001"));
 
-	public static void main(String[] args) {
-		SpringApplication.run(StatisticsApplication.class, args);
+		assertSameResults(rates, account);
 	}
 
-	@Configuration
-	static class CustomConversionsConfig {
+	@Test
+	public void shouldCountItemsWithTheSameTitleOnce() {
 
-		@Bean
-		public CustomConversions customConversions() {
-			return new CustomConversions(Arrays.asList(new DataPointIdReaderConverter(),
-					new DataPointIdWriterConverter()));
-		}
-	}
-}
+		ExchangeRatesSnapshot rates = createSnapshot(ImmutableMap.of(
+				Currency.EUR, BigDecimal.ONE,
+				Currency.RUB, BigDecimal.ONE));
 
-package com.piggymetrics.statistics.repository;
+		Account account = createAccount(
+				ImmutableList.of(
+						createItem("Salary", new BigDecimal(100), Currency.USD, TimePeriod.DAY),
+						createItem("Salary", new BigDecimal(200), Currency.USD, TimePeriod.DAY)),
+				ImmutableList.of(),
+				BigDecimal.ONE);
 
-import com.piggymetrics.statistics.domain.timeseries.DataPoint;
-import com.piggymetrics.statistics.domain.timeseries.DataPointId;
-import org.springframework.data.repository.CrudRepository;
-import org.springframework.stereotype.Repository;
+		DataPoint point = assertSameResults(rates, account);
 
-import java.util.List;
+		assertEquals(new BigDecimal("100.0000"), point.getStatistics().get(StatisticMetric.INCOMES_AMOUNT));
+		assertEquals(BigDecimal.ZERO, point.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT));
+	}
 
-@Repository
-public interface DataPointRepository extends CrudRepository<DataPoint, DataPointId> {
+	@Test
+	public void shouldNotRecalculateUpToDateDataPoint() {
 
-	List<DataPoint> findByIdAccount(String account);
+		ExchangeRatesSnapshot rates = createSnapshot(ImmutableMap.of(
+				Currency.EUR, new BigDecimal("0.8"),
+				Currency.RUB, new BigDecimal("80")));
 
-}
+		DataPoint point = createDataPoint(rates, createAccount(
+				ImmutableList.of(createItem("Salary", new BigDecimal(3000), Currency.EUR, TimePeriod.MONTH)),
+				ImmutableList.of(createItem("Rent", new BigDecimal(500), Currency.RUB, TimePeriod.DAY)),
+				new BigDecimal(100)));
 
-package com.piggymetrics.statistics.repository.converter;
+		assertNull(StatisticsCalculator.recalculate(point));
+	}
 
-import com.mongodb.DBObject;
-import com.piggymetrics.statistics.domain.timeseries.DataPointId;
-import org.springframework.core.convert.converter.Converter;
-import org.springframework.stereotype.Component;
+	@Test
+	public void shouldRecalculateItemsFromOriginalAmountsAndStoredRates() {
 
-import java.util.Date;
+		ExchangeRatesSnapshot rates = createSnapshot(ImmutableMap.of(
+				Currency.EUR, new BigDecimal("0.8"),
+				Currency.RUB, new BigDecimal("80")));
+
+		DataPoint expected = createDataPoint(rates, createAccount(
+				ImmutableList.of(createItem("Salary", new BigDecimal(3000), Currency.EUR, TimePeriod.MONTH)),
+				ImmutableList.of(createItem("Rent", new BigDecimal(500), Currency.RUB, TimePeriod.DAY)),
+				new BigDecimal(100)));
+
+		// e.g. stored by a computation with a wrong period ratio
+		DataPoint stored = createDataPoint(rates, expected.getIncomes(), expected.getExpenses().stream()
+				.map(item -> new ItemMetric(item.getTitle(), item.getAmount().add(BigDecimal.ONE),
+						item.getSourceAmount(), item.getCurrency(), item.getPeriod()))
+				.collect(Collectors.toSet()));
+		stored.setStatistics(ImmutableMap.of(
+				StatisticMetric.INCOMES_AMOUNT, expected.getStatistics().get(StatisticMetric.INCOMES_AMOUNT),
+				StatisticMetric.EXPENSES_AMOUNT, expected.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT).add(BigDecimal.ONE),
+				StatisticMetric.SAVING_AMOUNT, expected.getStatistics().get(StatisticMetric.SAVING_AMOUNT)));
+		stored.setSavingAmount(expected.getSavingAmount());
+		stored.setSavingCurrency(expected.getSavingCurrency());
+
+		DataPoint recalculated = StatisticsCalculator.recalculate(stored);
+
+		assertNotNull(recalculated);
+		assertEquals(amounts(expected.getIncomes()), amounts(recalculated.getIncomes()));
+		assertEquals(amounts(expected.getExpenses()), amounts(recalculated.getExpenses()));
+		assertEquals(expected.getStatistics(), recalculated.getStatistics());
+		assertEquals(rates.getRates(), recalculated.getRates());
+	}
 
-@Component
-public class DataPointIdReaderConverter implements Converter<DBObject, DataPointId> {
+	@Test
+	public void shouldOnlySumUpItemsStoredWithoutOriginalAmounts() {
 
-	@Override
-	public DataPointId convert(DBObject object) {
+		DataPoint point = createDataPoint(null,
+				Sets.newHashSet(new ItemMetric("Salary", new BigDecimal("98.5626"))),
+				Sets.newHashSet(new ItemMetric("Rent", new BigDecimal("6.25"))));
+		point.setStatistics(ImmutableMap.of(
+				StatisticMetric.INCOMES_AMOUNT, new BigDecimal("100"),
+				StatisticMetric.EXPENSES_AMOUNT, new BigDecimal("6.25"),
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal("7")));
 
-		Date date = (Date) object.get("date");
-		String account = (String) object.get("account");
+		DataPoint recalculated = StatisticsCalculator.recalculate(point);
 
-		return new DataPointId(account, date);
+		assertEquals(new BigDecimal("98.5626"), recalculated.getStatistics().get(StatisticMetric.INCOMES_AMOUNT));
+		assertEquals(new BigDecimal("6.25"), recalculated.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT));
+		assertEquals(new BigDecimal("7"), recalculated.getStatistics().get(StatisticMetric.SAVING_AMOUNT));
 	}
-}
-
-package com.piggymetrics.statistics.repository.converter;
-
-import com.mongodb.BasicDBObject;
-import com.mongodb.DBObject;
-import com.piggymetrics.statistics.domain.timeseries.DataPointId;
-import org.springframework.core.convert.converter.Converter;
-import org.springframework.stereotype.Component;
-
-@Component
-public class DataPointIdWriterConverter implements Converter<DataPointId, DBObject> {
-
-	private static final int FIELDS = 2;
-
-	@Override
-	public DBObject convert(DataPointId id) {
-
-		DBObject object = new BasicDBObject(FIELDS);
 
-		object.put("date", id.getDate());
-		object.put("account", id.getAccount());
+	private DataPoint createDataPoint(ExchangeRatesSnapshot rates, Account account) {
+		DataPoint point = createDataPoint(rates, null, null);
+		new StatisticsCalculator(rates).calculate(account, point);
+		return point;
+	}
 
-		return object;
+	private DataPoint createDataPoint(ExchangeRatesSnapshot rates, Set<ItemMetric> incomes, Set<ItemMetric> expenses) {
+		DataPoint point = new DataPoint();
+		point.setId(new DataPointId("test", new Date(0)));
+		point.setIncomes(incomes);
+		point.setExpenses(expenses);
+		point.setRates(rates == null ? null : rates.getRates());
+		return point;
 	}
-}
 
-package com.piggymetrics.statistics.config;
+	/**
+	 * Compares results with the baseline computation within {@link #UNIT_TOLERANCE}
+	 * and {@link #RELATIVE_TOLERANCE} per item. Saving is not divided by period
+	 * ratio, so it has to be the same, including scale.
+	 */
+	private void assertMatchesBaseline(ExchangeRatesSnapshot rates, Account account) {
 
-import com.piggymetrics.statistics.service.security.CustomUserInfoTokenServices;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
-import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
-import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+		DataPoint point = new DataPoint();
+		new StatisticsCalculator(rates).calculate(account, point);
 
-/**
- * @author cdov
- */
-@EnableResourceServer
-@Configuration
-public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
-    @Autowired
-    private ResourceServerProperties sso;
+		assertMatchesBaseline(rates, account.getIncomes(), point.getIncomes(),
+				point.getStatistics().get(StatisticMetric.INCOMES_AMOUNT));
+		assertMatchesBaseline(rates, account.getExpenses(), point.getExpenses(),
+				point.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT));
 
-    @Bean
-    public ResourceServerTokenServices tokenServices() {
-        return new CustomUserInfoTokenServices(sso.getUserInfoUri(), sso.getClientId());
-    }
-}
+		assertEquals(account.getSaving().getAmount().multiply(rates.getRatio(account.getSaving().getCurrency(), Currency.getBase())),
+				point.getStatistics().get(StatisticMetric.SAVING_AMOUNT));
+	}
 
-package com.piggymetrics.statistics.controller;
+	private void assertMatchesBaseline(ExchangeRatesSnapshot rates, List<Item> items,
+									   Set<ItemMetric> metrics, BigDecimal total) {
 
-import com.piggymetrics.statistics.domain.Account;
-import com.piggymetrics.statistics.domain.timeseries.DataPoint;
-import com.piggymetrics.statistics.service.StatisticsService;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.web.bind.annotation.*;
+		Set<ItemMetric> baseline = items.stream()
+				.map(item -> normalizeAsBaseline(rates, item))
+				.collect(Collectors.toSet());
 
-import javax.validation.Valid;
-import java.security.Principal;
-import java.util.List;
+		Map<String, BigDecimal> amounts = amounts(metrics);
+		assertEquals(amounts(baseline).keySet(), amounts.keySet());
 
-@RestController
-public class StatisticsController {
+		BigDecimal baselineTotal = BigDecimal.ZERO;
+		BigDecimal totalTolerance = BigDecimal.ZERO;
 
-	@Autowired
-	private StatisticsService statisticsService;
+		for (ItemMetric metric : baseline) {
+			BigDecimal tolerance = toleranceOf(metric.getAmount());
+			assertWithin(metric.getAmount(), amounts.get(metric.getTitle()), tolerance);
+			baselineTotal = baselineTotal.add(metric.getAmount());
+			totalTolerance = totalTolerance.add(tolerance);
+		}
 
-	@RequestMapping(value = "/current", method = RequestMethod.GET)
-	public List<DataPoint> getCurrentAccountStatistics(Principal principal) {
-		return statisticsService.findByAccountName(principal.getName());
+		assertWithin(baselineTotal, total, totalTolerance);
 	}
 
-	@PreAuthorize("#oauth2.hasScope('server') or #accountName.equals('demo')")
-	@RequestMapping(value = "/{accountName}", method = RequestMethod.GET)
-	public List<DataPoint> getStatisticsByAccountName(@PathVariable String accountName) {
-		return statisticsService.findByAccountName(accountName);
+	private ItemMetric normalizeAsBaseline(ExchangeRatesSnapshot rates, Item item) {
+		BigDecimal amount = item.getAmount()
+				.multiply(rates.getRatio(item.getCurrency(), Currency.getBase()))
+				.divide(new BigDecimal(item.getPeriod().getBaseRatio().doubleValue()), 4, RoundingMode.HALF_UP);
+		return new ItemMetric(item.getTitle(), amount);
 	}
 
-	@PreAuthorize("#oauth2.hasScope('server')")
-	@RequestMapping(value = "/{accountName}", method = RequestMethod.PUT)
-	public void saveAccountStatistics(@PathVariable String accountName, @Valid @RequestBody Account account) {
-		statisticsService.save(accountName, account);
+	private BigDecimal toleranceOf(BigDecimal amount) {
+		return UNIT_TOLERANCE.add(amount.abs().multiply(RELATIVE_TOLERANCE));
 	}
-}
 
-package com.piggymetrics.statistics.service;
+	private void assertWithin(BigDecimal expected, BigDecimal actual, BigDecimal tolerance) {
+		assertTrue(actual + " differs from " + expected + " by more than " + tolerance,
+				expected.subtract(actual).abs().compareTo(tolerance) <= 0);
+	}
 
-import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.statistics.client.ExchangeRatesClient;
-import com.piggymetrics.statistics.domain.Currency;
-import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
+	/**
+	 * Compares results with the plain {@link BigDecimal} computation, including scale
+	 */
+	private DataPoint assertSameResults(ExchangeRatesSnapshot rates, Account account) {
 
-import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.time.LocalDate;
-import java.util.Map;
+		DataPoint point = new DataPoint();
+		new StatisticsCalculator(rates).calculate(account, point);
 
-@Service
-public class ExchangeRatesServiceImpl implements ExchangeRatesService {
+		Set<ItemMetric> incomes = account.getIncomes().stream()
+				.map(item -> normalize(rates, item))
+				.collect(Collectors.toSet());
 
-	private static final Logger log = LoggerFactory.getLogger(ExchangeRatesServiceImpl.class);
+		Set<ItemMetric> expenses = account.getExpenses().stream()
+				.map(item -> normalize(rates, item))
+				.collect(Collectors.toSet());
 
-	private ExchangeRatesContainer container;
+		assertEquals(amounts(incomes), amounts(point.getIncomes()));
+		assertEquals(amounts(expenses), amounts(point.getExpenses()));
 
-	@Autowired
-	private ExchangeRatesClient client;
+		assertEquals(incomes.stream().map(ItemMetric::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add),
+				point.getStatistics().get(StatisticMetric.INCOMES_AMOUNT));
+		assertEquals(expenses.stream().map(ItemMetric::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add),
+				point.getStatistics().get(StatisticMetric.EXPENSES_AMOUNT));
+		assertEquals(account.getSaving().getAmount().multiply(rates.getRatio(account.getSaving().getCurrency(), Currency.getBase())),
+				point.getStatistics().get(StatisticMetric.SAVING_AMOUNT));
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public Map<Currency, BigDecimal> getCurrentRates() {
+		return point;
+	}
 
-		if (container == null || !container.getDate().equals(LocalDate.now())) {
-			container = client.getRates(Currency.getBase());
-			log.info("exchange rates has been updated: {}", container);
-		}
+	private ItemMetric normalize(ExchangeRatesSnapshot rates, Item item) {
+		BigDecimal amount = item.getAmount()
+				.multiply(rates.getRatio(item.getCurrency(), Currency.getBase()))
+				.divide(item.getPeriod().getBaseRatio(), 4, RoundingMode.HALF_UP);
+		return new ItemMetric(item.getTitle(), amount);
+	}
 
-		return ImmutableMap.of(
-				Currency.EUR, container.getRates().get(Currency.EUR.name()),
-				Currency.RUB, container.getRates().get(Currency.RUB.name()),
-				Currency.USD, BigDecimal.ONE
-		);
+	private Map<String, BigDecimal> amounts(Set<ItemMetric> metrics) {
+		return metrics.stream().collect(Collectors.toMap(ItemMetric::getTitle, ItemMetric::getAmount));
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public BigDecimal convert(Currency from, Currency to, BigDecimal amount) {
+	private List<Item> randomItems(Random random) {
 
-		Assert.notNull(amount);
+		List<Item> items = new ArrayList<>();
 
-		Map<Currency, BigDecimal> rates = getCurrentRates();
-		BigDecimal ratio = rates.get(to).divide(rates.get(from), 4, RoundingMode.HALF_UP);
+		for (int i = random.nextInt(8); i > 0; i--) {
+			items.add(createItem(TITLES[random.nextInt(TITLES.length)], randomAmount(random),
+					Currency.values()[random.nextInt(Currency.values().length)],
+					TimePeriod.values()[random.nextInt(TimePeriod.values().length)]));
+		}
 
-		return amount.multiply(ratio);
+		return items;
 	}
-}
 
-package com.piggymetrics.statistics.service;
-
-import com.piggymetrics.statistics.domain.Account;
-import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+	/**
+	 * Mostly amounts with up to 4 decimal digits, sometimes negative,
+	 * with more digits or too large for fixed-point computation
+	 */
+	private BigDecimal randomAmount(Random random) {
 
-import java.util.List;
+		int kind = random.nextInt(20);
 
-public interface StatisticsService {
+		if (kind == 0) {
+			return new BigDecimal(new BigInteger(80, random), random.nextInt(3));
+		}
 
-	/**
-	 * Finds account by given name
-	 *
-	 * @param accountName
-	 * @return found account
-	 */
-	List<DataPoint> findByAccountName(String accountName);
+		int scale = kind == 1 ? 5 + random.nextInt(4) : random.nextInt(5);
+		BigDecimal amount = BigDecimal.valueOf(random.nextInt(10_000_000), scale);
 
-	/**
-	 * Converts given {@link Account} object to {@link DataPoint} with
-	 * a set of significant statistic metrics.
-	 *
-	 * Compound {@link DataPoint#id} forces to rewrite the object
-	 * for each account within a day.
-	 *
-	 * @param accountName
-	 * @param account
-	 */
-	DataPoint save(String accountName, Account account);
+		return kind == 2 ? amount.negate() : amount;
+	}
 
-}
+	private BigDecimal randomRate(Random random) {
+		return BigDecimal.valueOf(1 + random.nextInt(10_000_000), random.nextInt(7));
+	}
 
-package com.piggymetrics.statistics.service;
+	private Account createAccount(List<Item> incomes, List<Item> expenses, BigDecimal savingAmount) {
 
-import com.piggymetrics.statistics.domain.Currency;
+		Saving saving = new Saving();
+		saving.setAmount(savingAmount);
+		saving.setCurrency(Currency.EUR);
 
-import java.math.BigDecimal;
-import java.util.Map;
+		Account account = new Account();
+		account.setIncomes(incomes);
+		account.setExpenses(expenses);
+		account.setSaving(saving);
 
-public interface ExchangeRatesService {
+		return account;
+	}
 
-	/**
-	 * Requests today's foreign exchange rates from a provider
-	 * or reuses values from the last request (if they are still relevant)
-	 *
-	 * @return current date rates
-	 */
-	Map<Currency, BigDecimal> getCurrentRates();
+	private Item createItem(String title, BigDecimal amount, Currency currency, TimePeriod period) {
+		Item item = new Item();
+		item.setTitle(title);
+		item.setAmount(amount);
+		item.setCurrency(currency);
+		item.setPeriod(period);
+		return item;
+	}
 
-	/**
-	 * Converts given amount to specified currency
-	 *
-	 * @param from {@link Currency}
-	 * @param to {@link Currency}
-	 * @param amount to be converted
-	 * @return converted amount
-	 */
-	BigDecimal convert(Currency from, Currency to, BigDecimal amount);
+	private ExchangeRatesSnapshot createSnapshot(Map<Currency, BigDecimal> rates) {
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(rates.entrySet().stream()
+				.collect(Collectors.toMap(e -> e.getKey().name(), Map.Entry::getValue)));
+		return ExchangeRatesSnapshot.of(container, Instant.now());
+	}
 }
 
 package com.piggymetrics.statistics.service;
 
 import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.statistics.domain.*;
+import com.google.common.collect.Sets;
+import com.piggymetrics.statistics.domain.RecomputationCheckpoint;
 import com.piggymetrics.statistics.domain.timeseries.DataPoint;
 import com.piggymetrics.statistics.domain.timeseries.DataPointId;
 import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
 import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
 import com.piggymetrics.statistics.repository.DataPointRepository;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
+import com.piggymetrics.statistics.repository.RecomputationCheckpointRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.springframework.data.util.CloseableIterator;
 
 import java.math.BigDecimal;
-import java.math.RoundingMode;
-import java.time.Instant;
-import java.time.LocalDate;
-import java.time.ZoneId;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.Date;
-import java.util.List;
-import java.util.Map;
-import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.Iterator;
+import java.util.Optional;
 
-@Service
-public class StatisticsServiceImpl implements StatisticsService {
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
 
-	private final Logger log = LoggerFactory.getLogger(getClass());
+public class RecomputationJobTest {
 
-	@Autowired
+	@Mock
 	private DataPointRepository repository;
 
-	@Autowired
-	private ExchangeRatesService ratesService;
+	@Mock
+	private RollupService rollupService;
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public List<DataPoint> findByAccountName(String accountName) {
-		Assert.hasLength(accountName);
-		return repository.findByIdAccount(accountName);
-	}
+	@Mock
+	private RecomputationCheckpointRepository checkpoints;
 
-	/**
-	 * {@inheritDoc}
-	 */
-	@Override
-	public DataPoint save(String accountName, Account account) {
+	private RecomputationJob job;
 
-		Instant instant = LocalDate.now().atStartOfDay()
-				.atZone(ZoneId.systemDefault()).toInstant();
+	@Before
+	public void setup() {
+		initMocks(this);
+		job = new RecomputationJob(repository, rollupService, checkpoints, 2, 2);
+		when(checkpoints.findById(RecomputationJob.CHECKPOINT_ID)).thenReturn(Optional.empty());
+	}
 
-		DataPointId pointId = new DataPointId(accountName, Date.from(instant));
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldRewriteDataPointsWithStaleTotals() {
 
-		Set<ItemMetric> incomes = account.getIncomes().stream()
-				.map(this::createItemMetric)
-				.collect(Collectors.toSet());
+		DataPoint stale = createDataPoint("first", new Date(0), new BigDecimal("10"));
+		DataPoint upToDate = createDataPoint("second", new Date(0), new BigDecimal("300"));
 
-		Set<ItemMetric> expenses = account.getExpenses().stream()
-				.map(this::createItemMetric)
-				.collect(Collectors.toSet());
+		when(repository.streamAfter(null)).thenReturn(cursorOf(stale, upToDate));
 
-		Map<StatisticMetric, BigDecimal> statistics = createStatisticMetrics(incomes, expenses, account.getSaving());
+		job.run(false);
 
-		DataPoint dataPoint = new DataPoint();
-		dataPoint.setId(pointId);
-		dataPoint.setIncomes(incomes);
-		dataPoint.setExpenses(expenses);
-		dataPoint.setStatistics(statistics);
-		dataPoint.setRates(ratesService.getCurrentRates());
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(repository, times(1)).bulkUpsert(captor.capture());
+		verify(rollupService, times(1)).apply(anyMap(), anyCollection());
 
-		log.debug("new datapoint has been created: {}", pointId);
-
-		return repository.save(dataPoint);
+		DataPoint written = (DataPoint) captor.getValue().iterator().next();
+		assertEquals(1, captor.getValue().size());
+		assertEquals("first", written.getId().getAccount());
+		assertEquals(0, new BigDecimal("300").compareTo(written.getStatistics().get(StatisticMetric.INCOMES_AMOUNT)));
+		assertEquals(0, new BigDecimal("7").compareTo(written.getStatistics().get(StatisticMetric.SAVING_AMOUNT)));
 	}
 
-	private Map<StatisticMetric, BigDecimal> createStatisticMetrics(Set<ItemMetric> incomes, Set<ItemMetric> expenses, Saving saving) {
-
-		BigDecimal savingAmount = ratesService.convert(saving.getCurrency(), Currency.getBase(), saving.getAmount());
-
-		BigDecimal expensesAmount = expenses.stream()
-				.map(ItemMetric::getAmount)
-				.reduce(BigDecimal.ZERO, BigDecimal::add);
-
-		BigDecimal incomesAmount = incomes.stream()
-				.map(ItemMetric::getAmount)
-				.reduce(BigDecimal.ZERO, BigDecimal::add);
+	@Test
+	public void shouldCheckpointEachBatchAndCompletion() {
 
-		return ImmutableMap.of(
-				StatisticMetric.EXPENSES_AMOUNT, expensesAmount,
-				StatisticMetric.INCOMES_AMOUNT, incomesAmount,
-				StatisticMetric.SAVING_AMOUNT, savingAmount
-		);
-	}
+		when(repository.streamAfter(null)).thenReturn(cursorOf(
+				createDataPoint("first", new Date(0), new BigDecimal("300")),
+				createDataPoint("first", new Date(1), new BigDecimal("300")),
+				createDataPoint("second", new Date(0), new BigDecimal("300"))));
 
-	/**
-	 * Normalizes given item amount to {@link Currency#getBase()} currency with
-	 * {@link TimePeriod#getBase()} time period
-	 */
-	private ItemMetric createItemMetric(Item item) {
+		job.run(false);
 
-		BigDecimal amount = ratesService
-				.convert(item.getCurrency(), Currency.getBase(), item.getAmount())
-				.divide(item.getPeriod().getBaseRatio(), 4, RoundingMode.HALF_UP);
+		ArgumentCaptor<RecomputationCheckpoint> captor = ArgumentCaptor.forClass(RecomputationCheckpoint.class);
+		verify(checkpoints, times(3)).save(captor.capture());
 
-		return new ItemMetric(item.getTitle(), amount);
+		RecomputationCheckpoint checkpoint = captor.getValue();
+		assertEquals("second", checkpoint.getAccount());
+		assertEquals(3, checkpoint.getProcessedPoints());
+		assertNotNull(checkpoint.getCompletedAt());
 	}
-}
 
-package com.piggymetrics.statistics.service.security;
+	@Test
+	public void shouldResumeAfterCheckpointedAccount() {
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.FixedAuthoritiesExtractor;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.AuthenticationException;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.oauth2.client.OAuth2RestOperations;
-import org.springframework.security.oauth2.client.OAuth2RestTemplate;
-import org.springframework.security.oauth2.client.resource.BaseOAuth2ProtectedResourceDetails;
-import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
-import org.springframework.security.oauth2.common.OAuth2AccessToken;
-import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
-import org.springframework.security.oauth2.provider.OAuth2Authentication;
-import org.springframework.security.oauth2.provider.OAuth2Request;
-import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+		RecomputationCheckpoint checkpoint = new RecomputationCheckpoint(RecomputationJob.CHECKPOINT_ID, new Date());
+		checkpoint.advance("first", 1, 0);
 
-import java.util.*;
+		when(checkpoints.findById(RecomputationJob.CHECKPOINT_ID)).thenReturn(Optional.of(checkpoint));
+		when(repository.streamAfter("first")).thenReturn(cursorOf());
 
-/**
- * Extended implementation of {@link org.springframework.boot.autoconfigure.security.oauth2.resource.UserInfoTokenServices}
- *
- * By default, it designed to return only user details. This class provides {@link #getRequest(Map)} method, which
- * returns clientId and scope of calling service. This information used in controller's security checks.
- */
+		job.run(false);
 
-public class CustomUserInfoTokenServices implements ResourceServerTokenServices {
+		verify(repository, times(1)).streamAfter("first");
+	}
 
-	protected final Log logger = LogFactory.getLog(getClass());
+	@Test
+	public void shouldStartOverWhenRestarted() {
 
-	private static final String[] PRINCIPAL_KEYS = new String[] { "user", "username",
-			"userid", "user_id", "login", "id", "name" };
+		RecomputationCheckpoint checkpoint = new RecomputationCheckpoint(RecomputationJob.CHECKPOINT_ID, new Date());
+		checkpoint.advance("first", 1, 0);
 
-	private final String userInfoEndpointUrl;
+		when(checkpoints.findById(RecomputationJob.CHECKPOINT_ID)).thenReturn(Optional.of(checkpoint));
+		when(repository.streamAfter(null)).thenReturn(cursorOf());
 
-	private final String clientId;
+		job.run(true);
 
-	private OAuth2RestOperations restTemplate;
+		verify(repository, times(1)).streamAfter(null);
+	}
 
-	private String tokenType = DefaultOAuth2AccessToken.BEARER_TYPE;
+	@Test
+	public void shouldSkipTodaysDataPoints() {
 
-	private AuthoritiesExtractor authoritiesExtractor = new FixedAuthoritiesExtractor();
+		when(repository.streamAfter(null)).thenReturn(cursorOf(
+				createDataPoint("first", new Date(), new BigDecimal("10"))));
 
-	public CustomUserInfoTokenServices(String userInfoEndpointUrl, String clientId) {
-		this.userInfoEndpointUrl = userInfoEndpointUrl;
-		this.clientId = clientId;
-	}
+		job.run(false);
 
-	public void setTokenType(String tokenType) {
-		this.tokenType = tokenType;
+		verify(repository, never()).bulkUpsert(anyCollection());
 	}
 
-	public void setRestTemplate(OAuth2RestOperations restTemplate) {
-		this.restTemplate = restTemplate;
-	}
+	@Test
+	public void shouldNotCheckpointFailedBatch() {
 
-	public void setAuthoritiesExtractor(AuthoritiesExtractor authoritiesExtractor) {
-		this.authoritiesExtractor = authoritiesExtractor;
-	}
+		when(repository.streamAfter(null)).thenReturn(cursorOf(
+				createDataPoint("first", new Date(0), new BigDecimal("10"))));
+		doThrow(new IllegalStateException()).when(repository).bulkUpsert(anyCollection());
 
-	@Override
-	public OAuth2Authentication loadAuthentication(String accessToken)
-			throws AuthenticationException, InvalidTokenException {
-		Map<String, Object> map = getMap(this.userInfoEndpointUrl, accessToken);
-		if (map.containsKey("error")) {
-			this.logger.debug("userinfo returned error: " + map.get("error"));
-			throw new InvalidTokenException(accessToken);
+		try {
+			job.run(false);
+			fail("failed batch should fail the run");
+		} catch (IllegalStateException e) {
+			// expected, so that the run resumes from the previous checkpoint
 		}
-		return extractAuthentication(map);
-	}
 
-	private OAuth2Authentication extractAuthentication(Map<String, Object> map) {
-		Object principal = getPrincipal(map);
-		OAuth2Request request = getRequest(map);
-		List<GrantedAuthority> authorities = this.authoritiesExtractor
-				.extractAuthorities(map);
-		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(
-				principal, "N/A", authorities);
-		token.setDetails(map);
-		return new OAuth2Authentication(request, token);
+		verify(checkpoints, never()).save(any(RecomputationCheckpoint.class));
 	}
 
-	private Object getPrincipal(Map<String, Object> map) {
-		for (String key : PRINCIPAL_KEYS) {
-			if (map.containsKey(key)) {
-				return map.get(key);
-			}
-		}
-		return "unknown";
+	private DataPoint createDataPoint(String account, Date date, BigDecimal incomesAmount) {
+		DataPoint point = new DataPoint();
+		point.setId(new DataPointId(account, date));
+		point.setIncomes(Sets.newHashSet(new ItemMetric("salary", new BigDecimal("100")),
+				new ItemMetric("bonus", new BigDecimal("200"))));
+		point.setExpenses(Sets.newHashSet());
+		point.setStatistics(ImmutableMap.of(
+				StatisticMetric.INCOMES_AMOUNT, incomesAmount,
+				StatisticMetric.EXPENSES_AMOUNT, BigDecimal.ZERO,
+				StatisticMetric.SAVING_AMOUNT, new BigDecimal("7")));
+		return point;
 	}
 
-	@SuppressWarnings({ "unchecked" })
-	private OAuth2Request getRequest(Map<String, Object> map) {
-		Map<String, Object> request = (Map<String, Object>) map.get("oauth2Request");
+	private CloseableIterator<DataPoint> cursorOf(DataPoint... points) {
 
-		String clientId = (String) request.get("clientId");
-		Set<String> scope = new LinkedHashSet<>(request.containsKey("scope") ?
-				(Collection<String>) request.get("scope") : Collections.<String>emptySet());
+		Iterator<DataPoint> iterator = Arrays.asList(points).iterator();
 
-		return new OAuth2Request(null, clientId, null, true, new HashSet<>(scope),
-				null, null, null, null);
-	}
+		return new CloseableIterator<DataPoint>() {
 
-	@Override
-	public OAuth2AccessToken readAccessToken(String accessToken) {
-		throw new UnsupportedOperationException("Not supported: read access token");
-	}
+			@Override
+			public boolean hasNext() {
+				return iterator.hasNext();
+			}
 
-	@SuppressWarnings({ "unchecked" })
-	private Map<String, Object> getMap(String path, String accessToken) {
-		this.logger.debug("Getting user info from: " + path);
-		try {
-			OAuth2RestOperations restTemplate = this.restTemplate;
-			if (restTemplate == null) {
-				BaseOAuth2ProtectedResourceDetails resource = new BaseOAuth2ProtectedResourceDetails();
-				resource.setClientId(this.clientId);
-				restTemplate = new OAuth2RestTemplate(resource);
+			@Override
+			public DataPoint next() {
+				return iterator.next();
 			}
-			OAuth2AccessToken existingToken = restTemplate.getOAuth2ClientContext()
-					.getAccessToken();
-			if (existingToken == null || !accessToken.equals(existingToken.getValue())) {
-				DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(
-						accessToken);
-				token.setTokenType(this.tokenType);
-				restTemplate.getOAuth2ClientContext().setAccessToken(token);
+
+			@Override
+			public void close() {
 			}
-			return restTemplate.getForEntity(path, Map.class).getBody();
-		}
-		catch (Exception ex) {
-			this.logger.info("Could not fetch user details: " + ex.getClass() + ", "
-					+ ex.getMessage());
-			return Collections.<String, Object>singletonMap("error",
-					"Could not fetch user details");
-		}
+		};
 	}
 }
 
-package com.piggymetrics.statistics.domain;
+package com.piggymetrics.statistics.service;
 
-import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.statistics.client.ExchangeRatesClient;
+import com.piggymetrics.statistics.client.ExchangeRatesClientFallback;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.test.util.ReflectionTestUtils;
 
 import java.math.BigDecimal;
-import java.time.LocalDate;
 import java.util.Map;
 
-@JsonIgnoreProperties(ignoreUnknown = true, value = {"date"})
-public class ExchangeRatesContainer {
-
-	private LocalDate date = LocalDate.now();
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
 
-	private Currency base;
+public class ExchangeRatesServiceImplTest {
 
-	private Map<String, BigDecimal> rates;
+	@InjectMocks
+	private ExchangeRatesServiceImpl ratesService;
 
-	public LocalDate getDate() {
-		return date;
-	}
+	@Mock
+	private ExchangeRatesClient client;
 
-	public void setDate(LocalDate date) {
-		this.date = date;
+	@Before
+	public void setup() {
+		initMocks(this);
 	}
 
-	public Currency getBase() {
-		return base;
-	}
+	@Test
+	public void shouldReturnCurrentRatesWhenContainerIsEmptySoFar() {
 
-	public void setBase(Currency base) {
-		this.base = base;
-	}
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(ImmutableMap.of(
+				Currency.EUR.name(), new BigDecimal("0.8"),
+				Currency.RUB.name(), new BigDecimal("80")
+		));
 
-	public Map<String, BigDecimal> getRates() {
-		return rates;
-	}
+		when(client.getRates(Currency.getBase())).thenReturn(container);
 
-	public void setRates(Map<String, BigDecimal> rates) {
-		this.rates = rates;
-	}
+		Map<Currency, BigDecimal> result = ratesService.getCurrentRates();
+		verify(client, times(1)).getRates(Currency.getBase());
 
-	@Override
-	public String toString() {
-		return "RateList{" +
-				"date=" + date +
-				", base=" + base +
-				", rates=" + rates +
-				'}';
+		assertEquals(container.getRates().get(Currency.EUR.name()), result.get(Currency.EUR));
+		assertEquals(container.getRates().get(Currency.RUB.name()), result.get(Currency.RUB));
+		assertEquals(BigDecimal.ONE, result.get(Currency.USD));
 	}
-}
 
-package com.piggymetrics.statistics.domain;
+	@Test
+	public void shouldNotRequestRatesWhenTodaysContainerAlreadyExists() {
 
-import java.math.BigDecimal;
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(ImmutableMap.of(
+				Currency.EUR.name(), new BigDecimal("0.8"),
+				Currency.RUB.name(), new BigDecimal("80")
+		));
 
-public enum TimePeriod {
+		when(client.getRates(Currency.getBase())).thenReturn(container);
 
-	YEAR(365.2425), QUARTER(91.3106), MONTH(30.4368), DAY(1), HOUR(0.0416);
+		// initialize container
+		ratesService.getCurrentRates();
 
-	private double baseRatio;
+		// use existing container
+		ratesService.getCurrentRates();
 
-	TimePeriod(double baseRatio) {
-		this.baseRatio = baseRatio;
+		verify(client, times(1)).getRates(Currency.getBase());
 	}
 
-	public BigDecimal getBaseRatio() {
-		return new BigDecimal(baseRatio);
-	}
+	@Test
+	public void shouldConvertCurrency() {
 
-	public static TimePeriod getBase() {
-		return DAY;
-	}
-}
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(ImmutableMap.of(
+				Currency.EUR.name(), new BigDecimal("0.8"),
+				Currency.RUB.name(), new BigDecimal("80")
+		));
 
-package com.piggymetrics.statistics.domain;
+		when(client.getRates(Currency.getBase())).thenReturn(container);
 
-import org.codehaus.jackson.annotate.JsonIgnoreProperties;
-import org.springframework.data.mongodb.core.mapping.Document;
+		final BigDecimal amount = new BigDecimal(100);
+		final BigDecimal expectedConvertionResult = new BigDecimal("1.25");
 
-import javax.validation.Valid;
-import javax.validation.constraints.NotNull;
-import java.util.List;
+		BigDecimal result = ratesService.convert(Currency.RUB, Currency.USD, amount);
 
-@Document(collection = "accounts")
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class Account {
+		assertTrue(expectedConvertionResult.compareTo(result) == 0);
+	}
 
-	@Valid
-	@NotNull
-	private List<Item> incomes;
+	@Test
+	public void shouldRefreshRatesWhenTheyAreOutdated() {
 
-	@Valid
-	@NotNull
-	private List<Item> expenses;
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(ImmutableMap.of(
+				Currency.EUR.name(), new BigDecimal("0.8"),
+				Currency.RUB.name(), new BigDecimal("80")
+		));
 
-	@Valid
-	@NotNull
-	private Saving saving;
+		ExchangeRatesContainer updated = new ExchangeRatesContainer();
+		updated.setRates(ImmutableMap.of(
+				Currency.EUR.name(), new BigDecimal("0.9"),
+				Currency.RUB.name(), new BigDecimal("70")
+		));
 
-	public List<Item> getIncomes() {
-		return incomes;
-	}
+		when(client.getRates(Currency.getBase())).thenReturn(container, updated);
 
-	public void setIncomes(List<Item> incomes) {
-		this.incomes = incomes;
-	}
+		ratesService.getCurrentRates();
 
-	public List<Item> getExpenses() {
-		return expenses;
+		ReflectionTestUtils.setField(ratesService, "maxAge", 0L);
+		ratesService.refreshIfExpired();
+
+		Map<Currency, BigDecimal> result = ratesService.getCurrentRates();
+
+		verify(client, times(2)).getRates(Currency.getBase());
+		assertEquals(updated.getRates().get(Currency.EUR.name()), result.get(Currency.EUR));
+		assertEquals(updated.getRates().get(Currency.RUB.name()), result.get(Currency.RUB));
 	}
 
-	public void setExpenses(List<Item> expenses) {
-		this.expenses = expenses;
+	@Test
+	public void shouldKeepPreviousRatesWhenProviderIsUnavailable() {
+
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(ImmutableMap.of(
+				Currency.EUR.name(), new BigDecimal("0.8"),
+				Currency.RUB.name(), new BigDecimal("80")
+		));
+
+		ExchangeRatesContainer fallback = new ExchangeRatesClientFallback().getRates(Currency.getBase());
+
+		when(client.getRates(Currency.getBase())).thenReturn(container, fallback);
+
+		ratesService.getCurrentRates();
+
+		ReflectionTestUtils.setField(ratesService, "maxAge", 0L);
+		ratesService.refreshIfExpired();
+
+		Map<Currency, BigDecimal> result = ratesService.getCurrentRates();
+
+		verify(client, times(2)).getRates(Currency.getBase());
+		assertEquals(container.getRates().get(Currency.EUR.name()), result.get(Currency.EUR));
+		assertEquals(container.getRates().get(Currency.RUB.name()), result.get(Currency.RUB));
+		assertFalse(result.isEmpty());
 	}
 
-	public Saving getSaving() {
-		return saving;
+	@Test(expected = IllegalStateException.class)
+	public void shouldFailWhenRatesHaveNeverBeenLoaded() {
+
+		ExchangeRatesContainer fallback = new ExchangeRatesClientFallback().getRates(Currency.getBase());
+		when(client.getRates(Currency.getBase())).thenReturn(fallback);
+
+		ratesService.getCurrentRates();
 	}
 
-	public void setSaving(Saving saving) {
-		this.saving = saving;
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailToConvertWhenAmountIsNull() {
+		ratesService.convert(Currency.EUR, Currency.RUB, null);
 	}
 }
+package com.piggymetrics.statistics.service;
 
-package com.piggymetrics.statistics.domain;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
 
-import javax.validation.constraints.NotNull;
 import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
 
-public class Saving {
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
 
-	@NotNull
-	private BigDecimal amount;
+public class DataPointWriteBufferTest {
 
-	@NotNull
-	private Currency currency;
+	@Mock
+	private DataPointRepository repository;
 
-	@NotNull
-	private BigDecimal interest;
+	@Mock
+	private RollupService rollupService;
 
-	@NotNull
-	private Boolean deposit;
+	@Mock
+	private RollupReconciler reconciler;
 
-	@NotNull
-	private Boolean capitalization;
+	private DataPointWriteBuffer buffer;
 
-	public BigDecimal getAmount() {
-		return amount;
+	@Before
+	public void setup() {
+		initMocks(this);
+		buffer = new DataPointWriteBuffer(repository, rollupService, reconciler, true, 2, 100);
 	}
 
-	public void setAmount(BigDecimal amount) {
-		this.amount = amount;
+	@After
+	public void teardown() throws InterruptedException {
+		buffer.close();
 	}
 
-	public Currency getCurrency() {
-		return currency;
-	}
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldKeepLatestDataPointWithinADay() {
 
-	public void setCurrency(Currency currency) {
-		this.currency = currency;
-	}
+		DataPoint earlier = createDataPoint("test", new BigDecimal(100));
+		DataPoint later = createDataPoint("test", new BigDecimal(200));
 
-	public BigDecimal getInterest() {
-		return interest;
-	}
+		buffer.offer(earlier);
+		buffer.offer(later);
 
-	public void setInterest(BigDecimal interest) {
-		this.interest = interest;
-	}
+		assertEquals(1, buffer.size());
 
-	public Boolean getDeposit() {
-		return deposit;
-	}
+		buffer.flush();
 
-	public void setDeposit(Boolean deposit) {
-		this.deposit = deposit;
-	}
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(repository, times(1)).bulkUpsert(captor.capture());
 
-	public Boolean getCapitalization() {
-		return capitalization;
+		List<DataPoint> written = new ArrayList<>(captor.getValue());
+		assertEquals(1, written.size());
+		assertSame(later, written.get(0));
+		assertEquals(0, buffer.size());
 	}
 
-	public void setCapitalization(Boolean capitalization) {
-		this.capitalization = capitalization;
-	}
-}
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldApplyRollupsOfWrittenDataPoints() {
 
-package com.piggymetrics.statistics.domain;
+		DataPoint previous = createDataPoint("test", BigDecimal.ONE);
+		DataPoint current = createDataPoint("test", BigDecimal.TEN);
+		Map<DataPointId, DataPoint> replaced = ImmutableMap.of(previous.getId(), previous);
 
-public enum Currency {
+		when(repository.bulkUpsert(anyCollection())).thenReturn(replaced);
 
-	USD, EUR, RUB;
+		buffer.offer(current);
+		buffer.flush();
 
-	public static Currency getBase() {
-		return USD;
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(rollupService, times(1)).apply(eq(replaced), captor.capture());
+		assertSame(current, captor.getValue().iterator().next());
 	}
-}
 
-package com.piggymetrics.statistics.domain;
+	@Test
+	public void shouldNotApplyRollupsWhenWriteFails() {
 
-import org.hibernate.validator.constraints.Length;
+		doThrow(new IllegalStateException()).when(repository).bulkUpsert(anyCollection());
 
-import javax.validation.constraints.NotNull;
-import java.math.BigDecimal;
+		buffer.offer(createDataPoint("test", BigDecimal.ONE));
+		buffer.flush();
 
-public class Item {
+		verify(rollupService, never()).apply(anyMap(), anyCollection());
+	}
 
-	@NotNull
-	@Length(min = 1, max = 20)
-	private String title;
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldMarkRollupsStaleWhenRollupUpdateFails() {
 
-	@NotNull
-	private BigDecimal amount;
+		DataPoint point = createDataPoint("test", BigDecimal.ONE);
 
-	@NotNull
-	private Currency currency;
+		doThrow(new IllegalStateException()).when(rollupService).apply(anyMap(), anyCollection());
 
-	@NotNull
-	private TimePeriod period;
+		buffer.offer(point);
+		buffer.flush();
 
-	public String getTitle() {
-		return title;
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(reconciler, times(1)).markStale(captor.capture());
+		assertSame(point, captor.getValue().iterator().next());
 	}
 
-	public void setTitle(String title) {
-		this.title = title;
+	@Test(expected = IngestionRejectedException.class)
+	public void shouldRejectDataPointWhenBufferIsFull() {
+		buffer.offer(createDataPoint("first", BigDecimal.ONE));
+		buffer.offer(createDataPoint("second", BigDecimal.ONE));
+		buffer.offer(createDataPoint("third", BigDecimal.ONE));
 	}
 
-	public BigDecimal getAmount() {
-		return amount;
-	}
+	@Test
+	public void shouldAcceptReplacementWhenBufferIsFull() {
+		buffer.offer(createDataPoint("first", BigDecimal.ONE));
+		buffer.offer(createDataPoint("second", BigDecimal.ONE));
+		buffer.offer(createDataPoint("second", BigDecimal.TEN));
 
-	public void setAmount(BigDecimal amount) {
-		this.amount = amount;
+		assertEquals(2, buffer.size());
 	}
 
-	public Currency getCurrency() {
-		return currency;
-	}
+	@Test
+	public void shouldReturnDataPointsToBufferWhenWriteFails() {
 
-	public void setCurrency(Currency currency) {
-		this.currency = currency;
-	}
+		doThrow(new IllegalStateException()).when(repository).bulkUpsert(anyCollection());
 
-	public TimePeriod getPeriod() {
-		return period;
-	}
+		buffer.offer(createDataPoint("test", BigDecimal.ONE));
+		buffer.flush();
 
-	public void setPeriod(TimePeriod period) {
-		this.period = period;
+		assertEquals(1, buffer.size());
 	}
-}
 
-package com.piggymetrics.statistics.domain.timeseries;
+	@Test
+	public void shouldNotExceedCapacityWhenFailedBatchIsReturned() throws Exception {
 
-import com.piggymetrics.statistics.domain.Currency;
-import com.piggymetrics.statistics.domain.TimePeriod;
+		CountDownLatch writing = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
 
-import java.math.BigDecimal;
+		when(repository.bulkUpsert(anyCollection())).thenAnswer(invocation -> {
+			writing.countDown();
+			release.await();
+			throw new IllegalStateException();
+		});
 
-/**
- * Represents normalized {@link com.piggymetrics.statistics.domain.Item} object
- * with {@link Currency#getBase()} currency and {@link TimePeriod#getBase()} time period
- */
-public class ItemMetric {
+		buffer.offer(createDataPoint("first", BigDecimal.ONE));
+		buffer.offer(createDataPoint("second", BigDecimal.ONE));
 
-	private String title;
+		Thread flush = new Thread(buffer::flush);
+		flush.start();
+		assertTrue(writing.await(1, TimeUnit.SECONDS));
 
-	private BigDecimal amount;
+		try {
+			buffer.offer(createDataPoint("third", BigDecimal.ONE));
+			fail("batch being written should count against capacity");
+		} catch (IngestionRejectedException e) {
+			// expected
+		}
 
-	public ItemMetric(String title, BigDecimal amount) {
-		this.title = title;
-		this.amount = amount;
-	}
+		release.countDown();
+		flush.join(1000);
 
-	public String getTitle() {
-		return title;
+		assertEquals(2, buffer.size());
 	}
 
-	public BigDecimal getAmount() {
-		return amount;
-	}
+	@Test
+	public void shouldWritePendingDataPointsOnClose() throws InterruptedException {
 
-	@Override
-	public boolean equals(Object o) {
-		if (this == o) return true;
-		if (o == null || getClass() != o.getClass()) return false;
+		buffer.offer(createDataPoint("test", BigDecimal.ONE));
+		buffer.close();
 
-		ItemMetric that = (ItemMetric) o;
+		verify(repository, times(1)).bulkUpsert(anyCollection());
+	}
 
-		return title.equalsIgnoreCase(that.title);
+	@Test(expected = IngestionRejectedException.class)
+	public void shouldRejectDataPointWhenBufferIsClosed() throws InterruptedException {
+		buffer.close();
+		buffer.offer(createDataPoint("test", BigDecimal.ONE));
+	}
 
+	@Test
+	public void shouldNotWriteWhenBufferIsEmpty() {
+		buffer.flush();
+		verify(repository, never()).bulkUpsert(anyCollection());
 	}
 
-	@Override
-	public int hashCode() {
-		return title.hashCode();
+	private DataPoint createDataPoint(String account, BigDecimal saving) {
+		DataPoint point = new DataPoint();
+		point.setId(new DataPointId(account, new Date(0)));
+		point.setStatistics(ImmutableMap.of(StatisticMetric.SAVING_AMOUNT, saving));
+		return point;
 	}
 }
 
-package com.piggymetrics.statistics.domain.timeseries;
+package com.piggymetrics.statistics.service;
 
-import com.piggymetrics.statistics.domain.Currency;
-import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.Document;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.statistics.domain.Money;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import com.piggymetrics.statistics.repository.RollupRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
 
 import java.math.BigDecimal;
-import java.util.Map;
-import java.util.Set;
-
-/**
- * Represents daily time series data point containing
- * current account state
- */
-@Document(collection = "datapoints")
-public class DataPoint {
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
 
-	@Id
-	private DataPointId id;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anySet;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
 
-	private Set<ItemMetric> incomes;
+public class RollupServiceImplTest {
 
-	private Set<ItemMetric> expenses;
+	@InjectMocks
+	private RollupServiceImpl rollupService;
 
-	private Map<StatisticMetric, BigDecimal> statistics;
+	@Mock
+	private RollupRepository repository;
 
-	private Map<Currency, BigDecimal> rates;
+	@Mock
+	private DataPointRepository dataPointRepository;
 
-	public DataPointId getId() {
-		return id;
+	@Before
+	public void setup() {
+		initMocks(this);
+		when(repository.findAllById(any())).thenReturn(Collections.emptyList());
 	}
 
-	public void setId(DataPointId id) {
-		this.id = id;
-	}
+	@Test
+	public void shouldAddNewDataPointToEachRollupPeriod() {
 
-	public Set<ItemMetric> getIncomes() {
-		return incomes;
-	}
+		DataPoint point = createDataPoint(LocalDate.of(2017, 3, 15), new BigDecimal("10.5"));
 
-	public void setIncomes(Set<ItemMetric> incomes) {
-		this.incomes = incomes;
-	}
+		rollupService.apply(null, point);
 
-	public Set<ItemMetric> getExpenses() {
-		return expenses;
-	}
+		List<Rollup> deltas = captureDeltas();
 
-	public void setExpenses(Set<ItemMetric> expenses) {
-		this.expenses = expenses;
-	}
+		assertEquals(RollupPeriod.values().length, deltas.size());
 
-	public Map<StatisticMetric, BigDecimal> getStatistics() {
-		return statistics;
-	}
+		for (Rollup delta : deltas) {
+			assertEquals(1, delta.getCount());
+			assertEquals("test", delta.getAccount());
+			assertEquals(0, new BigDecimal("10.5").compareTo(delta.getTotals().get(StatisticMetric.SAVING_AMOUNT)));
+		}
 
-	public void setStatistics(Map<StatisticMetric, BigDecimal> statistics) {
-		this.statistics = statistics;
+		assertEquals(toDate(LocalDate.of(2017, 3, 13)), deltas.get(0).getStart());
+		assertEquals(toDate(LocalDate.of(2017, 3, 1)), deltas.get(1).getStart());
+		assertEquals(toDate(LocalDate.of(2017, 1, 1)), deltas.get(2).getStart());
 	}
 
-	public Map<Currency, BigDecimal> getRates() {
-		return rates;
-	}
+	@Test
+	public void shouldRetractReplacedDataPoint() {
 
-	public void setRates(Map<Currency, BigDecimal> rates) {
-		this.rates = rates;
+		DataPoint previous = createDataPoint(LocalDate.of(2017, 3, 15), new BigDecimal("10.5"));
+		DataPoint current = createDataPoint(LocalDate.of(2017, 3, 15), new BigDecimal("4"));
+
+		rollupService.apply(previous, current);
+
+		for (Rollup delta : captureDeltas()) {
+			assertEquals(0, delta.getCount());
+			assertEquals(0, new BigDecimal("-6.5").compareTo(delta.getTotals().get(StatisticMetric.SAVING_AMOUNT)));
+			assertFalse(delta.getSums().containsKey(StatisticMetric.INCOMES_AMOUNT));
+		}
 	}
-}
 
-package com.piggymetrics.statistics.domain.timeseries;
+	@Test
+	public void shouldRebuildRollupsFromDataPointsOfWeekAndMonthOnly() {
 
-import java.io.Serializable;
-import java.util.Date;
+		Rollup january = new Rollup("test", RollupPeriod.MONTH, LocalDate.of(2017, 1, 1));
+		january.setCount(1);
+		january.getSums().put(StatisticMetric.SAVING_AMOUNT, Money.of(BigDecimal.ONE));
 
-public class DataPointId implements Serializable {
+		when(dataPointRepository.findDownsampled(eq("test"), any(Date.class), any(Date.class),
+				eq(Resolution.DAY), anySet())).thenReturn(ImmutableList.of(
+				createDataPoint(LocalDate.of(2017, 3, 14), new BigDecimal("10.5")),
+				createDataPoint(LocalDate.of(2017, 3, 15), new BigDecimal("4"))));
+		when(repository.findStartedWithin(eq("test"), eq(RollupPeriod.MONTH), any(Date.class), any(Date.class),
+				any(Sort.class))).thenReturn(ImmutableList.of(january));
+		when(repository.replace(any(Rollup.class), any())).thenReturn(true);
 
-	private static final long serialVersionUID = 1L;
+		rollupService.rebuild("test", toDate(LocalDate.of(2017, 3, 15)));
 
-	private String account;
+		verify(dataPointRepository).findDownsampled(eq("test"), eq(toDate(LocalDate.of(2017, 3, 1))),
+				eq(toDate(LocalDate.of(2017, 3, 31))), eq(Resolution.DAY), anySet());
 
-	private Date date;
+		List<Rollup> rollups = captureRebuilt(1);
 
-	public DataPointId(String account, Date date) {
-		this.account = account;
-		this.date = date;
+		assertEquals(RollupPeriod.values().length, rollups.size());
+
+		for (Rollup rollup : rollups.subList(0, 2)) {
+			assertEquals(2, rollup.getCount());
+			assertEquals(0, new BigDecimal("14.5").compareTo(rollup.getTotals().get(StatisticMetric.SAVING_AMOUNT)));
+			assertEquals(0, new BigDecimal(200).compareTo(rollup.getTotals().get(StatisticMetric.INCOMES_AMOUNT)));
+		}
+
+		Rollup year = rollups.get(2);
+		assertEquals(RollupPeriod.YEAR, year.getPeriod());
+		assertEquals(3, year.getCount());
+		assertEquals(0, new BigDecimal("15.5").compareTo(year.getTotals().get(StatisticMetric.SAVING_AMOUNT)));
 	}
 
-	public String getAccount() {
-		return account;
+	@Test
+	public void shouldRepeatRebuildWhenRollupsHaveBeenIncrementedMeanwhile() {
+
+		when(dataPointRepository.findDownsampled(eq("test"), any(Date.class), any(Date.class),
+				eq(Resolution.DAY), anySet())).thenReturn(ImmutableList.of(
+				createDataPoint(LocalDate.of(2017, 3, 15), new BigDecimal("4"))));
+		when(repository.replace(any(Rollup.class), any())).thenReturn(false, true);
+
+		rollupService.rebuild("test", toDate(LocalDate.of(2017, 3, 15)));
+
+		verify(dataPointRepository, times(2)).findDownsampled(eq("test"), any(Date.class), any(Date.class),
+				eq(Resolution.DAY), anySet());
+		assertEquals(2 * RollupPeriod.values().length, captureRebuilt(2).size());
 	}
 
-	public Date getDate() {
-		return date;
+	@Test(expected = OptimisticLockingFailureException.class)
+	public void shouldGiveUpRebuildWhenRollupsKeepBeingIncremented() {
+		when(repository.replace(any(Rollup.class), any())).thenReturn(false);
+		rollupService.rebuild("test", toDate(LocalDate.of(2017, 3, 15)));
 	}
 
-	@Override
-	public String toString() {
-		return "DataPointId{" +
-				"account='" + account + '\'' +
-				", date=" + date +
-				'}';
+	@Test
+	public void shouldComputeRollupAverages() {
+
+		Rollup rollup = new Rollup("test", RollupPeriod.MONTH, LocalDate.of(2017, 3, 1));
+		rollup.setCount(3);
+		rollup.getSums().put(StatisticMetric.EXPENSES_AMOUNT, Money.of(BigDecimal.TEN));
+
+		assertEquals(new BigDecimal("3.3333"), rollup.getAverages().get(StatisticMetric.EXPENSES_AMOUNT));
+		assertEquals(new BigDecimal("10"), rollup.getTotals().get(StatisticMetric.EXPENSES_AMOUNT));
 	}
-}
 
-package com.piggymetrics.statistics.domain.timeseries;
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailToFindRollupsWhenRangeIsInverted() {
+		rollupService.findByAccountName("test", RollupPeriod.MONTH, new Date(), new Date(0));
+	}
 
-public enum StatisticMetric {
+	@SuppressWarnings("unchecked")
+	private List<Rollup> captureDeltas() {
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(repository).increment(captor.capture());
+		return new ArrayList<>(captor.getValue());
+	}
 
-	INCOMES_AMOUNT, EXPENSES_AMOUNT, SAVING_AMOUNT
+	private List<Rollup> captureRebuilt(int attempts) {
+		ArgumentCaptor<Rollup> captor = ArgumentCaptor.forClass(Rollup.class);
+		verify(repository, times(attempts * RollupPeriod.values().length)).replace(captor.capture(), any());
+		return captor.getAllValues();
+	}
+
+	private DataPoint createDataPoint(LocalDate date, BigDecimal saving) {
+		DataPoint point = new DataPoint();
+		point.setId(new DataPointId("test", toDate(date)));
+		point.setStatistics(ImmutableMap.of(
+				StatisticMetric.SAVING_AMOUNT, saving,
+				StatisticMetric.INCOMES_AMOUNT, new BigDecimal(100)
+		));
+		return point;
+	}
 
+	private Date toDate(LocalDate date) {
+		return Date.from(date.atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+	}
 }
 
-package com.piggymetrics.statistics.client;
+package com.piggymetrics.statistics.service.security;
 
-import com.piggymetrics.statistics.domain.Currency;
-import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
-import org.springframework.stereotype.Component;
+import com.google.common.collect.ImmutableMap;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
 
-import java.util.Collections;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-@Component
-public class ExchangeRatesClientFallback implements ExchangeRatesClient {
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
 
-    @Override
-    public ExchangeRatesContainer getRates(Currency base) {
-        ExchangeRatesContainer container = new ExchangeRatesContainer();
-        container.setBase(Currency.getBase());
-        container.setRates(Collections.emptyMap());
-        return container;
-    }
-}
+public class CachingTokenServicesTest {
 
-package com.piggymetrics.statistics.client;
+	@Mock
+	private ResourceServerTokenServices delegate;
 
-import com.piggymetrics.statistics.domain.Currency;
-import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
-import org.springframework.cloud.openfeign.FeignClient;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.RequestParam;
+	private final AtomicLong now = new AtomicLong();
 
-@FeignClient(url = "${rates.url}", name = "rates-client", fallback = ExchangeRatesClientFallback.class)
-public interface ExchangeRatesClient {
+	private CachingTokenServices tokenServices;
 
-    @RequestMapping(method = RequestMethod.GET, value = "/latest")
-    ExchangeRatesContainer getRates(@RequestParam("base") Currency base);
+	@Before
+	public void setup() {
+		initMocks(this);
+		tokenServices = new CachingTokenServices(delegate, 1000, 100, 2, now::get);
+	}
 
-}
+	@Test
+	public void shouldReturnCachedAuthenticationUntilExpired() {
 
-package com.piggymetrics.account;
+		OAuth2Authentication authentication = mock(OAuth2Authentication.class);
+		when(delegate.loadAuthentication("token")).thenReturn(authentication);
 
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
+		assertSame(authentication, tokenServices.loadAuthentication("token"));
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class AccountServiceApplicationTests {
+		now.set(999);
+		assertSame(authentication, tokenServices.loadAuthentication("token"));
+		verify(delegate, times(1)).loadAuthentication("token");
+
+		now.set(1000);
+		assertSame(authentication, tokenServices.loadAuthentication("token"));
+		verify(delegate, times(2)).loadAuthentication("token");
+	}
 
 	@Test
-	public void contextLoads() {
+	public void shouldNotKeepAuthenticationPastTokenExpiry() {
+
+		UsernamePasswordAuthenticationToken user = new UsernamePasswordAuthenticationToken("test", "N/A");
+		user.setDetails(ImmutableMap.of(CustomUserInfoTokenServices.EXPIRES_AT, 500L));
+
+		OAuth2Authentication authentication = new OAuth2Authentication(mock(OAuth2Request.class), user);
+		when(delegate.loadAuthentication("token")).thenReturn(authentication);
+
+		tokenServices.loadAuthentication("token");
 
+		now.set(499);
+		tokenServices.loadAuthentication("token");
+		verify(delegate, times(1)).loadAuthentication("token");
+
+		now.set(500);
+		tokenServices.loadAuthentication("token");
+		verify(delegate, times(2)).loadAuthentication("token");
 	}
 
-}
+	@Test
+	public void shouldRememberInvalidToken() {
 
-package com.piggymetrics.account.repository;
+		when(delegate.loadAuthentication("invalid")).thenThrow(new InvalidTokenException("invalid"));
 
-import com.piggymetrics.account.domain.Account;
-import com.piggymetrics.account.domain.Currency;
-import com.piggymetrics.account.domain.Item;
-import com.piggymetrics.account.domain.Saving;
-import com.piggymetrics.account.domain.TimePeriod;
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
-import org.springframework.test.context.junit4.SpringRunner;
+		assertInvalid("invalid");
+		assertInvalid("invalid");
+		verify(delegate, times(1)).loadAuthentication("invalid");
 
-import java.math.BigDecimal;
-import java.util.Arrays;
-import java.util.Date;
+		now.set(100);
+		assertInvalid("invalid");
+		verify(delegate, times(2)).loadAuthentication("invalid");
+	}
 
-import static org.junit.Assert.assertEquals;
+	@Test
+	public void shouldNotCacheUnexpectedFailure() {
 
-@RunWith(SpringRunner.class)
-@DataMongoTest
-public class AccountRepositoryTest {
+		when(delegate.loadAuthentication("token")).thenThrow(new IllegalStateException());
 
-	@Autowired
-	private AccountRepository repository;
+		for (int i = 0; i < 2; i++) {
+			try {
+				tokenServices.loadAuthentication("token");
+				fail();
+			} catch (IllegalStateException e) {
+				// expected
+			}
+		}
+
+		verify(delegate, times(2)).loadAuthentication("token");
+		assertEquals(0, tokenServices.size());
+	}
 
 	@Test
-	public void shouldFindAccountByName() {
+	public void shouldResolveConcurrentLookupsOfTheSameTokenOnce() throws Exception {
 
-		Account stub = getStubAccount();
-		repository.save(stub);
+		OAuth2Authentication authentication = mock(OAuth2Authentication.class);
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
 
-		Account found = repository.findByName(stub.getName());
-		assertEquals(stub.getLastSeen(), found.getLastSeen());
-		assertEquals(stub.getNote(), found.getNote());
-		assertEquals(stub.getIncomes().size(), found.getIncomes().size());
-		assertEquals(stub.getExpenses().size(), found.getExpenses().size());
+		when(delegate.loadAuthentication("token")).thenAnswer(invocation -> {
+			started.countDown();
+			release.await();
+			return authentication;
+		});
+
+		ExecutorService executor = Executors.newFixedThreadPool(2);
+
+		Future<OAuth2Authentication> first = executor.submit(() -> tokenServices.loadAuthentication("token"));
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+		Future<OAuth2Authentication> second = executor.submit(() -> tokenServices.loadAuthentication("token"));
+
+		release.countDown();
+
+		assertSame(authentication, first.get(1, TimeUnit.SECONDS));
+		assertSame(authentication, second.get(1, TimeUnit.SECONDS));
+		verify(delegate, times(1)).loadAuthentication("token");
+
+		executor.shutdown();
 	}
 
-	private Account getStubAccount() {
+	@Test
+	public void shouldEvictRevokedToken() {
 
-		Saving saving = new Saving();
-		saving.setAmount(new BigDecimal(1500));
-		saving.setCurrency(Currency.USD);
-		saving.setInterest(new BigDecimal("3.32"));
-		saving.setDeposit(true);
-		saving.setCapitalization(false);
+		when(delegate.loadAuthentication("token")).thenReturn(mock(OAuth2Authentication.class));
 
-		Item vacation = new Item();
-		vacation.setTitle("Vacation");
-		vacation.setAmount(new BigDecimal(3400));
-		vacation.setCurrency(Currency.EUR);
-		vacation.setPeriod(TimePeriod.YEAR);
-		vacation.setIcon("tourism");
+		tokenServices.loadAuthentication("token");
+		tokenServices.evict("token");
+		tokenServices.loadAuthentication("token");
 
-		Item grocery = new Item();
-		grocery.setTitle("Grocery");
-		grocery.setAmount(new BigDecimal(10));
-		grocery.setCurrency(Currency.USD);
-		grocery.setPeriod(TimePeriod.DAY);
-		grocery.setIcon("meal");
+		verify(delegate, times(2)).loadAuthentication("token");
+	}
 
-		Item salary = new Item();
-		salary.setTitle("Salary");
-		salary.setAmount(new BigDecimal(9100));
-		salary.setCurrency(Currency.USD);
-		salary.setPeriod(TimePeriod.MONTH);
-		salary.setIcon("wallet");
+	@Test
+	public void shouldNotExceedMaxSize() {
 
-		Account account = new Account();
-		account.setName("test");
-		account.setNote("test note");
-		account.setLastSeen(new Date());
-		account.setSaving(saving);
-		account.setExpenses(Arrays.asList(grocery, vacation));
-		account.setIncomes(Arrays.asList(salary));
+		when(delegate.loadAuthentication(anyString()))
+				.thenReturn(mock(OAuth2Authentication.class));
 
-		return account;
+		for (int i = 0; i < 10; i++) {
+			tokenServices.loadAuthentication("token-" + i);
+		}
+
+		assertTrue(tokenServices.size() <= 2);
+	}
+
+	private void assertInvalid(String token) {
+		try {
+			tokenServices.loadAuthentication(token);
+			fail();
+		} catch (InvalidTokenException e) {
+			// expected
+		}
 	}
 }
 
-package com.piggymetrics.account.controller;
+package com.piggymetrics.statistics.service.security;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.collect.ImmutableList;
-import com.piggymetrics.account.domain.*;
-import com.piggymetrics.account.service.AccountService;
-import com.sun.security.auth.UserPrincipal;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Before;
 import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.http.MediaType;
-import org.springframework.test.context.junit4.SpringRunner;
-import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestOperations;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
 
-import java.math.BigDecimal;
-import java.util.Date;
+import java.util.Map;
 
+import static org.junit.Assert.assertEquals;
 import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
-
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class AccountControllerTest {
 
-	private static final ObjectMapper mapper = new ObjectMapper();
+public class CustomUserInfoTokenServicesTest {
 
-	@InjectMocks
-	private AccountController accountController;
+	private static final String USER_INFO_URI = "http://auth-service/uaa/users/current";
 
 	@Mock
-	private AccountService accountService;
+	private OAuth2RestOperations restTemplate;
 
-	private MockMvc mockMvc;
+	private CustomUserInfoTokenServices tokenServices;
 
 	@Before
 	public void setup() {
 		initMocks(this);
-		this.mockMvc = MockMvcBuilders.standaloneSetup(accountController).build();
+		when(restTemplate.getOAuth2ClientContext()).thenReturn(new DefaultOAuth2ClientContext());
+
+		tokenServices = new CustomUserInfoTokenServices(USER_INFO_URI, "statistics-service");
+		tokenServices.setRestTemplate(restTemplate);
 	}
 
 	@Test
-	public void shouldGetAccountByName() throws Exception {
+	@SuppressWarnings("unchecked")
+	public void shouldReportTokenExpiry() {
 
-		final Account account = new Account();
-		account.setName("test");
-
-		when(accountService.findByName(account.getName())).thenReturn(account);
-
-		mockMvc.perform(get("/" + account.getName()))
-				.andExpect(jsonPath("$.name").value(account.getName()))
-				.andExpect(status().isOk());
-	}
-
-	@Test
-	public void shouldGetCurrentAccount() throws Exception {
-
-		final Account account = new Account();
-		account.setName("test");
-
-		when(accountService.findByName(account.getName())).thenReturn(account);
-
-		mockMvc.perform(get("/current").principal(new UserPrincipal(account.getName())))
-				.andExpect(jsonPath("$.name").value(account.getName()))
-				.andExpect(status().isOk());
-	}
-
-	@Test
-	public void shouldSaveCurrentAccount() throws Exception {
-
-		Saving saving = new Saving();
-		saving.setAmount(new BigDecimal(1500));
-		saving.setCurrency(Currency.USD);
-		saving.setInterest(new BigDecimal("3.32"));
-		saving.setDeposit(true);
-		saving.setCapitalization(false);
+		HttpHeaders headers = new HttpHeaders();
+		headers.setExpires(1500000000000L);
 
-		Item grocery = new Item();
-		grocery.setTitle("Grocery");
-		grocery.setAmount(new BigDecimal(10));
-		grocery.setCurrency(Currency.USD);
-		grocery.setPeriod(TimePeriod.DAY);
-		grocery.setIcon("meal");
-
-		Item salary = new Item();
-		salary.setTitle("Salary");
-		salary.setAmount(new BigDecimal(9100));
-		salary.setCurrency(Currency.USD);
-		salary.setPeriod(TimePeriod.MONTH);
-		salary.setIcon("wallet");
+		Map<String, Object> body = ImmutableMap.of("name", "test",
+				"oauth2Request", ImmutableMap.of("clientId", "browser", "scope", ImmutableList.of("ui")));
 
-		final Account account = new Account();
-		account.setName("test");
-		account.setNote("test note");
-		account.setLastSeen(new Date());
-		account.setSaving(saving);
-		account.setExpenses(ImmutableList.of(grocery));
-		account.setIncomes(ImmutableList.of(salary));
+		when(restTemplate.getForEntity(USER_INFO_URI, Map.class))
+				.thenReturn(new ResponseEntity<Map>(body, headers, HttpStatus.OK));
 
-		String json = mapper.writeValueAsString(account);
+		OAuth2Authentication authentication = tokenServices.loadAuthentication("token");
 
-		mockMvc.perform(put("/current").principal(new UserPrincipal(account.getName())).contentType(MediaType.APPLICATION_JSON).content(json))
-				.andExpect(status().isOk());
+		assertEquals("test", authentication.getName());
+		assertEquals(1500000000000L, ((Map<String, Object>) authentication.getUserAuthentication().getDetails())
+				.get(CustomUserInfoTokenServices.EXPIRES_AT));
 	}
 
-	@Test
-	public void shouldFailOnValidationTryingToSaveCurrentAccount() throws Exception {
-
-		final Account account = new Account();
-		account.setName("test");
+	@Test(expected = InvalidTokenException.class)
+	public void shouldRejectTokenWhenAuthServiceDoes() {
 
-		String json = mapper.writeValueAsString(account);
+		when(restTemplate.getForEntity(USER_INFO_URI, Map.class))
+				.thenThrow(new HttpClientErrorException(HttpStatus.UNAUTHORIZED));
 
-		mockMvc.perform(put("/current").principal(new UserPrincipal(account.getName())).contentType(MediaType.APPLICATION_JSON).content(json))
-				.andExpect(status().isBadRequest());
+		tokenServices.loadAuthentication("token");
 	}
 
-	@Test
-	public void shouldRegisterNewAccount() throws Exception {
+	@Test(expected = AuthenticationServiceException.class)
+	public void shouldNotRejectTokenWhenAuthServiceIsUnreachable() {
 
-		final User user = new User();
-		user.setUsername("test");
-		user.setPassword("password");
+		when(restTemplate.getForEntity(USER_INFO_URI, Map.class))
+				.thenThrow(new ResourceAccessException("connect timed out"));
 
-		String json = mapper.writeValueAsString(user);
-		System.out.println(json);
-		mockMvc.perform(post("/").principal(new UserPrincipal("test")).contentType(MediaType.APPLICATION_JSON).content(json))
-				.andExpect(status().isOk());
+		tokenServices.loadAuthentication("token");
 	}
 
-	@Test
-	public void shouldFailOnValidationTryingToRegisterNewAccount() throws Exception {
-
-		final User user = new User();
-		user.setUsername("t");
+	@Test(expected = AuthenticationServiceException.class)
+	public void shouldNotRejectTokenWhenAuthServiceFails() {
 
-		String json = mapper.writeValueAsString(user);
+		when(restTemplate.getForEntity(USER_INFO_URI, Map.class))
+				.thenThrow(new HttpServerErrorException(HttpStatus.SERVICE_UNAVAILABLE));
 
-		mockMvc.perform(post("/").principal(new UserPrincipal("test")).contentType(MediaType.APPLICATION_JSON).content(json))
-				.andExpect(status().isBadRequest());
+		tokenServices.loadAuthentication("token");
 	}
 }
 
-package com.piggymetrics.account.service;
+package com.piggymetrics.statistics.service.security;
 
-import com.piggymetrics.account.client.AuthServiceClient;
-import com.piggymetrics.account.client.StatisticsServiceClient;
-import com.piggymetrics.account.domain.*;
-import com.piggymetrics.account.repository.AccountRepository;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import org.junit.Before;
 import org.junit.Test;
-import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestOperations;
 
-import java.math.BigDecimal;
-import java.util.Arrays;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Base64;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
-import static org.mockito.Mockito.*;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
 import static org.mockito.MockitoAnnotations.initMocks;
 
-public class AccountServiceTest {
+public class SignedTokenServicesTest {
 
-	@InjectMocks
-	private AccountServiceImpl accountService;
+	private static final String KEY_URI = "http://auth-service/uaa/oauth/token_key";
 
 	@Mock
-	private StatisticsServiceClient statisticsClient;
+	private RestOperations restTemplate;
 
-	@Mock
-	private AuthServiceClient authClient;
+	private final AtomicLong now = new AtomicLong();
 
-	@Mock
-	private AccountRepository repository;
+	private KeyPair keyPair;
+
+	private SignedTokenServices tokenServices;
 
 	@Before
-	public void setup() {
+	public void setup() throws Exception {
 		initMocks(this);
+
+		keyPair = generateKeyPair();
+		when(restTemplate.getForObject(KEY_URI, Map.class)).thenReturn(keyOf(keyPair));
+
+		tokenServices = new SignedTokenServices(KEY_URI, restTemplate, 1000, now::get);
 	}
 
 	@Test
-	public void shouldFindByName() {
+	public void shouldLoadAuthenticationOfSignedToken() throws Exception {
 
-		final Account account = new Account();
-		account.setName("test");
+		String token = sign(keyPair, 60);
 
-		when(accountService.findByName(account.getName())).thenReturn(account);
-		Account found = accountService.findByName(account.getName());
+		OAuth2Authentication authentication = tokenServices.loadAuthentication(token);
+		assertEquals("test", authentication.getName());
+		assertEquals("browser", authentication.getOAuth2Request().getClientId());
+		assertTrue(authentication.getOAuth2Request().getScope().contains("ui"));
 
-		assertEquals(account, found);
+		tokenServices.loadAuthentication(token);
+		verify(restTemplate, times(1)).getForObject(KEY_URI, Map.class);
 	}
 
-	@Test(expected = IllegalArgumentException.class)
-	public void shouldFailWhenNameIsEmpty() {
-		accountService.findByName("");
+	@Test(expected = InvalidTokenException.class)
+	public void shouldRejectExpiredToken() throws Exception {
+		String token = sign(keyPair, 60);
+		now.set(60_000);
+		tokenServices.loadAuthentication(token);
 	}
 
-	@Test
-	public void shouldCreateAccountWithGivenUser() {
+	@Test(expected = InvalidTokenException.class)
+	public void shouldRejectMalformedToken() {
+		tokenServices.loadAuthentication("token");
+	}
 
-		User user = new User();
-		user.setUsername("test");
+	@Test
+	public void shouldNotRefetchKeyMoreOftenThanRefreshInterval() throws Exception {
 
-		Account account = accountService.create(user);
+		String foreign = sign(generateKeyPair(), 60);
 
-		assertEquals(user.getUsername(), account.getName());
-		assertEquals(0, account.getSaving().getAmount().intValue());
-		assertEquals(Currency.getDefault(), account.getSaving().getCurrency());
-		assertEquals(0, account.getSaving().getInterest().intValue());
-		assertEquals(false, account.getSaving().getDeposit());
-		assertEquals(false, account.getSaving().getCapitalization());
-		assertNotNull(account.getLastSeen());
+		for (int i = 0; i < 2; i++) {
+			try {
+				tokenServices.loadAuthentication(foreign);
+			} catch (InvalidTokenException e) {
+				// expected
+			}
+		}
 
-		verify(authClient, times(1)).createUser(user);
-		verify(repository, times(1)).save(account);
+		verify(restTemplate, times(1)).getForObject(KEY_URI, Map.class);
 	}
 
 	@Test
-	public void shouldSaveChangesWhenUpdatedAccountGiven() {
+	public void shouldAcceptTokenSignedWithRotatedKey() throws Exception {
 
-		Item grocery = new Item();
-		grocery.setTitle("Grocery");
-		grocery.setAmount(new BigDecimal(10));
-		grocery.setCurrency(Currency.USD);
-		grocery.setPeriod(TimePeriod.DAY);
-		grocery.setIcon("meal");
+		tokenServices.loadAuthentication(sign(keyPair, 60));
 
-		Item salary = new Item();
-		salary.setTitle("Salary");
-		salary.setAmount(new BigDecimal(9100));
-		salary.setCurrency(Currency.USD);
-		salary.setPeriod(TimePeriod.MONTH);
-		salary.setIcon("wallet");
+		KeyPair rotated = generateKeyPair();
+		when(restTemplate.getForObject(KEY_URI, Map.class)).thenReturn(keyOf(rotated));
+		now.set(1000);
 
-		Saving saving = new Saving();
-		saving.setAmount(new BigDecimal(1500));
-		saving.setCurrency(Currency.USD);
-		saving.setInterest(new BigDecimal("3.32"));
-		saving.setDeposit(true);
-		saving.setCapitalization(false);
+		OAuth2Authentication authentication = tokenServices.loadAuthentication(sign(rotated, 60));
+		assertEquals("test", authentication.getName());
+		verify(restTemplate, times(2)).getForObject(KEY_URI, Map.class);
+	}
 
-		final Account update = new Account();
-		update.setName("test");
-		update.setNote("test note");
-		update.setIncomes(Arrays.asList(salary));
-		update.setExpenses(Arrays.asList(grocery));
-		update.setSaving(saving);
+	@Test
+	public void shouldRejectTokensWithServiceUnavailableAndBackOffWhileKeyCannotBeFetched() throws Exception {
 
-		final Account account = new Account();
+		String token = sign(keyPair, 60);
+		when(restTemplate.getForObject(KEY_URI, Map.class))
+				.thenThrow(new ResourceAccessException("auth-service is down"))
+				.thenReturn(keyOf(keyPair));
 
-		when(accountService.findByName("test")).thenReturn(account);
-		accountService.saveChanges("test", update);
+		for (int i = 0; i < 3; i++) {
+			try {
+				tokenServices.loadAuthentication(token);
+				fail("token should not be accepted without the key");
+			} catch (OAuth2Exception e) {
+				assertEquals(HttpStatus.SERVICE_UNAVAILABLE.value(), e.getHttpErrorCode());
+			}
+		}
 
-		assertEquals(update.getNote(), account.getNote());
-		assertNotNull(account.getLastSeen());
+		verify(restTemplate, times(1)).getForObject(KEY_URI, Map.class);
 
-		assertEquals(update.getSaving().getAmount(), account.getSaving().getAmount());
-		assertEquals(update.getSaving().getCurrency(), account.getSaving().getCurrency());
-		assertEquals(update.getSaving().getInterest(), account.getSaving().getInterest());
-		assertEquals(update.getSaving().getDeposit(), account.getSaving().getDeposit());
-		assertEquals(update.getSaving().getCapitalization(), account.getSaving().getCapitalization());
+		now.set(1000);
 
-		assertEquals(update.getExpenses().size(), account.getExpenses().size());
-		assertEquals(update.getIncomes().size(), account.getIncomes().size());
+		assertEquals("test", tokenServices.loadAuthentication(token).getName());
+		verify(restTemplate, times(2)).getForObject(KEY_URI, Map.class);
+	}
 
-		assertEquals(update.getExpenses().get(0).getTitle(), account.getExpenses().get(0).getTitle());
-		assertEquals(0, update.getExpenses().get(0).getAmount().compareTo(account.getExpenses().get(0).getAmount()));
-		assertEquals(update.getExpenses().get(0).getCurrency(), account.getExpenses().get(0).getCurrency());
-		assertEquals(update.getExpenses().get(0).getPeriod(), account.getExpenses().get(0).getPeriod());
-		assertEquals(update.getExpenses().get(0).getIcon(), account.getExpenses().get(0).getIcon());
-		
-		assertEquals(update.getIncomes().get(0).getTitle(), account.getIncomes().get(0).getTitle());
-		assertEquals(0, update.getIncomes().get(0).getAmount().compareTo(account.getIncomes().get(0).getAmount()));
-		assertEquals(update.getIncomes().get(0).getCurrency(), account.getIncomes().get(0).getCurrency());
-		assertEquals(update.getIncomes().get(0).getPeriod(), account.getIncomes().get(0).getPeriod());
-		assertEquals(update.getIncomes().get(0).getIcon(), account.getIncomes().get(0).getIcon());
-		
-		verify(repository, times(1)).save(account);
-		verify(statisticsClient, times(1)).updateStatistics("test", account);
+	private String sign(KeyPair keyPair, long validitySeconds) throws Exception {
+
+		Map<String, Object> claims = ImmutableMap.of(
+				"user_name", "test",
+				"client_id", "browser",
+				"scope", ImmutableList.of("ui"),
+				"exp", now.get() / 1000 + validitySeconds);
+
+		String content = new ObjectMapper().writeValueAsString(claims);
+		return JwtHelper.encode(content, new RsaSigner((RSAPrivateKey) keyPair.getPrivate())).getEncoded();
 	}
 
-	@Test(expected = IllegalArgumentException.class)
-	public void shouldFailWhenNoAccountsExistedWithGivenName() {
-		final Account update = new Account();
-		update.setIncomes(Arrays.asList(new Item()));
-		update.setExpenses(Arrays.asList(new Item()));
+	private static Map<String, String> keyOf(KeyPair keyPair) {
+		return ImmutableMap.of("alg", "SHA256withRSA", "value", "-----BEGIN PUBLIC KEY-----\n"
+				+ Base64.getEncoder().encodeToString(keyPair.getPublic().getEncoded())
+				+ "\n-----END PUBLIC KEY-----");
+	}
 
-		when(accountService.findByName("test")).thenReturn(null);
-		accountService.saveChanges("test", update);
+	private static KeyPair generateKeyPair() throws Exception {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		return generator.generateKeyPair();
 	}
 }
 
-package com.piggymetrics.account.client;
+package com.piggymetrics.statistics.client;
 
-import com.piggymetrics.account.domain.Account;
-import org.junit.Before;
-import org.junit.Rule;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.boot.test.rule.OutputCapture;
 import org.springframework.test.context.junit4.SpringRunner;
 
-import static org.hamcrest.Matchers.containsString;
+import java.time.LocalDate;
 
-/**
- * @author cdov
- */
-@RunWith(SpringRunner.class)
-@SpringBootTest(properties = {
-        "feign.hystrix.enabled=true"
-})
-public class StatisticsServiceClientFallbackTest {
-    @Autowired
-    private StatisticsServiceClient statisticsServiceClient;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
 
-    @Rule
-    public final OutputCapture outputCapture = new OutputCapture();
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class ExchangeRatesClientTest {
 
-    @Before
-    public void setup() {
-        outputCapture.reset();
-    }
+	@Autowired
+	private ExchangeRatesClient client;
 
-    @Test
-    public void testUpdateStatisticsWithFailFallback(){
-        statisticsServiceClient.updateStatistics("test", new Account());
+	@Test
+	public void shouldRetrieveExchangeRates() {
 
-        outputCapture.expect(containsString("Error during update statistics for account: test"));
+		ExchangeRatesContainer container = client.getRates(Currency.getBase());
 
-    }
+		assertEquals(container.getDate(), LocalDate.now());
+		assertEquals(container.getBase(), Currency.getBase());
 
-}
+		assertNotNull(container.getRates());
+		assertNotNull(container.getRates().get(Currency.USD.name()));
+		assertNotNull(container.getRates().get(Currency.EUR.name()));
+		assertNotNull(container.getRates().get(Currency.RUB.name()));
+	}
 
+	@Test
+	public void shouldRetrieveExchangeRatesForSpecifiedCurrency() {
 
-package com.piggymetrics.account;
+		Currency requestedCurrency = Currency.EUR;
+		ExchangeRatesContainer container = client.getRates(Currency.getBase());
+
+		assertEquals(container.getDate(), LocalDate.now());
+		assertEquals(container.getBase(), Currency.getBase());
 
+		assertNotNull(container.getRates());
+		assertNotNull(container.getRates().get(requestedCurrency.name()));
+	}
+}
+package com.piggymetrics.statistics;
+
+import com.piggymetrics.statistics.repository.converter.DataPointIdReaderConverter;
+import com.piggymetrics.statistics.repository.converter.DataPointIdWriterConverter;
+import com.piggymetrics.statistics.service.security.CustomUserInfoTokenServices;
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.client.circuitbreaker.EnableCircuitBreaker;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
 import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
 import org.springframework.cloud.openfeign.EnableFeignClients;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.CustomConversions;
+import org.springframework.scheduling.annotation.EnableScheduling;
 import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
 import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+import java.util.Arrays;
 
 @SpringBootApplication
 @EnableDiscoveryClient
 @EnableOAuth2Client
 @EnableFeignClients
-@EnableCircuitBreaker
 @EnableGlobalMethodSecurity(prePostEnabled = true)
-public class AccountApplication {
+@EnableScheduling
+public class StatisticsApplication {
 
 	public static void main(String[] args) {
-		SpringApplication.run(AccountApplication.class, args);
+		SpringApplication.run(StatisticsApplication.class, args);
 	}
 
+	@Configuration
+	static class CustomConversionsConfig {
+
+		@Bean
+		public CustomConversions customConversions() {
+			return new CustomConversions(Arrays.asList(new DataPointIdReaderConverter(),
+					new DataPointIdWriterConverter()));
+		}
+	}
 }
 
-package com.piggymetrics.account.repository;
+package com.piggymetrics.statistics.repository;
 
-import com.piggymetrics.account.domain.Account;
-import org.springframework.data.repository.CrudRepository;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
 import org.springframework.stereotype.Repository;
 
-@Repository
-public interface AccountRepository extends CrudRepository<Account, String> {
-
-	Account findByName(String name);
-
-}
-
-package com.piggymetrics.account.config;
-
-import com.piggymetrics.account.service.security.CustomUserInfoTokenServices;
-import feign.RequestInterceptor;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
-import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.cloud.security.oauth2.client.feign.OAuth2FeignRequestInterceptor;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.security.config.annotation.web.builders.HttpSecurity;
-import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
-import org.springframework.security.oauth2.client.OAuth2RestTemplate;
-import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
-import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
-import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import java.util.List;
 
 /**
- * @author cdov
+ * Does not extend {@link org.springframework.data.repository.CrudRepository}, since
+ * its derived methods would bypass bucketed storage mode. All operations are
+ * declared by {@link DataPointRepositoryCustom}
  */
-@Configuration
-@EnableResourceServer
-public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
-
-    private final ResourceServerProperties sso;
-
-    @Autowired
-    public ResourceServerConfig(ResourceServerProperties sso) {
-        this.sso = sso;
-    }
-
-    @Bean
-    @ConfigurationProperties(prefix = "security.oauth2.client")
-    public ClientCredentialsResourceDetails clientCredentialsResourceDetails() {
-        return new ClientCredentialsResourceDetails();
-    }
-
-    @Bean
-    public RequestInterceptor oauth2FeignRequestInterceptor(){
-        return new OAuth2FeignRequestInterceptor(new DefaultOAuth2ClientContext(), clientCredentialsResourceDetails());
-    }
-
-    @Bean
-    public OAuth2RestTemplate clientCredentialsRestTemplate() {
-        return new OAuth2RestTemplate(clientCredentialsResourceDetails());
-    }
-
-    @Bean
-    public ResourceServerTokenServices tokenServices() {
-        return new CustomUserInfoTokenServices(sso.getUserInfoUri(), sso.getClientId());
-    }
-
-    @Override
-    public void configure(HttpSecurity http) throws Exception {
-        http.authorizeRequests()
-                .antMatchers("/" , "/demo").permitAll()
-                .anyRequest().authenticated();
-    }
-}
-
-package com.piggymetrics.account.controller;
-
-import com.piggymetrics.account.domain.Account;
-import com.piggymetrics.account.domain.User;
-import com.piggymetrics.account.service.AccountService;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.web.bind.annotation.*;
-
-import javax.validation.Valid;
-import java.security.Principal;
-
-@RestController
-public class AccountController {
-
-	@Autowired
-	private AccountService accountService;
-
-	@PreAuthorize("#oauth2.hasScope('server') or #name.equals('demo')")
-	@RequestMapping(path = "/{name}", method = RequestMethod.GET)
-	public Account getAccountByName(@PathVariable String name) {
-		return accountService.findByName(name);
-	}
-
-	@RequestMapping(path = "/current", method = RequestMethod.GET)
-	public Account getCurrentAccount(Principal principal) {
-		return accountService.findByName(principal.getName());
-	}
+@Repository
+public interface DataPointRepository extends org.springframework.data.repository.Repository<DataPoint, DataPointId>,
+		DataPointRepositoryCustom {
 
-	@RequestMapping(path = "/current", method = RequestMethod.PUT)
-	public void saveCurrentAccount(Principal principal, @Valid @RequestBody Account account) {
-		accountService.saveChanges(principal.getName(), account);
-	}
+	List<DataPoint> findByIdAccount(String account);
 
-	@RequestMapping(path = "/", method = RequestMethod.POST)
-	public Account createNewAccount(@Valid @RequestBody User user) {
-		return accountService.create(user);
-	}
 }
 
-package com.piggymetrics.account.controller;
+package com.piggymetrics.statistics.repository;
 
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.http.HttpStatus;
-import org.springframework.web.bind.annotation.ControllerAdvice;
-import org.springframework.web.bind.annotation.ExceptionHandler;
-import org.springframework.web.bind.annotation.ResponseStatus;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import org.springframework.data.util.CloseableIterator;
 
-@ControllerAdvice
-public class ErrorHandler {
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
 
-	private final Logger log = LoggerFactory.getLogger(getClass());
+/**
+ * {@link DataPointRepository} operations. All of them support bucketed storage mode
+ * ({@link com.piggymetrics.statistics.domain.timeseries.DataPointBucket}), in which
+ * data points written before the switch are read along with packed ones
+ */
+public interface DataPointRepositoryCustom {
 
-	// TODO add MethodArgumentNotValidException handler
-	// TODO remove such general handler
-	@ExceptionHandler(IllegalArgumentException.class)
-	@ResponseStatus(HttpStatus.BAD_REQUEST)
-	public void processValidationError(IllegalArgumentException e) {
-		log.info("Returning HTTP 400 Bad Request", e);
-	}
-}
+	<S extends DataPoint> S save(S point);
 
-package com.piggymetrics.account.service;
+	/**
+	 * Inserts or replaces given data point
+	 *
+	 * @param point data point to write
+	 * @return replaced data point or {@code null}
+	 */
+	DataPoint replace(DataPoint point);
 
-import com.piggymetrics.account.domain.Account;
-import com.piggymetrics.account.domain.User;
+	Optional<DataPoint> findById(DataPointId id);
 
-public interface AccountService {
+	List<DataPoint> findByIdAccount(String account);
 
 	/**
-	 * Finds account by given name
+	 * Inserts or replaces given data points with a single
+	 * unordered bulk write
 	 *
-	 * @param accountName
-	 * @return found account
+	 * @param points data points with distinct ids
+	 * @return replaced data points by id
 	 */
-	Account findByName(String accountName);
+	Map<DataPointId, DataPoint> bulkUpsert(Collection<DataPoint> points);
 
 	/**
-	 * Checks if account with the same name already exists
-	 * Invokes Auth Service user creation
-	 * Creates new account with default parameters
+	 * Finds account data points within given date range, downsampled on
+	 * the database side. Each bucket is represented by its latest data
+	 * point, which contains only given statistic metrics
 	 *
-	 * @param user
-	 * @return created account
+	 * @param account account name
+	 * @param from range start, inclusive
+	 * @param to range end, inclusive
+	 * @param resolution bucket size
+	 * @param metrics metrics to return
+	 * @return data points ordered by date
 	 */
-	Account create(User user);
+	List<DataPoint> findDownsampled(String account, Date from, Date to,
+									Resolution resolution, Set<StatisticMetric> metrics);
 
 	/**
-	 * Validates and applies incoming account updates
-	 * Invokes Statistics Service update
+	 * Streams data points of all accounts with a database cursor
 	 *
-	 * @param name
-	 * @param update
+	 * @param account account name to resume after, or {@code null} to start from the first one
+	 * @return data points ordered by account and date, which must be closed by the caller
 	 */
-	void saveChanges(String name, Account update);
+	CloseableIterator<DataPoint> streamAfter(String account);
+
+	/**
+	 * @param date data point date
+	 * @return names of accounts, which have a data point of given date
+	 */
+	List<String> findAccountsWithPointOn(Date date);
+
 }
 
-package com.piggymetrics.account.service;
+package com.piggymetrics.statistics.repository;
 
-import com.piggymetrics.account.client.AuthServiceClient;
-import com.piggymetrics.account.client.StatisticsServiceClient;
-import com.piggymetrics.account.domain.Account;
-import com.piggymetrics.account.domain.Currency;
-import com.piggymetrics.account.domain.Saving;
-import com.piggymetrics.account.domain.User;
-import com.piggymetrics.account.repository.AccountRepository;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import org.bson.Document;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.FindAndReplaceOptions;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
 
 import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.time.temporal.TemporalAdjusters;
+import java.time.temporal.WeekFields;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.function.Function;
+import java.util.stream.Collectors;
 
-@Service
-public class AccountServiceImpl implements AccountService {
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
-	private final Logger log = LoggerFactory.getLogger(getClass());
+public class DataPointRepositoryImpl implements DataPointRepositoryCustom {
 
-	@Autowired
-	private StatisticsServiceClient statisticsClient;
+	private static final String ID = "_id";
 
-	@Autowired
-	private AuthServiceClient authClient;
+	private static final String ACCOUNT = "_id.account";
 
-	@Autowired
-	private AccountRepository repository;
+	private static final String DATE = "_id.date";
+
+	private final MongoTemplate mongoTemplate;
+
+	private final DataPointBucketStore bucketStore;
+
+	private static final Comparator<DataPoint> BY_ACCOUNT_AND_DATE = Comparator
+			.comparing((DataPoint point) -> point.getId().getAccount())
+			.thenComparing(point -> point.getId().getDate());
 
 	/**
-	 * {@inheritDoc}
+	 * When enabled, data points are packed into account-month buckets
+	 */
+	@Value("${statistics.storage.bucketed:false}")
+	private boolean bucketed;
+
+	/**
+	 * When enabled along with bucketed mode, data points written before the switch
+	 * are still read from the unpacked collection, unless a bucket holds the same
+	 * data point. Can be disabled once the unpacked collection has been dropped
 	 */
+	@Value("${statistics.storage.legacy-reads:true}")
+	private boolean legacyReads;
+
+	@Autowired
+	public DataPointRepositoryImpl(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
+		this.bucketStore = new DataPointBucketStore(mongoTemplate);
+	}
+
 	@Override
-	public Account findByName(String accountName) {
-		Assert.hasLength(accountName);
-		return repository.findByName(accountName);
+	public <S extends DataPoint> S save(S point) {
+
+		if (bucketed) {
+			bucketStore.save(Collections.singletonList(point));
+		} else {
+			mongoTemplate.save(point);
+		}
+
+		return point;
 	}
 
 	/**
 	 * {@inheritDoc}
 	 */
 	@Override
-	public Account create(User user) {
+	public DataPoint replace(DataPoint point) {
 
-		Account existing = repository.findByName(user.getUsername());
-		Assert.isNull(existing, "account already exists: " + user.getUsername());
+		if (bucketed) {
+			return saveToBuckets(Collections.singletonList(point)).get(point.getId());
+		}
 
-		authClient.createUser(user);
+		Document document = toDocument(point);
 
-		Saving saving = new Saving();
-		saving.setAmount(new BigDecimal(0));
-		saving.setCurrency(Currency.getDefault());
-		saving.setInterest(new BigDecimal(0));
-		saving.setDeposit(false);
-		saving.setCapitalization(false);
+		return mongoTemplate.findAndReplace(query(where(ID).is(document.get(ID))), point,
+				FindAndReplaceOptions.options().upsert());
+	}
 
-		Account account = new Account();
-		account.setName(user.getUsername());
-		account.setLastSeen(new Date());
-		account.setSaving(saving);
+	@Override
+	public Optional<DataPoint> findById(DataPointId id) {
 
-		repository.save(account);
+		if (bucketed) {
+			Optional<DataPoint> point = bucketStore.findById(id);
+			if (point.isPresent() || !legacyReads) {
+				return point;
+			}
+		}
 
-		log.info("new account has been created: " + account.getName());
+		return Optional.ofNullable(mongoTemplate.findById(id, DataPoint.class));
+	}
 
-		return account;
+	@Override
+	public List<DataPoint> findByIdAccount(String account) {
+
+		if (bucketed) {
+			return withLegacy(bucketStore.findByAccount(account), query(where(ACCOUNT).is(account)));
+		}
+
+		return mongoTemplate.find(query(where(ACCOUNT).is(account)), DataPoint.class);
 	}
 
 	/**
 	 * {@inheritDoc}
+	 *
+	 * Replaced data points are read before the write, so the result is exact
+	 * only as long as there are no concurrent writes of the same ids
 	 */
 	@Override
-	public void saveChanges(String name, Account update) {
+	public Map<DataPointId, DataPoint> bulkUpsert(Collection<DataPoint> points) {
 
-		Account account = repository.findByName(name);
-		Assert.notNull(account, "can't find account with name " + name);
+		if (points.isEmpty()) {
+			return Collections.emptyMap();
+		}
 
-		account.setIncomes(update.getIncomes());
-		account.setExpenses(update.getExpenses());
-		account.setSaving(update.getSaving());
-		account.setNote(update.getNote());
-		account.setLastSeen(new Date());
-		repository.save(account);
+		if (bucketed) {
+			return saveToBuckets(points);
+		}
 
-		log.debug("account {} changes has been saved", name);
+		List<Document> documents = points.stream()
+				.map(this::toDocument)
+				.collect(Collectors.toList());
 
-		statisticsClient.updateStatistics(name, account);
-	}
-}
+		List<Object> ids = documents.stream()
+				.map(document -> document.get(ID))
+				.collect(Collectors.toList());
 
-package com.piggymetrics.account.service.security;
+		Map<DataPointId, DataPoint> replaced = mongoTemplate.find(query(where(ID).in(ids)), DataPoint.class).stream()
+				.collect(Collectors.toMap(DataPoint::getId, Function.identity()));
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
-import org.springframework.boot.autoconfigure.security.oauth2.resource.FixedAuthoritiesExtractor;
-import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
-import org.springframework.security.core.AuthenticationException;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.oauth2.client.OAuth2RestOperations;
-import org.springframework.security.oauth2.client.OAuth2RestTemplate;
-import org.springframework.security.oauth2.client.resource.BaseOAuth2ProtectedResourceDetails;
-import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
-import org.springframework.security.oauth2.common.OAuth2AccessToken;
-import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
-import org.springframework.security.oauth2.provider.OAuth2Authentication;
-import org.springframework.security.oauth2.provider.OAuth2Request;
-import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+		BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, DataPoint.class);
 
-import java.util.*;
+		for (Document document : documents) {
+			operations.replaceOne(query(where(ID).is(document.get(ID))), document,
+					FindAndReplaceOptions.options().upsert());
+		}
 
-/**
- * Extended implementation of {@link org.springframework.boot.autoconfigure.security.oauth2.resource.UserInfoTokenServices}
- *
- * By default, it designed to return only user details. This class provides {@link #getRequest(Map)} method, which
- * returns clientId and scope of calling service. This information used in controller's security checks.
- */
+		operations.execute();
 
-public class CustomUserInfoTokenServices implements ResourceServerTokenServices {
+		return replaced;
+	}
 
-	protected final Log logger = LogFactory.getLog(getClass());
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<DataPoint> findDownsampled(String account, Date from, Date to,
+										   Resolution resolution, Set<StatisticMetric> metrics) {
 
-	private static final String[] PRINCIPAL_KEYS = new String[] { "user", "username",
-			"userid", "user_id", "login", "id", "name" };
+		if (bucketed) {
+			List<DataPoint> points = withLegacy(bucketStore.findByAccount(account, from, to),
+					query(where(ACCOUNT).is(account).and(DATE).gte(from).lte(to)));
+			return downsample(points, resolution, metrics);
+		}
 
-	private final String userInfoEndpointUrl;
+		Document bucket = new Document(ID, bucketOf(resolution))
+				.append("date", new Document("$last", "$" + DATE));
 
-	private final String clientId;
+		metrics.forEach(metric -> bucket.append(metric.name(),
+				new Document("$last", "$statistics." + metric.name())));
 
-	private OAuth2RestOperations restTemplate;
+		List<Document> pipeline = Arrays.asList(
+				new Document("$match", new Document(ACCOUNT, account)
+						.append(DATE, new Document("$gte", from).append("$lte", to))),
+				new Document("$sort", new Document(DATE, 1)),
+				new Document("$group", bucket),
+				new Document("$sort", new Document("date", 1))
+		);
 
-	private String tokenType = DefaultOAuth2AccessToken.BEARER_TYPE;
+		List<DataPoint> points = new ArrayList<>();
 
-	private AuthoritiesExtractor authoritiesExtractor = new FixedAuthoritiesExtractor();
+		for (Document document : mongoTemplate.getCollection(mongoTemplate.getCollectionName(DataPoint.class))
+				.aggregate(pipeline)) {
 
-	public CustomUserInfoTokenServices(String userInfoEndpointUrl, String clientId) {
-		this.userInfoEndpointUrl = userInfoEndpointUrl;
-		this.clientId = clientId;
-	}
+			Map<StatisticMetric, BigDecimal> statistics = new EnumMap<>(StatisticMetric.class);
+			metrics.forEach(metric -> {
+				Object value = document.get(metric.name());
+				if (value != null) {
+					statistics.put(metric, new BigDecimal(value.toString()));
+				}
+			});
 
-	public void setTokenType(String tokenType) {
-		this.tokenType = tokenType;
-	}
+			DataPoint point = new DataPoint();
+			point.setId(new DataPointId(account, document.getDate("date")));
+			point.setStatistics(statistics);
+			points.add(point);
+		}
 
-	public void setRestTemplate(OAuth2RestOperations restTemplate) {
-		this.restTemplate = restTemplate;
+		return points;
 	}
 
-	public void setAuthoritiesExtractor(AuthoritiesExtractor authoritiesExtractor) {
-		this.authoritiesExtractor = authoritiesExtractor;
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public CloseableIterator<DataPoint> streamAfter(String account) {
+
+		Query query = account == null ? new Query() : query(where(ACCOUNT).gt(account));
+
+		if (bucketed) {
+			CloseableIterator<DataPoint> packed = bucketStore.streamAfter(account);
+			return legacyReads
+					? new MergingIterator(packed, mongoTemplate.stream(query.with(Sort.by(ACCOUNT, DATE)), DataPoint.class))
+					: packed;
+		}
+
+		return mongoTemplate.stream(query.with(Sort.by(ACCOUNT, DATE)), DataPoint.class);
 	}
 
+	/**
+	 * {@inheritDoc}
+	 */
 	@Override
-	public OAuth2Authentication loadAuthentication(String accessToken)
-			throws AuthenticationException, InvalidTokenException {
-		Map<String, Object> map = getMap(this.userInfoEndpointUrl, accessToken);
-		if (map.containsKey("error")) {
-			this.logger.debug("userinfo returned error: " + map.get("error"));
-			throw new InvalidTokenException(accessToken);
+	public List<String> findAccountsWithPointOn(Date date) {
+
+		List<String> accounts = !bucketed || legacyReads
+				? mongoTemplate.findDistinct(query(where(DATE).is(date)), ACCOUNT, DataPoint.class, String.class)
+				: Collections.emptyList();
+
+		if (bucketed) {
+			Set<String> merged = new LinkedHashSet<>(bucketStore.findAccountsWithPointOn(date));
+			merged.addAll(accounts);
+			return new ArrayList<>(merged);
 		}
-		return extractAuthentication(map);
-	}
 
-	private OAuth2Authentication extractAuthentication(Map<String, Object> map) {
-		Object principal = getPrincipal(map);
-		OAuth2Request request = getRequest(map);
-		List<GrantedAuthority> authorities = this.authoritiesExtractor
-				.extractAuthorities(map);
-		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(
-				principal, "N/A", authorities);
-		token.setDetails(map);
-		return new OAuth2Authentication(request, token);
+		return accounts;
 	}
 
-	private Object getPrincipal(Map<String, Object> map) {
-		for (String key : PRINCIPAL_KEYS) {
-			if (map.containsKey(key)) {
-				return map.get(key);
+	/**
+	 * Replaced data points, which have not been packed yet, are read
+	 * from the unpacked collection
+	 */
+	private Map<DataPointId, DataPoint> saveToBuckets(Collection<DataPoint> points) {
+
+		Map<DataPointId, DataPoint> replaced = bucketStore.save(points);
+
+		if (legacyReads) {
+
+			List<Object> ids = points.stream()
+					.filter(point -> !replaced.containsKey(point.getId()))
+					.map(point -> toDocument(point).get(ID))
+					.collect(Collectors.toList());
+
+			if (!ids.isEmpty()) {
+				mongoTemplate.find(query(where(ID).in(ids)), DataPoint.class)
+						.forEach(point -> replaced.put(point.getId(), point));
 			}
 		}
-		return "unknown";
+
+		return replaced;
 	}
 
-	@SuppressWarnings({ "unchecked" })
-	private OAuth2Request getRequest(Map<String, Object> map) {
-		Map<String, Object> request = (Map<String, Object>) map.get("oauth2Request");
+	/**
+	 * Adds unpacked data points matching given query, unless
+	 * the same data points are packed
+	 *
+	 * @return data points ordered by account and date
+	 */
+	private List<DataPoint> withLegacy(List<DataPoint> packed, Query legacyQuery) {
 
-		String clientId = (String) request.get("clientId");
-		Set<String> scope = new LinkedHashSet<>(request.containsKey("scope") ?
-				(Collection<String>) request.get("scope") : Collections.<String>emptySet());
+		if (!legacyReads) {
+			return packed;
+		}
 
-		return new OAuth2Request(null, clientId, null, true, new HashSet<>(scope),
-				null, null, null, null);
-	}
+		List<DataPoint> legacy = mongoTemplate.find(legacyQuery, DataPoint.class);
 
-	@Override
-	public OAuth2AccessToken readAccessToken(String accessToken) {
-		throw new UnsupportedOperationException("Not supported: read access token");
+		if (legacy.isEmpty()) {
+			return packed;
+		}
+
+		Map<DataPointId, DataPoint> points = new HashMap<>();
+		legacy.forEach(point -> points.put(point.getId(), point));
+		packed.forEach(point -> points.put(point.getId(), point));
+
+		return points.values().stream()
+				.sorted(BY_ACCOUNT_AND_DATE)
+				.collect(Collectors.toList());
 	}
 
-	@SuppressWarnings({ "unchecked" })
-	private Map<String, Object> getMap(String path, String accessToken) {
-		this.logger.debug("Getting user info from: " + path);
-		try {
-			OAuth2RestOperations restTemplate = this.restTemplate;
-			if (restTemplate == null) {
-				BaseOAuth2ProtectedResourceDetails resource = new BaseOAuth2ProtectedResourceDetails();
-				resource.setClientId(this.clientId);
-				restTemplate = new OAuth2RestTemplate(resource);
-			}
-			OAuth2AccessToken existingToken = restTemplate.getOAuth2ClientContext()
-					.getAccessToken();
-			if (existingToken == null || !accessToken.equals(existingToken.getValue())) {
-				DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(
-						accessToken);
-				token.setTokenType(this.tokenType);
-				restTemplate.getOAuth2ClientContext().setAccessToken(token);
-			}
-			return restTemplate.getForEntity(path, Map.class).getBody();
-		}
-		catch (Exception ex) {
-			this.logger.info("Could not fetch user details: " + ex.getClass() + ", "
-					+ ex.getMessage());
-			return Collections.<String, Object>singletonMap("error",
-					"Could not fetch user details");
-		}
+	private Document toDocument(DataPoint point) {
+		Document document = new Document();
+		mongoTemplate.getConverter().write(point, document);
+		return document;
 	}
-}
 
-package com.piggymetrics.account.domain;
+	/**
+	 * Same as the aggregation pipeline, but for data points
+	 * already loaded from buckets
+	 */
+	private List<DataPoint> downsample(List<DataPoint> points, Resolution resolution, Set<StatisticMetric> metrics) {
 
-import org.hibernate.validator.constraints.Length;
+		Map<LocalDate, DataPoint> buckets = new LinkedHashMap<>();
 
-import javax.validation.constraints.NotNull;
+		for (DataPoint point : points) {
 
-public class User {
+			LocalDate date = point.getId().getDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
 
-	@NotNull
-	@Length(min = 3, max = 20)
-	private String username;
+			Map<StatisticMetric, BigDecimal> statistics = new EnumMap<>(StatisticMetric.class);
+			metrics.forEach(metric -> {
+				BigDecimal value = point.getStatistics() == null ? null : point.getStatistics().get(metric);
+				if (value != null) {
+					statistics.put(metric, value);
+				}
+			});
 
-	@NotNull
-	@Length(min = 6, max = 40)
-	private String password;
+			DataPoint sample = new DataPoint();
+			sample.setId(point.getId());
+			sample.setStatistics(statistics);
 
-	public String getUsername() {
-		return username;
+			buckets.put(startOf(date, resolution), sample);
+		}
+
+		return new ArrayList<>(buckets.values());
 	}
 
-	public void setUsername(String username) {
-		this.username = username;
+	private LocalDate startOf(LocalDate date, Resolution resolution) {
+		switch (resolution) {
+			case DAY:
+				return date;
+			case WEEK:
+				return date.with(WeekFields.ISO.dayOfWeek(), 1);
+			case MONTH:
+				return date.with(TemporalAdjusters.firstDayOfMonth());
+			default:
+				throw new IllegalArgumentException();
+		}
 	}
 
-	public String getPassword() {
-		return password;
+	/**
+	 * Data points are created at the start of a day in the service time zone,
+	 * so buckets are computed in the same zone
+	 */
+	private Object bucketOf(Resolution resolution) {
+
+		String timezone = ZoneId.systemDefault().getId();
+
+		switch (resolution) {
+			case DAY:
+				return "$" + DATE;
+			case WEEK:
+				return new Document("year", dateOperator("$isoWeekYear", timezone))
+						.append("week", dateOperator("$isoWeek", timezone));
+			case MONTH:
+				return new Document("year", dateOperator("$year", timezone))
+						.append("month", dateOperator("$month", timezone));
+			default:
+				throw new IllegalArgumentException();
+		}
 	}
 
-	public void setPassword(String password) {
-		this.password = password;
+	private Document dateOperator(String operator, String timezone) {
+		return new Document(operator, new Document("date", "$" + DATE).append("timezone", timezone));
 	}
-}
 
-package com.piggymetrics.account.domain;
+	/**
+	 * Merges packed and unpacked data points, both ordered by account and date.
+	 * Packed data point wins, when both streams contain the same one
+	 */
+	private static class MergingIterator implements CloseableIterator<DataPoint> {
 
-public enum TimePeriod {
+		private final CloseableIterator<DataPoint> packed;
 
-	YEAR, QUARTER, MONTH, DAY, HOUR
+		private final CloseableIterator<DataPoint> legacy;
 
-}
+		private DataPoint nextPacked;
 
-package com.piggymetrics.account.domain;
+		private DataPoint nextLegacy;
 
-import org.codehaus.jackson.annotate.JsonIgnoreProperties;
-import org.hibernate.validator.constraints.Length;
-import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.Document;
+		MergingIterator(CloseableIterator<DataPoint> packed, CloseableIterator<DataPoint> legacy) {
+			this.packed = packed;
+			this.legacy = legacy;
+		}
 
-import javax.validation.Valid;
-import javax.validation.constraints.NotNull;
-import java.util.Date;
-import java.util.List;
+		@Override
+		public boolean hasNext() {
 
-@Document(collection = "accounts")
-@JsonIgnoreProperties(ignoreUnknown = true)
-public class Account {
+			if (nextPacked == null && packed.hasNext()) {
+				nextPacked = packed.next();
+			}
 
-	@Id
-	private String name;
+			if (nextLegacy == null && legacy.hasNext()) {
+				nextLegacy = legacy.next();
+			}
 
-	private Date lastSeen;
+			return nextPacked != null || nextLegacy != null;
+		}
 
-	@Valid
-	private List<Item> incomes;
+		@Override
+		public DataPoint next() {
 
-	@Valid
-	private List<Item> expenses;
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
 
-	@Valid
-	@NotNull
-	private Saving saving;
+			int order = nextPacked == null ? 1
+					: nextLegacy == null ? -1
+					: BY_ACCOUNT_AND_DATE.compare(nextPacked, nextLegacy);
 
-	@Length(min = 0, max = 20_000)
-	private String note;
+			DataPoint point;
 
-	public String getName() {
-		return name;
-	}
+			if (order > 0) {
+				point = nextLegacy;
+			} else {
+				point = nextPacked;
+				nextPacked = null;
+				if (order < 0) {
+					return point;
+				}
+			}
 
-	public void setName(String name) {
-		this.name = name;
-	}
+			nextLegacy = null;
+			return point;
+		}
 
-	public Date getLastSeen() {
-		return lastSeen;
+		@Override
+		public void close() {
+			try {
+				packed.close();
+			} finally {
+				legacy.close();
+			}
+		}
 	}
+}
 
-	public void setLastSeen(Date lastSeen) {
-		this.lastSeen = lastSeen;
-	}
+package com.piggymetrics.statistics.repository;
 
-	public List<Item> getIncomes() {
-		return incomes;
-	}
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointBucket;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.util.CloseableIterator;
+
+import java.time.YearMonth;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Optional;
+import java.util.stream.Collectors;
 
-	public void setIncomes(List<Item> incomes) {
-		this.incomes = incomes;
-	}
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
-	public List<Item> getExpenses() {
-		return expenses;
-	}
+/**
+ * Stores {@link DataPoint}s packed into {@link DataPointBucket}s, one per account and month.
+ *
+ * Bucket updates are read-modify-write, guarded by optimistic locking
+ * and retried on concurrent modification.
+ */
+class DataPointBucketStore {
 
-	public void setExpenses(List<Item> expenses) {
-		this.expenses = expenses;
-	}
+	private static final int MAX_ATTEMPTS = 5;
 
-	public Saving getSaving() {
-		return saving;
+	private final MongoTemplate mongoTemplate;
+
+	DataPointBucketStore(MongoTemplate mongoTemplate) {
+		this.mongoTemplate = mongoTemplate;
 	}
 
-	public void setSaving(Saving saving) {
-		this.saving = saving;
+	/**
+	 * @return replaced data points by id
+	 */
+	public Map<DataPointId, DataPoint> save(Collection<DataPoint> points) {
+
+		Map<String, List<DataPoint>> buckets = points.stream()
+				.collect(Collectors.groupingBy(point -> DataPointBucket.idOf(point.getId()),
+						LinkedHashMap::new, Collectors.toList()));
+
+		Map<DataPointId, DataPoint> replaced = new HashMap<>();
+		buckets.values().forEach(bucketPoints -> replaced.putAll(saveToBucket(bucketPoints)));
+
+		return replaced;
 	}
 
-	public String getNote() {
-		return note;
+	public Optional<DataPoint> findById(DataPointId id) {
+
+		DataPointBucket bucket = mongoTemplate.findById(DataPointBucket.idOf(id), DataPointBucket.class);
+
+		if (bucket == null) {
+			return Optional.empty();
+		}
+
+		return bucket.toDataPoints().stream()
+				.filter(point -> point.getId().equals(id))
+				.findFirst();
 	}
 
-	public void setNote(String note) {
-		this.note = note;
+	public List<DataPoint> findByAccount(String account) {
+		return find(query(where("account").is(account)));
 	}
-}
 
-package com.piggymetrics.account.domain;
+	public List<DataPoint> findByAccount(String account, Date from, Date to) {
 
-import javax.validation.constraints.NotNull;
-import java.math.BigDecimal;
+		Query query = query(where("account").is(account)
+				.and("month").gte(DataPointBucket.startOf(DataPointBucket.monthOf(from))).lte(to));
 
-public class Saving {
+		return find(query).stream()
+				.filter(point -> !point.getId().getDate().before(from) && !point.getId().getDate().after(to))
+				.collect(Collectors.toList());
+	}
 
-	@NotNull
-	private BigDecimal amount;
+	public List<String> findAccountsWithPointOn(Date date) {
 
-	@NotNull
-	private Currency currency;
+		Date month = DataPointBucket.startOf(DataPointBucket.monthOf(date));
 
-	@NotNull
-	private BigDecimal interest;
+		return mongoTemplate.findDistinct(query(where("month").is(month)
+				.and("points.offset").is(date.getTime() - month.getTime())), "account", DataPointBucket.class, String.class);
+	}
 
-	@NotNull
-	private Boolean deposit;
+	/**
+	 * @return data points of accounts after given one, unpacked from buckets as they are read
+	 */
+	public CloseableIterator<DataPoint> streamAfter(String account) {
 
-	@NotNull
-	private Boolean capitalization;
+		Query query = account == null ? new Query() : query(where("account").gt(account));
+		CloseableIterator<DataPointBucket> buckets = mongoTemplate.stream(query.with(Sort.by("account", "month")),
+				DataPointBucket.class);
 
-	public BigDecimal getAmount() {
-		return amount;
-	}
+		return new CloseableIterator<DataPoint>() {
 
-	public void setAmount(BigDecimal amount) {
-		this.amount = amount;
-	}
+			private Iterator<DataPoint> points = Collections.emptyIterator();
 
-	public Currency getCurrency() {
-		return currency;
-	}
+			@Override
+			public boolean hasNext() {
+				while (!points.hasNext() && buckets.hasNext()) {
+					points = buckets.next().toDataPoints().iterator();
+				}
+				return points.hasNext();
+			}
 
-	public void setCurrency(Currency currency) {
-		this.currency = currency;
-	}
+			@Override
+			public DataPoint next() {
+				if (!hasNext()) {
+					throw new NoSuchElementException();
+				}
+				return points.next();
+			}
 
-	public BigDecimal getInterest() {
-		return interest;
+			@Override
+			public void close() {
+				buckets.close();
+			}
+		};
 	}
 
-	public void setInterest(BigDecimal interest) {
-		this.interest = interest;
+	private List<DataPoint> find(Query query) {
+		return mongoTemplate.find(query.with(Sort.by("month")), DataPointBucket.class).stream()
+				.flatMap(bucket -> bucket.toDataPoints().stream())
+				.collect(Collectors.toList());
 	}
 
-	public Boolean getDeposit() {
-		return deposit;
-	}
+	private Map<DataPointId, DataPoint> saveToBucket(List<DataPoint> points) {
 
-	public void setDeposit(Boolean deposit) {
-		this.deposit = deposit;
-	}
+		DataPointId first = points.get(0).getId();
+		YearMonth month = DataPointBucket.monthOf(first.getDate());
+		String id = DataPointBucket.idOf(first.getAccount(), month);
 
-	public Boolean getCapitalization() {
-		return capitalization;
-	}
+		for (int attempt = 1; ; attempt++) {
 
-	public void setCapitalization(Boolean capitalization) {
-		this.capitalization = capitalization;
-	}
-}
+			DataPointBucket bucket = mongoTemplate.findById(id, DataPointBucket.class);
 
-package com.piggymetrics.account.domain;
+			if (bucket == null) {
+				bucket = new DataPointBucket(first.getAccount(), month);
+			}
 
-public enum Currency {
+			Map<DataPointId, DataPoint> replaced = new HashMap<>();
 
-	USD, EUR, RUB;
+			for (DataPoint point : points) {
+				DataPoint previous = bucket.put(point);
+				if (previous != null) {
+					replaced.put(previous.getId(), previous);
+				}
+			}
 
-	public static Currency getDefault() {
-		return USD;
+			try {
+				mongoTemplate.save(bucket);
+				return replaced;
+			} catch (OptimisticLockingFailureException | DuplicateKeyException e) {
+				if (attempt >= MAX_ATTEMPTS) {
+					throw e;
+				}
+			}
+		}
 	}
 }
 
-package com.piggymetrics.account.domain;
+package com.piggymetrics.statistics.repository;
 
-import org.hibernate.validator.constraints.Length;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.repository.Query;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
 
-import javax.validation.constraints.NotNull;
-import java.math.BigDecimal;
+import java.util.Date;
+import java.util.List;
 
-public class Item {
+@Repository
+public interface RollupRepository extends CrudRepository<Rollup, String>, RollupRepositoryCustom {
 
-	@NotNull
-	@Length(min = 1, max = 20)
-	private String title;
+	@Query("{ 'account': ?0, 'period': ?1, 'start': { $gte: ?2, $lte: ?3 } }")
+	List<Rollup> findStartedWithin(String account, RollupPeriod period, Date from, Date to, Sort sort);
 
-	@NotNull
-	private BigDecimal amount;
+}
 
-	@NotNull
-	private Currency currency;
+package com.piggymetrics.statistics.repository;
 
-	@NotNull
-	private TimePeriod period;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
 
-	@NotNull
-	private String icon;
+import java.util.Collection;
 
-	public String getTitle() {
-		return title;
-	}
+public interface RollupRepositoryCustom {
 
-	public void setTitle(String title) {
-		this.title = title;
-	}
+	/**
+	 * Atomically adds count and sums of given deltas to stored
+	 * rollups with the same ids, creating missing ones. Deltas are
+	 * applied in the given order
+	 *
+	 * @param deltas rollup differences
+	 */
+	void increment(Collection<Rollup> deltas);
 
-	public BigDecimal getAmount() {
-		return amount;
-	}
+	/**
+	 * Overwrites count and sums of the stored rollup with the same id, unless
+	 * it has been written since it was read
+	 *
+	 * @param rollup rebuilt rollup
+	 * @param version version of the stored rollup, which has been read before the rebuild,
+	 *                or {@code null} if there was none
+	 * @return {@code false}, if the stored rollup has been written meanwhile
+	 */
+	boolean replace(Rollup rollup, Long version);
 
-	public void setAmount(BigDecimal amount) {
-		this.amount = amount;
-	}
+}
 
-	public Currency getCurrency() {
-		return currency;
-	}
+package com.piggymetrics.statistics.repository;
 
-	public void setCurrency(Currency currency) {
-		this.currency = currency;
-	}
+import com.mongodb.client.result.UpdateResult;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import org.bson.Document;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
 
-	public TimePeriod getPeriod() {
-		return period;
-	}
+import java.util.Collection;
 
-	public void setPeriod(TimePeriod period) {
-		this.period = period;
-	}
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
 
-	public String getIcon() {
-		return icon;
-	}
+public class RollupRepositoryImpl implements RollupRepositoryCustom {
 
-	public void setIcon(String icon) {
-		this.icon = icon;
-	}
-}
+	@Autowired
+	private MongoTemplate mongoTemplate;
 
-package com.piggymetrics.account.client;
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void increment(Collection<Rollup> deltas) {
 
-import com.piggymetrics.account.domain.Account;
-import org.springframework.cloud.openfeign.FeignClient;
-import org.springframework.http.MediaType;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
+		if (deltas.isEmpty()) {
+			return;
+		}
 
-@FeignClient(name = "statistics-service", fallback = StatisticsServiceClientFallback.class)
-public interface StatisticsServiceClient {
+		// ordered, so that rebuilds can rely on rollups of a data point being incremented from
+		// the shortest period to the longest one
+		BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.ORDERED, Rollup.class);
 
-	@RequestMapping(method = RequestMethod.PUT, value = "/statistics/{accountName}", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
-	void updateStatistics(@PathVariable("accountName") String accountName, Account account);
+		for (Rollup delta : deltas) {
 
-}
+			Update update = new Update()
+					.setOnInsert("account", delta.getAccount())
+					.setOnInsert("period", delta.getPeriod())
+					.setOnInsert("start", delta.getStart())
+					.inc("count", delta.getCount())
+					.inc("version", 1);
 
-package com.piggymetrics.account.client;
+			delta.getSums().forEach((metric, sum) -> update.inc("sums." + metric.name(), sum));
 
-import com.piggymetrics.account.domain.Account;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.stereotype.Component;
+			operations.upsert(query(where("_id").is(delta.getId())), update);
+		}
 
-/**
- * @author cdov
- */
-@Component
-public class StatisticsServiceClientFallback implements StatisticsServiceClient {
-    private static final Logger LOGGER = LoggerFactory.getLogger(StatisticsServiceClientFallback.class);
-    @Override
-    public void updateStatistics(String accountName, Account account) {
-        LOGGER.error("Error during update statistics for account: {}", accountName);
-    }
-}
+		operations.execute();
+	}
 
-package com.piggymetrics.account.client;
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public boolean replace(Rollup rollup, Long version) {
 
-import com.piggymetrics.account.domain.User;
-import org.springframework.cloud.openfeign.FeignClient;
-import org.springframework.http.MediaType;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
+		Criteria criteria = where("_id").is(rollup.getId());
+		criteria = version == null ? criteria.and("version").exists(false) : criteria.and("version").is(version);
 
-@FeignClient(name = "auth-service")
-public interface AuthServiceClient {
+		Document sums = new Document();
+		rollup.getSums().forEach((metric, sum) -> sums.append(metric.name(), sum));
 
-	@RequestMapping(method = RequestMethod.POST, value = "/uaa/users", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
-	void createUser(User user);
+		Update update = new Update()
+				.setOnInsert("account", rollup.getAccount())
+				.setOnInsert("period", rollup.getPeriod())
+				.setOnInsert("start", rollup.getStart())
+				.set("count", rollup.getCount())
+				.set("sums", sums)
+				.inc("version", 1);
 
+		try {
+			UpdateResult result = mongoTemplate.upsert(query(criteria), update, Rollup.class);
+			return result.getMatchedCount() > 0 || result.getUpsertedId() != null;
+		} catch (DuplicateKeyException e) {
+			// created meanwhile, so the upsert has not matched the missing version
+			return false;
+		}
+	}
 }
 
-package com.piggymetrics.notification;
-
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
+package com.piggymetrics.statistics.repository;
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class NotificationServiceApplicationTests {
+import com.piggymetrics.statistics.domain.RecomputationCheckpoint;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
 
-	@Test
-	public void contextLoads() {
-	}
+@Repository
+public interface RecomputationCheckpointRepository extends CrudRepository<RecomputationCheckpoint, String> {
 
 }
 
-package com.piggymetrics.notification.repository;
+package com.piggymetrics.statistics.repository;
 
-import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.notification.domain.Frequency;
-import com.piggymetrics.notification.domain.NotificationSettings;
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import org.apache.commons.lang.time.DateUtils;
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
-import org.springframework.test.context.junit4.SpringRunner;
+import com.piggymetrics.statistics.domain.timeseries.RollupRebuild;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
 
 import java.util.Date;
 import java.util.List;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertFalse;
-import static org.junit.Assert.assertTrue;
+@Repository
+public interface RollupRebuildRepository extends CrudRepository<RollupRebuild, String> {
 
-@RunWith(SpringRunner.class)
-@DataMongoTest
-public class RecipientRepositoryTest {
+	List<RollupRebuild> findByMarkedAtBefore(Date markedAt, Pageable pageable);
 
-	@Autowired
-	private RecipientRepository repository;
+	/**
+	 * Removes the marker only if it was not marked again meanwhile
+	 */
+	long deleteByIdAndMarkedAt(String id, Date markedAt);
 
-	@Test
-	public void shouldFindByAccountName() {
+}
 
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(true);
-		remind.setFrequency(Frequency.WEEKLY);
-		remind.setLastNotified(new Date(0));
+package com.piggymetrics.statistics.repository.converter;
 
-		NotificationSettings backup = new NotificationSettings();
-		backup.setActive(false);
-		backup.setFrequency(Frequency.MONTHLY);
-		backup.setLastNotified(new Date());
+import com.mongodb.DBObject;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.stereotype.Component;
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.BACKUP, backup,
-				NotificationType.REMIND, remind
-		));
+import java.util.Date;
 
-		repository.save(recipient);
+@Component
+public class DataPointIdReaderConverter implements Converter<DBObject, DataPointId> {
 
-		Recipient found = repository.findByAccountName(recipient.getAccountName());
-		assertEquals(recipient.getAccountName(), found.getAccountName());
-		assertEquals(recipient.getEmail(), found.getEmail());
+	@Override
+	public DataPointId convert(DBObject object) {
 
-		assertEquals(recipient.getScheduledNotifications().get(NotificationType.BACKUP).getActive(),
-				found.getScheduledNotifications().get(NotificationType.BACKUP).getActive());
-		assertEquals(recipient.getScheduledNotifications().get(NotificationType.BACKUP).getFrequency(),
-				found.getScheduledNotifications().get(NotificationType.BACKUP).getFrequency());
-		assertEquals(recipient.getScheduledNotifications().get(NotificationType.BACKUP).getLastNotified(),
-				found.getScheduledNotifications().get(NotificationType.BACKUP).getLastNotified());
+		Date date = (Date) object.get("date");
+		String account = (String) object.get("account");
 
-		assertEquals(recipient.getScheduledNotifications().get(NotificationType.REMIND).getActive(),
-				found.getScheduledNotifications().get(NotificationType.REMIND).getActive());
-		assertEquals(recipient.getScheduledNotifications().get(NotificationType.REMIND).getFrequency(),
-				found.getScheduledNotifications().get(NotificationType.REMIND).getFrequency());
-		assertEquals(recipient.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified(),
-				found.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified());
+		return new DataPointId(account, date);
 	}
+}
 
-	@Test
-	public void shouldFindReadyForRemindWhenFrequencyIsWeeklyAndLastNotifiedWas8DaysAgo() {
-
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(true);
-		remind.setFrequency(Frequency.WEEKLY);
-		remind.setLastNotified(DateUtils.addDays(new Date(), -8));
-
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.REMIND, remind
-		));
+package com.piggymetrics.statistics.repository.converter;
 
-		repository.save(recipient);
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.stereotype.Component;
 
-		List<Recipient> found = repository.findReadyForRemind();
-		assertFalse(found.isEmpty());
-	}
+@Component
+public class DataPointIdWriterConverter implements Converter<DataPointId, DBObject> {
 
-	@Test
-	public void shouldNotFindReadyForRemindWhenFrequencyIsWeeklyAndLastNotifiedWasYesterday() {
+	private static final int FIELDS = 2;
 
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(true);
-		remind.setFrequency(Frequency.WEEKLY);
-		remind.setLastNotified(DateUtils.addDays(new Date(), -1));
+	@Override
+	public DBObject convert(DataPointId id) {
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.REMIND, remind
-		));
+		DBObject object = new BasicDBObject(FIELDS);
 
-		repository.save(recipient);
+		object.put("date", id.getDate());
+		object.put("account", id.getAccount());
 
-		List<Recipient> found = repository.findReadyForRemind();
-		assertTrue(found.isEmpty());
+		return object;
 	}
+}
 
-	@Test
-	public void shouldNotFindReadyForRemindWhenNotificationIsNotActive() {
+package com.piggymetrics.statistics.config;
 
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(false);
-		remind.setFrequency(Frequency.WEEKLY);
-		remind.setLastNotified(DateUtils.addDays(new Date(), -30));
+import com.piggymetrics.statistics.service.security.CachingTokenServices;
+import com.piggymetrics.statistics.service.security.CustomUserInfoTokenServices;
+import com.piggymetrics.statistics.service.security.SignedTokenServices;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
+import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestTemplate;
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.REMIND, remind
-		));
+/**
+ * @author cdov
+ */
+@EnableResourceServer
+@Configuration
+public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
+    @Autowired
+    private ResourceServerProperties sso;
 
-		repository.save(recipient);
+    @Bean
+    public ResourceServerTokenServices tokenServices(@Value("${security.oauth2.token.mode:opaque}") String tokenMode,
+                                                     @Value("${security.oauth2.resource.jwt.key-refresh-interval:60000}") long keyRefreshInterval,
+                                                     @Value("${security.oauth2.resource.cache.ttl:60000}") long ttl,
+                                                     @Value("${security.oauth2.resource.cache.negative-ttl:10000}") long negativeTtl,
+                                                     @Value("${security.oauth2.resource.cache.max-size:10000}") int maxSize) {
+        if ("jwt".equals(tokenMode)) {
+            return new SignedTokenServices(sso.getJwt().getKeyUri(), new RestTemplate(), keyRefreshInterval);
+        }
+        return new CachingTokenServices(new CustomUserInfoTokenServices(sso.getUserInfoUri(), sso.getClientId()),
+                ttl, negativeTtl, maxSize);
+    }
+}
 
-		List<Recipient> found = repository.findReadyForRemind();
-		assertTrue(found.isEmpty());
-	}
+package com.piggymetrics.statistics.config;
 
-	@Test
-	public void shouldNotFindReadyForBackupWhenFrequencyIsQuaterly() {
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.http.converter.HttpMessageConverter;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+import org.springframework.http.converter.smile.MappingJackson2SmileHttpMessageConverter;
+import org.springframework.web.servlet.config.annotation.WebMvcConfigurer;
 
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(true);
-		remind.setFrequency(Frequency.QUARTERLY);
-		remind.setLastNotified(DateUtils.addDays(new Date(), -91));
+import java.util.List;
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.BACKUP, remind
-		));
+/**
+ * Accepts and produces {@code application/x-jackson-smile} alongside JSON,
+ * with the same Jackson settings.
+ *
+ * Smile converter goes last, so JSON stays the response format unless
+ * a client asks for Smile explicitly.
+ */
+@Configuration
+public class WireFormatConfig implements WebMvcConfigurer {
 
-		repository.save(recipient);
+    @Autowired
+    private Jackson2ObjectMapperBuilder objectMapperBuilder;
 
-		List<Recipient> found = repository.findReadyForBackup();
-		assertFalse(found.isEmpty());
-	}
+    @Override
+    public void extendMessageConverters(List<HttpMessageConverter<?>> converters) {
+        converters.removeIf(converter -> converter instanceof MappingJackson2SmileHttpMessageConverter);
+        converters.add(new MappingJackson2SmileHttpMessageConverter(
+                objectMapperBuilder.factory(new SmileFactory()).build()));
+    }
 }
-package com.piggymetrics.notification.controller;
-
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.notification.domain.Frequency;
-import com.piggymetrics.notification.domain.NotificationSettings;
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import com.piggymetrics.notification.service.RecipientService;
-import com.sun.security.auth.UserPrincipal;
-import org.junit.Before;
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.http.MediaType;
-import org.springframework.test.context.junit4.SpringRunner;
-import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.test.web.servlet.setup.MockMvcBuilders;
-
-import static org.mockito.Mockito.when;
-import static org.mockito.MockitoAnnotations.initMocks;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class RecipientControllerTest {
+package com.piggymetrics.statistics.controller;
 
-	private static final ObjectMapper mapper = new ObjectMapper();
+import com.piggymetrics.statistics.domain.Account;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import com.piggymetrics.statistics.service.StatisticsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.format.annotation.DateTimeFormat;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
 
-	@InjectMocks
-	private RecipientController recipientController;
+import javax.validation.Valid;
+import java.security.Principal;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
 
-	@Mock
-	private RecipientService recipientService;
+@RestController
+public class StatisticsController {
 
-	private MockMvc mockMvc;
+	@Autowired
+	private StatisticsService statisticsService;
 
-	@Before
-	public void setup() {
-		initMocks(this);
-		this.mockMvc = MockMvcBuilders.standaloneSetup(recipientController).build();
+	@RequestMapping(value = "/current", method = RequestMethod.GET)
+	public List<DataPoint> getCurrentAccountStatistics(Principal principal) {
+		return statisticsService.findByAccountName(principal.getName());
 	}
 
-	@Test
-	public void shouldSaveCurrentRecipientSettings() throws Exception {
+	@RequestMapping(value = "/current/series", method = RequestMethod.GET)
+	public List<DataPoint> getCurrentAccountSeries(Principal principal,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date from,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date to,
+			@RequestParam(defaultValue = "DAY") Resolution resolution,
+			@RequestParam(required = false) Set<StatisticMetric> metrics) {
+		return statisticsService.findByAccountName(principal.getName(), from, to, resolution, metrics);
+	}
 
-		Recipient recipient = getStubRecipient();
-		String json = mapper.writeValueAsString(recipient);
+	@RequestMapping(value = "/current/rollups", method = RequestMethod.GET)
+	public List<Rollup> getCurrentAccountRollups(Principal principal,
+			@RequestParam RollupPeriod period,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date from,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date to) {
+		return statisticsService.findRollups(principal.getName(), period, from, to);
+	}
 
-		mockMvc.perform(put("/recipients/current").principal(new UserPrincipal(recipient.getAccountName())).contentType(MediaType.APPLICATION_JSON).content(json))
-				.andExpect(status().isOk());
+	@PreAuthorize("#oauth2.hasScope('server') or #accountName.equals('demo')")
+	@RequestMapping(value = "/{accountName}/rollups", method = RequestMethod.GET)
+	public List<Rollup> getRollupsByAccountName(@PathVariable String accountName,
+			@RequestParam RollupPeriod period,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date from,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date to) {
+		return statisticsService.findRollups(accountName, period, from, to);
 	}
 
-	@Test
-	public void shouldGetCurrentRecipientSettings() throws Exception {
+	@PreAuthorize("#oauth2.hasScope('server') or #accountName.equals('demo')")
+	@RequestMapping(value = "/{accountName}/series", method = RequestMethod.GET)
+	public List<DataPoint> getSeriesByAccountName(@PathVariable String accountName,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date from,
+			@RequestParam @DateTimeFormat(iso = DateTimeFormat.ISO.DATE) Date to,
+			@RequestParam(defaultValue = "DAY") Resolution resolution,
+			@RequestParam(required = false) Set<StatisticMetric> metrics) {
+		return statisticsService.findByAccountName(accountName, from, to, resolution, metrics);
+	}
 
-		Recipient recipient = getStubRecipient();
-		when(recipientService.findByAccountName(recipient.getAccountName())).thenReturn(recipient);
+	@PreAuthorize("#oauth2.hasScope('server') or #accountName.equals('demo')")
+	@RequestMapping(value = "/{accountName}", method = RequestMethod.GET)
+	public List<DataPoint> getStatisticsByAccountName(@PathVariable String accountName) {
+		return statisticsService.findByAccountName(accountName);
+	}
 
-		mockMvc.perform(get("/recipients/current").principal(new UserPrincipal(recipient.getAccountName())))
-				.andExpect(jsonPath("$.accountName").value(recipient.getAccountName()))
-				.andExpect(status().isOk());
+	@PreAuthorize("#oauth2.hasScope('server')")
+	@RequestMapping(value = "/{accountName}", method = RequestMethod.PUT)
+	public void saveAccountStatistics(@PathVariable String accountName, @Valid @RequestBody Account account) {
+		statisticsService.save(accountName, account);
 	}
+}
 
-	private Recipient getStubRecipient() {
+package com.piggymetrics.statistics.controller;
 
-		NotificationSettings remind = new NotificationSettings();
+import com.piggymetrics.statistics.domain.RecomputationCheckpoint;
+import com.piggymetrics.statistics.service.RecomputationJob;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+@RestController
+public class RecomputationController {
+
+	@Autowired
+	private RecomputationJob recomputationJob;
+
+	@PreAuthorize("#oauth2.hasScope('server')")
+	@RequestMapping(value = "/recomputation", method = RequestMethod.POST)
+	public ResponseEntity<RecomputationCheckpoint> startRecomputation(@RequestParam(defaultValue = "false") boolean restart) {
+		boolean started = recomputationJob.start(restart);
+		return ResponseEntity.status(started ? HttpStatus.ACCEPTED : HttpStatus.CONFLICT)
+				.body(recomputationJob.getStatus());
+	}
+
+	@PreAuthorize("#oauth2.hasScope('server')")
+	@RequestMapping(value = "/recomputation", method = RequestMethod.GET)
+	public ResponseEntity<RecomputationCheckpoint> getRecomputationStatus() {
+		RecomputationCheckpoint status = recomputationJob.getStatus();
+		return status == null ? ResponseEntity.notFound().build() : ResponseEntity.ok(status);
+	}
+}
+
+package com.piggymetrics.statistics.controller;
+
+import com.piggymetrics.statistics.service.IngestionRejectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+import javax.servlet.http.HttpServletResponse;
+
+@ControllerAdvice
+public class ErrorHandler {
+
+	private static final String RETRY_AFTER_SECONDS = "1";
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@ExceptionHandler(IllegalArgumentException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public void processValidationError(IllegalArgumentException e) {
+		log.info("Returning HTTP 400 Bad Request", e);
+	}
+
+	@ExceptionHandler(IngestionRejectedException.class)
+	@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+	public void processIngestionRejected(IngestionRejectedException e, HttpServletResponse response) {
+		log.warn("Returning HTTP 503 Service Unavailable: {}", e.getMessage());
+		response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.client.ExchangeRatesClient;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import com.piggymetrics.statistics.domain.ExchangeRatesSnapshot;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@Service
+public class ExchangeRatesServiceImpl implements ExchangeRatesService {
+
+	private static final Logger log = LoggerFactory.getLogger(ExchangeRatesServiceImpl.class);
+
+	private final AtomicReference<ExchangeRatesSnapshot> snapshot = new AtomicReference<>();
+
+	private final Timer refreshTimer = Metrics.timer("exchange.rates.refresh");
+
+	private final Counter refreshFailures = Metrics.counter("exchange.rates.refresh.failures");
+
+	@Autowired
+	private ExchangeRatesClient client;
+
+	@Value("${rates.refresh.max-age:3600000}")
+	private long maxAge = TimeUnit.HOURS.toMillis(1);
+
+	public ExchangeRatesServiceImpl() {
+		Metrics.gauge("exchange.rates.staleness", this, ExchangeRatesServiceImpl::getStalenessSeconds);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<Currency, BigDecimal> getCurrentRates() {
+		return getSnapshot().getRates();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public ExchangeRatesSnapshot getCurrentSnapshot() {
+		return getSnapshot();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public BigDecimal convert(Currency from, Currency to, BigDecimal amount) {
+
+		Assert.notNull(amount);
+
+		return amount.multiply(getSnapshot().getRatio(from, to));
+	}
+
+	/**
+	 * Refreshes rates in background, so request threads never wait for
+	 * the provider after the initial load. Expired or stale rates
+	 * are served until the refresh succeeds.
+	 */
+	@Scheduled(initialDelay = 0, fixedDelayString = "${rates.refresh.delay:60000}")
+	public void refreshIfExpired() {
+
+		ExchangeRatesSnapshot current = snapshot.get();
+
+		if (current == null || current.isStale() || current.isExpired(LocalDate.now())
+				|| Duration.between(current.getFetchedAt(), Instant.now()).toMillis() >= maxAge) {
+			refresh();
+		}
+	}
+
+	private ExchangeRatesSnapshot getSnapshot() {
+		ExchangeRatesSnapshot current = snapshot.get();
+		return current != null ? current : loadInitial();
+	}
+
+	/**
+	 * Blocks concurrent callers until the very first rates are loaded,
+	 * so only one of them requests the provider
+	 */
+	private synchronized ExchangeRatesSnapshot loadInitial() {
+
+		ExchangeRatesSnapshot current = snapshot.get();
+
+		if (current == null) {
+			current = refresh();
+		}
+
+		if (current == null) {
+			throw new IllegalStateException("exchange rates are not available");
+		}
+
+		return current;
+	}
+
+	/**
+	 * Requests today's rates and swaps the snapshot. When the provider
+	 * is unavailable, {@link com.piggymetrics.statistics.client.ExchangeRatesClientFallback}
+	 * response is rejected and previous rates are kept, marked as stale.
+	 */
+	private ExchangeRatesSnapshot refresh() {
+
+		long start = System.nanoTime();
+		ExchangeRatesContainer container = null;
+
+		try {
+			container = client.getRates(Currency.getBase());
+		} catch (RuntimeException e) {
+			log.warn("failed to request exchange rates", e);
+		}
+
+		ExchangeRatesSnapshot fresh = ExchangeRatesSnapshot.of(container, Instant.now());
+		refreshTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		if (fresh == null) {
+			refreshFailures.increment();
+			ExchangeRatesSnapshot previous = snapshot.updateAndGet(s -> s == null ? null : s.asStale());
+			log.warn("exchange rates are unavailable, previous rates are used: {}", previous);
+			return previous;
+		}
+
+		snapshot.set(fresh);
+		log.info("exchange rates has been updated: {}", fresh);
+
+		return fresh;
+	}
+
+	private double getStalenessSeconds() {
+		ExchangeRatesSnapshot current = snapshot.get();
+		return current == null ? Double.NaN
+				: Duration.between(current.getFetchedAt(), Instant.now()).getSeconds();
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.Account;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+
+public interface StatisticsService {
+
+	/**
+	 * Finds account by given name
+	 *
+	 * @param accountName
+	 * @return found account
+	 */
+	List<DataPoint> findByAccountName(String accountName);
+
+	/**
+	 * Finds account data points within given date range, downsampled
+	 * to given resolution. Each bucket is represented by its latest
+	 * data point, which contains only requested statistic metrics.
+	 *
+	 * @param accountName
+	 * @param from range start, inclusive
+	 * @param to range end, inclusive
+	 * @param resolution bucket size
+	 * @param metrics metrics to return, all metrics if empty
+	 * @return data points ordered by date
+	 */
+	List<DataPoint> findByAccountName(String accountName, Date from, Date to,
+									  Resolution resolution, Set<StatisticMetric> metrics);
+
+	/**
+	 * Finds pre-aggregated account statistics, which are maintained
+	 * incrementally as data points are saved
+	 *
+	 * @param accountName
+	 * @param period rollup period
+	 * @param from range start, inclusive
+	 * @param to range end, inclusive
+	 * @return rollups ordered by period start
+	 */
+	List<Rollup> findRollups(String accountName, RollupPeriod period, Date from, Date to);
+
+	/**
+	 * Converts given {@link Account} object to {@link DataPoint} with
+	 * a set of significant statistic metrics.
+	 *
+	 * Compound {@link DataPoint#id} forces to rewrite the object
+	 * for each account within a day.
+	 *
+	 * In buffered ingestion mode the object is written asynchronously
+	 * by {@link DataPointWriteBuffer}.
+	 *
+	 * @param accountName
+	 * @param account
+	 * @throws IngestionRejectedException if buffered ingestion is overloaded
+	 */
+	DataPoint save(String accountName, Account account);
+
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesSnapshot;
+
+import java.math.BigDecimal;
+import java.util.Map;
+
+public interface ExchangeRatesService {
+
+	/**
+	 * Returns foreign exchange rates from the last successful provider request.
+	 * Rates are refreshed in background, so the provider is requested
+	 * on the calling thread only when no rates were loaded so far
+	 *
+	 * @return current date rates
+	 */
+	Map<Currency, BigDecimal> getCurrentRates();
+
+	/**
+	 * Returns the same rates as {@link #getCurrentRates()} along with cross rates,
+	 * so that a computation could use consistent rates throughout
+	 *
+	 * @return current date rates snapshot
+	 */
+	ExchangeRatesSnapshot getCurrentSnapshot();
+
+	/**
+	 * Converts given amount to specified currency
+	 *
+	 * @param from {@link Currency}
+	 * @param to {@link Currency}
+	 * @param amount to be converted
+	 * @return converted amount
+	 */
+	BigDecimal convert(Currency from, Currency to, BigDecimal amount);
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.*;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+
+@Service
+public class StatisticsServiceImpl implements StatisticsService {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private DataPointRepository repository;
+
+	@Autowired
+	private ExchangeRatesService ratesService;
+
+	@Autowired
+	private DataPointWriteBuffer writeBuffer;
+
+	@Autowired
+	private RollupService rollupService;
+
+	@Autowired
+	private RollupReconciler reconciler;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<DataPoint> findByAccountName(String accountName) {
+		Assert.hasLength(accountName);
+		return repository.findByIdAccount(accountName);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<DataPoint> findByAccountName(String accountName, Date from, Date to,
+											 Resolution resolution, Set<StatisticMetric> metrics) {
+
+		Assert.hasLength(accountName);
+		Assert.notNull(from, "range start is required");
+		Assert.notNull(to, "range end is required");
+		Assert.isTrue(!from.after(to), "range start must not be after range end");
+		Assert.notNull(resolution, "resolution is required");
+
+		Set<StatisticMetric> requested = metrics == null || metrics.isEmpty()
+				? EnumSet.allOf(StatisticMetric.class)
+				: metrics;
+
+		return repository.findDownsampled(accountName, from, to, resolution, requested);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Rollup> findRollups(String accountName, RollupPeriod period, Date from, Date to) {
+		return rollupService.findByAccountName(accountName, period, from, to);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public DataPoint save(String accountName, Account account) {
+
+		Instant instant = LocalDate.now().atStartOfDay()
+				.atZone(ZoneId.systemDefault()).toInstant();
+
+		DataPointId pointId = new DataPointId(accountName, Date.from(instant));
+
+		ExchangeRatesSnapshot rates = ratesService.getCurrentSnapshot();
+
+		DataPoint dataPoint = new DataPoint();
+		dataPoint.setId(pointId);
+		new StatisticsCalculator(rates).calculate(account, dataPoint);
+		dataPoint.setRates(rates.getRates());
+
+		log.debug("new datapoint has been created: {}", pointId);
+
+		if (writeBuffer.isEnabled()) {
+			writeBuffer.offer(dataPoint);
+			return dataPoint;
+		}
+
+		DataPoint previous = repository.replace(dataPoint);
+
+		try {
+			rollupService.apply(previous, dataPoint);
+		} catch (RuntimeException e) {
+			log.error("failed to update rollups of datapoint {}", pointId, e);
+			reconciler.markStale(Collections.singletonList(dataPoint));
+		}
+
+		return dataPoint;
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.statistics.domain.Account;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesSnapshot;
+import com.piggymetrics.statistics.domain.Item;
+import com.piggymetrics.statistics.domain.Money;
+import com.piggymetrics.statistics.domain.Saving;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Computes data point metrics of an account against a single rates snapshot.
+ *
+ * Amounts are converted to {@link Money} values once, then normalized and summed
+ * as longs with precomputed cross rates and period ratios. Results are the same,
+ * including scale, as {@link BigDecimal} arithmetic rounding each item to
+ * {@link Money#SCALE} digits half up, which is used as a fallback for amounts
+ * with more digits or out of long range.
+ */
+public class StatisticsCalculator {
+
+	private final ExchangeRatesSnapshot rates;
+
+	public StatisticsCalculator(ExchangeRatesSnapshot rates) {
+		this.rates = rates;
+	}
+
+	/**
+	 * Sets normalized incomes, expenses and statistics of given account to the data point
+	 */
+	public void calculate(Account account, DataPoint point) {
+		try {
+			calculateFixedPoint(account, point);
+		} catch (ArithmeticException e) {
+			calculateExactly(account, point);
+		}
+	}
+
+	/**
+	 * Recomputes a stored data point. Items are normalized again from their original
+	 * amounts, currencies and periods with the rates stored along with the point,
+	 * so corrected rounding or period ratios are applied. Points stored without
+	 * original amounts only get their totals summed up again from normalized items.
+	 *
+	 * @return recomputed data point, or {@code null}, if it is up to date
+	 */
+	public static DataPoint recalculate(DataPoint point) {
+
+		Account account = sourceOf(point);
+		ExchangeRatesSnapshot rates = account == null ? null : ExchangeRatesSnapshot.of(
+				point.getId().getDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate(), point.getRates());
+
+		if (rates == null) {
+			return resum(point);
+		}
+
+		DataPoint recalculated = new DataPoint();
+		recalculated.setId(point.getId());
+		new StatisticsCalculator(rates).calculate(account, recalculated);
+		recalculated.setRates(point.getRates());
+
+		boolean changed = !sameAmounts(point.getIncomes(), recalculated.getIncomes())
+				|| !sameAmounts(point.getExpenses(), recalculated.getExpenses())
+				|| !sameStatistics(point.getStatistics(), recalculated.getStatistics());
+
+		return changed ? recalculated : null;
+	}
+
+	/**
+	 * @return account restored from original amounts of the data point,
+	 * or {@code null}, if some of them are absent
+	 */
+	private static Account sourceOf(DataPoint point) {
+
+		if (point.getIncomes() == null || point.getExpenses() == null
+				|| point.getSavingAmount() == null || point.getSavingCurrency() == null) {
+			return null;
+		}
+
+		List<Item> incomes = sourceOf(point.getIncomes());
+		List<Item> expenses = sourceOf(point.getExpenses());
+
+		if (incomes == null || expenses == null) {
+			return null;
+		}
+
+		Saving saving = new Saving();
+		saving.setAmount(point.getSavingAmount());
+		saving.setCurrency(point.getSavingCurrency());
+
+		Account account = new Account();
+		account.setIncomes(incomes);
+		account.setExpenses(expenses);
+		account.setSaving(saving);
+
+		return account;
+	}
+
+	private static List<Item> sourceOf(Set<ItemMetric> metrics) {
+
+		List<Item> items = new ArrayList<>(metrics.size());
+
+		for (ItemMetric metric : metrics) {
+
+			if (!metric.hasSource()) {
+				return null;
+			}
+
+			Item item = new Item();
+			item.setTitle(metric.getTitle());
+			item.setAmount(metric.getSourceAmount());
+			item.setCurrency(metric.getCurrency());
+			item.setPeriod(metric.getPeriod());
+			items.add(item);
+		}
+
+		return items;
+	}
+
+	private static boolean sameAmounts(Set<ItemMetric> stored, Set<ItemMetric> recalculated) {
+
+		if (stored == null || stored.size() != recalculated.size()) {
+			return false;
+		}
+
+		Map<String, BigDecimal> amounts = new HashMap<>();
+		for (ItemMetric metric : stored) {
+			amounts.put(metric.getTitle(), metric.getAmount());
+		}
+
+		for (ItemMetric metric : recalculated) {
+			BigDecimal amount = amounts.get(metric.getTitle());
+			if (amount == null || amount.compareTo(metric.getAmount()) != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	private static boolean sameStatistics(Map<StatisticMetric, BigDecimal> stored,
+										  Map<StatisticMetric, BigDecimal> recalculated) {
+
+		if (stored == null) {
+			return false;
+		}
+
+		for (Map.Entry<StatisticMetric, BigDecimal> entry : recalculated.entrySet()) {
+			BigDecimal value = stored.get(entry.getKey());
+			if (value == null || value.compareTo(entry.getValue()) != 0) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Recomputes totals of a data point from its normalized items. Saving amount
+	 * and rates are kept, since the point does not hold the original amounts.
+	 */
+	private static DataPoint resum(DataPoint point) {
+
+		Map<StatisticMetric, BigDecimal> statistics = new EnumMap<>(StatisticMetric.class);
+		if (point.getStatistics() != null) {
+			statistics.putAll(point.getStatistics());
+		}
+
+		boolean changed = false;
+
+		if (point.getIncomes() != null) {
+			changed |= recalculate(statistics, StatisticMetric.INCOMES_AMOUNT, point.getIncomes());
+		}
+
+		if (point.getExpenses() != null) {
+			changed |= recalculate(statistics, StatisticMetric.EXPENSES_AMOUNT, point.getExpenses());
+		}
+
+		if (!changed) {
+			return null;
+		}
+
+		DataPoint recalculated = new DataPoint();
+		recalculated.setId(point.getId());
+		recalculated.setIncomes(point.getIncomes());
+		recalculated.setExpenses(point.getExpenses());
+		recalculated.setStatistics(statistics);
+		recalculated.setRates(point.getRates());
+
+		return recalculated;
+	}
+
+	/**
+	 * @return {@code true}, if the metric has been changed
+	 */
+	private static boolean recalculate(Map<StatisticMetric, BigDecimal> statistics, StatisticMetric metric,
+									   Set<ItemMetric> metrics) {
+
+		BigDecimal total = sum(metrics);
+		BigDecimal current = statistics.get(metric);
+
+		if (current != null && current.compareTo(total) == 0) {
+			return false;
+		}
+
+		statistics.put(metric, total);
+		return true;
+	}
+
+	private static BigDecimal sum(Set<ItemMetric> metrics) {
+		try {
+			long total = 0;
+			for (ItemMetric metric : metrics) {
+				total = Money.add(total, Money.of(metric.getAmount()));
+			}
+			return total(metrics, total);
+		} catch (ArithmeticException e) {
+			return metrics.stream()
+					.map(ItemMetric::getAmount)
+					.reduce(BigDecimal.ZERO, BigDecimal::add);
+		}
+	}
+
+	private void calculateFixedPoint(Account account, DataPoint point) {
+
+		Set<ItemMetric> incomes = new HashSet<>();
+		Set<ItemMetric> expenses = new HashSet<>();
+
+		long incomesAmount = normalize(account.getIncomes(), incomes);
+		long expensesAmount = normalize(account.getExpenses(), expenses);
+
+		Saving saving = account.getSaving();
+		long savingAmount = Money.multiplyExact(Money.of(saving.getAmount()),
+				rates.getScaledRatio(saving.getCurrency(), Currency.getBase()));
+
+		point.setIncomes(incomes);
+		point.setExpenses(expenses);
+		point.setStatistics(ImmutableMap.of(
+				StatisticMetric.EXPENSES_AMOUNT, total(expenses, expensesAmount),
+				StatisticMetric.INCOMES_AMOUNT, total(incomes, incomesAmount),
+				StatisticMetric.SAVING_AMOUNT, BigDecimal.valueOf(savingAmount, 2 * Money.SCALE)
+						.setScale(saving.getAmount().scale() + Money.SCALE, RoundingMode.UNNECESSARY)
+		));
+		point.setSavingAmount(saving.getAmount());
+		point.setSavingCurrency(saving.getCurrency());
+	}
+
+	/**
+	 * Items with the same title are counted once, as the first of them
+	 *
+	 * @return sum of the normalized amounts
+	 */
+	private long normalize(List<Item> items, Set<ItemMetric> metrics) {
+
+		long total = 0;
+
+		for (Item item : items) {
+
+			long amount = Money.multiplyDivide(Money.of(item.getAmount()),
+					rates.getScaledRatio(item.getCurrency(), Currency.getBase()),
+					item.getPeriod().getScaledBaseRatio());
+
+			if (metrics.add(new ItemMetric(item.getTitle(), Money.toBigDecimal(amount),
+					item.getAmount(), item.getCurrency(), item.getPeriod()))) {
+				total = Money.add(total, amount);
+			}
+		}
+
+		return total;
+	}
+
+	private static BigDecimal total(Set<ItemMetric> metrics, long amount) {
+		return metrics.isEmpty() ? BigDecimal.ZERO : Money.toBigDecimal(amount);
+	}
+
+	private void calculateExactly(Account account, DataPoint point) {
+
+		Set<ItemMetric> incomes = new HashSet<>();
+		Set<ItemMetric> expenses = new HashSet<>();
+
+		BigDecimal incomesAmount = normalizeExactly(account.getIncomes(), incomes);
+		BigDecimal expensesAmount = normalizeExactly(account.getExpenses(), expenses);
+
+		Saving saving = account.getSaving();
+		BigDecimal savingAmount = saving.getAmount()
+				.multiply(rates.getRatio(saving.getCurrency(), Currency.getBase()));
+
+		point.setIncomes(incomes);
+		point.setExpenses(expenses);
+		point.setStatistics(ImmutableMap.of(
+				StatisticMetric.EXPENSES_AMOUNT, expensesAmount,
+				StatisticMetric.INCOMES_AMOUNT, incomesAmount,
+				StatisticMetric.SAVING_AMOUNT, savingAmount
+		));
+		point.setSavingAmount(saving.getAmount());
+		point.setSavingCurrency(saving.getCurrency());
+	}
+
+	private BigDecimal normalizeExactly(List<Item> items, Set<ItemMetric> metrics) {
+
+		BigDecimal total = BigDecimal.ZERO;
+
+		for (Item item : items) {
+
+			BigDecimal amount = item.getAmount()
+					.multiply(rates.getRatio(item.getCurrency(), Currency.getBase()))
+					.divide(item.getPeriod().getBaseRatio(), Money.SCALE, RoundingMode.HALF_UP);
+
+			if (metrics.add(new ItemMetric(item.getTitle(), amount,
+					item.getAmount(), item.getCurrency(), item.getPeriod()))) {
+				total = total.add(amount);
+			}
+		}
+
+		return total;
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.RecomputationCheckpoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import com.piggymetrics.statistics.repository.RecomputationCheckpointRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.util.CloseableIterator;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Recomputes stored data points, e.g. after the computation has been corrected.
+ *
+ * Items are normalized again from their original amounts with the rates stored
+ * along with each point, see {@link StatisticsCalculator#recalculate(DataPoint)}.
+ * Points stored without original amounts only get their totals summed up again.
+ *
+ * Data points are read with a single cursor ordered by account and grouped into batches
+ * of whole accounts. Accounts of a batch are partitioned across a fork-join pool, each
+ * partition is recomputed and written with one bulk upsert, and rollups are adjusted
+ * by the difference. Once a batch is written, its last account is saved as a checkpoint,
+ * so an interrupted run resumes after it.
+ *
+ * Today's points are skipped, since they are rewritten by incoming account updates anyway.
+ */
+@Component
+public class RecomputationJob {
+
+	static final String CHECKPOINT_ID = "datapoints";
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final DataPointRepository repository;
+
+	private final RollupService rollupService;
+
+	private final RecomputationCheckpointRepository checkpoints;
+
+	private final int parallelism;
+
+	private final int batchSize;
+
+	private final ExecutorService coordinator = Executors.newSingleThreadExecutor(
+			new CustomizableThreadFactory("recomputation-"));
+
+	private final AtomicBoolean running = new AtomicBoolean();
+
+	private volatile boolean stopped;
+
+	private final Counter processed = Metrics.counter("statistics.recomputation.points");
+
+	private final Counter updated = Metrics.counter("statistics.recomputation.updated");
+
+	private final Counter accounts = Metrics.counter("statistics.recomputation.accounts");
+
+	private final Timer batchTimer = Metrics.timer("statistics.recomputation.batch");
+
+	@Autowired
+	public RecomputationJob(DataPointRepository repository, RollupService rollupService,
+							RecomputationCheckpointRepository checkpoints,
+							@Value("${statistics.recomputation.parallelism:4}") int parallelism,
+							@Value("${statistics.recomputation.batch-size:1000}") int batchSize) {
+		this.repository = repository;
+		this.rollupService = rollupService;
+		this.checkpoints = checkpoints;
+		this.parallelism = parallelism;
+		this.batchSize = batchSize;
+
+		Metrics.gauge("statistics.recomputation.running", running, it -> it.get() ? 1 : 0);
+	}
+
+	/**
+	 * Starts recomputation in background
+	 *
+	 * @param restart start from the first account, even if the previous run has not completed
+	 * @return {@code false}, if recomputation is already running
+	 */
+	public boolean start(boolean restart) {
+
+		if (stopped || !running.compareAndSet(false, true)) {
+			return false;
+		}
+
+		coordinator.execute(() -> {
+			try {
+				run(restart);
+			} catch (RuntimeException e) {
+				log.error("recomputation has failed, it will resume from the last checkpoint", e);
+			} finally {
+				running.set(false);
+			}
+		});
+
+		return true;
+	}
+
+	/**
+	 * @return progress of the current or the last run, or {@code null}, if there were none
+	 */
+	public RecomputationCheckpoint getStatus() {
+		RecomputationCheckpoint checkpoint = checkpoints.findById(CHECKPOINT_ID).orElse(null);
+		if (checkpoint != null) {
+			checkpoint.setRunning(running.get());
+		}
+		return checkpoint;
+	}
+
+	void run(boolean restart) {
+
+		RecomputationCheckpoint checkpoint = restart ? null : checkpoints.findById(CHECKPOINT_ID).orElse(null);
+
+		if (checkpoint == null || checkpoint.getCompletedAt() != null) {
+			checkpoint = new RecomputationCheckpoint(CHECKPOINT_ID, new Date());
+		}
+
+		log.info("recomputation has been started after account {}", checkpoint.getAccount());
+
+		Date today = Date.from(LocalDate.now().atStartOfDay().atZone(ZoneId.systemDefault()).toInstant());
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+
+		try (CloseableIterator<DataPoint> cursor = repository.streamAfter(checkpoint.getAccount())) {
+
+			List<List<DataPoint>> batch = new ArrayList<>();
+			List<DataPoint> account = null;
+			int size = 0;
+
+			while (cursor.hasNext() && !stopped) {
+
+				DataPoint point = cursor.next();
+
+				if (account == null || !account.get(0).getId().getAccount().equals(point.getId().getAccount())) {
+
+					if (size >= batchSize) {
+						process(pool, batch, today, checkpoint);
+						batch = new ArrayList<>();
+						size = 0;
+					}
+
+					account = new ArrayList<>();
+					batch.add(account);
+				}
+
+				account.add(point);
+				size++;
+			}
+
+			if (stopped) {
+				log.info("recomputation has been stopped after account {}", checkpoint.getAccount());
+				return;
+			}
+
+			process(pool, batch, today, checkpoint);
+
+			checkpoint.setCompletedAt(new Date());
+			checkpoints.save(checkpoint);
+
+			log.info("recomputation has been completed: {} datapoints processed, {} updated",
+					checkpoint.getProcessedPoints(), checkpoint.getUpdatedPoints());
+
+		} finally {
+			pool.shutdown();
+		}
+	}
+
+	private void process(ForkJoinPool pool, List<List<DataPoint>> batch, Date today,
+						 RecomputationCheckpoint checkpoint) {
+
+		if (batch.isEmpty()) {
+			return;
+		}
+
+		long start = System.nanoTime();
+		int partitions = Math.min(parallelism, batch.size());
+		List<ForkJoinTask<Integer>> tasks = new ArrayList<>(partitions);
+
+		for (int i = 0; i < partitions; i++) {
+
+			List<List<DataPoint>> partition = new ArrayList<>();
+			for (int j = i; j < batch.size(); j += partitions) {
+				partition.add(batch.get(j));
+			}
+
+			tasks.add(pool.submit(() -> recompute(partition, today)));
+		}
+
+		int updatedPoints = 0;
+		for (ForkJoinTask<Integer> task : tasks) {
+			updatedPoints += task.join();
+		}
+
+		int processedPoints = 0;
+		for (List<DataPoint> account : batch) {
+			processedPoints += account.size();
+		}
+
+		String lastAccount = batch.get(batch.size() - 1).get(0).getId().getAccount();
+
+		checkpoint.advance(lastAccount, processedPoints, updatedPoints);
+		checkpoints.save(checkpoint);
+
+		processed.increment(processedPoints);
+		updated.increment(updatedPoints);
+		accounts.increment(batch.size());
+		batchTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+
+		log.debug("recomputation has been checkpointed after account {}", lastAccount);
+	}
+
+	/**
+	 * @return number of changed data points
+	 */
+	private int recompute(List<List<DataPoint>> partition, Date today) {
+
+		List<DataPoint> changed = new ArrayList<>();
+
+		for (List<DataPoint> account : partition) {
+			for (DataPoint point : account) {
+				DataPoint recomputed = point.getId().getDate().before(today)
+						? StatisticsCalculator.recalculate(point)
+						: null;
+				if (recomputed != null) {
+					changed.add(recomputed);
+				}
+			}
+		}
+
+		if (!changed.isEmpty()) {
+			Map<DataPointId, DataPoint> replaced = repository.bulkUpsert(changed);
+			rollupService.apply(replaced, changed);
+		}
+
+		return changed.size();
+	}
+
+	@PreDestroy
+	public void stop() throws InterruptedException {
+		stopped = true;
+		coordinator.shutdown();
+		coordinator.awaitTermination(30, TimeUnit.SECONDS);
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.RollupRebuild;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import com.piggymetrics.statistics.repository.RollupRebuildRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Keeps {@link com.piggymetrics.statistics.domain.timeseries.Rollup}s consistent
+ * with data points, which incremental updates can't guarantee: an update may
+ * fail after data points are written, or concurrent writers may read the same
+ * replaced data point.
+ *
+ * Days of failed updates are persisted as {@link RollupRebuild} markers and
+ * rebuilt from data points every {@code rebuild-interval} ms. In addition,
+ * days of all accounts written yesterday are rebuilt nightly. A rebuild reads
+ * data points of the day's week and month only, see {@link RollupService#rebuild}.
+ */
+@Component
+public class RollupReconciler {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private RollupRebuildRepository repository;
+
+	@Autowired
+	private DataPointRepository dataPointRepository;
+
+	@Autowired
+	private RollupService rollupService;
+
+	@Value("${statistics.rollups.rebuild-batch-size:100}")
+	private int batchSize;
+
+	private final Counter marked = Metrics.counter("statistics.rollups.marked");
+
+	private final Counter rebuilt = Metrics.counter("statistics.rollups.rebuilt");
+
+	/**
+	 * Persists data point days, which rollups have to be rebuilt
+	 *
+	 * @param points data points, which rollup update has failed
+	 */
+	public void markStale(Collection<DataPoint> points) {
+
+		Date now = new Date();
+
+		List<RollupRebuild> rebuilds = points.stream()
+				.map(point -> new RollupRebuild(point.getId(), now))
+				.collect(Collectors.toList());
+
+		repository.saveAll(rebuilds);
+		marked.increment(rebuilds.size());
+
+		log.warn("rollups of {} datapoints has been marked for rebuild", rebuilds.size());
+	}
+
+	/**
+	 * Rebuilds rollups of marked days. A marker is removed only if it
+	 * was not marked again during the rebuild, otherwise it is rebuilt
+	 * once more on the next run
+	 */
+	@Scheduled(fixedDelayString = "${statistics.rollups.rebuild-interval:60000}")
+	public void rebuildStale() {
+
+		Date startedAt = new Date();
+		List<RollupRebuild> rebuilds;
+
+		do {
+			rebuilds = repository.findByMarkedAtBefore(startedAt, PageRequest.of(0, batchSize));
+
+			for (RollupRebuild rebuild : rebuilds) {
+				try {
+					rollupService.rebuild(rebuild.getAccount(), rebuild.getDate());
+					repository.deleteByIdAndMarkedAt(rebuild.getId(), rebuild.getMarkedAt());
+					rebuilt.increment();
+				} catch (RuntimeException e) {
+					log.error("failed to rebuild rollups of {}, will retry", rebuild.getId(), e);
+					return;
+				}
+			}
+		} while (rebuilds.size() == batchSize);
+	}
+
+	/**
+	 * Marks yesterday's days of all accounts, which repairs rollups
+	 * after updates raced between service instances
+	 */
+	@Scheduled(cron = "${statistics.rollups.sweep-cron:0 30 2 * * *}")
+	public void sweep() {
+
+		Date yesterday = Date.from(LocalDate.now().minusDays(1)
+				.atStartOfDay(ZoneId.systemDefault()).toInstant());
+
+		List<String> accounts = dataPointRepository.findAccountsWithPointOn(yesterday);
+
+		Date now = new Date();
+		repository.saveAll(accounts.stream()
+				.map(account -> new RollupRebuild(new DataPointId(account, yesterday), now))
+				.collect(Collectors.toList()));
+
+		log.info("rollups of {} accounts has been marked for nightly rebuild", accounts.size());
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bounded in-memory buffer of pending {@link DataPoint} writes.
+ *
+ * Points are coalesced by {@link DataPointId}, so only the latest account
+ * state of the day is written. Buffer is flushed with a single bulk upsert,
+ * when it reaches {@code batch-size} or every {@code flush-interval} ms.
+ * Flushes never overlap, which keeps last-write-wins order between them.
+ *
+ * Points of the batch being written count against {@code capacity} until
+ * the write completes, so that the batch can be returned to the buffer
+ * on failure without exceeding it.
+ */
+@Component
+public class DataPointWriteBuffer {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final DataPointRepository repository;
+
+	private final RollupService rollupService;
+
+	private final RollupReconciler reconciler;
+
+	private final boolean enabled;
+
+	private final int capacity;
+
+	private final int batchSize;
+
+	private final Object lock = new Object();
+
+	private final Object flushLock = new Object();
+
+	private final AtomicBoolean flushScheduled = new AtomicBoolean();
+
+	private final ExecutorService flushExecutor = Executors.newSingleThreadExecutor(
+			new CustomizableThreadFactory("datapoint-flush-"));
+
+	private final Counter accepted = Metrics.counter("statistics.ingestion.accepted");
+
+	private final Counter rejected = Metrics.counter("statistics.ingestion.rejected");
+
+	private final Counter written = Metrics.counter("statistics.ingestion.written");
+
+	private final Timer flushTimer = Metrics.timer("statistics.ingestion.flush");
+
+	private Map<DataPointId, DataPoint> pending = new LinkedHashMap<>();
+
+	/**
+	 * Size of the batch being written
+	 */
+	private int writing;
+
+	private boolean closed;
+
+	@Autowired
+	public DataPointWriteBuffer(DataPointRepository repository, RollupService rollupService,
+								RollupReconciler reconciler,
+								@Value("${statistics.ingestion.buffered:false}") boolean enabled,
+								@Value("${statistics.ingestion.capacity:10000}") int capacity,
+								@Value("${statistics.ingestion.batch-size:500}") int batchSize) {
+		this.repository = repository;
+		this.rollupService = rollupService;
+		this.reconciler = reconciler;
+		this.enabled = enabled;
+		this.capacity = capacity;
+		this.batchSize = batchSize;
+
+		Metrics.gauge("statistics.ingestion.pending", this, DataPointWriteBuffer::size);
+	}
+
+	/**
+	 * @return {@code true}, if data points should be written through this buffer
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * Adds given data point to the buffer, replacing pending point with the same id
+	 *
+	 * @param point data point to write
+	 * @throws IngestionRejectedException if the buffer is full or closed
+	 */
+	public void offer(DataPoint point) {
+
+		boolean batchFilled;
+
+		synchronized (lock) {
+
+			if (closed) {
+				rejected.increment();
+				throw new IngestionRejectedException("ingestion buffer is closed");
+			}
+
+			if (pending.size() + writing >= capacity && !pending.containsKey(point.getId())) {
+				rejected.increment();
+				throw new IngestionRejectedException("ingestion buffer is full: " + capacity);
+			}
+
+			pending.put(point.getId(), point);
+			batchFilled = pending.size() >= batchSize;
+		}
+
+		accepted.increment();
+
+		if (batchFilled && flushScheduled.compareAndSet(false, true)) {
+			try {
+				flushExecutor.execute(this::flush);
+			} catch (RejectedExecutionException e) {
+				// closed meanwhile, the point is written by the final flush
+				log.debug("ingestion buffer has been closed, flush is left to close()");
+			}
+		}
+	}
+
+	/**
+	 * Writes all pending data points. Points of a failed batch are
+	 * returned to the buffer, unless they were replaced meanwhile.
+	 * Points, which rollups failed to update, are passed to {@link RollupReconciler}.
+	 */
+	@Scheduled(fixedDelayString = "${statistics.ingestion.flush-interval:1000}")
+	public void flush() {
+
+		synchronized (flushLock) {
+
+			flushScheduled.set(false);
+
+			Map<DataPointId, DataPoint> batch;
+
+			synchronized (lock) {
+				if (pending.isEmpty()) {
+					return;
+				}
+				batch = pending;
+				pending = new LinkedHashMap<>();
+				writing = batch.size();
+			}
+
+			long start = System.nanoTime();
+			Map<DataPointId, DataPoint> replaced;
+
+			try {
+				replaced = repository.bulkUpsert(batch.values());
+				synchronized (lock) {
+					writing = 0;
+				}
+				written.increment(batch.size());
+				log.debug("{} datapoints has been written", batch.size());
+			} catch (RuntimeException e) {
+				synchronized (lock) {
+					batch.forEach(pending::putIfAbsent);
+					writing = 0;
+				}
+				log.error("failed to write {} datapoints, will retry", batch.size(), e);
+				return;
+			} finally {
+				flushTimer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+			}
+
+			try {
+				rollupService.apply(replaced, batch.values());
+			} catch (RuntimeException e) {
+				log.error("failed to update rollups of {} datapoints", batch.size(), e);
+				reconciler.markStale(batch.values());
+			}
+		}
+	}
+
+	/**
+	 * Stops accepting new data points and writes pending ones
+	 */
+	@PreDestroy
+	public void close() throws InterruptedException {
+
+		synchronized (lock) {
+			closed = true;
+		}
+
+		flushExecutor.shutdown();
+		flushExecutor.awaitTermination(30, TimeUnit.SECONDS);
+
+		flush();
+
+		log.info("ingestion buffer has been closed");
+	}
+
+	public int size() {
+		synchronized (lock) {
+			return pending.size();
+		}
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+/**
+ * Thrown when a data point can't be accepted for buffered
+ * ingestion at the moment, so the caller should retry later
+ */
+public class IngestionRejectedException extends RuntimeException {
+
+	public IngestionRejectedException(String message) {
+		super(message);
+	}
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface RollupService {
+
+	/**
+	 * Adds statistic metrics of a saved data point to each {@link RollupPeriod}
+	 * rollup, retracting metrics of the data point it replaced
+	 *
+	 * @param previous replaced data point or {@code null}
+	 * @param current saved data point
+	 */
+	void apply(DataPoint previous, DataPoint current);
+
+	/**
+	 * Same as {@link #apply(DataPoint, DataPoint)} for a batch of saved data points
+	 *
+	 * @param previous replaced data points by id
+	 * @param current saved data points
+	 */
+	void apply(Map<DataPointId, DataPoint> previous, Collection<DataPoint> current);
+
+	/**
+	 * Recomputes account rollups of each {@link RollupPeriod}, which
+	 * contains given date, from stored data points. Unlike incremental
+	 * updates, the result does not depend on previously applied ones.
+	 * Increments applied concurrently with the rebuild are not lost
+	 *
+	 * @param accountName
+	 * @param date data point date
+	 */
+	void rebuild(String accountName, Date date);
+
+	/**
+	 * Finds account rollups, which periods start within given date range
+	 *
+	 * @param accountName
+	 * @param period
+	 * @param from range start, inclusive
+	 * @param to range end, inclusive
+	 * @return rollups ordered by period start
+	 */
+	List<Rollup> findByAccountName(String accountName, RollupPeriod period, Date from, Date to);
+
+}
+
+package com.piggymetrics.statistics.service;
+
+import com.piggymetrics.statistics.domain.Money;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.Resolution;
+import com.piggymetrics.statistics.domain.timeseries.Rollup;
+import com.piggymetrics.statistics.domain.timeseries.RollupPeriod;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import com.piggymetrics.statistics.repository.DataPointRepository;
+import com.piggymetrics.statistics.repository.RollupRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.Sort;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+@Service
+public class RollupServiceImpl implements RollupService {
+
+	private static final int MAX_REBUILD_ATTEMPTS = 3;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private RollupRepository repository;
+
+	@Autowired
+	private DataPointRepository dataPointRepository;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void apply(DataPoint previous, DataPoint current) {
+		apply(previous == null
+				? Collections.emptyMap()
+				: Collections.singletonMap(previous.getId(), previous), Collections.singletonList(current));
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void apply(Map<DataPointId, DataPoint> previous, Collection<DataPoint> current) {
+
+		List<Rollup> deltas = new ArrayList<>(current.size() * RollupPeriod.values().length);
+
+		for (DataPoint point : current) {
+
+			DataPoint replaced = previous.get(point.getId());
+			LocalDate date = point.getId().getDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+
+			for (RollupPeriod period : RollupPeriod.values()) {
+
+				Rollup delta = new Rollup(point.getId().getAccount(), period, period.startOf(date));
+				delta.setCount(replaced == null ? 1 : 0);
+
+				for (StatisticMetric metric : StatisticMetric.values()) {
+					long difference = valueOf(point, metric) - valueOf(replaced, metric);
+					if (difference != 0) {
+						delta.getSums().put(metric, difference);
+					}
+				}
+
+				deltas.add(delta);
+			}
+		}
+
+		repository.increment(deltas);
+
+		log.debug("{} rollups has been updated", deltas.size());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 *
+	 * Week and month rollups are summed from data points of the day's month and week, while
+	 * the year rollup is summed from month rollups, so a rebuild never reads more than
+	 * about five weeks of data points. Stored rollups are read first and overwritten only
+	 * if no increment has been applied since then; otherwise the rebuild is repeated.
+	 * Increments of a data point reach longer periods after shorter ones, so a year rollup
+	 * read before an increment is never combined with month rollups read after it
+	 */
+	@Override
+	public void rebuild(String accountName, Date date) {
+
+		LocalDate day = date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+
+		for (int attempt = 1; ; attempt++) {
+
+			if (tryRebuild(accountName, day)) {
+				log.debug("rollups of {} on {} has been rebuilt", accountName, day);
+				return;
+			}
+
+			if (attempt >= MAX_REBUILD_ATTEMPTS) {
+				throw new OptimisticLockingFailureException("rollups of " + accountName + " on " + day
+						+ " keep being updated during rebuild");
+			}
+		}
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Rollup> findByAccountName(String accountName, RollupPeriod period, Date from, Date to) {
+
+		Assert.hasLength(accountName);
+		Assert.notNull(period, "period is required");
+		Assert.notNull(from, "range start is required");
+		Assert.notNull(to, "range end is required");
+		Assert.isTrue(!from.after(to), "range start must not be after range end");
+
+		return repository.findStartedWithin(accountName, period, from, to, Sort.by("start"));
+	}
+
+	private boolean tryRebuild(String accountName, LocalDate day) {
+
+		Rollup week = new Rollup(accountName, RollupPeriod.WEEK, RollupPeriod.WEEK.startOf(day));
+		Rollup month = new Rollup(accountName, RollupPeriod.MONTH, RollupPeriod.MONTH.startOf(day));
+		Rollup year = new Rollup(accountName, RollupPeriod.YEAR, RollupPeriod.YEAR.startOf(day));
+
+		Map<String, Long> versions = new HashMap<>();
+		repository.findAllById(Arrays.asList(week.getId(), month.getId(), year.getId()))
+				.forEach(stored -> versions.put(stored.getId(), stored.getVersion()));
+
+		LocalDate from = min(RollupPeriod.WEEK.startOf(day), RollupPeriod.MONTH.startOf(day));
+		LocalDate to = max(RollupPeriod.WEEK.endOf(day), RollupPeriod.MONTH.endOf(day));
+
+		List<DataPoint> points = dataPointRepository.findDownsampled(accountName, toDate(from), toDate(to),
+				Resolution.DAY, EnumSet.allOf(StatisticMetric.class));
+
+		for (DataPoint point : points) {
+			LocalDate date = point.getId().getDate().toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+			if (RollupPeriod.WEEK.startOf(date).equals(RollupPeriod.WEEK.startOf(day))) {
+				add(week, point);
+			}
+			if (RollupPeriod.MONTH.startOf(date).equals(RollupPeriod.MONTH.startOf(day))) {
+				add(month, point);
+			}
+		}
+
+		add(year, month);
+
+		repository.findStartedWithin(accountName, RollupPeriod.MONTH, year.getStart(),
+				toDate(RollupPeriod.YEAR.endOf(day)), Sort.by("start")).stream()
+				.filter(stored -> !stored.getId().equals(month.getId()))
+				.forEach(stored -> add(year, stored));
+
+		boolean replaced = true;
+
+		for (Rollup rollup : Arrays.asList(week, month, year)) {
+			replaced &= repository.replace(rollup, versions.get(rollup.getId()));
+		}
+
+		return replaced;
+	}
+
+	private void add(Rollup rollup, DataPoint point) {
+
+		rollup.setCount(rollup.getCount() + 1);
+
+		for (StatisticMetric metric : StatisticMetric.values()) {
+			long value = valueOf(point, metric);
+			if (value != 0) {
+				rollup.getSums().merge(metric, value, Long::sum);
+			}
+		}
+	}
+
+	private void add(Rollup rollup, Rollup other) {
+		rollup.setCount(rollup.getCount() + other.getCount());
+		other.getSums().forEach((metric, sum) -> rollup.getSums().merge(metric, sum, Long::sum));
+	}
+
+	private LocalDate min(LocalDate a, LocalDate b) {
+		return a.isBefore(b) ? a : b;
+	}
+
+	private LocalDate max(LocalDate a, LocalDate b) {
+		return a.isAfter(b) ? a : b;
+	}
+
+	private long valueOf(DataPoint point, StatisticMetric metric) {
+
+		if (point == null || point.getStatistics() == null) {
+			return 0;
+		}
+
+		BigDecimal value = point.getStatistics().get(metric);
+		return value == null ? 0 : Money.round(value);
+	}
+
+	private Date toDate(LocalDate date) {
+		return Date.from(date.atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+}
+
+package com.piggymetrics.statistics.service.security;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.FixedAuthoritiesExtractor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.client.OAuth2RestOperations;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.resource.BaseOAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.*;
+
+/**
+ * Extended implementation of {@link org.springframework.boot.autoconfigure.security.oauth2.resource.UserInfoTokenServices}
+ *
+ * By default, it designed to return only user details. This class provides {@link #getRequest(Map)} method, which
+ * returns clientId and scope of calling service. This information used in controller's security checks.
+ *
+ * A token is rejected with {@link InvalidTokenException} only when auth-service has answered.
+ * If it is unreachable or fails, {@link AuthenticationServiceException} is thrown instead.
+ */
+
+public class CustomUserInfoTokenServices implements ResourceServerTokenServices {
+
+	/**
+	 * Details key of the token expiry, ms since epoch, when auth-service reports it
+	 */
+	public static final String EXPIRES_AT = "expiresAt";
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private static final String[] PRINCIPAL_KEYS = new String[] { "user", "username",
+			"userid", "user_id", "login", "id", "name" };
+
+	private final String userInfoEndpointUrl;
+
+	private final String clientId;
+
+	private OAuth2RestOperations restTemplate;
+
+	private String tokenType = DefaultOAuth2AccessToken.BEARER_TYPE;
+
+	private AuthoritiesExtractor authoritiesExtractor = new FixedAuthoritiesExtractor();
+
+	public CustomUserInfoTokenServices(String userInfoEndpointUrl, String clientId) {
+		this.userInfoEndpointUrl = userInfoEndpointUrl;
+		this.clientId = clientId;
+	}
+
+	public void setTokenType(String tokenType) {
+		this.tokenType = tokenType;
+	}
+
+	public void setRestTemplate(OAuth2RestOperations restTemplate) {
+		this.restTemplate = restTemplate;
+	}
+
+	public void setAuthoritiesExtractor(AuthoritiesExtractor authoritiesExtractor) {
+		this.authoritiesExtractor = authoritiesExtractor;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+		Map<String, Object> map = getMap(this.userInfoEndpointUrl, accessToken);
+		if (map.containsKey("error")) {
+			this.logger.debug("userinfo returned error: " + map.get("error"));
+			throw new InvalidTokenException(accessToken);
+		}
+		return extractAuthentication(map);
+	}
+
+	private OAuth2Authentication extractAuthentication(Map<String, Object> map) {
+		Object principal = getPrincipal(map);
+		OAuth2Request request = getRequest(map);
+		List<GrantedAuthority> authorities = this.authoritiesExtractor
+				.extractAuthorities(map);
+		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(
+				principal, "N/A", authorities);
+		token.setDetails(map);
+		return new OAuth2Authentication(request, token);
+	}
+
+	private Object getPrincipal(Map<String, Object> map) {
+		for (String key : PRINCIPAL_KEYS) {
+			if (map.containsKey(key)) {
+				return map.get(key);
+			}
+		}
+		return "unknown";
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private OAuth2Request getRequest(Map<String, Object> map) {
+		Map<String, Object> request = (Map<String, Object>) map.get("oauth2Request");
+
+		String clientId = (String) request.get("clientId");
+		Set<String> scope = new LinkedHashSet<>(request.containsKey("scope") ?
+				(Collection<String>) request.get("scope") : Collections.<String>emptySet());
+
+		return new OAuth2Request(null, clientId, null, true, new HashSet<>(scope),
+				null, null, null, null);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		throw new UnsupportedOperationException("Not supported: read access token");
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private Map<String, Object> getMap(String path, String accessToken) {
+		this.logger.debug("Getting user info from: " + path);
+		try {
+			OAuth2RestOperations restTemplate = this.restTemplate;
+			if (restTemplate == null) {
+				BaseOAuth2ProtectedResourceDetails resource = new BaseOAuth2ProtectedResourceDetails();
+				resource.setClientId(this.clientId);
+				restTemplate = new OAuth2RestTemplate(resource);
+			}
+			OAuth2AccessToken existingToken = restTemplate.getOAuth2ClientContext()
+					.getAccessToken();
+			if (existingToken == null || !accessToken.equals(existingToken.getValue())) {
+				DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(
+						accessToken);
+				token.setTokenType(this.tokenType);
+				restTemplate.getOAuth2ClientContext().setAccessToken(token);
+			}
+			ResponseEntity<Map> response = restTemplate.getForEntity(path, Map.class);
+			Map<String, Object> map = response.getBody();
+			long expires = response.getHeaders().getExpires();
+			if (map != null && expires > 0) {
+				map = new LinkedHashMap<>(map);
+				map.put(EXPIRES_AT, expires);
+			}
+			return map;
+		}
+		catch (ResourceAccessException | HttpServerErrorException ex) {
+			throw unavailable(ex);
+		}
+		catch (HttpClientErrorException ex) {
+			if (ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+				throw unavailable(ex);
+			}
+			return rejected(ex);
+		}
+		catch (Exception ex) {
+			return rejected(ex);
+		}
+	}
+
+	/**
+	 * auth-service is unreachable or has failed, so nothing is known about the token
+	 */
+	private AuthenticationServiceException unavailable(Exception ex) {
+		this.logger.warn("User info endpoint is unavailable: " + ex.getClass() + ", "
+				+ ex.getMessage());
+		return new AuthenticationServiceException("Could not fetch user details", ex);
+	}
+
+	private Map<String, Object> rejected(Exception ex) {
+		this.logger.info("Could not fetch user details: " + ex.getClass() + ", "
+				+ ex.getMessage());
+		return Collections.<String, Object>singletonMap("error",
+				"Could not fetch user details");
+	}
+}
+
+package com.piggymetrics.statistics.service.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches authentications resolved by the delegate, so that a token is introspected
+ * by auth-service once per {@code ttl} instead of once per request.
+ *
+ * Entries are keyed by SHA-256 of the token, concurrent lookups of the same token
+ * wait for a single delegate call, and invalid tokens are remembered for
+ * {@code negativeTtl}. Other failures (e.g. auth-service is unavailable) are not cached.
+ * Authentication is never kept past the token expiry, when the delegate reports it
+ * with {@link CustomUserInfoTokenServices#EXPIRES_AT}.
+ */
+public class CachingTokenServices implements ResourceServerTokenServices {
+
+	private final ResourceServerTokenServices delegate;
+
+	private final long ttl;
+
+	private final long negativeTtl;
+
+	private final int maxSize;
+
+	private final LongSupplier clock;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final Counter hits = Metrics.counter("security.token.cache.hits");
+
+	private final Counter misses = Metrics.counter("security.token.cache.misses");
+
+	/**
+	 * @param delegate token services to resolve authentication with
+	 * @param ttl time to keep resolved authentication, ms
+	 * @param negativeTtl time to keep rejection of an invalid token, ms
+	 * @param maxSize maximum number of cached tokens
+	 */
+	public CachingTokenServices(ResourceServerTokenServices delegate, long ttl, long negativeTtl, int maxSize) {
+		this(delegate, ttl, negativeTtl, maxSize, System::currentTimeMillis);
+	}
+
+	CachingTokenServices(ResourceServerTokenServices delegate, long ttl, long negativeTtl, int maxSize, LongSupplier clock) {
+		this.delegate = delegate;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.maxSize = maxSize;
+		this.clock = clock;
+
+		Metrics.gauge("security.token.cache.size", entries, Map::size);
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		String key = hash(accessToken);
+		long now = clock.getAsLong();
+
+		Entry created = new Entry();
+		Entry entry = entries.compute(key, (k, existing) ->
+				existing == null || existing.isExpired(now) ? created : existing);
+
+		if (entry != created) {
+			hits.increment();
+			return entry.join();
+		}
+
+		misses.increment();
+		evictIfFull(now);
+
+		try {
+			OAuth2Authentication authentication = delegate.loadAuthentication(accessToken);
+			entry.expiresAt = Math.min(now + ttl, expiryOf(authentication));
+			entry.result.complete(authentication);
+			return authentication;
+		} catch (InvalidTokenException e) {
+			entry.expiresAt = now + negativeTtl;
+			entry.result.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			entries.remove(key, entry);
+			entry.result.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return delegate.readAccessToken(accessToken);
+	}
+
+	/**
+	 * Forgets cached authentication of given token, e.g. when it has been revoked
+	 */
+	public void evict(String accessToken) {
+		entries.remove(hash(accessToken));
+	}
+
+	public void evictAll() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void evictIfFull(long now) {
+
+		if (entries.size() <= maxSize) {
+			return;
+		}
+
+		entries.values().removeIf(entry -> entry.isExpired(now));
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * @return token expiry reported by the delegate, or {@link Long#MAX_VALUE} if unknown
+	 */
+	private static long expiryOf(OAuth2Authentication authentication) {
+
+		Authentication user = authentication.getUserAuthentication();
+
+		if (user != null && user.getDetails() instanceof Map) {
+			Object expiresAt = ((Map<?, ?>) user.getDetails()).get(CustomUserInfoTokenServices.EXPIRES_AT);
+			if (expiresAt instanceof Long) {
+				return (Long) expiresAt;
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	private static String hash(String accessToken) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(digest.digest(accessToken.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Entry {
+
+		private final CompletableFuture<OAuth2Authentication> result = new CompletableFuture<>();
+
+		/**
+		 * Unset while the token is being resolved
+		 */
+		private volatile long expiresAt = Long.MAX_VALUE;
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+
+		OAuth2Authentication join() {
+			try {
+				return result.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+}
+
+package com.piggymetrics.statistics.service.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Verifies signed access tokens of auth-service locally, instead of
+ * resolving each token with a call to auth-service.
+ *
+ * Verification key is fetched from {@code keyUri} on first use and cached.
+ * When a signature does not match, the key is fetched again to pick up
+ * a rotated one, but not more often than once per {@code keyRefreshInterval}.
+ *
+ * Until the key has been fetched for the first time, tokens are rejected with
+ * {@code 503 temporarily_unavailable}. Failed fetches are retried with a delay,
+ * which doubles after each failure up to {@code keyRefreshInterval}.
+ */
+public class SignedTokenServices implements ResourceServerTokenServices {
+
+	private static final long INITIAL_RETRY_DELAY = 1000;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final String keyUri;
+
+	private final RestOperations restTemplate;
+
+	private final long keyRefreshInterval;
+
+	private final LongSupplier clock;
+
+	private final JsonParser parser = JsonParserFactory.create();
+
+	private final AccessTokenConverter converter = new DefaultAccessTokenConverter();
+
+	private volatile SignatureVerifier verifier;
+
+	private long keyFetchedAt;
+
+	private long keyFailedAt;
+
+	private long retryDelay;
+
+	/**
+	 * @param keyUri auth-service endpoint, which serves verification key
+	 * @param restTemplate client to fetch the key with
+	 * @param keyRefreshInterval minimum time between key fetches, ms
+	 */
+	public SignedTokenServices(String keyUri, RestOperations restTemplate, long keyRefreshInterval) {
+		this(keyUri, restTemplate, keyRefreshInterval, System::currentTimeMillis);
+	}
+
+	SignedTokenServices(String keyUri, RestOperations restTemplate, long keyRefreshInterval, LongSupplier clock) {
+		this.keyUri = keyUri;
+		this.restTemplate = restTemplate;
+		this.keyRefreshInterval = keyRefreshInterval;
+		this.clock = clock;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		Map<String, Object> claims = decode(accessToken);
+
+		Object expiration = claims.get(AccessTokenConverter.EXP);
+		if (expiration instanceof Number && ((Number) expiration).longValue() * 1000 <= clock.getAsLong()) {
+			throw new InvalidTokenException("Access token expired");
+		}
+
+		return converter.extractAuthentication(claims);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return converter.extractAccessToken(accessToken, decode(accessToken));
+	}
+
+	private Map<String, Object> decode(String accessToken) {
+
+		Jwt jwt;
+
+		try {
+			jwt = JwtHelper.decode(accessToken);
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot decode access token", e);
+		}
+
+		SignatureVerifier current = getVerifier();
+
+		if (!isSignedWith(jwt, current)) {
+			SignatureVerifier refreshed = refreshVerifier(current);
+			if (refreshed == current || !isSignedWith(jwt, refreshed)) {
+				throw new InvalidTokenException("Access token signature does not match");
+			}
+		}
+
+		try {
+			return parser.parseMap(jwt.getClaims());
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot parse access token claims", e);
+		}
+	}
+
+	private static boolean isSignedWith(Jwt jwt, SignatureVerifier verifier) {
+		try {
+			jwt.verifySignature(verifier);
+			return true;
+		} catch (InvalidSignatureException e) {
+			return false;
+		}
+	}
+
+	private SignatureVerifier getVerifier() {
+
+		SignatureVerifier current = verifier;
+
+		if (current == null) {
+			synchronized (this) {
+				if (verifier == null) {
+					verifier = fetchInitialVerifier();
+				}
+				current = verifier;
+			}
+		}
+
+		return current;
+	}
+
+	/**
+	 * @throws KeyUnavailableException if the key cannot be fetched or the previous
+	 * attempt has failed less than retry delay ago
+	 */
+	private SignatureVerifier fetchInitialVerifier() {
+
+		long now = clock.getAsLong();
+
+		if (retryDelay > 0 && now - keyFailedAt < retryDelay) {
+			throw new KeyUnavailableException("Token verification key is unavailable", null);
+		}
+
+		try {
+			SignatureVerifier fetched = fetchVerifier();
+			retryDelay = 0;
+			return fetched;
+		} catch (RestClientException | IllegalStateException e) {
+			keyFailedAt = now;
+			retryDelay = Math.min(retryDelay == 0 ? INITIAL_RETRY_DELAY : retryDelay * 2, keyRefreshInterval);
+			log.warn("failed to fetch token verification key, next attempt in {} ms", retryDelay, e);
+			throw new KeyUnavailableException("Token verification key is unavailable", e);
+		}
+	}
+
+	/**
+	 * @return new verifier or given one, if the key has been fetched recently or cannot be fetched
+	 */
+	private synchronized SignatureVerifier refreshVerifier(SignatureVerifier stale) {
+
+		if (verifier != stale || clock.getAsLong() - keyFetchedAt < keyRefreshInterval) {
+			return verifier;
+		}
+
+		try {
+			verifier = fetchVerifier();
+		} catch (RestClientException | IllegalStateException e) {
+			keyFetchedAt = clock.getAsLong();
+			log.warn("failed to refresh token verification key, cached one is used", e);
+		}
+
+		return verifier;
+	}
+
+	private SignatureVerifier fetchVerifier() {
+
+		Map<?, ?> key = restTemplate.getForObject(keyUri, Map.class);
+
+		if (key == null || !(key.get("value") instanceof String)) {
+			throw new IllegalStateException("No token verification key at " + keyUri);
+		}
+
+		keyFetchedAt = clock.getAsLong();
+		log.info("token verification key has been fetched from {}", keyUri);
+
+		return new RsaVerifier((String) key.get("value"));
+	}
+
+	/**
+	 * Rendered with {@code 503} status by the resource server entry point, so that
+	 * clients retry instead of treating their tokens as invalid
+	 */
+	static class KeyUnavailableException extends OAuth2Exception {
+
+		KeyUnavailableException(String message, Throwable cause) {
+			super(message, cause);
+		}
+
+		@Override
+		public String getOAuth2ErrorCode() {
+			return "temporarily_unavailable";
+		}
+
+		@Override
+		public int getHttpErrorCode() {
+			return HttpStatus.SERVICE_UNAVAILABLE.value();
+		}
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.util.Map;
+
+@JsonIgnoreProperties(ignoreUnknown = true, value = {"date"})
+public class ExchangeRatesContainer {
+
+	private LocalDate date = LocalDate.now();
+
+	private Currency base;
+
+	private Map<String, BigDecimal> rates;
+
+	public LocalDate getDate() {
+		return date;
+	}
+
+	public void setDate(LocalDate date) {
+		this.date = date;
+	}
+
+	public Currency getBase() {
+		return base;
+	}
+
+	public void setBase(Currency base) {
+		this.base = base;
+	}
+
+	public Map<String, BigDecimal> getRates() {
+		return rates;
+	}
+
+	public void setRates(Map<String, BigDecimal> rates) {
+		this.rates = rates;
+	}
+
+	@Override
+	public String toString() {
+		return "RateList{" +
+				"date=" + date +
+				", base=" + base +
+				", rates=" + rates +
+				'}';
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import com.google.common.collect.ImmutableMap;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.util.Map;
+
+/**
+ * Immutable view of the exchange rates fetched at a single point in time.
+ *
+ * Cross rates for every currency pair are computed once on creation,
+ * so conversions against the snapshot need no division. Cross rates are
+ * also kept as {@link Money} values for fixed-point computations.
+ */
+public final class ExchangeRatesSnapshot {
+
+	private static final int RATIO_SCALE = Money.SCALE;
+
+	private final LocalDate date;
+
+	private final Instant fetchedAt;
+
+	private final boolean stale;
+
+	private final Map<Currency, BigDecimal> rates;
+
+	private final BigDecimal[][] ratios;
+
+	private final long[][] scaledRatios;
+
+	private ExchangeRatesSnapshot(LocalDate date, Instant fetchedAt, boolean stale,
+								  Map<Currency, BigDecimal> rates, BigDecimal[][] ratios, long[][] scaledRatios) {
+		this.date = date;
+		this.fetchedAt = fetchedAt;
+		this.stale = stale;
+		this.rates = rates;
+		this.ratios = ratios;
+		this.scaledRatios = scaledRatios;
+	}
+
+	/**
+	 * Builds a snapshot from provider response
+	 *
+	 * @param container provider response
+	 * @param fetchedAt moment the response has been received
+	 * @return snapshot or {@code null}, if the response does not
+	 * contain a rate for each {@link Currency} (e.g. fallback response)
+	 */
+	public static ExchangeRatesSnapshot of(ExchangeRatesContainer container, Instant fetchedAt) {
+
+		if (container == null || container.getRates() == null) {
+			return null;
+		}
+
+		ImmutableMap.Builder<Currency, BigDecimal> builder = ImmutableMap.builder();
+
+		for (Currency currency : Currency.values()) {
+			BigDecimal rate = currency == Currency.getBase()
+					? BigDecimal.ONE
+					: container.getRates().get(currency.name());
+
+			if (rate == null || rate.signum() <= 0) {
+				return null;
+			}
+
+			builder.put(currency, rate);
+		}
+
+		return create(container.getDate(), fetchedAt, builder.build());
+	}
+
+	/**
+	 * Builds a snapshot from rates stored along with a data point
+	 *
+	 * @param date date of the data point
+	 * @param rates rates by currency
+	 * @return snapshot or {@code null}, if there is no rate for some {@link Currency}
+	 */
+	public static ExchangeRatesSnapshot of(LocalDate date, Map<Currency, BigDecimal> rates) {
+
+		if (rates == null) {
+			return null;
+		}
+
+		for (Currency currency : Currency.values()) {
+			BigDecimal rate = rates.get(currency);
+			if (rate == null || rate.signum() <= 0) {
+				return null;
+			}
+		}
+
+		return create(date, null, ImmutableMap.copyOf(rates));
+	}
+
+	private static ExchangeRatesSnapshot create(LocalDate date, Instant fetchedAt, Map<Currency, BigDecimal> rates) {
+
+		Currency[] currencies = Currency.values();
+		BigDecimal[][] ratios = new BigDecimal[currencies.length][currencies.length];
+		long[][] scaledRatios = new long[currencies.length][currencies.length];
+
+		for (Currency from : currencies) {
+			for (Currency to : currencies) {
+				ratios[from.ordinal()][to.ordinal()] = rates.get(to)
+						.divide(rates.get(from), RATIO_SCALE, RoundingMode.HALF_UP);
+				scaledRatios[from.ordinal()][to.ordinal()] = Money.of(ratios[from.ordinal()][to.ordinal()]);
+			}
+		}
+
+		return new ExchangeRatesSnapshot(date, fetchedAt, false, rates, ratios, scaledRatios);
+	}
+
+	/**
+	 * @return the same rates, marked as stale (i.e. served
+	 * after a failed revalidation)
+	 */
+	public ExchangeRatesSnapshot asStale() {
+		return stale ? this : new ExchangeRatesSnapshot(date, fetchedAt, true, rates, ratios, scaledRatios);
+	}
+
+	/**
+	 * @return {@code true}, if the rates are not relevant for given date anymore
+	 */
+	public boolean isExpired(LocalDate today) {
+		return !date.equals(today);
+	}
+
+	public BigDecimal getRatio(Currency from, Currency to) {
+		return ratios[from.ordinal()][to.ordinal()];
+	}
+
+	/**
+	 * @return {@link #getRatio(Currency, Currency)} as {@link Money} value
+	 */
+	public long getScaledRatio(Currency from, Currency to) {
+		return scaledRatios[from.ordinal()][to.ordinal()];
+	}
+
+	public LocalDate getDate() {
+		return date;
+	}
+
+	public Instant getFetchedAt() {
+		return fetchedAt;
+	}
+
+	public boolean isStale() {
+		return stale;
+	}
+
+	public Map<Currency, BigDecimal> getRates() {
+		return rates;
+	}
+
+	@Override
+	public String toString() {
+		return "ExchangeRatesSnapshot{" +
+				"date=" + date +
+				", fetchedAt=" + fetchedAt +
+				", stale=" + stale +
+				", rates=" + rates +
+				'}';
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Transient;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Progress of data points recomputation. Accounts up to and including
+ * {@link #getAccount()} have been recomputed and written.
+ */
+@Document(collection = "recomputation_checkpoints")
+public class RecomputationCheckpoint {
+
+	@Id
+	private String id;
+
+	private String account;
+
+	private long processedPoints;
+
+	private long updatedPoints;
+
+	private Date startedAt;
+
+	private Date completedAt;
+
+	@Transient
+	private boolean running;
+
+	public RecomputationCheckpoint() {
+	}
+
+	public RecomputationCheckpoint(String id, Date startedAt) {
+		this.id = id;
+		this.startedAt = startedAt;
+	}
+
+	public void advance(String account, long processedPoints, long updatedPoints) {
+		this.account = account;
+		this.processedPoints += processedPoints;
+		this.updatedPoints += updatedPoints;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public long getProcessedPoints() {
+		return processedPoints;
+	}
+
+	public long getUpdatedPoints() {
+		return updatedPoints;
+	}
+
+	public Date getStartedAt() {
+		return startedAt;
+	}
+
+	public Date getCompletedAt() {
+		return completedAt;
+	}
+
+	public void setCompletedAt(Date completedAt) {
+		this.completedAt = completedAt;
+	}
+
+	public boolean isRunning() {
+		return running;
+	}
+
+	public void setRunning(boolean running) {
+		this.running = running;
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import java.math.BigDecimal;
+
+public enum TimePeriod {
+
+	YEAR("365.2425"), QUARTER("91.3106"), MONTH("30.4368"), DAY("1"), HOUR("0.0416");
+
+	private final BigDecimal baseRatio;
+
+	private final long scaledBaseRatio;
+
+	TimePeriod(String baseRatio) {
+		this.baseRatio = new BigDecimal(baseRatio);
+		this.scaledBaseRatio = Money.of(this.baseRatio);
+	}
+
+	public BigDecimal getBaseRatio() {
+		return baseRatio;
+	}
+
+	/**
+	 * @return base ratio as {@link Money} value
+	 */
+	public long getScaledBaseRatio() {
+		return scaledBaseRatio;
+	}
+
+	public static TimePeriod getBase() {
+		return DAY;
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.List;
+
+@Document(collection = "accounts")
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class Account {
+
+	@Valid
+	@NotNull
+	private List<Item> incomes;
+
+	@Valid
+	@NotNull
+	private List<Item> expenses;
+
+	@Valid
+	@NotNull
+	private Saving saving;
+
+	public List<Item> getIncomes() {
+		return incomes;
+	}
+
+	public void setIncomes(List<Item> incomes) {
+		this.incomes = incomes;
+	}
+
+	public List<Item> getExpenses() {
+		return expenses;
+	}
+
+	public void setExpenses(List<Item> expenses) {
+		this.expenses = expenses;
+	}
+
+	public Saving getSaving() {
+		return saving;
+	}
+
+	public void setSaving(Saving saving) {
+		this.saving = saving;
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+
+public class Saving {
+
+	@NotNull
+	private BigDecimal amount;
+
+	@NotNull
+	private Currency currency;
+
+	@NotNull
+	private BigDecimal interest;
+
+	@NotNull
+	private Boolean deposit;
+
+	@NotNull
+	private Boolean capitalization;
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public void setAmount(BigDecimal amount) {
+		this.amount = amount;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public void setCurrency(Currency currency) {
+		this.currency = currency;
+	}
+
+	public BigDecimal getInterest() {
+		return interest;
+	}
+
+	public void setInterest(BigDecimal interest) {
+		this.interest = interest;
+	}
+
+	public Boolean getDeposit() {
+		return deposit;
+	}
+
+	public void setDeposit(Boolean deposit) {
+		this.deposit = deposit;
+	}
+
+	public Boolean getCapitalization() {
+		return capitalization;
+	}
+
+	public void setCapitalization(Boolean capitalization) {
+		this.capitalization = capitalization;
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+public enum Currency {
+
+	USD, EUR, RUB;
+
+	public static Currency getBase() {
+		return USD;
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Fixed-point arithmetic over amounts, represented as longs with {@link #SCALE}
+ * decimal digits, e.g. {@code 12.5} is {@code 125000}.
+ *
+ * Operations round as {@link BigDecimal} with {@link RoundingMode#HALF_UP} would
+ * and throw {@link ArithmeticException} instead of overflowing, so that the caller
+ * could fall back to {@link BigDecimal}.
+ *
+ * The same representation is used for storage: unlike {@link BigDecimal} strings,
+ * such values are compact and can be summed on the database side. Amounts, which
+ * do not fit exactly, are {@link #encode(BigDecimal) stored} as decimal strings,
+ * so none is rounded.
+ */
+public final class Money {
+
+	public static final int SCALE = 4;
+
+	private Money() {
+	}
+
+	/**
+	 * @throws ArithmeticException if the value has more than {@link #SCALE}
+	 * decimal digits or does not fit
+	 */
+	public static long of(BigDecimal value) {
+		return value.setScale(SCALE, RoundingMode.UNNECESSARY).unscaledValue().longValueExact();
+	}
+
+	/**
+	 * Same as {@link #of(BigDecimal)}, but rounds extra decimal digits half up.
+	 * Used for rollup sums, which have to be longs to be incremented
+	 * on the database side
+	 *
+	 * @throws ArithmeticException if the value does not fit
+	 */
+	public static long round(BigDecimal value) {
+		return value.setScale(SCALE, RoundingMode.HALF_UP).unscaledValue().longValueExact();
+	}
+
+	public static BigDecimal toBigDecimal(long value) {
+		return BigDecimal.valueOf(value, SCALE);
+	}
+
+	/**
+	 * @return value as long or decimal string, if it has more than
+	 * {@link #SCALE} decimal digits or does not fit
+	 */
+	public static Object encode(BigDecimal value) {
+		try {
+			return of(value);
+		} catch (ArithmeticException e) {
+			return value.toPlainString();
+		}
+	}
+
+	/**
+	 * @param value {@link #encode(BigDecimal) encoded} value
+	 * @return amount without trailing zeros
+	 */
+	public static BigDecimal decode(Object value) {
+
+		if (!(value instanceof Number)) {
+			return new BigDecimal(value.toString());
+		}
+
+		BigDecimal result = toBigDecimal(((Number) value).longValue()).stripTrailingZeros();
+		return result.scale() < 0 ? result.setScale(0) : result;
+	}
+
+	/**
+	 * @return {@code amount * multiplier / divisor}, rounded once
+	 */
+	public static long multiplyDivide(long amount, long multiplier, long divisor) {
+		return divide(Math.multiplyExact(amount, multiplier), divisor);
+	}
+
+	/**
+	 * @return {@code amount * multiplier} with {@code 2 * SCALE} decimal digits, i.e. exact
+	 */
+	public static long multiplyExact(long amount, long multiplier) {
+		return Math.multiplyExact(amount, multiplier);
+	}
+
+	/**
+	 * @param dividend value with {@code 2 * SCALE} decimal digits
+	 * @param divisor positive value
+	 * @return quotient, rounded half up
+	 */
+	public static long divide(long dividend, long divisor) {
+
+		long quotient = dividend / divisor;
+		long remainder = Math.abs(dividend % divisor);
+
+		if (remainder >= divisor - remainder) {
+			quotient += Long.signum(dividend);
+		}
+
+		return quotient;
+	}
+
+	public static long add(long left, long right) {
+		return Math.addExact(left, right);
+	}
+}
+
+package com.piggymetrics.statistics.domain;
+
+import org.hibernate.validator.constraints.Length;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+
+public class Item {
+
+	@NotNull
+	@Length(min = 1, max = 20)
+	private String title;
+
+	@NotNull
+	private BigDecimal amount;
+
+	@NotNull
+	private Currency currency;
+
+	@NotNull
+	private TimePeriod period;
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public void setAmount(BigDecimal amount) {
+		this.amount = amount;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public void setCurrency(Currency currency) {
+		this.currency = currency;
+	}
+
+	public TimePeriod getPeriod() {
+		return period;
+	}
+
+	public void setPeriod(TimePeriod period) {
+		this.period = period;
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import org.springframework.data.annotation.PersistenceConstructor;
+
+import java.math.BigDecimal;
+
+/**
+ * Represents normalized {@link com.piggymetrics.statistics.domain.Item} object
+ * with {@link Currency#getBase()} currency and {@link TimePeriod#getBase()} time period.
+ *
+ * Original amount, currency and period are kept along, so that the item could be
+ * normalized again. They are absent for items stored before they have been introduced.
+ */
+public class ItemMetric {
+
+	private String title;
+
+	private BigDecimal amount;
+
+	private BigDecimal sourceAmount;
+
+	private Currency currency;
+
+	private TimePeriod period;
+
+	public ItemMetric(String title, BigDecimal amount) {
+		this(title, amount, null, null, null);
+	}
+
+	@PersistenceConstructor
+	public ItemMetric(String title, BigDecimal amount, BigDecimal sourceAmount, Currency currency, TimePeriod period) {
+		this.title = title;
+		this.amount = amount;
+		this.sourceAmount = sourceAmount;
+		this.currency = currency;
+		this.period = period;
+	}
+
+	public String getTitle() {
+		return title;
+	}
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public BigDecimal getSourceAmount() {
+		return sourceAmount;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public TimePeriod getPeriod() {
+		return period;
+	}
+
+	/**
+	 * @return {@code true}, if original amount, currency and period are known
+	 */
+	public boolean hasSource() {
+		return sourceAmount != null && currency != null && period != null;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		ItemMetric that = (ItemMetric) o;
+
+		return title.equalsIgnoreCase(that.title);
+
+	}
+
+	@Override
+	public int hashCode() {
+		return title.hashCode();
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import com.piggymetrics.statistics.domain.Currency;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.math.BigDecimal;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Represents daily time series data point containing
+ * current account state
+ */
+@Document(collection = "datapoints")
+@CompoundIndex(name = "account_date", def = "{'_id.account': 1, '_id.date': 1}")
+public class DataPoint {
+
+	@Id
+	private DataPointId id;
+
+	private Set<ItemMetric> incomes;
+
+	private Set<ItemMetric> expenses;
+
+	private Map<StatisticMetric, BigDecimal> statistics;
+
+	private Map<Currency, BigDecimal> rates;
+
+	/**
+	 * Original saving amount and currency, absent for points
+	 * stored before they have been introduced
+	 */
+	private BigDecimal savingAmount;
+
+	private Currency savingCurrency;
+
+	public DataPointId getId() {
+		return id;
+	}
+
+	public void setId(DataPointId id) {
+		this.id = id;
+	}
+
+	public Set<ItemMetric> getIncomes() {
+		return incomes;
+	}
+
+	public void setIncomes(Set<ItemMetric> incomes) {
+		this.incomes = incomes;
+	}
+
+	public Set<ItemMetric> getExpenses() {
+		return expenses;
+	}
+
+	public void setExpenses(Set<ItemMetric> expenses) {
+		this.expenses = expenses;
+	}
+
+	public Map<StatisticMetric, BigDecimal> getStatistics() {
+		return statistics;
+	}
+
+	public void setStatistics(Map<StatisticMetric, BigDecimal> statistics) {
+		this.statistics = statistics;
+	}
+
+	public Map<Currency, BigDecimal> getRates() {
+		return rates;
+	}
+
+	public void setRates(Map<Currency, BigDecimal> rates) {
+		this.rates = rates;
+	}
+
+	public BigDecimal getSavingAmount() {
+		return savingAmount;
+	}
+
+	public void setSavingAmount(BigDecimal savingAmount) {
+		this.savingAmount = savingAmount;
+	}
+
+	public Currency getSavingCurrency() {
+		return savingCurrency;
+	}
+
+	public void setSavingCurrency(Currency savingCurrency) {
+		this.savingCurrency = savingCurrency;
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import java.io.Serializable;
+import java.util.Date;
+
+public class DataPointId implements Serializable {
+
+	private static final long serialVersionUID = 1L;
+
+	private String account;
+
+	private Date date;
+
+	public DataPointId(String account, Date date) {
+		this.account = account;
+		this.date = date;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		DataPointId that = (DataPointId) o;
+
+		return account.equals(that.account) && date.equals(that.date);
+	}
+
+	@Override
+	public int hashCode() {
+		return 31 * account.hashCode() + date.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return "DataPointId{" +
+				"account='" + account + '\'' +
+				", date=" + date +
+				'}';
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.Money;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.annotation.Version;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.math.BigDecimal;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Packs all daily data points of an account within one month into a single document.
+ *
+ * Item titles and rate tables are shared by all points of the bucket and referenced
+ * by index, amounts are stored as {@link Money#encode(BigDecimal) encoded} values.
+ * Dictionaries are append-only, so an entry stays in the bucket even if
+ * the point, which referenced it, has been replaced.
+ */
+@Document(collection = "datapoint_buckets")
+@CompoundIndex(name = "account_month", def = "{'a': 1, 'm': 1}")
+public class DataPointBucket {
+
+	@Id
+	private String id;
+
+	@Field("a")
+	private String account;
+
+	@Field("m")
+	private Date month;
+
+	@Field("t")
+	private List<String> titles = new ArrayList<>();
+
+	/**
+	 * Rates ordered by {@link Currency#ordinal()}
+	 */
+	@Field("rt")
+	private List<List<Object>> rateTables = new ArrayList<>();
+
+	@Field("p")
+	private List<PackedDataPoint> points = new ArrayList<>();
+
+	@Version
+	@Field("v")
+	private Long version;
+
+	public DataPointBucket() {
+	}
+
+	public DataPointBucket(String account, YearMonth month) {
+		this.id = idOf(account, month);
+		this.account = account;
+		this.month = startOf(month);
+	}
+
+	public static String idOf(String account, YearMonth month) {
+		return account + "/" + month;
+	}
+
+	public static String idOf(DataPointId id) {
+		return idOf(id.getAccount(), monthOf(id.getDate()));
+	}
+
+	public static YearMonth monthOf(Date date) {
+		return YearMonth.from(date.toInstant().atZone(ZoneId.systemDefault()));
+	}
+
+	public static Date startOf(YearMonth month) {
+		return Date.from(month.atDay(1).atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	/**
+	 * Adds given data point to the bucket, replacing the point with the same date
+	 *
+	 * @param point data point of the bucket account and month
+	 * @return replaced data point or {@code null}
+	 */
+	public DataPoint put(DataPoint point) {
+
+		PackedDataPoint packed = new PackedDataPoint();
+		packed.setOffset(point.getId().getDate().getTime() - month.getTime());
+
+		if (point.getIncomes() != null) {
+			packed.setIncomeTitles(new ArrayList<>());
+			packed.setIncomeAmounts(new ArrayList<>());
+			packed.setIncomeSources(new ArrayList<>());
+			packItems(point.getIncomes(), packed.getIncomeTitles(), packed.getIncomeAmounts(), packed.getIncomeSources());
+		}
+
+		if (point.getExpenses() != null) {
+			packed.setExpenseTitles(new ArrayList<>());
+			packed.setExpenseAmounts(new ArrayList<>());
+			packed.setExpenseSources(new ArrayList<>());
+			packItems(point.getExpenses(), packed.getExpenseTitles(), packed.getExpenseAmounts(), packed.getExpenseSources());
+		}
+
+		if (point.getStatistics() != null) {
+			List<Object> statistics = new ArrayList<>(StatisticMetric.values().length);
+			for (StatisticMetric metric : StatisticMetric.values()) {
+				BigDecimal value = point.getStatistics().get(metric);
+				statistics.add(value == null ? null : Money.encode(value));
+			}
+			packed.setStatistics(statistics);
+		}
+
+		if (point.getRates() != null) {
+			List<Object> rates = new ArrayList<>(Currency.values().length);
+			for (Currency currency : Currency.values()) {
+				BigDecimal rate = point.getRates().get(currency);
+				rates.add(rate == null ? null : Money.encode(rate));
+			}
+			packed.setRates(indexOf(rateTables, rates));
+		}
+
+		if (point.getSavingAmount() != null && point.getSavingCurrency() != null) {
+			packed.setSaving(Arrays.asList(Money.encode(point.getSavingAmount()),
+					point.getSavingCurrency().ordinal()));
+		}
+
+		DataPoint previous = points.stream()
+				.filter(p -> p.getOffset() == packed.getOffset())
+				.findFirst()
+				.map(this::unpack)
+				.orElse(null);
+
+		points.removeIf(p -> p.getOffset() == packed.getOffset());
+		points.add(packed);
+		points.sort(Comparator.comparingLong(PackedDataPoint::getOffset));
+
+		return previous;
+	}
+
+	/**
+	 * @return data points ordered by date
+	 */
+	public List<DataPoint> toDataPoints() {
+
+		List<DataPoint> result = new ArrayList<>(points.size());
+
+		for (PackedDataPoint packed : points) {
+			result.add(unpack(packed));
+		}
+
+		return result;
+	}
+
+	private DataPoint unpack(PackedDataPoint packed) {
+
+		DataPoint point = new DataPoint();
+		point.setId(new DataPointId(account, new Date(month.getTime() + packed.getOffset())));
+
+		if (packed.getIncomeTitles() != null) {
+			point.setIncomes(unpackItems(packed.getIncomeTitles(), packed.getIncomeAmounts(), packed.getIncomeSources()));
+		}
+
+		if (packed.getExpenseTitles() != null) {
+			point.setExpenses(unpackItems(packed.getExpenseTitles(), packed.getExpenseAmounts(), packed.getExpenseSources()));
+		}
+
+		if (packed.getStatistics() != null) {
+			Map<StatisticMetric, BigDecimal> statistics = new EnumMap<>(StatisticMetric.class);
+			for (StatisticMetric metric : StatisticMetric.values()) {
+				Object value = packed.getStatistics().get(metric.ordinal());
+				if (value != null) {
+					statistics.put(metric, Money.decode(value));
+				}
+			}
+			point.setStatistics(statistics);
+		}
+
+		if (packed.getRates() != null) {
+			List<Object> table = rateTables.get(packed.getRates());
+			Map<Currency, BigDecimal> rates = new EnumMap<>(Currency.class);
+			for (Currency currency : Currency.values()) {
+				Object rate = table.get(currency.ordinal());
+				if (rate != null) {
+					rates.put(currency, Money.decode(rate));
+				}
+			}
+			point.setRates(rates);
+		}
+
+		if (packed.getSaving() != null) {
+			point.setSavingAmount(Money.decode(packed.getSaving().get(0)));
+			point.setSavingCurrency(Currency.values()[((Number) packed.getSaving().get(1)).intValue()]);
+		}
+
+		return point;
+	}
+
+	private void packItems(Set<ItemMetric> items, List<Integer> titleIndexes, List<Object> amounts,
+						   List<List<Object>> sources) {
+		for (ItemMetric item : items) {
+			titleIndexes.add(indexOf(titles, item.getTitle()));
+			amounts.add(Money.encode(item.getAmount()));
+			sources.add(item.hasSource()
+					? Arrays.asList(Money.encode(item.getSourceAmount()),
+							item.getCurrency().ordinal(), item.getPeriod().ordinal())
+					: null);
+		}
+	}
+
+	/**
+	 * @param sources original amounts, {@code null} for buckets written before they have been introduced
+	 */
+	private Set<ItemMetric> unpackItems(List<Integer> titleIndexes, List<Object> amounts, List<List<Object>> sources) {
+		Set<ItemMetric> items = new HashSet<>(titleIndexes.size());
+		for (int i = 0; i < titleIndexes.size(); i++) {
+			String title = titles.get(titleIndexes.get(i));
+			BigDecimal amount = Money.decode(amounts.get(i));
+			List<Object> source = sources == null ? null : sources.get(i);
+			items.add(source == null
+					? new ItemMetric(title, amount)
+					: new ItemMetric(title, amount, Money.decode(source.get(0)),
+							Currency.values()[((Number) source.get(1)).intValue()],
+							TimePeriod.values()[((Number) source.get(2)).intValue()]));
+		}
+		return items;
+	}
+
+	private static <T> int indexOf(List<T> dictionary, T value) {
+		int index = dictionary.indexOf(value);
+		if (index < 0) {
+			dictionary.add(value);
+			index = dictionary.size() - 1;
+		}
+		return index;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public Date getMonth() {
+		return month;
+	}
+
+	public List<String> getTitles() {
+		return Collections.unmodifiableList(titles);
+	}
+
+	public List<List<Object>> getRateTables() {
+		return Collections.unmodifiableList(rateTables);
+	}
+
+	public List<PackedDataPoint> getPoints() {
+		return Collections.unmodifiableList(points);
+	}
+
+	public Long getVersion() {
+		return version;
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import org.springframework.data.mongodb.core.mapping.Field;
+
+import java.util.List;
+
+/**
+ * Compact form of a {@link DataPoint} within {@link DataPointBucket}.
+ *
+ * Item titles and rate tables are stored as indexes into bucket dictionaries,
+ * amounts are stored as {@link com.piggymetrics.statistics.domain.Money#encode(java.math.BigDecimal) encoded} values.
+ * Original amounts are stored as {@code [amount, currency ordinal, period ordinal]}.
+ */
+public class PackedDataPoint {
+
+	/**
+	 * Milliseconds since the bucket month start
+	 */
+	@Field("o")
+	private long offset;
+
+	@Field("r")
+	private Integer rates;
+
+	@Field("it")
+	private List<Integer> incomeTitles;
+
+	@Field("ia")
+	private List<Object> incomeAmounts;
+
+	@Field("is")
+	private List<List<Object>> incomeSources;
+
+	@Field("et")
+	private List<Integer> expenseTitles;
+
+	@Field("ea")
+	private List<Object> expenseAmounts;
+
+	@Field("es")
+	private List<List<Object>> expenseSources;
+
+	/**
+	 * Original saving as {@code [amount, currency ordinal]}
+	 */
+	@Field("sv")
+	private List<Object> saving;
+
+	/**
+	 * Values ordered by {@link StatisticMetric#ordinal()}, {@code null} for absent metrics
+	 */
+	@Field("s")
+	private List<Object> statistics;
+
+	public long getOffset() {
+		return offset;
+	}
+
+	public void setOffset(long offset) {
+		this.offset = offset;
+	}
+
+	public Integer getRates() {
+		return rates;
+	}
+
+	public void setRates(Integer rates) {
+		this.rates = rates;
+	}
+
+	public List<Integer> getIncomeTitles() {
+		return incomeTitles;
+	}
+
+	public void setIncomeTitles(List<Integer> incomeTitles) {
+		this.incomeTitles = incomeTitles;
+	}
+
+	public List<Object> getIncomeAmounts() {
+		return incomeAmounts;
+	}
+
+	public void setIncomeAmounts(List<Object> incomeAmounts) {
+		this.incomeAmounts = incomeAmounts;
+	}
+
+	public List<List<Object>> getIncomeSources() {
+		return incomeSources;
+	}
+
+	public void setIncomeSources(List<List<Object>> incomeSources) {
+		this.incomeSources = incomeSources;
+	}
+
+	public List<Integer> getExpenseTitles() {
+		return expenseTitles;
+	}
+
+	public void setExpenseTitles(List<Integer> expenseTitles) {
+		this.expenseTitles = expenseTitles;
+	}
+
+	public List<Object> getExpenseAmounts() {
+		return expenseAmounts;
+	}
+
+	public void setExpenseAmounts(List<Object> expenseAmounts) {
+		this.expenseAmounts = expenseAmounts;
+	}
+
+	public List<List<Object>> getExpenseSources() {
+		return expenseSources;
+	}
+
+	public void setExpenseSources(List<List<Object>> expenseSources) {
+		this.expenseSources = expenseSources;
+	}
+
+	public List<Object> getSaving() {
+		return saving;
+	}
+
+	public void setSaving(List<Object> saving) {
+		this.saving = saving;
+	}
+
+	public List<Object> getStatistics() {
+		return statistics;
+	}
+
+	public void setStatistics(List<Object> statistics) {
+		this.statistics = statistics;
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+/**
+ * Time series bucket size. Each bucket is represented
+ * by its latest daily {@link DataPoint}
+ */
+public enum Resolution {
+
+	DAY, WEEK, MONTH
+
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import com.piggymetrics.statistics.domain.Money;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.Map;
+
+/**
+ * Pre-aggregated statistic metrics of an account within a week, month or year.
+ *
+ * Sums are kept as {@link Money} longs, so they can be
+ * incremented on the database side as data points are saved
+ */
+@Document(collection = "rollups")
+@CompoundIndex(name = "account_period_start", def = "{'account': 1, 'period': 1, 'start': 1}")
+public class Rollup {
+
+	@Id
+	private String id;
+
+	private String account;
+
+	private RollupPeriod period;
+
+	private Date start;
+
+	/**
+	 * Number of daily data points within the period
+	 */
+	private long count;
+
+	private Map<StatisticMetric, Long> sums = new EnumMap<>(StatisticMetric.class);
+
+	/**
+	 * Number of writes, or {@code null} for a rollup, which has not been stored
+	 */
+	private Long version;
+
+	public Rollup() {
+	}
+
+	public Rollup(String account, RollupPeriod period, LocalDate start) {
+		this.id = account + "/" + period + "/" + start;
+		this.account = account;
+		this.period = period;
+		this.start = Date.from(start.atStartOfDay(ZoneId.systemDefault()).toInstant());
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public RollupPeriod getPeriod() {
+		return period;
+	}
+
+	public Date getStart() {
+		return start;
+	}
+
+	public long getCount() {
+		return count;
+	}
+
+	public void setCount(long count) {
+		this.count = count;
+	}
+
+	@JsonIgnore
+	public Map<StatisticMetric, Long> getSums() {
+		return sums;
+	}
+
+	@JsonIgnore
+	public Long getVersion() {
+		return version;
+	}
+
+	public Map<StatisticMetric, BigDecimal> getTotals() {
+		Map<StatisticMetric, BigDecimal> totals = new EnumMap<>(StatisticMetric.class);
+		sums.forEach((metric, sum) -> totals.put(metric, Money.decode(sum)));
+		return totals;
+	}
+
+	public Map<StatisticMetric, BigDecimal> getAverages() {
+		Map<StatisticMetric, BigDecimal> averages = new EnumMap<>(StatisticMetric.class);
+		if (count > 0) {
+			getTotals().forEach((metric, total) -> averages.put(metric,
+					total.divide(BigDecimal.valueOf(count), Money.SCALE, RoundingMode.HALF_UP)));
+		}
+		return averages;
+	}
+
+	@Override
+	public String toString() {
+		return "Rollup{" +
+				"id='" + id + '\'' +
+				", count=" + count +
+				", sums=" + sums +
+				'}';
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import java.time.LocalDate;
+import java.time.temporal.TemporalAdjusters;
+import java.time.temporal.WeekFields;
+
+public enum RollupPeriod {
+
+	WEEK, MONTH, YEAR;
+
+	/**
+	 * @return first day of the period, which contains given date
+	 */
+	public LocalDate startOf(LocalDate date) {
+		switch (this) {
+			case WEEK:
+				return date.with(WeekFields.ISO.dayOfWeek(), 1);
+			case MONTH:
+				return date.with(TemporalAdjusters.firstDayOfMonth());
+			case YEAR:
+				return date.with(TemporalAdjusters.firstDayOfYear());
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+
+	/**
+	 * @return last day of the period, which contains given date
+	 */
+	public LocalDate endOf(LocalDate date) {
+		switch (this) {
+			case WEEK:
+				return startOf(date).plusWeeks(1).minusDays(1);
+			case MONTH:
+				return startOf(date).plusMonths(1).minusDays(1);
+			case YEAR:
+				return startOf(date).plusYears(1).minusDays(1);
+			default:
+				throw new IllegalArgumentException();
+		}
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import java.util.Date;
+
+/**
+ * Marks account {@link Rollup}s of a day, which may have missed
+ * a data point update and have to be rebuilt from data points
+ */
+@Document(collection = "rollup_rebuilds")
+public class RollupRebuild {
+
+	@Id
+	private String id;
+
+	private String account;
+
+	private Date date;
+
+	private Date markedAt;
+
+	public RollupRebuild() {
+	}
+
+	public RollupRebuild(DataPointId pointId, Date markedAt) {
+		this.id = pointId.getAccount() + "/" + pointId.getDate().getTime();
+		this.account = pointId.getAccount();
+		this.date = pointId.getDate();
+		this.markedAt = markedAt;
+	}
+
+	public String getId() {
+		return id;
+	}
+
+	public String getAccount() {
+		return account;
+	}
+
+	public Date getDate() {
+		return date;
+	}
+
+	public Date getMarkedAt() {
+		return markedAt;
+	}
+}
+
+package com.piggymetrics.statistics.domain.timeseries;
+
+public enum StatisticMetric {
+
+	INCOMES_AMOUNT, EXPENSES_AMOUNT, SAVING_AMOUNT
+
+}
+
+package com.piggymetrics.statistics.client;
+
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import org.springframework.stereotype.Component;
+
+import java.util.Collections;
+
+@Component
+public class ExchangeRatesClientFallback implements ExchangeRatesClient {
+
+    @Override
+    public ExchangeRatesContainer getRates(Currency base) {
+        ExchangeRatesContainer container = new ExchangeRatesContainer();
+        container.setBase(Currency.getBase());
+        container.setRates(Collections.emptyMap());
+        return container;
+    }
+}
+
+package com.piggymetrics.statistics.client;
+
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RequestParam;
+
+@FeignClient(url = "${rates.url}", name = "rates-client", fallback = ExchangeRatesClientFallback.class)
+public interface ExchangeRatesClient {
+
+    @RequestMapping(method = RequestMethod.GET, value = "/latest")
+    ExchangeRatesContainer getRates(@RequestParam("base") Currency base);
+
+}
+
+package com.piggymetrics.statistics;
+
+import com.fasterxml.jackson.databind.DeserializationFeature;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.piggymetrics.statistics.domain.Account;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.Item;
+import com.piggymetrics.statistics.domain.Saving;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.DataPointId;
+import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode and decode cost of {@link Account} update, sent by account-service, and of
+ * {@link DataPoint} series, served by this service, as JSON and as Smile.
+ * Payload sizes are reported by encoding benchmarks as {@link PayloadSize} counters.
+ *
+ * Data points have no default constructors, so series are decoded into a tree,
+ * as a client without the domain classes would do.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class WireFormatBenchmark {
+
+	@Param({"json", "smile"})
+	private String format;
+
+	@Param({"10", "100"})
+	private int items;
+
+	private ObjectMapper mapper;
+
+	private Account account;
+
+	private List<DataPoint> series;
+
+	private byte[] encodedAccount;
+
+	private byte[] encodedSeries;
+
+	@Setup
+	public void setup() throws IOException {
+
+		mapper = "smile".equals(format) ? new ObjectMapper(new SmileFactory()) : new ObjectMapper();
+		mapper.disable(DeserializationFeature.FAIL_ON_UNKNOWN_PROPERTIES);
+
+		account = createAccount(items);
+		series = createSeries(30, items);
+
+		encodedAccount = mapper.writeValueAsBytes(account);
+		encodedSeries = mapper.writeValueAsBytes(series);
+	}
+
+	/**
+	 * Encoded payload sizes. Counters are summed over the measurement,
+	 * so the size of a single payload is {@code bytes / payloads}
+	 */
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.EVENTS)
+	public static class PayloadSize {
+
+		public long bytes;
+
+		public long payloads;
+
+		@Setup(Level.Iteration)
+		public void reset() {
+			bytes = 0;
+			payloads = 0;
+		}
+
+		byte[] record(byte[] payload) {
+			bytes += payload.length;
+			payloads++;
+			return payload;
+		}
+	}
+
+	@Benchmark
+	public byte[] encodeAccount(PayloadSize size) throws IOException {
+		return size.record(mapper.writeValueAsBytes(account));
+	}
+
+	@Benchmark
+	public Account decodeAccount() throws IOException {
+		return mapper.readValue(encodedAccount, Account.class);
+	}
+
+	@Benchmark
+	public byte[] encodeSeries(PayloadSize size) throws IOException {
+		return size.record(mapper.writeValueAsBytes(series));
+	}
+
+	@Benchmark
+	public JsonNode decodeSeries() throws IOException {
+		return mapper.readTree(encodedSeries);
+	}
+
+	private static Account createAccount(int items) {
+
+		List<Item> incomes = new ArrayList<>(items);
+		List<Item> expenses = new ArrayList<>(items);
+
+		for (int i = 0; i < items; i++) {
+			incomes.add(createItem("Income " + i, new BigDecimal("4200.00").add(BigDecimal.valueOf(i))));
+			expenses.add(createItem("Expense " + i, new BigDecimal("17.35").add(BigDecimal.valueOf(i))));
+		}
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal("59300.00"));
+		saving.setCurrency(Currency.EUR);
+		saving.setInterest(new BigDecimal("3.32"));
+		saving.setDeposit(true);
+		saving.setCapitalization(false);
+
+		Account account = new Account();
+		account.setIncomes(incomes);
+		account.setExpenses(expenses);
+		account.setSaving(saving);
+
+		return account;
+	}
+
+	private static Item createItem(String title, BigDecimal amount) {
+		Item item = new Item();
+		item.setTitle(title);
+		item.setAmount(amount);
+		item.setCurrency(Currency.USD);
+		item.setPeriod(TimePeriod.MONTH);
+		return item;
+	}
+
+	private static List<DataPoint> createSeries(int days, int items) {
+
+		List<DataPoint> series = new ArrayList<>(days);
+
+		for (int day = 0; day < days; day++) {
+
+			Set<ItemMetric> incomes = new HashSet<>();
+			Set<ItemMetric> expenses = new HashSet<>();
+
+			for (int i = 0; i < items; i++) {
+				incomes.add(new ItemMetric("Income " + i, new BigDecimal("138.4913").add(BigDecimal.valueOf(i))));
+				expenses.add(new ItemMetric("Expense " + i, new BigDecimal("0.5701").add(BigDecimal.valueOf(i))));
+			}
+
+			Map<StatisticMetric, BigDecimal> statistics = new EnumMap<>(StatisticMetric.class);
+			for (StatisticMetric metric : StatisticMetric.values()) {
+				statistics.put(metric, new BigDecimal("1530.7712"));
+			}
+
+			Map<Currency, BigDecimal> rates = new EnumMap<>(Currency.class);
+			rates.put(Currency.USD, BigDecimal.ONE);
+			rates.put(Currency.EUR, new BigDecimal("0.8543"));
+			rates.put(Currency.RUB, new BigDecimal("65.7312"));
+
+			DataPoint point = new DataPoint();
+			point.setId(new DataPointId("demo", new Date(TimeUnit.DAYS.toMillis(day))));
+			point.setIncomes(incomes);
+			point.setExpenses(expenses);
+			point.setStatistics(statistics);
+			point.setRates(rates);
+
+			series.add(point);
+		}
+
+		return series;
+	}
+}
+
+package com.piggymetrics.statistics;
+
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.statistics.domain.Account;
+import com.piggymetrics.statistics.domain.Currency;
+import com.piggymetrics.statistics.domain.ExchangeRatesContainer;
+import com.piggymetrics.statistics.domain.ExchangeRatesSnapshot;
+import com.piggymetrics.statistics.domain.Item;
+import com.piggymetrics.statistics.domain.Saving;
+import com.piggymetrics.statistics.domain.TimePeriod;
+import com.piggymetrics.statistics.domain.timeseries.DataPoint;
+import com.piggymetrics.statistics.domain.timeseries.ItemMetric;
+import com.piggymetrics.statistics.domain.timeseries.StatisticMetric;
+import com.piggymetrics.statistics.service.StatisticsCalculator;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+/**
+ * Data point computation of an account with fixed-point {@link StatisticsCalculator}
+ * against the former {@link BigDecimal} computation, which converted each amount
+ * with a multiply, divided it by a period ratio created from a double and summed
+ * the metrics with stream reductions.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class StatisticsCalculationBenchmark {
+
+	@Param({"10", "100", "1000"})
+	private int items;
+
+	private ExchangeRatesSnapshot rates;
+
+	private Account account;
+
+	@Setup
+	public void setup() {
+
+		ExchangeRatesContainer container = new ExchangeRatesContainer();
+		container.setRates(ImmutableMap.of("EUR", new BigDecimal("0.8543"), "RUB", new BigDecimal("65.7312")));
+		rates = ExchangeRatesSnapshot.of(container, Instant.now());
+
+		Random random = new Random(42);
+		List<Item> incomes = new ArrayList<>(items / 2);
+		List<Item> expenses = new ArrayList<>(items - items / 2);
+
+		for (int i = 0; i < items; i++) {
+			Item item = new Item();
+			item.setTitle("Item " + i);
+			item.setAmount(BigDecimal.valueOf(random.nextInt(10_000_000), 2));
+			item.setCurrency(Currency.values()[random.nextInt(Currency.values().length)]);
+			item.setPeriod(TimePeriod.values()[random.nextInt(TimePeriod.values().length)]);
+			(i % 2 == 0 ? incomes : expenses).add(item);
+		}
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal("59300.00"));
+		saving.setCurrency(Currency.EUR);
+
+		account = new Account();
+		account.setIncomes(incomes);
+		account.setExpenses(expenses);
+		account.setSaving(saving);
+	}
+
+	@Benchmark
+	public DataPoint fixedPoint() {
+		DataPoint point = new DataPoint();
+		new StatisticsCalculator(rates).calculate(account, point);
+		return point;
+	}
+
+	@Benchmark
+	public DataPoint bigDecimal() {
+
+		Set<ItemMetric> incomes = account.getIncomes().stream()
+				.map(this::createItemMetric)
+				.collect(Collectors.toSet());
+
+		Set<ItemMetric> expenses = account.getExpenses().stream()
+				.map(this::createItemMetric)
+				.collect(Collectors.toSet());
+
+		Saving saving = account.getSaving();
+
+		Map<StatisticMetric, BigDecimal> statistics = ImmutableMap.of(
+				StatisticMetric.EXPENSES_AMOUNT, expenses.stream().map(ItemMetric::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add),
+				StatisticMetric.INCOMES_AMOUNT, incomes.stream().map(ItemMetric::getAmount).reduce(BigDecimal.ZERO, BigDecimal::add),
+				StatisticMetric.SAVING_AMOUNT, saving.getAmount().multiply(rates.getRatio(saving.getCurrency(), Currency.getBase()))
+		);
+
+		DataPoint point = new DataPoint();
+		point.setIncomes(incomes);
+		point.setExpenses(expenses);
+		point.setStatistics(statistics);
+		return point;
+	}
+
+	private ItemMetric createItemMetric(Item item) {
+
+		BigDecimal amount = item.getAmount()
+				.multiply(rates.getRatio(item.getCurrency(), Currency.getBase()))
+				.divide(new BigDecimal(item.getPeriod().getBaseRatio().doubleValue()), 4, RoundingMode.HALF_UP);
+
+		return new ItemMetric(item.getTitle(), amount);
+	}
+}
+
+package com.piggymetrics.account;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class AccountServiceApplicationTests {
+
+	@Test
+	public void contextLoads() {
+
+	}
+
+}
+
+package com.piggymetrics.account.repository;
+
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.domain.Currency;
+import com.piggymetrics.account.domain.Item;
+import com.piggymetrics.account.domain.Saving;
+import com.piggymetrics.account.domain.StatisticsOutbox;
+import com.piggymetrics.account.domain.TimePeriod;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+public class AccountRepositoryTest {
+
+	@Autowired
+	private AccountRepository repository;
+
+	@Test
+	public void shouldFindAccountByName() {
+
+		Account stub = getStubAccount();
+		repository.save(stub);
+
+		Account found = repository.findByName(stub.getName());
+		assertEquals(stub.getLastSeen(), found.getLastSeen());
+		assertEquals(stub.getNote(), found.getNote());
+		assertEquals(stub.getIncomes().size(), found.getIncomes().size());
+		assertEquals(stub.getExpenses().size(), found.getExpenses().size());
+	}
+
+	@Test
+	public void shouldFindDueStatisticsOutboxEntries() {
+
+		Account due = getStubAccount();
+		due.setName("outbox-due");
+		due.setStatisticsOutbox(StatisticsOutbox.record(null, new Date(1000)));
+		repository.save(due);
+
+		Account postponed = getStubAccount();
+		postponed.setName("outbox-postponed");
+		postponed.setStatisticsOutbox(StatisticsOutbox.record(null, new Date(1000)));
+		postponed.getStatisticsOutbox().postpone(new Date(1000), 1000, 1000);
+		repository.save(postponed);
+
+		List<String> found = repository.findStatisticsOutboxReady(new Date(1500), 10).stream()
+				.map(Account::getName)
+				.collect(Collectors.toList());
+
+		assertTrue(found.contains(due.getName()));
+		assertFalse(found.contains(postponed.getName()));
+		assertNotNull(repository.findStatisticsOutboxOldest());
+	}
+
+	@Test
+	public void shouldKeepStatisticsOutboxEntryChangedAfterPublishing() {
+
+		Account account = getStubAccount();
+		account.setName("outbox-changed");
+		account.setStatisticsOutbox(StatisticsOutbox.record(null, new Date()));
+		repository.save(account);
+
+		Account published = repository.findByName(account.getName());
+
+		account.setStatisticsOutbox(StatisticsOutbox.record(account.getStatisticsOutbox(), new Date()));
+		repository.save(account);
+
+		repository.removeStatisticsOutbox(Collections.singletonList(published));
+		assertNotNull(repository.findByName(account.getName()).getStatisticsOutbox());
+
+		repository.removeStatisticsOutbox(Collections.singletonList(account));
+		assertNull(repository.findByName(account.getName()).getStatisticsOutbox());
+	}
+
+	@Test
+	public void shouldUpdateStatisticsOutboxAttempts() {
+
+		Account account = getStubAccount();
+		account.setName("outbox-failed");
+		account.setStatisticsOutbox(StatisticsOutbox.record(null, new Date(0)));
+		repository.save(account);
+
+		account.getStatisticsOutbox().postpone(new Date(0), 1000, 60_000);
+		repository.updateStatisticsOutbox(Collections.singletonList(account));
+
+		StatisticsOutbox found = repository.findByName(account.getName()).getStatisticsOutbox();
+		assertEquals(1, found.getAttempts());
+		assertEquals(new Date(1000), found.getNextAttemptAt());
+	}
+
+	@Test
+	public void shouldMoveLastSeenForwardOnly() {
+
+		Account account = getStubAccount();
+		account.setName("last-seen");
+		account.setLastSeen(new Date(2000));
+		repository.save(account);
+
+		repository.updateLastSeen(Collections.singletonMap(account.getName(), new Date(1000)));
+		assertEquals(new Date(2000), repository.findByName(account.getName()).getLastSeen());
+
+		repository.updateLastSeen(Collections.singletonMap(account.getName(), new Date(3000)));
+		Account found = repository.findByName(account.getName());
+		assertEquals(new Date(3000), found.getLastSeen());
+		assertEquals(account.getNote(), found.getNote());
+	}
+
+	private Account getStubAccount() {
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(1500));
+		saving.setCurrency(Currency.USD);
+		saving.setInterest(new BigDecimal("3.32"));
+		saving.setDeposit(true);
+		saving.setCapitalization(false);
+
+		Item vacation = new Item();
+		vacation.setTitle("Vacation");
+		vacation.setAmount(new BigDecimal(3400));
+		vacation.setCurrency(Currency.EUR);
+		vacation.setPeriod(TimePeriod.YEAR);
+		vacation.setIcon("tourism");
+
+		Item grocery = new Item();
+		grocery.setTitle("Grocery");
+		grocery.setAmount(new BigDecimal(10));
+		grocery.setCurrency(Currency.USD);
+		grocery.setPeriod(TimePeriod.DAY);
+		grocery.setIcon("meal");
+
+		Item salary = new Item();
+		salary.setTitle("Salary");
+		salary.setAmount(new BigDecimal(9100));
+		salary.setCurrency(Currency.USD);
+		salary.setPeriod(TimePeriod.MONTH);
+		salary.setIcon("wallet");
+
+		Account account = new Account();
+		account.setName("test");
+		account.setNote("test note");
+		account.setLastSeen(new Date());
+		account.setSaving(saving);
+		account.setExpenses(Arrays.asList(grocery, vacation));
+		account.setIncomes(Arrays.asList(salary));
+
+		return account;
+	}
+}
+
+package com.piggymetrics.account.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableList;
+import com.piggymetrics.account.domain.*;
+import com.piggymetrics.account.service.AccountService;
+import com.sun.security.auth.UserPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import java.math.BigDecimal;
+import java.util.Date;
+
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.*;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class AccountControllerTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@InjectMocks
+	private AccountController accountController;
+
+	@Mock
+	private AccountService accountService;
+
+	private MockMvc mockMvc;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		this.mockMvc = MockMvcBuilders.standaloneSetup(accountController).build();
+	}
+
+	@Test
+	public void shouldGetAccountByName() throws Exception {
+
+		final Account account = new Account();
+		account.setName("test");
+
+		when(accountService.findByName(account.getName())).thenReturn(account);
+
+		mockMvc.perform(get("/" + account.getName()))
+				.andExpect(jsonPath("$.name").value(account.getName()))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldGetCurrentAccount() throws Exception {
+
+		final Account account = new Account();
+		account.setName("test");
+
+		when(accountService.findByName(account.getName())).thenReturn(account);
+
+		mockMvc.perform(get("/current").principal(new UserPrincipal(account.getName())))
+				.andExpect(jsonPath("$.name").value(account.getName()))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldSaveCurrentAccount() throws Exception {
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(1500));
+		saving.setCurrency(Currency.USD);
+		saving.setInterest(new BigDecimal("3.32"));
+		saving.setDeposit(true);
+		saving.setCapitalization(false);
+
+		Item grocery = new Item();
+		grocery.setTitle("Grocery");
+		grocery.setAmount(new BigDecimal(10));
+		grocery.setCurrency(Currency.USD);
+		grocery.setPeriod(TimePeriod.DAY);
+		grocery.setIcon("meal");
+
+		Item salary = new Item();
+		salary.setTitle("Salary");
+		salary.setAmount(new BigDecimal(9100));
+		salary.setCurrency(Currency.USD);
+		salary.setPeriod(TimePeriod.MONTH);
+		salary.setIcon("wallet");
+
+		final Account account = new Account();
+		account.setName("test");
+		account.setNote("test note");
+		account.setLastSeen(new Date());
+		account.setSaving(saving);
+		account.setExpenses(ImmutableList.of(grocery));
+		account.setIncomes(ImmutableList.of(salary));
+
+		String json = mapper.writeValueAsString(account);
+
+		mockMvc.perform(put("/current").principal(new UserPrincipal(account.getName())).contentType(MediaType.APPLICATION_JSON).content(json))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldFailOnValidationTryingToSaveCurrentAccount() throws Exception {
+
+		final Account account = new Account();
+		account.setName("test");
+
+		String json = mapper.writeValueAsString(account);
+
+		mockMvc.perform(put("/current").principal(new UserPrincipal(account.getName())).contentType(MediaType.APPLICATION_JSON).content(json))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void shouldRegisterNewAccount() throws Exception {
+
+		final User user = new User();
+		user.setUsername("test");
+		user.setPassword("password");
+
+		String json = mapper.writeValueAsString(user);
+		System.out.println(json);
+		mockMvc.perform(post("/").principal(new UserPrincipal("test")).contentType(MediaType.APPLICATION_JSON).content(json))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldFailOnValidationTryingToRegisterNewAccount() throws Exception {
+
+		final User user = new User();
+		user.setUsername("t");
+
+		String json = mapper.writeValueAsString(user);
+
+		mockMvc.perform(post("/").principal(new UserPrincipal("test")).contentType(MediaType.APPLICATION_JSON).content(json))
+				.andExpect(status().isBadRequest());
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.client.AuthServiceClient;
+import com.piggymetrics.account.domain.*;
+import com.piggymetrics.account.repository.AccountRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class AccountServiceTest {
+
+	@InjectMocks
+	private AccountServiceImpl accountService;
+
+	@Mock
+	private AuthServiceClient authClient;
+
+	@Mock
+	private AccountRepository repository;
+
+	@Mock
+	private LastSeenWriter lastSeenWriter;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		ReflectionTestUtils.setField(accountService, "cache", new AccountCache(10, 60_000));
+	}
+
+	@Test
+	public void shouldFindByName() {
+
+		final Account account = new Account();
+		account.setName("test");
+
+		when(accountService.findByName(account.getName())).thenReturn(account);
+		Account found = accountService.findByName(account.getName());
+
+		assertEquals(account, found);
+	}
+
+	@Test
+	public void shouldFindCachedAccountUntilChanged() {
+
+		final Account account = new Account();
+		account.setName("test");
+
+		when(repository.findByName("test")).thenReturn(account);
+
+		assertSame(account, accountService.findByName("test"));
+		assertSame(account, accountService.findByName("test"));
+		verify(repository, times(1)).findByName("test");
+
+		final Account update = new Account();
+		update.setNote("changed");
+		accountService.saveChanges("test", update);
+
+		accountService.findByName("test");
+		verify(repository, times(3)).findByName("test");
+	}
+
+	@Test
+	public void shouldDeferLastSeenWhenAccountIsUnchanged() {
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal("1500.00"));
+		saving.setCurrency(Currency.USD);
+
+		final Account account = new Account();
+		account.setNote("note");
+		account.setSaving(saving);
+		account.setStatisticsRecordedAt(new Date());
+
+		Saving sameSaving = new Saving();
+		sameSaving.setAmount(new BigDecimal(1500));
+		sameSaving.setCurrency(Currency.USD);
+
+		final Account update = new Account();
+		update.setNote("note");
+		update.setSaving(sameSaving);
+
+		when(repository.findByName("test")).thenReturn(account);
+		accountService.saveChanges("test", update);
+
+		verify(repository, never()).save(any(Account.class));
+		verify(lastSeenWriter, times(1)).touch(eq("test"), any(Date.class));
+		assertNull(account.getStatisticsOutbox());
+	}
+
+	@Test
+	public void shouldRecordUnchangedAccountStatisticsOncePerDay() {
+
+		final Account account = new Account();
+		account.setNote("note");
+		account.setStatisticsRecordedAt(new Date(System.currentTimeMillis() - 2 * 24 * 60 * 60 * 1000L));
+
+		final Account update = new Account();
+		update.setNote("note");
+
+		when(repository.findByName("test")).thenReturn(account);
+		accountService.saveChanges("test", update);
+
+		verify(repository, times(1)).save(account);
+		verify(lastSeenWriter, never()).touch(anyString(), any(Date.class));
+		assertNotNull(account.getStatisticsOutbox());
+		assertEquals(account.getLastSeen(), account.getStatisticsRecordedAt());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailWhenNameIsEmpty() {
+		accountService.findByName("");
+	}
+
+	@Test
+	public void shouldCreateAccountWithGivenUser() {
+
+		User user = new User();
+		user.setUsername("test");
+
+		Account account = accountService.create(user);
+
+		assertEquals(user.getUsername(), account.getName());
+		assertEquals(0, account.getSaving().getAmount().intValue());
+		assertEquals(Currency.getDefault(), account.getSaving().getCurrency());
+		assertEquals(0, account.getSaving().getInterest().intValue());
+		assertEquals(false, account.getSaving().getDeposit());
+		assertEquals(false, account.getSaving().getCapitalization());
+		assertNotNull(account.getLastSeen());
+
+		verify(authClient, times(1)).createUser(user);
+		verify(repository, times(1)).save(account);
+	}
+
+	@Test
+	public void shouldSaveChangesWhenUpdatedAccountGiven() {
+
+		Item grocery = new Item();
+		grocery.setTitle("Grocery");
+		grocery.setAmount(new BigDecimal(10));
+		grocery.setCurrency(Currency.USD);
+		grocery.setPeriod(TimePeriod.DAY);
+		grocery.setIcon("meal");
+
+		Item salary = new Item();
+		salary.setTitle("Salary");
+		salary.setAmount(new BigDecimal(9100));
+		salary.setCurrency(Currency.USD);
+		salary.setPeriod(TimePeriod.MONTH);
+		salary.setIcon("wallet");
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(1500));
+		saving.setCurrency(Currency.USD);
+		saving.setInterest(new BigDecimal("3.32"));
+		saving.setDeposit(true);
+		saving.setCapitalization(false);
+
+		final Account update = new Account();
+		update.setName("test");
+		update.setNote("test note");
+		update.setIncomes(Arrays.asList(salary));
+		update.setExpenses(Arrays.asList(grocery));
+		update.setSaving(saving);
+
+		final Account account = new Account();
+
+		when(accountService.findByName("test")).thenReturn(account);
+		accountService.saveChanges("test", update);
+
+		assertEquals(update.getNote(), account.getNote());
+		assertNotNull(account.getLastSeen());
+
+		assertEquals(update.getSaving().getAmount(), account.getSaving().getAmount());
+		assertEquals(update.getSaving().getCurrency(), account.getSaving().getCurrency());
+		assertEquals(update.getSaving().getInterest(), account.getSaving().getInterest());
+		assertEquals(update.getSaving().getDeposit(), account.getSaving().getDeposit());
+		assertEquals(update.getSaving().getCapitalization(), account.getSaving().getCapitalization());
+
+		assertEquals(update.getExpenses().size(), account.getExpenses().size());
+		assertEquals(update.getIncomes().size(), account.getIncomes().size());
+
+		assertEquals(update.getExpenses().get(0).getTitle(), account.getExpenses().get(0).getTitle());
+		assertEquals(0, update.getExpenses().get(0).getAmount().compareTo(account.getExpenses().get(0).getAmount()));
+		assertEquals(update.getExpenses().get(0).getCurrency(), account.getExpenses().get(0).getCurrency());
+		assertEquals(update.getExpenses().get(0).getPeriod(), account.getExpenses().get(0).getPeriod());
+		assertEquals(update.getExpenses().get(0).getIcon(), account.getExpenses().get(0).getIcon());
+		
+		assertEquals(update.getIncomes().get(0).getTitle(), account.getIncomes().get(0).getTitle());
+		assertEquals(0, update.getIncomes().get(0).getAmount().compareTo(account.getIncomes().get(0).getAmount()));
+		assertEquals(update.getIncomes().get(0).getCurrency(), account.getIncomes().get(0).getCurrency());
+		assertEquals(update.getIncomes().get(0).getPeriod(), account.getIncomes().get(0).getPeriod());
+		assertEquals(update.getIncomes().get(0).getIcon(), account.getIncomes().get(0).getIcon());
+		
+		verify(repository, times(1)).save(account);
+
+		assertNotNull(account.getStatisticsOutbox());
+		assertEquals(account.getLastSeen(), account.getStatisticsOutbox().getCreatedAt());
+		assertEquals(account.getLastSeen(), account.getStatisticsOutbox().getNextAttemptAt());
+	}
+
+	@Test
+	public void shouldCoalesceChangesWithUnpublishedOne() {
+
+		final Account update = new Account();
+		update.setSaving(new Saving());
+
+		StatisticsOutbox pending = StatisticsOutbox.record(null, new Date(0));
+		pending.postpone(new Date(0), 1000, 60_000);
+
+		final Account account = new Account();
+		account.setStatisticsOutbox(pending);
+
+		when(repository.findByName("test")).thenReturn(account);
+		accountService.saveChanges("test", update);
+
+		StatisticsOutbox outbox = account.getStatisticsOutbox();
+		assertNotEquals(pending.getChangeId(), outbox.getChangeId());
+		assertEquals(new Date(0), outbox.getCreatedAt());
+		assertEquals(1, outbox.getAttempts());
+		assertEquals(new Date(1000), outbox.getNextAttemptAt());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailWhenNoAccountsExistedWithGivenName() {
+		final Account update = new Account();
+		update.setIncomes(Arrays.asList(new Item()));
+		update.setExpenses(Arrays.asList(new Item()));
+
+		when(accountService.findByName("test")).thenReturn(null);
+		accountService.saveChanges("test", update);
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.domain.Account;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class AccountCacheTest {
+
+	private final AtomicLong now = new AtomicLong();
+
+	private final AtomicInteger loads = new AtomicInteger();
+
+	private AccountCache cache;
+
+	@Before
+	public void setup() {
+		cache = new AccountCache(2, 1000, now::get);
+	}
+
+	@Test
+	public void shouldReturnCachedAccountUntilExpired() {
+
+		Account account = cache.get("test", this::load);
+		assertSame(account, cache.get("test", this::load));
+		assertEquals(1, loads.get());
+
+		now.set(1000);
+		cache.get("test", this::load);
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedAccount() {
+
+		cache.get("first", this::load);
+		cache.get("second", this::load);
+		cache.get("first", this::load);
+		cache.get("third", this::load);
+
+		assertEquals(2, cache.size());
+		assertEquals(3, loads.get());
+
+		cache.get("first", this::load);
+		assertEquals(3, loads.get());
+
+		cache.get("second", this::load);
+		assertEquals(4, loads.get());
+	}
+
+	@Test
+	public void shouldLoadAccountAgainWhenInvalidated() {
+
+		cache.get("test", this::load);
+		cache.invalidate("test");
+		cache.get("test", this::load);
+
+		assertEquals(2, loads.get());
+	}
+
+	@Test
+	public void shouldNotCacheAccountLoadedBeforeInvalidation() {
+
+		Function<String, Account> staleLoader = name -> {
+			Account account = load(name);
+			cache.invalidate(name);
+			return account;
+		};
+
+		cache.get("test", staleLoader);
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void shouldCacheAccountLoadedDuringInvalidationOfAnotherOne() {
+
+		Function<String, Account> loader = name -> {
+			Account account = load(name);
+			cache.invalidate("another");
+			return account;
+		};
+
+		cache.get("test", loader);
+		assertEquals(1, cache.size());
+	}
+
+	@Test
+	public void shouldNotCacheAbsentAccount() {
+		assertNull(cache.get("test", name -> null));
+		assertEquals(0, cache.size());
+	}
+
+	private Account load(String name) {
+		loads.incrementAndGet();
+		Account account = new Account();
+		account.setName(name);
+		return account;
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.repository.AccountRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+
+import java.util.Date;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class LastSeenWriterTest {
+
+	@InjectMocks
+	private LastSeenWriter writer;
+
+	@Mock
+	private AccountRepository repository;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldWriteLatestTouchOfEachAccount() {
+
+		writer.touch("first", new Date(2000));
+		writer.touch("first", new Date(1000));
+		writer.touch("second", new Date(1000));
+
+		writer.flush();
+
+		ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+		verify(repository, times(1)).updateLastSeen(captor.capture());
+
+		assertEquals(2, captor.getValue().size());
+		assertEquals(new Date(2000), captor.getValue().get("first"));
+		assertEquals(new Date(1000), captor.getValue().get("second"));
+
+		writer.flush();
+		verify(repository, times(1)).updateLastSeen(anyMap());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldKeepTouchesWhenWriteFails() {
+
+		doThrow(new IllegalStateException()).when(repository).updateLastSeen(anyMap());
+
+		writer.touch("test", new Date(1000));
+		writer.flush();
+
+		writer.touch("test", new Date(500));
+		writer.flush();
+
+		ArgumentCaptor<Map> captor = ArgumentCaptor.forClass(Map.class);
+		verify(repository, times(2)).updateLastSeen(captor.capture());
+		assertEquals(new Date(1000), captor.getAllValues().get(1).get("test"));
+	}
+
+	@Test
+	public void shouldNotWriteWithoutTouches() {
+		writer.flush();
+		verify(repository, never()).updateLastSeen(anyMap());
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.google.common.collect.ImmutableList;
+import com.piggymetrics.account.client.LocalStatisticsServiceClient;
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.domain.StatisticsOutbox;
+import com.piggymetrics.account.repository.AccountRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class StatisticsPublisherTest {
+
+	@Mock
+	private AccountRepository repository;
+
+	private LocalStatisticsServiceClient statisticsClient = new LocalStatisticsServiceClient();
+
+	private StatisticsPublisher publisher;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+
+		publisher = new StatisticsPublisher();
+		ReflectionTestUtils.setField(publisher, "statisticsClient", statisticsClient);
+		ReflectionTestUtils.setField(publisher, "repository", repository);
+		ReflectionTestUtils.setField(publisher, "batchSize", 2);
+		ReflectionTestUtils.setField(publisher, "backoff", 1000L);
+		ReflectionTestUtils.setField(publisher, "maxBackoff", 60_000L);
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldPublishAndRemoveOutboxEntries() {
+
+		Account first = createAccount("first");
+		Account second = createAccount("second");
+
+		when(repository.findStatisticsOutboxReady(any(Date.class), anyInt()))
+				.thenReturn(ImmutableList.of(first, second), Collections.emptyList());
+
+		publisher.publish();
+
+		assertEquals(ImmutableList.of("first", "second"), statisticsClient.getUpdates());
+
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(repository, times(2)).removeStatisticsOutbox(captor.capture());
+		assertEquals(ImmutableList.of(first, second), captor.getAllValues().get(0));
+		assertTrue(captor.getAllValues().get(1).isEmpty());
+	}
+
+	@Test
+	@SuppressWarnings("unchecked")
+	public void shouldPostponeOutboxEntriesWhenStatisticsServiceFails() {
+
+		Account account = createAccount("test");
+		statisticsClient.setAvailable(false);
+
+		when(repository.findStatisticsOutboxReady(any(Date.class), anyInt()))
+				.thenReturn(ImmutableList.of(account, createAccount("other")));
+
+		publisher.publish();
+
+		ArgumentCaptor<Collection> captor = ArgumentCaptor.forClass(Collection.class);
+		verify(repository, times(1)).updateStatisticsOutbox(captor.capture());
+		assertSame(account, captor.getValue().iterator().next());
+
+		StatisticsOutbox outbox = account.getStatisticsOutbox();
+		assertEquals(1, outbox.getAttempts());
+		assertTrue(outbox.getNextAttemptAt().after(new Date(System.currentTimeMillis() + 500)));
+	}
+
+	@Test
+	public void shouldDoubleBackoffUpToLimit() {
+
+		StatisticsOutbox outbox = StatisticsOutbox.record(null, new Date(0));
+
+		outbox.postpone(new Date(0), 1000, 3000);
+		assertEquals(new Date(1000), outbox.getNextAttemptAt());
+
+		outbox.postpone(new Date(0), 1000, 3000);
+		assertEquals(new Date(2000), outbox.getNextAttemptAt());
+
+		outbox.postpone(new Date(0), 1000, 3000);
+		assertEquals(new Date(3000), outbox.getNextAttemptAt());
+	}
+
+	private Account createAccount(String name) {
+		Account account = new Account();
+		account.setName(name);
+		account.setStatisticsOutbox(StatisticsOutbox.record(null, new Date()));
+		return account;
+	}
+}
+
+package com.piggymetrics.account.client;
+
+import com.piggymetrics.account.domain.Account;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.rule.OutputCapture;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.fail;
+
+/**
+ * @author cdov
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+        "feign.hystrix.enabled=true"
+})
+public class StatisticsServiceClientFallbackTest {
+    @Autowired
+    private StatisticsServiceClient statisticsServiceClient;
+
+    @Rule
+    public final OutputCapture outputCapture = new OutputCapture();
+
+    @Before
+    public void setup() {
+        outputCapture.reset();
+    }
+
+    @Test
+    public void testUpdateStatisticsWithFailFallback(){
+        try {
+            statisticsServiceClient.updateStatistics("test", new Account());
+            fail("failed update should not be reported as published");
+        } catch (RuntimeException e) {
+            // expected, so that the change stays in the outbox
+        }
+
+        outputCapture.expect(containsString("Error during update statistics for account: test"));
+
+    }
+
+}
+
+
+package com.piggymetrics.account.client;
+
+import com.piggymetrics.account.domain.Account;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * In-process stand-in of statistics-service, which records received
+ * updates and could be switched to fail, as unavailable service does
+ */
+public class LocalStatisticsServiceClient implements StatisticsServiceClient {
+
+	private final List<String> updates = Collections.synchronizedList(new ArrayList<>());
+
+	private volatile boolean available = true;
+
+	@Override
+	public void updateStatistics(String accountName, Account account) {
+		if (!available) {
+			throw new IllegalStateException("statistics-service is unavailable");
+		}
+		updates.add(accountName);
+	}
+
+	public void setAvailable(boolean available) {
+		this.available = available;
+	}
+
+	/**
+	 * @return names of updated accounts, in order of updates
+	 */
+	public List<String> getUpdates() {
+		return new ArrayList<>(updates);
+	}
+}
+
+package com.piggymetrics.account.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import com.piggymetrics.account.domain.Account;
+import feign.RequestTemplate;
+import feign.codec.Encoder;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.io.IOException;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class SmileEncoderTest {
+
+	private final ObjectMapper mapper = new ObjectMapper(new SmileFactory());
+
+	@Mock
+	private Encoder delegate;
+
+	private SmileEncoder encoder;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		encoder = new SmileEncoder(mapper, delegate);
+	}
+
+	@Test
+	public void shouldEncodeJsonBodyAsSmile() throws IOException {
+
+		Account account = new Account();
+		account.setName("test");
+		account.setNote("note");
+
+		RequestTemplate template = new RequestTemplate();
+		template.header(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_JSON_UTF8_VALUE);
+
+		encoder.encode(account, Account.class, template);
+
+		assertEquals(Collections.singletonList(SmileEncoder.APPLICATION_SMILE.toString()),
+				template.headers().get(HttpHeaders.CONTENT_TYPE));
+
+		Account decoded = mapper.readValue(template.body(), Account.class);
+		assertEquals(account.getName(), decoded.getName());
+		assertEquals(account.getNote(), decoded.getNote());
+
+		verify(delegate, never()).encode(any(), any(), any());
+	}
+
+	@Test
+	public void shouldDelegateBodyOfOtherContentType() {
+
+		RequestTemplate template = new RequestTemplate();
+		template.header(HttpHeaders.CONTENT_TYPE, MediaType.TEXT_PLAIN_VALUE);
+
+		encoder.encode("test", String.class, template);
+
+		verify(delegate).encode("test", String.class, template);
+	}
+}
+
+package com.piggymetrics.account;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.client.circuitbreaker.EnableCircuitBreaker;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.cloud.openfeign.EnableFeignClients;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
+
+@SpringBootApplication
+@EnableDiscoveryClient
+@EnableOAuth2Client
+@EnableFeignClients
+@EnableCircuitBreaker
+@EnableScheduling
+@EnableGlobalMethodSecurity(prePostEnabled = true)
+public class AccountApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(AccountApplication.class, args);
+	}
+
+}
+
+package com.piggymetrics.account.repository;
+
+import com.piggymetrics.account.domain.Account;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface AccountRepository extends CrudRepository<Account, String>, AccountRepositoryCustom {
+
+	Account findByName(String name);
+
+}
+
+package com.piggymetrics.account.repository;
+
+import com.piggymetrics.account.domain.Account;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+public interface AccountRepositoryCustom {
+
+	/**
+	 * Finds accounts with unpublished statistics change, which
+	 * is due to be published at given moment, earliest first
+	 *
+	 * @param moment upper bound (inclusive) of the next attempt
+	 * @param limit batch size
+	 * @return accounts to publish
+	 */
+	List<Account> findStatisticsOutboxReady(Date moment, int limit);
+
+	/**
+	 * @return the earliest moment of unpublished statistics change or {@code null}, if there is none
+	 */
+	Date findStatisticsOutboxOldest();
+
+	long countStatisticsOutbox();
+
+	/**
+	 * Removes outbox entries of given published accounts, unless
+	 * an account has been changed again since it has been read
+	 *
+	 * @param accounts published accounts
+	 */
+	void removeStatisticsOutbox(Collection<Account> accounts);
+
+	/**
+	 * Writes attempts and the next attempt moment of given accounts outbox entries,
+	 * leaving the rest of the document as is
+	 *
+	 * @param accounts accounts with postponed outbox entries
+	 */
+	void updateStatisticsOutbox(Collection<Account> accounts);
+
+	/**
+	 * Moves {@code lastSeen} of given accounts forward, leaving the rest of the document as is.
+	 * Earlier moments than the stored ones are ignored
+	 *
+	 * @param lastSeen account names and their latest activity moments
+	 */
+	void updateLastSeen(Map<String, Date> lastSeen);
+}
+
+package com.piggymetrics.account.repository;
+
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.domain.StatisticsOutbox;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Query;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class AccountRepositoryImpl implements AccountRepositoryCustom {
+
+	private static final String OUTBOX = "statisticsOutbox";
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Account> findStatisticsOutboxReady(Date moment, int limit) {
+		return mongoTemplate.find(query(where(OUTBOX + ".nextAttemptAt").lte(moment))
+				.with(Sort.by(OUTBOX + ".nextAttemptAt"))
+				.limit(limit), Account.class);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Date findStatisticsOutboxOldest() {
+
+		Query query = query(where(OUTBOX).exists(true)).with(Sort.by(OUTBOX + ".createdAt")).limit(1);
+		query.fields().include(OUTBOX);
+
+		Account oldest = mongoTemplate.findOne(query, Account.class);
+		return oldest == null ? null : oldest.getStatisticsOutbox().getCreatedAt();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public long countStatisticsOutbox() {
+		return mongoTemplate.count(query(where(OUTBOX).exists(true)), Account.class);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void removeStatisticsOutbox(Collection<Account> accounts) {
+
+		if (accounts.isEmpty()) {
+			return;
+		}
+
+		BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Account.class);
+
+		for (Account account : accounts) {
+			operations.updateOne(sameChange(account), new Update().unset(OUTBOX));
+		}
+
+		operations.execute();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateStatisticsOutbox(Collection<Account> accounts) {
+
+		if (accounts.isEmpty()) {
+			return;
+		}
+
+		BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Account.class);
+
+		for (Account account : accounts) {
+
+			StatisticsOutbox outbox = account.getStatisticsOutbox();
+
+			operations.updateOne(sameChange(account), new Update()
+					.set(OUTBOX + ".attempts", outbox.getAttempts())
+					.set(OUTBOX + ".nextAttemptAt", outbox.getNextAttemptAt()));
+		}
+
+		operations.execute();
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateLastSeen(Map<String, Date> lastSeen) {
+
+		if (lastSeen.isEmpty()) {
+			return;
+		}
+
+		BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Account.class);
+		lastSeen.forEach((name, moment) ->
+				operations.updateOne(query(where("_id").is(name)), new Update().max("lastSeen", moment)));
+		operations.execute();
+	}
+
+	private Query sameChange(Account account) {
+		return query(where("_id").is(account.getName())
+				.and(OUTBOX + ".changeId").is(account.getStatisticsOutbox().getChangeId()));
+	}
+}
+
+package com.piggymetrics.account.config;
+
+import com.piggymetrics.account.service.security.CachingTokenServices;
+import com.piggymetrics.account.service.security.CustomUserInfoTokenServices;
+import com.piggymetrics.account.service.security.SignedTokenServices;
+import feign.RequestInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.security.oauth2.client.feign.OAuth2FeignRequestInterceptor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
+import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * @author cdov
+ */
+@Configuration
+@EnableResourceServer
+public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
+
+    private final ResourceServerProperties sso;
+
+    @Autowired
+    public ResourceServerConfig(ResourceServerProperties sso) {
+        this.sso = sso;
+    }
+
+    @Bean
+    @ConfigurationProperties(prefix = "security.oauth2.client")
+    public ClientCredentialsResourceDetails clientCredentialsResourceDetails() {
+        return new ClientCredentialsResourceDetails();
+    }
+
+    @Bean
+    public RequestInterceptor oauth2FeignRequestInterceptor(){
+        return new OAuth2FeignRequestInterceptor(new DefaultOAuth2ClientContext(), clientCredentialsResourceDetails());
+    }
+
+    @Bean
+    public OAuth2RestTemplate clientCredentialsRestTemplate() {
+        return new OAuth2RestTemplate(clientCredentialsResourceDetails());
+    }
+
+    @Bean
+    public ResourceServerTokenServices tokenServices(@Value("${security.oauth2.token.mode:opaque}") String tokenMode,
+                                                     @Value("${security.oauth2.resource.jwt.key-refresh-interval:60000}") long keyRefreshInterval,
+                                                     @Value("${security.oauth2.resource.cache.ttl:60000}") long ttl,
+                                                     @Value("${security.oauth2.resource.cache.negative-ttl:10000}") long negativeTtl,
+                                                     @Value("${security.oauth2.resource.cache.max-size:10000}") int maxSize) {
+        if ("jwt".equals(tokenMode)) {
+            return new SignedTokenServices(sso.getJwt().getKeyUri(), new RestTemplate(), keyRefreshInterval);
+        }
+        return new CachingTokenServices(new CustomUserInfoTokenServices(sso.getUserInfoUri(), sso.getClientId()),
+                ttl, negativeTtl, maxSize);
+    }
+
+    @Override
+    public void configure(HttpSecurity http) throws Exception {
+        http.authorizeRequests()
+                .antMatchers("/" , "/demo").permitAll()
+                .anyRequest().authenticated();
+    }
+}
+
+package com.piggymetrics.account.controller;
+
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.domain.User;
+import com.piggymetrics.account.service.AccountService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.web.bind.annotation.*;
+
+import javax.validation.Valid;
+import java.security.Principal;
+
+@RestController
+public class AccountController {
+
+	@Autowired
+	private AccountService accountService;
+
+	@PreAuthorize("#oauth2.hasScope('server') or #name.equals('demo')")
+	@RequestMapping(path = "/{name}", method = RequestMethod.GET)
+	public Account getAccountByName(@PathVariable String name) {
+		return accountService.findByName(name);
+	}
+
+	@RequestMapping(path = "/current", method = RequestMethod.GET)
+	public Account getCurrentAccount(Principal principal) {
+		return accountService.findByName(principal.getName());
+	}
+
+	@RequestMapping(path = "/current", method = RequestMethod.PUT)
+	public void saveCurrentAccount(Principal principal, @Valid @RequestBody Account account) {
+		accountService.saveChanges(principal.getName(), account);
+	}
+
+	@RequestMapping(path = "/", method = RequestMethod.POST)
+	public Account createNewAccount(@Valid @RequestBody User user) {
+		return accountService.create(user);
+	}
+}
+
+package com.piggymetrics.account.controller;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+@ControllerAdvice
+public class ErrorHandler {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	// TODO add MethodArgumentNotValidException handler
+	// TODO remove such general handler
+	@ExceptionHandler(IllegalArgumentException.class)
+	@ResponseStatus(HttpStatus.BAD_REQUEST)
+	public void processValidationError(IllegalArgumentException e) {
+		log.info("Returning HTTP 400 Bad Request", e);
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.domain.User;
+
+public interface AccountService {
+
+	/**
+	 * Finds account by given name
+	 *
+	 * @param accountName
+	 * @return found account
+	 */
+	Account findByName(String accountName);
+
+	/**
+	 * Checks if account with the same name already exists
+	 * Invokes Auth Service user creation
+	 * Creates new account with default parameters
+	 *
+	 * @param user
+	 * @return created account
+	 */
+	Account create(User user);
+
+	/**
+	 * Validates and applies incoming account updates
+	 * Records the change to be relayed to Statistics Service
+	 *
+	 * @param name
+	 * @param update
+	 */
+	void saveChanges(String name, Account update);
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.client.AuthServiceClient;
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.domain.Currency;
+import com.piggymetrics.account.domain.Saving;
+import com.piggymetrics.account.domain.StatisticsOutbox;
+import com.piggymetrics.account.domain.User;
+import com.piggymetrics.account.repository.AccountRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.Date;
+import java.util.Objects;
+
+@Service
+public class AccountServiceImpl implements AccountService {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private AuthServiceClient authClient;
+
+	@Autowired
+	private AccountRepository repository;
+
+	@Autowired
+	private AccountCache cache;
+
+	@Autowired
+	private LastSeenWriter lastSeenWriter;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Account findByName(String accountName) {
+		Assert.hasLength(accountName);
+		return cache.get(accountName, repository::findByName);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Account create(User user) {
+
+		Account existing = repository.findByName(user.getUsername());
+		Assert.isNull(existing, "account already exists: " + user.getUsername());
+
+		authClient.createUser(user);
+
+		Saving saving = new Saving();
+		saving.setAmount(new BigDecimal(0));
+		saving.setCurrency(Currency.getDefault());
+		saving.setInterest(new BigDecimal(0));
+		saving.setDeposit(false);
+		saving.setCapitalization(false);
+
+		Account account = new Account();
+		account.setName(user.getUsername());
+		account.setLastSeen(new Date());
+		account.setSaving(saving);
+
+		repository.save(account);
+		cache.invalidate(account.getName());
+
+		log.info("new account has been created: " + account.getName());
+
+		return account;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void saveChanges(String name, Account update) {
+
+		Account account = repository.findByName(name);
+		Assert.notNull(account, "can't find account with name " + name);
+
+		Date now = new Date();
+
+		if (isUnchanged(account, update) && isRecordedOn(account, now)) {
+			lastSeenWriter.touch(name, now);
+			log.debug("account {} has no changes, lastSeen touch is deferred", name);
+			return;
+		}
+
+		account.setIncomes(update.getIncomes());
+		account.setExpenses(update.getExpenses());
+		account.setSaving(update.getSaving());
+		account.setNote(update.getNote());
+		account.setLastSeen(now);
+		account.setStatisticsOutbox(StatisticsOutbox.record(account.getStatisticsOutbox(), now));
+		account.setStatisticsRecordedAt(now);
+		repository.save(account);
+		cache.invalidate(name);
+
+		log.debug("account {} changes has been saved", name);
+	}
+
+	/**
+	 * statistics-service keeps a data point per account and day, so an unchanged
+	 * account is still recorded once a day to keep its history without gaps
+	 */
+	private boolean isRecordedOn(Account account, Date moment) {
+		return account.getStatisticsRecordedAt() != null
+				&& toLocalDate(account.getStatisticsRecordedAt()).equals(toLocalDate(moment));
+	}
+
+	private static LocalDate toLocalDate(Date date) {
+		return date.toInstant().atZone(ZoneId.systemDefault()).toLocalDate();
+	}
+
+	/**
+	 * Clients save an account periodically, mostly without changes
+	 */
+	private boolean isUnchanged(Account account, Account update) {
+		return Objects.equals(account.getIncomes(), update.getIncomes())
+				&& Objects.equals(account.getExpenses(), update.getExpenses())
+				&& Objects.equals(account.getSaving(), update.getSaving())
+				&& Objects.equals(account.getNote(), update.getNote());
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.domain.Account;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.Function;
+import java.util.function.LongSupplier;
+
+/**
+ * Read-through cache of accounts, evicting the least recently used
+ * ones above {@code max-size}.
+ *
+ * Entries are invalidated by this instance writes and expire after {@code ttl},
+ * which bounds staleness of writes made by other instances. Cached accounts are
+ * shared between readers and must not be modified.
+ */
+@Component
+public class AccountCache {
+
+	private final int maxSize;
+
+	private final long ttl;
+
+	private final LongSupplier clock;
+
+	/**
+	 * Access ordered, guarded by {@code this}
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+	/**
+	 * Token of the latest load of each account, removed on invalidation,
+	 * so that an account loaded before it is not cached. Guarded by {@code this}
+	 */
+	private final Map<String, Object> loads = new HashMap<>();
+
+	private final Counter hits = Metrics.counter("account.cache.hits");
+
+	private final Counter misses = Metrics.counter("account.cache.misses");
+
+	private final Counter evictions = Metrics.counter("account.cache.evictions");
+
+	@Autowired
+	public AccountCache(@Value("${account.cache.max-size:10000}") int maxSize,
+						@Value("${account.cache.ttl:30000}") long ttl) {
+		this(maxSize, ttl, System::currentTimeMillis);
+	}
+
+	AccountCache(int maxSize, long ttl, LongSupplier clock) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.clock = clock;
+
+		Metrics.gauge("account.cache.size", this, AccountCache::size);
+	}
+
+	/**
+	 * @param name account name
+	 * @param loader loads account, when it is not cached
+	 * @return cached or loaded account, {@code null} results are not cached
+	 */
+	public Account get(String name, Function<String, Account> loader) {
+
+		long now = clock.getAsLong();
+		Object load = new Object();
+
+		synchronized (this) {
+			Entry entry = entries.get(name);
+			if (entry != null && now < entry.expiresAt) {
+				hits.increment();
+				return entry.account;
+			}
+			loads.put(name, load);
+		}
+
+		misses.increment();
+		Account account = null;
+
+		try {
+			account = loader.apply(name);
+		} finally {
+			synchronized (this) {
+				if (loads.remove(name, load) && account != null) {
+					entries.put(name, new Entry(account, now + ttl));
+					evictIfFull();
+				}
+			}
+		}
+
+		return account;
+	}
+
+	public synchronized void invalidate(String name) {
+		entries.remove(name);
+		loads.remove(name);
+	}
+
+	public synchronized int size() {
+		return entries.size();
+	}
+
+	private void evictIfFull() {
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			evictions.increment();
+		}
+	}
+
+	private static class Entry {
+
+		private final Account account;
+
+		private final long expiresAt;
+
+		Entry(Account account, long expiresAt) {
+			this.account = account;
+			this.expiresAt = expiresAt;
+		}
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.repository.AccountRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BinaryOperator;
+
+/**
+ * Write-behind of account {@code lastSeen} touches.
+ *
+ * Touches of the same account are coalesced into the latest one and
+ * written every {@code flush-interval} ms with a single bulk update.
+ */
+@Component
+public class LastSeenWriter {
+
+	private static final BinaryOperator<Date> LATEST = (a, b) -> a.after(b) ? a : b;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private AccountRepository repository;
+
+	private final Map<String, Date> pending = new ConcurrentHashMap<>();
+
+	private final Counter written = Metrics.counter("account.last-seen.written");
+
+	public LastSeenWriter() {
+		Metrics.gauge("account.last-seen.pending", pending, Map::size);
+	}
+
+	public void touch(String name, Date moment) {
+		pending.merge(name, moment, LATEST);
+	}
+
+	/**
+	 * Writes pending touches. Touches of a failed write are kept for the next one
+	 */
+	@Scheduled(fixedDelayString = "${account.last-seen.flush-interval:5000}")
+	public synchronized void flush() {
+
+		if (pending.isEmpty()) {
+			return;
+		}
+
+		Map<String, Date> batch = new HashMap<>(pending);
+		batch.forEach(pending::remove);
+
+		try {
+			repository.updateLastSeen(batch);
+			written.increment(batch.size());
+		} catch (RuntimeException e) {
+			batch.forEach((name, moment) -> pending.merge(name, moment, LATEST));
+			log.error("failed to write lastSeen of {} accounts, will retry", batch.size(), e);
+		}
+	}
+
+	@PreDestroy
+	public void close() {
+		flush();
+	}
+}
+
+package com.piggymetrics.account.service;
+
+import com.piggymetrics.account.client.StatisticsServiceClient;
+import com.piggymetrics.account.domain.Account;
+import com.piggymetrics.account.repository.AccountRepository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Relays account changes, recorded in statistics outbox, to statistics-service.
+ *
+ * Outbox is polled in batches of {@code batch-size}, published entries are
+ * removed and failed ones are postponed with exponential backoff, each
+ * with a single bulk write. Publishing is at-least-once: an account state
+ * could be sent again, which statistics-service treats as an update.
+ */
+@Component
+public class StatisticsPublisher {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private StatisticsServiceClient statisticsClient;
+
+	@Autowired
+	private AccountRepository repository;
+
+	@Value("${account.statistics-outbox.batch-size:100}")
+	private int batchSize;
+
+	@Value("${account.statistics-outbox.backoff:1000}")
+	private long backoff;
+
+	@Value("${account.statistics-outbox.max-backoff:300000}")
+	private long maxBackoff;
+
+	private final Counter published = Metrics.counter("account.statistics.outbox.published");
+
+	private final Counter failed = Metrics.counter("account.statistics.outbox.failed");
+
+	private final AtomicLong pending = Metrics.gauge("account.statistics.outbox.pending", new AtomicLong());
+
+	/**
+	 * Age of the earliest unpublished change, ms
+	 */
+	private final AtomicLong lag = Metrics.gauge("account.statistics.outbox.lag", new AtomicLong());
+
+	/**
+	 * Publishes due outbox entries, batch after batch, until there are no
+	 * more of them or statistics-service starts to fail
+	 */
+	@Scheduled(fixedDelayString = "${account.statistics-outbox.interval:1000}")
+	public void publish() {
+
+		int batchPublished;
+		int batchFailed;
+
+		do {
+			Date now = new Date();
+			List<Account> batch = repository.findStatisticsOutboxReady(now, batchSize);
+
+			List<Account> done = new ArrayList<>(batch.size());
+			List<Account> postponed = new ArrayList<>();
+
+			for (Account account : batch) {
+				try {
+					statisticsClient.updateStatistics(account.getName(), account);
+					done.add(account);
+				} catch (RuntimeException e) {
+					account.getStatisticsOutbox().postpone(now, backoff, maxBackoff);
+					postponed.add(account);
+					log.warn("failed to publish statistics of account {}, attempt {}",
+							account.getName(), account.getStatisticsOutbox().getAttempts(), e);
+				}
+			}
+
+			repository.removeStatisticsOutbox(done);
+			repository.updateStatisticsOutbox(postponed);
+
+			published.increment(done.size());
+			failed.increment(postponed.size());
+
+			batchPublished = done.size();
+			batchFailed = postponed.size();
+
+		} while (batchFailed == 0 && batchPublished == batchSize);
+
+		updateLag();
+	}
+
+	private void updateLag() {
+		Date oldest = repository.findStatisticsOutboxOldest();
+		lag.set(oldest == null ? 0 : Math.max(0, System.currentTimeMillis() - oldest.getTime()));
+		pending.set(repository.countStatisticsOutbox());
+	}
+}
+
+package com.piggymetrics.account.service.security;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.FixedAuthoritiesExtractor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.client.OAuth2RestOperations;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.resource.BaseOAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.*;
+
+/**
+ * Extended implementation of {@link org.springframework.boot.autoconfigure.security.oauth2.resource.UserInfoTokenServices}
+ *
+ * By default, it designed to return only user details. This class provides {@link #getRequest(Map)} method, which
+ * returns clientId and scope of calling service. This information used in controller's security checks.
+ *
+ * A token is rejected with {@link InvalidTokenException} only when auth-service has answered.
+ * If it is unreachable or fails, {@link AuthenticationServiceException} is thrown instead.
+ */
+
+public class CustomUserInfoTokenServices implements ResourceServerTokenServices {
+
+	/**
+	 * Details key of the token expiry, ms since epoch, when auth-service reports it
+	 */
+	public static final String EXPIRES_AT = "expiresAt";
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private static final String[] PRINCIPAL_KEYS = new String[] { "user", "username",
+			"userid", "user_id", "login", "id", "name" };
+
+	private final String userInfoEndpointUrl;
+
+	private final String clientId;
+
+	private OAuth2RestOperations restTemplate;
+
+	private String tokenType = DefaultOAuth2AccessToken.BEARER_TYPE;
+
+	private AuthoritiesExtractor authoritiesExtractor = new FixedAuthoritiesExtractor();
+
+	public CustomUserInfoTokenServices(String userInfoEndpointUrl, String clientId) {
+		this.userInfoEndpointUrl = userInfoEndpointUrl;
+		this.clientId = clientId;
+	}
+
+	public void setTokenType(String tokenType) {
+		this.tokenType = tokenType;
+	}
+
+	public void setRestTemplate(OAuth2RestOperations restTemplate) {
+		this.restTemplate = restTemplate;
+	}
+
+	public void setAuthoritiesExtractor(AuthoritiesExtractor authoritiesExtractor) {
+		this.authoritiesExtractor = authoritiesExtractor;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+		Map<String, Object> map = getMap(this.userInfoEndpointUrl, accessToken);
+		if (map.containsKey("error")) {
+			this.logger.debug("userinfo returned error: " + map.get("error"));
+			throw new InvalidTokenException(accessToken);
+		}
+		return extractAuthentication(map);
+	}
+
+	private OAuth2Authentication extractAuthentication(Map<String, Object> map) {
+		Object principal = getPrincipal(map);
+		OAuth2Request request = getRequest(map);
+		List<GrantedAuthority> authorities = this.authoritiesExtractor
+				.extractAuthorities(map);
+		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(
+				principal, "N/A", authorities);
+		token.setDetails(map);
+		return new OAuth2Authentication(request, token);
+	}
+
+	private Object getPrincipal(Map<String, Object> map) {
+		for (String key : PRINCIPAL_KEYS) {
+			if (map.containsKey(key)) {
+				return map.get(key);
+			}
+		}
+		return "unknown";
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private OAuth2Request getRequest(Map<String, Object> map) {
+		Map<String, Object> request = (Map<String, Object>) map.get("oauth2Request");
+
+		String clientId = (String) request.get("clientId");
+		Set<String> scope = new LinkedHashSet<>(request.containsKey("scope") ?
+				(Collection<String>) request.get("scope") : Collections.<String>emptySet());
+
+		return new OAuth2Request(null, clientId, null, true, new HashSet<>(scope),
+				null, null, null, null);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		throw new UnsupportedOperationException("Not supported: read access token");
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private Map<String, Object> getMap(String path, String accessToken) {
+		this.logger.debug("Getting user info from: " + path);
+		try {
+			OAuth2RestOperations restTemplate = this.restTemplate;
+			if (restTemplate == null) {
+				BaseOAuth2ProtectedResourceDetails resource = new BaseOAuth2ProtectedResourceDetails();
+				resource.setClientId(this.clientId);
+				restTemplate = new OAuth2RestTemplate(resource);
+			}
+			OAuth2AccessToken existingToken = restTemplate.getOAuth2ClientContext()
+					.getAccessToken();
+			if (existingToken == null || !accessToken.equals(existingToken.getValue())) {
+				DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(
+						accessToken);
+				token.setTokenType(this.tokenType);
+				restTemplate.getOAuth2ClientContext().setAccessToken(token);
+			}
+			ResponseEntity<Map> response = restTemplate.getForEntity(path, Map.class);
+			Map<String, Object> map = response.getBody();
+			long expires = response.getHeaders().getExpires();
+			if (map != null && expires > 0) {
+				map = new LinkedHashMap<>(map);
+				map.put(EXPIRES_AT, expires);
+			}
+			return map;
+		}
+		catch (ResourceAccessException | HttpServerErrorException ex) {
+			throw unavailable(ex);
+		}
+		catch (HttpClientErrorException ex) {
+			if (ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+				throw unavailable(ex);
+			}
+			return rejected(ex);
+		}
+		catch (Exception ex) {
+			return rejected(ex);
+		}
+	}
+
+	/**
+	 * auth-service is unreachable or has failed, so nothing is known about the token
+	 */
+	private AuthenticationServiceException unavailable(Exception ex) {
+		this.logger.warn("User info endpoint is unavailable: " + ex.getClass() + ", "
+				+ ex.getMessage());
+		return new AuthenticationServiceException("Could not fetch user details", ex);
+	}
+
+	private Map<String, Object> rejected(Exception ex) {
+		this.logger.info("Could not fetch user details: " + ex.getClass() + ", "
+				+ ex.getMessage());
+		return Collections.<String, Object>singletonMap("error",
+				"Could not fetch user details");
+	}
+}
+
+package com.piggymetrics.account.service.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches authentications resolved by the delegate, so that a token is introspected
+ * by auth-service once per {@code ttl} instead of once per request.
+ *
+ * Entries are keyed by SHA-256 of the token, concurrent lookups of the same token
+ * wait for a single delegate call, and invalid tokens are remembered for
+ * {@code negativeTtl}. Other failures (e.g. auth-service is unavailable) are not cached.
+ * Authentication is never kept past the token expiry, when the delegate reports it
+ * with {@link CustomUserInfoTokenServices#EXPIRES_AT}.
+ */
+public class CachingTokenServices implements ResourceServerTokenServices {
+
+	private final ResourceServerTokenServices delegate;
+
+	private final long ttl;
+
+	private final long negativeTtl;
+
+	private final int maxSize;
+
+	private final LongSupplier clock;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final Counter hits = Metrics.counter("security.token.cache.hits");
+
+	private final Counter misses = Metrics.counter("security.token.cache.misses");
+
+	/**
+	 * @param delegate token services to resolve authentication with
+	 * @param ttl time to keep resolved authentication, ms
+	 * @param negativeTtl time to keep rejection of an invalid token, ms
+	 * @param maxSize maximum number of cached tokens
+	 */
+	public CachingTokenServices(ResourceServerTokenServices delegate, long ttl, long negativeTtl, int maxSize) {
+		this(delegate, ttl, negativeTtl, maxSize, System::currentTimeMillis);
+	}
+
+	CachingTokenServices(ResourceServerTokenServices delegate, long ttl, long negativeTtl, int maxSize, LongSupplier clock) {
+		this.delegate = delegate;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.maxSize = maxSize;
+		this.clock = clock;
+
+		Metrics.gauge("security.token.cache.size", entries, Map::size);
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		String key = hash(accessToken);
+		long now = clock.getAsLong();
+
+		Entry created = new Entry();
+		Entry entry = entries.compute(key, (k, existing) ->
+				existing == null || existing.isExpired(now) ? created : existing);
+
+		if (entry != created) {
+			hits.increment();
+			return entry.join();
+		}
+
+		misses.increment();
+		evictIfFull(now);
+
+		try {
+			OAuth2Authentication authentication = delegate.loadAuthentication(accessToken);
+			entry.expiresAt = Math.min(now + ttl, expiryOf(authentication));
+			entry.result.complete(authentication);
+			return authentication;
+		} catch (InvalidTokenException e) {
+			entry.expiresAt = now + negativeTtl;
+			entry.result.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			entries.remove(key, entry);
+			entry.result.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return delegate.readAccessToken(accessToken);
+	}
+
+	/**
+	 * Forgets cached authentication of given token, e.g. when it has been revoked
+	 */
+	public void evict(String accessToken) {
+		entries.remove(hash(accessToken));
+	}
+
+	public void evictAll() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void evictIfFull(long now) {
+
+		if (entries.size() <= maxSize) {
+			return;
+		}
+
+		entries.values().removeIf(entry -> entry.isExpired(now));
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * @return token expiry reported by the delegate, or {@link Long#MAX_VALUE} if unknown
+	 */
+	private static long expiryOf(OAuth2Authentication authentication) {
+
+		Authentication user = authentication.getUserAuthentication();
+
+		if (user != null && user.getDetails() instanceof Map) {
+			Object expiresAt = ((Map<?, ?>) user.getDetails()).get(CustomUserInfoTokenServices.EXPIRES_AT);
+			if (expiresAt instanceof Long) {
+				return (Long) expiresAt;
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	private static String hash(String accessToken) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(digest.digest(accessToken.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Entry {
+
+		private final CompletableFuture<OAuth2Authentication> result = new CompletableFuture<>();
+
+		/**
+		 * Unset while the token is being resolved
+		 */
+		private volatile long expiresAt = Long.MAX_VALUE;
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+
+		OAuth2Authentication join() {
+			try {
+				return result.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+}
+
+package com.piggymetrics.account.service.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Verifies signed access tokens of auth-service locally, instead of
+ * resolving each token with a call to auth-service.
+ *
+ * Verification key is fetched from {@code keyUri} on first use and cached.
+ * When a signature does not match, the key is fetched again to pick up
+ * a rotated one, but not more often than once per {@code keyRefreshInterval}.
+ *
+ * Until the key has been fetched for the first time, tokens are rejected with
+ * {@code 503 temporarily_unavailable}. Failed fetches are retried with a delay,
+ * which doubles after each failure up to {@code keyRefreshInterval}.
+ */
+public class SignedTokenServices implements ResourceServerTokenServices {
+
+	private static final long INITIAL_RETRY_DELAY = 1000;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final String keyUri;
+
+	private final RestOperations restTemplate;
+
+	private final long keyRefreshInterval;
+
+	private final LongSupplier clock;
+
+	private final JsonParser parser = JsonParserFactory.create();
+
+	private final AccessTokenConverter converter = new DefaultAccessTokenConverter();
+
+	private volatile SignatureVerifier verifier;
+
+	private long keyFetchedAt;
+
+	private long keyFailedAt;
+
+	private long retryDelay;
+
+	/**
+	 * @param keyUri auth-service endpoint, which serves verification key
+	 * @param restTemplate client to fetch the key with
+	 * @param keyRefreshInterval minimum time between key fetches, ms
+	 */
+	public SignedTokenServices(String keyUri, RestOperations restTemplate, long keyRefreshInterval) {
+		this(keyUri, restTemplate, keyRefreshInterval, System::currentTimeMillis);
+	}
+
+	SignedTokenServices(String keyUri, RestOperations restTemplate, long keyRefreshInterval, LongSupplier clock) {
+		this.keyUri = keyUri;
+		this.restTemplate = restTemplate;
+		this.keyRefreshInterval = keyRefreshInterval;
+		this.clock = clock;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		Map<String, Object> claims = decode(accessToken);
+
+		Object expiration = claims.get(AccessTokenConverter.EXP);
+		if (expiration instanceof Number && ((Number) expiration).longValue() * 1000 <= clock.getAsLong()) {
+			throw new InvalidTokenException("Access token expired");
+		}
+
+		return converter.extractAuthentication(claims);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return converter.extractAccessToken(accessToken, decode(accessToken));
+	}
+
+	private Map<String, Object> decode(String accessToken) {
+
+		Jwt jwt;
+
+		try {
+			jwt = JwtHelper.decode(accessToken);
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot decode access token", e);
+		}
+
+		SignatureVerifier current = getVerifier();
+
+		if (!isSignedWith(jwt, current)) {
+			SignatureVerifier refreshed = refreshVerifier(current);
+			if (refreshed == current || !isSignedWith(jwt, refreshed)) {
+				throw new InvalidTokenException("Access token signature does not match");
+			}
+		}
+
+		try {
+			return parser.parseMap(jwt.getClaims());
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot parse access token claims", e);
+		}
+	}
+
+	private static boolean isSignedWith(Jwt jwt, SignatureVerifier verifier) {
+		try {
+			jwt.verifySignature(verifier);
+			return true;
+		} catch (InvalidSignatureException e) {
+			return false;
+		}
+	}
+
+	private SignatureVerifier getVerifier() {
+
+		SignatureVerifier current = verifier;
+
+		if (current == null) {
+			synchronized (this) {
+				if (verifier == null) {
+					verifier = fetchInitialVerifier();
+				}
+				current = verifier;
+			}
+		}
+
+		return current;
+	}
+
+	/**
+	 * @throws KeyUnavailableException if the key cannot be fetched or the previous
+	 * attempt has failed less than retry delay ago
+	 */
+	private SignatureVerifier fetchInitialVerifier() {
+
+		long now = clock.getAsLong();
+
+		if (retryDelay > 0 && now - keyFailedAt < retryDelay) {
+			throw new KeyUnavailableException("Token verification key is unavailable", null);
+		}
+
+		try {
+			SignatureVerifier fetched = fetchVerifier();
+			retryDelay = 0;
+			return fetched;
+		} catch (RestClientException | IllegalStateException e) {
+			keyFailedAt = now;
+			retryDelay = Math.min(retryDelay == 0 ? INITIAL_RETRY_DELAY : retryDelay * 2, keyRefreshInterval);
+			log.warn("failed to fetch token verification key, next attempt in {} ms", retryDelay, e);
+			throw new KeyUnavailableException("Token verification key is unavailable", e);
+		}
+	}
+
+	/**
+	 * @return new verifier or given one, if the key has been fetched recently or cannot be fetched
+	 */
+	private synchronized SignatureVerifier refreshVerifier(SignatureVerifier stale) {
+
+		if (verifier != stale || clock.getAsLong() - keyFetchedAt < keyRefreshInterval) {
+			return verifier;
+		}
+
+		try {
+			verifier = fetchVerifier();
+		} catch (RestClientException | IllegalStateException e) {
+			keyFetchedAt = clock.getAsLong();
+			log.warn("failed to refresh token verification key, cached one is used", e);
+		}
+
+		return verifier;
+	}
+
+	private SignatureVerifier fetchVerifier() {
+
+		Map<?, ?> key = restTemplate.getForObject(keyUri, Map.class);
+
+		if (key == null || !(key.get("value") instanceof String)) {
+			throw new IllegalStateException("No token verification key at " + keyUri);
+		}
+
+		keyFetchedAt = clock.getAsLong();
+		log.info("token verification key has been fetched from {}", keyUri);
+
+		return new RsaVerifier((String) key.get("value"));
+	}
+
+	/**
+	 * Rendered with {@code 503} status by the resource server entry point, so that
+	 * clients retry instead of treating their tokens as invalid
+	 */
+	static class KeyUnavailableException extends OAuth2Exception {
+
+		KeyUnavailableException(String message, Throwable cause) {
+			super(message, cause);
+		}
+
+		@Override
+		public String getOAuth2ErrorCode() {
+			return "temporarily_unavailable";
+		}
+
+		@Override
+		public int getHttpErrorCode() {
+			return HttpStatus.SERVICE_UNAVAILABLE.value();
+		}
+	}
+}
+
+package com.piggymetrics.account.domain;
+
+import org.hibernate.validator.constraints.Length;
+
+import javax.validation.constraints.NotNull;
+
+public class User {
+
+	@NotNull
+	@Length(min = 3, max = 20)
+	private String username;
+
+	@NotNull
+	@Length(min = 6, max = 40)
+	private String password;
+
+	public String getUsername() {
+		return username;
+	}
+
+	public void setUsername(String username) {
+		this.username = username;
+	}
+
+	public String getPassword() {
+		return password;
+	}
+
+	public void setPassword(String password) {
+		this.password = password;
+	}
+}
+
+package com.piggymetrics.account.domain;
+
+public enum TimePeriod {
+
+	YEAR, QUARTER, MONTH, DAY, HOUR
+
+}
+
+package com.piggymetrics.account.domain;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import org.codehaus.jackson.annotate.JsonIgnoreProperties;
+import org.hibernate.validator.constraints.Length;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.Date;
+import java.util.List;
+
+@Document(collection = "accounts")
+@CompoundIndex(name = "statistics_outbox", def = "{'statisticsOutbox.nextAttemptAt': 1}", sparse = true)
+@JsonIgnoreProperties(ignoreUnknown = true)
+public class Account {
+
+	@Id
+	private String name;
+
+	private Date lastSeen;
+
+	@Valid
+	private List<Item> incomes;
+
+	@Valid
+	private List<Item> expenses;
+
+	@Valid
+	@NotNull
+	private Saving saving;
+
+	@Length(min = 0, max = 20_000)
+	private String note;
+
+	@JsonIgnore
+	private StatisticsOutbox statisticsOutbox;
+
+	/**
+	 * Moment the latest account state has been recorded into statistics outbox
+	 */
+	@JsonIgnore
+	private Date statisticsRecordedAt;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public Date getLastSeen() {
+		return lastSeen;
+	}
+
+	public void setLastSeen(Date lastSeen) {
+		this.lastSeen = lastSeen;
+	}
+
+	public List<Item> getIncomes() {
+		return incomes;
+	}
+
+	public void setIncomes(List<Item> incomes) {
+		this.incomes = incomes;
+	}
+
+	public List<Item> getExpenses() {
+		return expenses;
+	}
+
+	public void setExpenses(List<Item> expenses) {
+		this.expenses = expenses;
+	}
+
+	public Saving getSaving() {
+		return saving;
+	}
+
+	public void setSaving(Saving saving) {
+		this.saving = saving;
+	}
+
+	public String getNote() {
+		return note;
+	}
+
+	public void setNote(String note) {
+		this.note = note;
+	}
+
+	public StatisticsOutbox getStatisticsOutbox() {
+		return statisticsOutbox;
+	}
+
+	public void setStatisticsOutbox(StatisticsOutbox statisticsOutbox) {
+		this.statisticsOutbox = statisticsOutbox;
+	}
+
+	public Date getStatisticsRecordedAt() {
+		return statisticsRecordedAt;
+	}
+
+	public void setStatisticsRecordedAt(Date statisticsRecordedAt) {
+		this.statisticsRecordedAt = statisticsRecordedAt;
+	}
+}
+
+package com.piggymetrics.account.domain;
+
+import java.util.Date;
+import java.util.UUID;
+
+/**
+ * Account change, which has not been relayed to statistics-service yet.
+ *
+ * It is embedded into the account document, so it is written atomically with
+ * the change itself. Edits made before the change has been relayed are coalesced
+ * into one entry, since statistics-service needs only the latest account state.
+ */
+public class StatisticsOutbox {
+
+	/**
+	 * Unique id of the latest coalesced change. Entry is removed after
+	 * publishing only if no other change has been made meanwhile
+	 */
+	private String changeId;
+
+	/**
+	 * Moment of the earliest unpublished change
+	 */
+	private Date createdAt;
+
+	private int attempts;
+
+	private Date nextAttemptAt;
+
+	/**
+	 * Records a change on top of given pending entry
+	 *
+	 * @param pending unpublished entry or {@code null}
+	 * @param moment moment of the change
+	 * @return entry to store with the changed account
+	 */
+	public static StatisticsOutbox record(StatisticsOutbox pending, Date moment) {
+
+		StatisticsOutbox outbox = new StatisticsOutbox();
+		outbox.setChangeId(UUID.randomUUID().toString());
+
+		if (pending == null) {
+			outbox.setCreatedAt(moment);
+			outbox.setNextAttemptAt(moment);
+		} else {
+			// keep backoff of a failing publishing
+			outbox.setCreatedAt(pending.getCreatedAt());
+			outbox.setAttempts(pending.getAttempts());
+			outbox.setNextAttemptAt(pending.getNextAttemptAt());
+		}
+
+		return outbox;
+	}
+
+	/**
+	 * Schedules the next attempt after a failed one, doubling the delay each time
+	 *
+	 * @param moment moment of the failed attempt
+	 * @param backoff delay after the first failure, ms
+	 * @param maxBackoff delay limit, ms
+	 */
+	public void postpone(Date moment, long backoff, long maxBackoff) {
+		attempts++;
+		long delay = Math.min(maxBackoff, backoff << Math.min(attempts - 1, 30));
+		nextAttemptAt = new Date(moment.getTime() + delay);
+	}
+
+	public String getChangeId() {
+		return changeId;
+	}
+
+	public void setChangeId(String changeId) {
+		this.changeId = changeId;
+	}
+
+	public Date getCreatedAt() {
+		return createdAt;
+	}
+
+	public void setCreatedAt(Date createdAt) {
+		this.createdAt = createdAt;
+	}
+
+	public int getAttempts() {
+		return attempts;
+	}
+
+	public void setAttempts(int attempts) {
+		this.attempts = attempts;
+	}
+
+	public Date getNextAttemptAt() {
+		return nextAttemptAt;
+	}
+
+	public void setNextAttemptAt(Date nextAttemptAt) {
+		this.nextAttemptAt = nextAttemptAt;
+	}
+}
+
+package com.piggymetrics.account.domain;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+import java.util.Objects;
+
+public class Saving {
+
+	@NotNull
+	private BigDecimal amount;
+
+	@NotNull
+	private Currency currency;
+
+	@NotNull
+	private BigDecimal interest;
+
+	@NotNull
+	private Boolean deposit;
+
+	@NotNull
+	private Boolean capitalization;
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public void setAmount(BigDecimal amount) {
+		this.amount = amount;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public void setCurrency(Currency currency) {
+		this.currency = currency;
+	}
+
+	public BigDecimal getInterest() {
+		return interest;
+	}
+
+	public void setInterest(BigDecimal interest) {
+		this.interest = interest;
+	}
+
+	public Boolean getDeposit() {
+		return deposit;
+	}
+
+	public void setDeposit(Boolean deposit) {
+		this.deposit = deposit;
+	}
+
+	public Boolean getCapitalization() {
+		return capitalization;
+	}
+
+	public void setCapitalization(Boolean capitalization) {
+		this.capitalization = capitalization;
+	}
+
+	/**
+	 * Amounts are compared by value, regardless of scale
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		Saving saving = (Saving) o;
+
+		return sameValue(amount, saving.amount)
+				&& currency == saving.currency
+				&& sameValue(interest, saving.interest)
+				&& Objects.equals(deposit, saving.deposit)
+				&& Objects.equals(capitalization, saving.capitalization);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(currency, deposit, capitalization);
+	}
+
+	private static boolean sameValue(BigDecimal a, BigDecimal b) {
+		return a == null ? b == null : b != null && a.compareTo(b) == 0;
+	}
+}
+
+package com.piggymetrics.account.domain;
+
+public enum Currency {
+
+	USD, EUR, RUB;
+
+	public static Currency getDefault() {
+		return USD;
+	}
+}
+
+package com.piggymetrics.account.domain;
+
+import org.hibernate.validator.constraints.Length;
+
+import javax.validation.constraints.NotNull;
+import java.math.BigDecimal;
+import java.util.Objects;
+
+public class Item {
+
+	@NotNull
+	@Length(min = 1, max = 20)
+	private String title;
+
+	@NotNull
+	private BigDecimal amount;
+
+	@NotNull
+	private Currency currency;
+
+	@NotNull
+	private TimePeriod period;
+
+	@NotNull
+	private String icon;
+
+	public String getTitle() {
+		return title;
+	}
+
+	public void setTitle(String title) {
+		this.title = title;
+	}
+
+	public BigDecimal getAmount() {
+		return amount;
+	}
+
+	public void setAmount(BigDecimal amount) {
+		this.amount = amount;
+	}
+
+	public Currency getCurrency() {
+		return currency;
+	}
+
+	public void setCurrency(Currency currency) {
+		this.currency = currency;
+	}
+
+	public TimePeriod getPeriod() {
+		return period;
+	}
+
+	public void setPeriod(TimePeriod period) {
+		this.period = period;
+	}
+
+	public String getIcon() {
+		return icon;
+	}
+
+	public void setIcon(String icon) {
+		this.icon = icon;
+	}
+
+	/**
+	 * Amounts are compared by value, regardless of scale
+	 */
+	@Override
+	public boolean equals(Object o) {
+		if (this == o) return true;
+		if (o == null || getClass() != o.getClass()) return false;
+
+		Item item = (Item) o;
+
+		return Objects.equals(title, item.title)
+				&& sameValue(amount, item.amount)
+				&& currency == item.currency
+				&& period == item.period
+				&& Objects.equals(icon, item.icon);
+	}
+
+	@Override
+	public int hashCode() {
+		return Objects.hash(title, currency, period, icon);
+	}
+
+	private static boolean sameValue(BigDecimal a, BigDecimal b) {
+		return a == null ? b == null : b != null && a.compareTo(b) == 0;
+	}
+}
+
+package com.piggymetrics.account.client;
+
+import com.piggymetrics.account.domain.Account;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+@FeignClient(name = "statistics-service", fallback = StatisticsServiceClientFallback.class,
+		configuration = StatisticsServiceClientConfiguration.class)
+public interface StatisticsServiceClient {
+
+	@RequestMapping(method = RequestMethod.PUT, value = "/statistics/{accountName}", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	void updateStatistics(@PathVariable("accountName") String accountName, Account account);
+
+}
+
+package com.piggymetrics.account.client;
+
+import com.fasterxml.jackson.dataformat.smile.SmileFactory;
+import feign.codec.Encoder;
+import org.springframework.beans.factory.ObjectFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.http.HttpMessageConverters;
+import org.springframework.cloud.openfeign.support.SpringEncoder;
+import org.springframework.context.annotation.Bean;
+import org.springframework.http.converter.json.Jackson2ObjectMapperBuilder;
+
+/**
+ * Feign configuration of {@link StatisticsServiceClient}.
+ *
+ * Account updates are sent as Smile, if {@code statistics-service.smile.enabled} is set,
+ * which should only be done once every statistics-service instance accepts it.
+ * Otherwise they are sent as JSON.
+ *
+ * Not a {@code @Configuration}, so that it is applied to this client only.
+ */
+public class StatisticsServiceClientConfiguration {
+
+    @Bean
+    public Encoder feignEncoder(ObjectFactory<HttpMessageConverters> messageConverters,
+                                Jackson2ObjectMapperBuilder objectMapperBuilder,
+                                @Value("${statistics-service.smile.enabled:false}") boolean smileEnabled) {
+
+        Encoder encoder = new SpringEncoder(messageConverters);
+
+        if (smileEnabled) {
+            return new SmileEncoder(objectMapperBuilder.factory(new SmileFactory()).build(), encoder);
+        }
+
+        return encoder;
+    }
+}
+
+package com.piggymetrics.account.client;
+
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import feign.RequestTemplate;
+import feign.codec.EncodeException;
+import feign.codec.Encoder;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.MediaType;
+
+import java.lang.reflect.Type;
+import java.util.Collection;
+
+/**
+ * Encodes JSON request bodies as Smile, the binary form of the same Jackson data model.
+ *
+ * Amounts, enums and field names are written as compact binary tokens with back-references,
+ * which is cheaper to produce and to parse than JSON text. Bodies of any other content type
+ * are encoded by the given encoder.
+ */
+public class SmileEncoder implements Encoder {
+
+	public static final MediaType APPLICATION_SMILE = new MediaType("application", "x-jackson-smile");
+
+	private final ObjectMapper mapper;
+
+	private final Encoder delegate;
+
+	/**
+	 * @param mapper mapper backed by {@link com.fasterxml.jackson.dataformat.smile.SmileFactory}
+	 * @param delegate encoder of non-JSON bodies
+	 */
+	public SmileEncoder(ObjectMapper mapper, Encoder delegate) {
+		this.mapper = mapper;
+		this.delegate = delegate;
+	}
+
+	@Override
+	public void encode(Object object, Type bodyType, RequestTemplate template) throws EncodeException {
+
+		if (!isJson(template)) {
+			delegate.encode(object, bodyType, template);
+			return;
+		}
+
+		byte[] body;
+
+		try {
+			body = mapper.writerFor(mapper.constructType(bodyType)).writeValueAsBytes(object);
+		} catch (JsonProcessingException e) {
+			throw new EncodeException("failed to encode " + bodyType + " as Smile", e);
+		}
+
+		template.header(HttpHeaders.CONTENT_TYPE, APPLICATION_SMILE.toString());
+		template.body(body, null);
+	}
+
+	private boolean isJson(RequestTemplate template) {
+
+		Collection<String> contentTypes = template.headers().get(HttpHeaders.CONTENT_TYPE);
+
+		return contentTypes != null && contentTypes.stream()
+				.map(MediaType::parseMediaType)
+				.anyMatch(MediaType.APPLICATION_JSON::isCompatibleWith);
+	}
+}
+
+package com.piggymetrics.account.client;
+
+import com.piggymetrics.account.domain.Account;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Component;
+
+/**
+ * @author cdov
+ */
+@Component
+public class StatisticsServiceClientFallback implements StatisticsServiceClient {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StatisticsServiceClientFallback.class);
+    @Override
+    public void updateStatistics(String accountName, Account account) {
+        LOGGER.error("Error during update statistics for account: {}", accountName);
+        throw new IllegalStateException("statistics-service is unavailable");
+    }
+}
+
+package com.piggymetrics.account.client;
+
+import com.piggymetrics.account.domain.User;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+@FeignClient(name = "auth-service")
+public interface AuthServiceClient {
+
+	@RequestMapping(method = RequestMethod.POST, value = "/uaa/users", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	void createUser(User user);
+
+}
+
+package com.piggymetrics.notification;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class NotificationServiceApplicationTests {
+
+	@Test
+	public void contextLoads() {
+	}
+
+}
+
+package com.piggymetrics.notification.repository;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.notification.domain.Frequency;
+import com.piggymetrics.notification.domain.NotificationSettings;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.apache.commons.lang.time.DateUtils;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Date;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+public class RecipientRepositoryTest {
+
+	@Autowired
+	private RecipientRepository repository;
+
+	@Test
+	public void shouldFindByAccountName() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(true);
+		remind.setFrequency(Frequency.WEEKLY);
+		remind.setLastNotified(new Date(0));
+
+		NotificationSettings backup = new NotificationSettings();
+		backup.setActive(false);
+		backup.setFrequency(Frequency.MONTHLY);
+		backup.setLastNotified(new Date());
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.BACKUP, backup,
+				NotificationType.REMIND, remind
+		));
+
+		repository.save(recipient);
+
+		Recipient found = repository.findByAccountName(recipient.getAccountName());
+		assertEquals(recipient.getAccountName(), found.getAccountName());
+		assertEquals(recipient.getEmail(), found.getEmail());
+
+		assertEquals(recipient.getScheduledNotifications().get(NotificationType.BACKUP).getActive(),
+				found.getScheduledNotifications().get(NotificationType.BACKUP).getActive());
+		assertEquals(recipient.getScheduledNotifications().get(NotificationType.BACKUP).getFrequency(),
+				found.getScheduledNotifications().get(NotificationType.BACKUP).getFrequency());
+		assertEquals(recipient.getScheduledNotifications().get(NotificationType.BACKUP).getLastNotified(),
+				found.getScheduledNotifications().get(NotificationType.BACKUP).getLastNotified());
+
+		assertEquals(recipient.getScheduledNotifications().get(NotificationType.REMIND).getActive(),
+				found.getScheduledNotifications().get(NotificationType.REMIND).getActive());
+		assertEquals(recipient.getScheduledNotifications().get(NotificationType.REMIND).getFrequency(),
+				found.getScheduledNotifications().get(NotificationType.REMIND).getFrequency());
+		assertEquals(recipient.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified(),
+				found.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified());
+	}
+
+	@Test
+	public void shouldFindReadyForRemindWhenFrequencyIsWeeklyAndLastNotifiedWas8DaysAgo() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(true);
+		remind.setFrequency(Frequency.WEEKLY);
+		remind.setLastNotified(DateUtils.addDays(new Date(), -8));
+		remind.reschedule();
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.REMIND, remind
+		));
+
+		repository.save(recipient);
+
+		List<Recipient> found = repository.findReadyToNotify(NotificationType.REMIND, new Date(), null, null, 10);
+		assertFalse(found.isEmpty());
+	}
+
+	@Test
+	public void shouldNotFindReadyForRemindWhenFrequencyIsWeeklyAndLastNotifiedWasYesterday() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(true);
+		remind.setFrequency(Frequency.WEEKLY);
+		remind.setLastNotified(DateUtils.addDays(new Date(), -1));
+		remind.reschedule();
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.REMIND, remind
+		));
+
+		repository.save(recipient);
+
+		List<Recipient> found = repository.findReadyToNotify(NotificationType.REMIND, new Date(), null, null, 10);
+		assertTrue(found.isEmpty());
+	}
+
+	@Test
+	public void shouldNotFindReadyForRemindWhenNotificationIsNotActive() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(false);
+		remind.setFrequency(Frequency.WEEKLY);
+		remind.setLastNotified(DateUtils.addDays(new Date(), -30));
+		remind.reschedule();
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.REMIND, remind
+		));
+
+		repository.save(recipient);
+
+		List<Recipient> found = repository.findReadyToNotify(NotificationType.REMIND, new Date(), null, null, 10);
+		assertTrue(found.isEmpty());
+	}
+
+	@Test
+	public void shouldNotFindReadyForBackupWhenFrequencyIsQuaterly() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(true);
+		remind.setFrequency(Frequency.QUARTERLY);
+		remind.setLastNotified(DateUtils.addDays(new Date(), -91));
+		remind.reschedule();
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.BACKUP, remind
+		));
+
+		repository.save(recipient);
+
+		List<Recipient> found = repository.findReadyToNotify(NotificationType.BACKUP, new Date(), null, null, 10);
+		assertFalse(found.isEmpty());
+	}
+
+	@Test
+	public void shouldFindReadyToNotifyPageByPage() {
+
+		Date lastNotified = DateUtils.addDays(new Date(), -99);
+
+		saveRecipient("page-1", DateUtils.addDays(new Date(), -100));
+		saveRecipient("page-2", lastNotified);
+		saveRecipient("page-3", lastNotified);
+
+		Date moment = new Date();
+
+		List<Recipient> first = repository.findReadyToNotify(NotificationType.BACKUP, moment, null, null, 2);
+		assertEquals(2, first.size());
+		assertEquals("page-1", first.get(0).getAccountName());
+		assertEquals("page-2", first.get(1).getAccountName());
+
+		Recipient last = first.get(1);
+		List<Recipient> second = repository.findReadyToNotify(NotificationType.BACKUP, moment,
+				last.getScheduledNotifications().get(NotificationType.BACKUP).getNextDueAt(), last.getAccountName(), 2);
+		assertEquals("page-3", second.get(0).getAccountName());
+	}
+
+	@Test
+	public void shouldFindUnscheduled() {
+
+		NotificationSettings backup = new NotificationSettings();
+		backup.setActive(true);
+		backup.setFrequency(Frequency.MONTHLY);
+		backup.setLastNotified(new Date());
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("unscheduled");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.BACKUP, backup
+		));
+
+		repository.save(recipient);
+
+		assertTrue(repository.findUnscheduled(NotificationType.BACKUP, 100).stream()
+				.anyMatch(r -> r.getAccountName().equals("unscheduled")));
+
+		backup.reschedule();
+		repository.save(recipient);
+
+		assertFalse(repository.findUnscheduled(NotificationType.BACKUP, 100).stream()
+				.anyMatch(r -> r.getAccountName().equals("unscheduled")));
+	}
+
+	@Test
+	public void shouldUpdateScheduleOnly() {
+
+		saveRecipient("schedule", new Date(0));
+
+		Recipient recipient = repository.findByAccountName("schedule");
+		NotificationSettings backup = recipient.getScheduledNotifications().get(NotificationType.BACKUP);
+
+		backup.setLastNotified(new Date());
+		backup.reschedule();
+		backup.setActive(false);
+		recipient.setEmail("changed@test.com");
+
+		repository.updateSchedule(NotificationType.BACKUP, ImmutableList.of(recipient));
+
+		Recipient found = repository.findByAccountName("schedule");
+		NotificationSettings foundBackup = found.getScheduledNotifications().get(NotificationType.BACKUP);
+
+		assertEquals(backup.getLastNotified(), foundBackup.getLastNotified());
+		assertEquals(backup.getNextDueAt(), foundBackup.getNextDueAt());
+		assertTrue(foundBackup.getActive());
+		assertEquals("schedule@test.com", found.getEmail());
+	}
+
+	private void saveRecipient(String accountName, Date lastNotified) {
+
+		NotificationSettings backup = new NotificationSettings();
+		backup.setActive(true);
+		backup.setFrequency(Frequency.WEEKLY);
+		backup.setLastNotified(lastNotified);
+		backup.reschedule();
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName(accountName);
+		recipient.setEmail(accountName + "@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.BACKUP, backup
+		));
+
+		repository.save(recipient);
+	}
+}
+
+package com.piggymetrics.notification.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.notification.domain.Frequency;
+import com.piggymetrics.notification.domain.NotificationSettings;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import com.piggymetrics.notification.service.RecipientService;
+import com.sun.security.auth.UserPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.put;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class RecipientControllerTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@InjectMocks
+	private RecipientController recipientController;
+
+	@Mock
+	private RecipientService recipientService;
+
+	private MockMvc mockMvc;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		this.mockMvc = MockMvcBuilders.standaloneSetup(recipientController).build();
+	}
+
+	@Test
+	public void shouldSaveCurrentRecipientSettings() throws Exception {
+
+		Recipient recipient = getStubRecipient();
+		String json = mapper.writeValueAsString(recipient);
+
+		mockMvc.perform(put("/recipients/current").principal(new UserPrincipal(recipient.getAccountName())).contentType(MediaType.APPLICATION_JSON).content(json))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldGetCurrentRecipientSettings() throws Exception {
+
+		Recipient recipient = getStubRecipient();
+		when(recipientService.findByAccountName(recipient.getAccountName())).thenReturn(recipient);
+
+		mockMvc.perform(get("/recipients/current").principal(new UserPrincipal(recipient.getAccountName())))
+				.andExpect(jsonPath("$.accountName").value(recipient.getAccountName()))
+				.andExpect(status().isOk());
+	}
+
+	private Recipient getStubRecipient() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(true);
+		remind.setFrequency(Frequency.WEEKLY);
+		remind.setLastNotified(null);
+
+		NotificationSettings backup = new NotificationSettings();
+		backup.setActive(false);
+		backup.setFrequency(Frequency.MONTHLY);
+		backup.setLastNotified(null);
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.BACKUP, backup,
+				NotificationType.REMIND, remind
+		));
+
+		return recipient;
+	}
+}
+package com.piggymetrics.notification.client;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+
+import java.io.IOException;
+
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.inOrder;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class AccountBackupSourceTest {
+
+	@Mock
+	private AccountServiceClient client;
+
+	@Mock
+	private AccountBackupSource.RateLimit rateLimit;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+	}
+
+	@Test
+	public void shouldAcquireRateLimitRightBeforeRequestingAccount() throws Exception {
+
+		AccountBackupSource source = new AccountBackupSource(client, "test", rateLimit);
+		verify(rateLimit, never()).acquire();
+
+		when(client.getAccount("test")).thenThrow(new IllegalStateException());
+
+		try {
+			source.getInputStream();
+			fail();
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		InOrder order = inOrder(rateLimit, client);
+		order.verify(rateLimit).acquire();
+		order.verify(client).getAccount("test");
+	}
+
+	@Test(expected = IOException.class)
+	public void shouldNotRequestAccountWhenInterrupted() throws Exception {
+
+		AccountBackupSource source = new AccountBackupSource(client, "test", rateLimit);
+		doThrow(new InterruptedException()).when(rateLimit).acquire();
+
+		try {
+			source.getInputStream();
+		} finally {
+			Thread.interrupted();
+			verify(client, never()).getAccount("test");
+		}
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.notification.client.AccountBackupSource;
+import com.piggymetrics.notification.client.AccountServiceClient;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Map;
+import java.util.stream.Stream;
+
+import static org.mockito.ArgumentMatchers.anyCollection;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.argThat;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class NotificationServiceImplTest {
+
+	@InjectMocks
+	private NotificationServiceImpl notificationService;
+
+	@Mock
+	private RecipientService recipientService;
+
+	@Mock
+	private AccountServiceClient client;
+
+	@Mock
+	private EmailService emailService;
+
+	private NotificationDispatcher dispatcher;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		dispatcher = new NotificationDispatcher(2, 10, 0, 0, 3, 0);
+		ReflectionTestUtils.setField(notificationService, "dispatcher", dispatcher);
+	}
+
+	@After
+	public void teardown() throws InterruptedException {
+		dispatcher.close();
+	}
+
+	@Test
+	public void shouldSendBackupNotificationsEvenWhenErrorsOccursForSomeRecipients() throws IOException, MessagingException, InterruptedException {
+
+		Recipient withError = new Recipient();
+		withError.setAccountName("with-error");
+
+		Recipient withNoError = new Recipient();
+		withNoError.setAccountName("with-no-error");
+
+		when(recipientService.findReadyToNotify(NotificationType.BACKUP)).thenReturn(Stream.of(withNoError, withError));
+		when(emailService.send(eq(NotificationType.BACKUP), anyMap())).thenAnswer(invocation -> {
+			Map<Recipient, DataSource> attachments = invocation.getArgument(1);
+			return attachments.containsKey(withError)
+					? ImmutableMap.of(withError, new MessagingException())
+					: ImmutableMap.of();
+		});
+
+		notificationService.sendBackupNotifications();
+
+		verify(emailService).send(eq(NotificationType.BACKUP), argThat((Map<Recipient, DataSource> attachments) ->
+				attachments.size() == 2 && "with-no-error".equals(
+						((AccountBackupSource) attachments.get(withNoError)).getAccountName())));
+		verify(recipientService).markNotified(NotificationType.BACKUP, ImmutableList.of(withNoError));
+
+		verify(recipientService, never()).markNotified(eq(NotificationType.BACKUP),
+				argThat((Collection<Recipient> recipients) -> recipients.contains(withError)));
+	}
+
+	@Test
+	public void shouldSendRemindNotificationsEvenWhenErrorsOccursForSomeRecipients() throws IOException, MessagingException, InterruptedException {
+
+		final String attachment = "json";
+
+		Recipient withError = new Recipient();
+		withError.setAccountName("with-error");
+
+		Recipient withNoError = new Recipient();
+		withNoError.setAccountName("with-no-error");
+
+		when(recipientService.findReadyToNotify(NotificationType.REMIND)).thenReturn(Stream.of(withNoError, withError));
+		when(emailService.send(eq(NotificationType.REMIND), anyMap())).thenAnswer(invocation -> {
+			Map<Recipient, DataSource> attachments = invocation.getArgument(1);
+			return attachments.containsKey(withError)
+					? ImmutableMap.of(withError, new MessagingException())
+					: ImmutableMap.of();
+		});
+
+		notificationService.sendRemindNotifications();
+
+		verify(recipientService).markNotified(NotificationType.REMIND, ImmutableList.of(withNoError));
+
+		verify(recipientService, never()).markNotified(eq(NotificationType.REMIND),
+				argThat((Collection<Recipient> recipients) -> recipients.contains(withError)));
+	}
+
+	@Test
+	public void shouldNotSendNotificationAgainWhenFailedToMarkRecipientAsNotified() {
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+
+		when(recipientService.findReadyToNotify(NotificationType.REMIND)).thenReturn(Stream.of(recipient));
+		doThrow(new RuntimeException()).when(recipientService).markNotified(eq(NotificationType.REMIND), anyCollection());
+
+		notificationService.sendRemindNotifications();
+
+		verify(emailService, times(1)).send(eq(NotificationType.REMIND), anyMap());
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.piggymetrics.notification.domain.Frequency;
+import com.piggymetrics.notification.domain.NotificationSettings;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import com.piggymetrics.notification.repository.RecipientRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Date;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyInt;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class RecipientServiceImplTest {
+
+	@InjectMocks
+	private RecipientServiceImpl recipientService;
+
+	@Mock
+	private RecipientRepository repository;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		ReflectionTestUtils.setField(recipientService, "pageSize", 2);
+	}
+
+	@Test
+	public void shouldFindByAccountName() {
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+
+		when(repository.findByAccountName(recipient.getAccountName())).thenReturn(recipient);
+		Recipient found = recipientService.findByAccountName(recipient.getAccountName());
+
+		assertEquals(recipient, found);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailToFindRecipientWhenAccountNameIsEmpty() {
+		recipientService.findByAccountName("");
+	}
+
+	@Test
+	public void shouldSaveRecipient() {
+
+		NotificationSettings remind = new NotificationSettings();
+		remind.setActive(true);
+		remind.setFrequency(Frequency.WEEKLY);
+		remind.setLastNotified(null);
+
+		NotificationSettings backup = new NotificationSettings();
+		backup.setActive(false);
+		backup.setFrequency(Frequency.MONTHLY);
+		backup.setLastNotified(new Date());
+
+		Recipient recipient = new Recipient();
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.BACKUP, backup,
+				NotificationType.REMIND, remind
+		));
+
+		Recipient saved = recipientService.save("test", recipient);
+
+		verify(repository).save(recipient);
+		assertNotNull(saved.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified());
+		assertNotNull(saved.getScheduledNotifications().get(NotificationType.REMIND).getNextDueAt());
+		assertNotNull(saved.getScheduledNotifications().get(NotificationType.BACKUP).getNextDueAt());
+		assertEquals("test", saved.getAccountName());
+	}
+
+	@Test
+	public void shouldFindReadyToNotifyWhenNotificationTypeIsBackup() {
+		final List<Recipient> recipients = ImmutableList.of(createRecipient("test", NotificationType.BACKUP));
+		when(repository.findReadyToNotify(eq(NotificationType.BACKUP), any(Date.class), isNull(), isNull(), eq(2)))
+				.thenReturn(recipients);
+
+		List<Recipient> found = recipientService.findReadyToNotify(NotificationType.BACKUP).collect(Collectors.toList());
+		assertEquals(recipients, found);
+	}
+
+	@Test
+	public void shouldFindReadyToNotifyWhenNotificationTypeIsRemind() {
+		final List<Recipient> recipients = ImmutableList.of(createRecipient("test", NotificationType.REMIND));
+		when(repository.findReadyToNotify(eq(NotificationType.REMIND), any(Date.class), isNull(), isNull(), eq(2)))
+				.thenReturn(recipients);
+
+		List<Recipient> found = recipientService.findReadyToNotify(NotificationType.REMIND).collect(Collectors.toList());
+		assertEquals(recipients, found);
+	}
+
+	@Test
+	public void shouldRequestNextPageAfterLastRecipientOfPreviousPage() {
+
+		Recipient first = createRecipient("first", NotificationType.REMIND);
+		Recipient second = createRecipient("second", NotificationType.REMIND);
+		Recipient third = createRecipient("third", NotificationType.REMIND);
+
+		Date secondDueAt = second.getScheduledNotifications().get(NotificationType.REMIND).getNextDueAt();
+
+		when(repository.findReadyToNotify(eq(NotificationType.REMIND), any(Date.class), isNull(), isNull(), eq(2)))
+				.thenReturn(ImmutableList.of(first, second));
+		when(repository.findReadyToNotify(eq(NotificationType.REMIND), any(Date.class), eq(secondDueAt), eq("second"), eq(2)))
+				.thenReturn(ImmutableList.of(third));
+
+		List<Recipient> found = recipientService.findReadyToNotify(NotificationType.REMIND).collect(Collectors.toList());
+
+		assertEquals(ImmutableList.of(first, second, third), found);
+		verify(repository, times(2)).findReadyToNotify(eq(NotificationType.REMIND), any(Date.class), any(), any(), anyInt());
+	}
+
+	@Test
+	public void shouldNotQueryRepositoryUntilStreamIsConsumed() {
+		recipientService.findReadyToNotify(NotificationType.REMIND);
+		verify(repository, never()).findReadyToNotify(any(), any(), any(), any(), anyInt());
+	}
+
+	@Test
+	public void shouldMarkAsNotified() {
+
+		NotificationSettings remind = new NotificationSettings();
 		remind.setActive(true);
 		remind.setFrequency(Frequency.WEEKLY);
 		remind.setLastNotified(null);
 
-		NotificationSettings backup = new NotificationSettings();
-		backup.setActive(false);
-		backup.setFrequency(Frequency.MONTHLY);
-		backup.setLastNotified(null);
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(
+				NotificationType.REMIND, remind
+		));
+
+		List<Recipient> recipients = ImmutableList.of(recipient);
+
+		recipientService.markNotified(NotificationType.REMIND, recipients);
+		assertNotNull(recipient.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified());
+		assertTrue(recipient.getScheduledNotifications().get(NotificationType.REMIND).getNextDueAt().after(new Date()));
+		verify(repository).updateSchedule(NotificationType.REMIND, recipients);
+		verify(repository, never()).save(recipient);
+	}
+
+	private Recipient createRecipient(String accountName, NotificationType type) {
+
+		NotificationSettings settings = new NotificationSettings();
+		settings.setActive(true);
+		settings.setFrequency(Frequency.WEEKLY);
+		settings.setLastNotified(new Date(0));
+		settings.reschedule();
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName(accountName);
+		recipient.setEmail(accountName + "@test.com");
+		recipient.setScheduledNotifications(ImmutableMap.of(type, settings));
+
+		return recipient;
+	}
+}
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Captor;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.core.env.Environment;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Session;
+import javax.mail.internet.MimeMessage;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Properties;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class EmailServiceImplTest {
+
+	@InjectMocks
+	private EmailServiceImpl emailService;
+
+	@Mock
+	private JavaMailSender mailSender;
+
+	@Mock
+	private Environment env;
+
+	@Captor
+	private ArgumentCaptor<MimeMessage> captor;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		when(mailSender.createMimeMessage())
+				.thenAnswer(invocation -> new MimeMessage(Session.getDefaultInstance(new Properties())));
+	}
+
+	@Test
+	public void shouldSendBackupEmail() throws MessagingException, IOException {
+
+		final String subject = "subject";
+		final String text = "text";
+		final String attachment = "attachment.json";
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+
+		when(env.getProperty(NotificationType.BACKUP.getSubject())).thenReturn(subject);
+		when(env.getProperty(NotificationType.BACKUP.getText())).thenReturn(text);
+		when(env.getProperty(NotificationType.BACKUP.getAttachment())).thenReturn(attachment);
+
+		emailService.send(NotificationType.BACKUP, recipient, new ByteArrayDataSource("{\"name\":\"test\"", "application/json"));
+
+		verify(mailSender).send(captor.capture());
+
+		MimeMessage message = captor.getValue();
+		assertEquals(subject, message.getSubject());
+		// TODO check other fields
+	}
+
+	@Test
+	public void shouldSendRemindEmail() throws MessagingException, IOException {
+
+		final String subject = "subject";
+		final String text = "text";
+
+		Recipient recipient = new Recipient();
+		recipient.setAccountName("test");
+		recipient.setEmail("test@test.com");
+
+		when(env.getProperty(NotificationType.REMIND.getSubject())).thenReturn(subject);
+		when(env.getProperty(NotificationType.REMIND.getText())).thenReturn(text);
+
+		emailService.send(NotificationType.REMIND, recipient, null);
+
+		verify(mailSender).send(captor.capture());
+
+		MimeMessage message = captor.getValue();
+		assertEquals(subject, message.getSubject());
+		// TODO check other fields
+	}
+
+	@Test
+	public void shouldSendBatchWithinSingleCall() throws MessagingException {
+
+		when(env.getProperty(NotificationType.REMIND.getSubject())).thenReturn("subject");
+		when(env.getProperty(NotificationType.REMIND.getText())).thenReturn("hello, {0}");
+
+		Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+		attachments.put(createRecipient("first"), null);
+		attachments.put(createRecipient("second"), null);
+
+		Map<Recipient, Exception> failures = emailService.send(NotificationType.REMIND, attachments);
+
+		verify(mailSender, times(1)).send(captor.capture(), captor.capture());
+
+		assertTrue(failures.isEmpty());
+		assertEquals(2, captor.getAllValues().size());
+		assertEquals("subject", captor.getAllValues().get(1).getSubject());
+	}
+
+	@Test
+	public void shouldReportUndeliveredMessages() {
+
+		when(env.getProperty(NotificationType.REMIND.getSubject())).thenReturn("subject");
+		when(env.getProperty(NotificationType.REMIND.getText())).thenReturn("hello, {0}");
+
+		Recipient delivered = createRecipient("delivered");
+		Recipient undelivered = createRecipient("undelivered");
+
+		Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+		attachments.put(delivered, null);
+		attachments.put(undelivered, null);
+
+		MessagingException cause = new MessagingException("rejected");
+
+		doAnswer(invocation -> {
+			Map<Object, Exception> failed = new LinkedHashMap<>();
+			failed.put(invocation.getArgument(1), cause);
+			throw new MailSendException(failed);
+		}).when(mailSender).send(any(MimeMessage.class), any(MimeMessage.class));
+
+		Map<Recipient, Exception> failures = emailService.send(NotificationType.REMIND, attachments);
+
+		assertEquals(1, failures.size());
+		assertEquals(cause, failures.get(undelivered));
+	}
+
+	@Test
+	public void shouldRereadTemplatesWhenRefreshed() throws MessagingException, IOException {
+
+		Recipient recipient = createRecipient("test");
+
+		when(env.getProperty(NotificationType.REMIND.getSubject())).thenReturn("old", "new");
+		when(env.getProperty(NotificationType.REMIND.getText())).thenReturn("text");
+
+		emailService.send(NotificationType.REMIND, recipient, null);
+		emailService.send(NotificationType.REMIND, recipient, null);
+		emailService.clearTemplates();
+		emailService.send(NotificationType.REMIND, recipient, null);
+
+		verify(mailSender, times(3)).send(captor.capture());
+
+		assertEquals("old", captor.getAllValues().get(1).getSubject());
+		assertEquals("new", captor.getAllValues().get(2).getSubject());
+	}
+
+	private Recipient createRecipient(String accountName) {
+		Recipient recipient = new Recipient();
+		recipient.setAccountName(accountName);
+		recipient.setEmail(accountName + "@test.com");
+		return recipient;
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+import org.springframework.mock.env.MockEnvironment;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
+
+import javax.activation.DataSource;
+import javax.mail.BodyPart;
+import javax.mail.internet.MimeMessage;
+import javax.mail.internet.MimeMultipart;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Sends emails to a local SMTP stand-in
+ */
+public class EmailServiceImplSmtpTest {
+
+	private GreenMail greenMail;
+
+	private EmailServiceImpl emailService;
+
+	@Before
+	public void setup() {
+
+		greenMail = new GreenMail(ServerSetupTest.SMTP);
+		greenMail.start();
+
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost("localhost");
+		mailSender.setPort(ServerSetupTest.SMTP.getPort());
+
+		MockEnvironment env = new MockEnvironment()
+				.withProperty(NotificationType.BACKUP.getSubject(), "backup")
+				.withProperty(NotificationType.BACKUP.getText(), "hello, {0}")
+				.withProperty(NotificationType.BACKUP.getAttachment(), "backup.json");
+
+		emailService = new EmailServiceImpl();
+		ReflectionTestUtils.setField(emailService, "mailSender", mailSender);
+		ReflectionTestUtils.setField(emailService, "env", env);
+	}
+
+	@After
+	public void teardown() {
+		greenMail.stop();
+	}
+
+	@Test
+	public void shouldDeliverBatch() throws Exception {
+
+		Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+		for (int i = 0; i < 50; i++) {
+			attachments.put(createRecipient("test" + i, "test" + i + "@test.com"), json("{}"));
+		}
+
+		Map<Recipient, Exception> failures = emailService.send(NotificationType.BACKUP, attachments);
+
+		assertTrue(failures.isEmpty());
+
+		MimeMessage[] received = greenMail.getReceivedMessages();
+		assertEquals(50, received.length);
+		assertEquals("backup", received[0].getSubject());
+	}
+
+	@Test
+	public void shouldDeliverBatchEvenWhenSomeMessagesAreInvalid() throws IOException {
+
+		Recipient invalid = createRecipient("invalid", "invalid@");
+
+		Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+		attachments.put(createRecipient("first", "first@test.com"), json("{}"));
+		attachments.put(invalid, json("{}"));
+		attachments.put(createRecipient("second", "second@test.com"), json("{}"));
+
+		Map<Recipient, Exception> failures = emailService.send(NotificationType.BACKUP, attachments);
+
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey(invalid));
+		assertEquals(2, greenMail.getReceivedMessages().length);
+	}
+
+	@Test
+	public void shouldDeliverBatchEvenWhenSomeAttachmentsFail() throws IOException {
+
+		Recipient failing = createRecipient("failing", "failing@test.com");
+
+		Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+		attachments.put(createRecipient("first", "first@test.com"), json("{}"));
+		attachments.put(failing, new FailingDataSource());
+		attachments.put(createRecipient("second", "second@test.com"), json("{}"));
+
+		Map<Recipient, Exception> failures = emailService.send(NotificationType.BACKUP, attachments);
+
+		assertEquals(1, failures.size());
+		assertTrue(failures.containsKey(failing));
+		assertEquals(2, greenMail.getReceivedMessages().length);
+	}
+
+	@Test
+	public void shouldReadAttachmentOnceAndCompressIt() throws Exception {
+
+		ReflectionTestUtils.setField(emailService, "compressAttachments", true);
+
+		byte[] account = new byte[256 * 1024];
+		new Random(42).nextBytes(account);
+
+		AtomicInteger opened = new AtomicInteger();
+		DataSource source = new ByteArrayDataSource(account, "application/json") {
+			@Override
+			public InputStream getInputStream() throws IOException {
+				opened.incrementAndGet();
+				return super.getInputStream();
+			}
+		};
+
+		Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+		attachments.put(createRecipient("test", "test@test.com"), source);
+
+		assertTrue(emailService.send(NotificationType.BACKUP, attachments).isEmpty());
+		assertEquals(1, opened.get());
+
+		MimeMultipart content = (MimeMultipart) greenMail.getReceivedMessages()[0].getContent();
+		BodyPart attachment = content.getBodyPart(content.getCount() - 1);
+
+		assertEquals("backup.json.gz", attachment.getFileName());
+		assertArrayEquals(account, StreamUtils.copyToByteArray(new GZIPInputStream(attachment.getInputStream())));
+	}
+
+	private DataSource json(String content) throws IOException {
+		return new ByteArrayDataSource(content, "application/json");
+	}
+
+	private static class FailingDataSource extends ByteArrayDataSource {
+
+		FailingDataSource() {
+			super(new byte[0], "application/json");
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			throw new IOException("account-service is unavailable");
+		}
+	}
+
+	private Recipient createRecipient(String accountName, String email) {
+		Recipient recipient = new Recipient();
+		recipient.setAccountName(accountName);
+		recipient.setEmail(email);
+		return recipient;
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import org.junit.Test;
+import org.springframework.util.StreamUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Random;
+import java.util.zip.GZIPInputStream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertTrue;
+
+public class GzipCompressingInputStreamTest {
+
+	@Test
+	public void shouldCompressToGzipFormat() throws IOException {
+
+		byte[] data = new byte[1024 * 1024];
+		new Random(42).nextBytes(data);
+
+		assertArrayEquals(data, roundTrip(data));
+	}
+
+	@Test
+	public void shouldCompressEmptyStream() throws IOException {
+		assertArrayEquals(new byte[0], roundTrip(new byte[0]));
+	}
+
+	@Test
+	public void shouldCompressRepeatingData() throws IOException {
+
+		byte[] data = new byte[100_000];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) ('a' + i % 10);
+		}
+
+		try (InputStream compressed = new GzipCompressingInputStream(new ByteArrayInputStream(data))) {
+			assertTrue(StreamUtils.copyToByteArray(compressed).length < data.length / 10);
+		}
+
+		assertArrayEquals(data, roundTrip(data));
+	}
+
+	private byte[] roundTrip(byte[] data) throws IOException {
+		try (InputStream compressed = new GzipCompressingInputStream(new ByteArrayInputStream(data));
+			 InputStream decompressed = new GZIPInputStream(compressed)) {
+			return StreamUtils.copyToByteArray(decompressed);
+		}
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.google.common.collect.ImmutableList;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationDispatcherTest {
+
+	private NotificationDispatcher dispatcher;
+
+	@After
+	public void teardown() throws InterruptedException {
+		if (dispatcher != null) {
+			dispatcher.close();
+		}
+	}
+
+	@Test
+	public void shouldSendToAllRecipientsInBatchesBeforeReturning() {
+
+		dispatcher = new NotificationDispatcher(4, 3, 0, 0, 1, 0);
+		AtomicInteger sent = new AtomicInteger();
+		List<Integer> batchSizes = new CopyOnWriteArrayList<>();
+
+		DispatchReport report = dispatcher.dispatch(NotificationType.REMIND, recipients(20), batch -> {
+			Thread.sleep(5);
+			batchSizes.add(batch.size());
+			sent.addAndGet(batch.size());
+			return Collections.emptyList();
+		});
+
+		assertEquals(20, sent.get());
+		assertEquals(7, batchSizes.size());
+		assertTrue(batchSizes.stream().allMatch(size -> size <= 3));
+		assertEquals(20, report.getQueued());
+		assertEquals(20, report.getSent());
+		assertEquals(0, report.getFailed());
+	}
+
+	@Test
+	public void shouldNotExceedConcurrency() {
+
+		dispatcher = new NotificationDispatcher(3, 1, 0, 0, 1, 0);
+		AtomicInteger inFlight = new AtomicInteger();
+		AtomicInteger maxInFlight = new AtomicInteger();
+
+		dispatcher.dispatch(NotificationType.REMIND, recipients(30), batch -> {
+			maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+			Thread.sleep(5);
+			inFlight.decrementAndGet();
+			return Collections.emptyList();
+		});
+
+		assertTrue(maxInFlight.get() <= 3);
+	}
+
+	@Test
+	public void shouldRetryFailedBatch() {
+
+		dispatcher = new NotificationDispatcher(1, 10, 0, 0, 3, 1);
+		AtomicInteger attempts = new AtomicInteger();
+
+		DispatchReport report = dispatcher.dispatch(NotificationType.REMIND, recipients(2), batch -> {
+			if (attempts.incrementAndGet() < 3) {
+				throw new IllegalStateException();
+			}
+			return Collections.emptyList();
+		});
+
+		assertEquals(3, attempts.get());
+		assertEquals(2, report.getSent());
+		assertEquals(0, report.getFailed());
+	}
+
+	@Test
+	public void shouldRetryOnlyFailedRecipientsOfBatch() {
+
+		dispatcher = new NotificationDispatcher(1, 10, 0, 0, 3, 1);
+		List<List<String>> attempts = new CopyOnWriteArrayList<>();
+
+		DispatchReport report = dispatcher.dispatch(NotificationType.REMIND, recipients(3), batch -> {
+			attempts.add(batch.stream().map(Recipient::getAccountName).collect(Collectors.toList()));
+			List<Recipient> failed = new ArrayList<>();
+			batch.stream().filter(r -> r.getAccountName().equals("test-1") && attempts.size() == 1).forEach(failed::add);
+			return failed;
+		});
+
+		assertEquals(ImmutableList.of(
+				ImmutableList.of("test-0", "test-1", "test-2"),
+				ImmutableList.of("test-1")), attempts);
+		assertEquals(3, report.getSent());
+		assertEquals(0, report.getFailed());
+	}
+
+	@Test
+	public void shouldGiveUpAfterMaxAttempts() {
+
+		dispatcher = new NotificationDispatcher(1, 10, 0, 0, 2, 1);
+		AtomicInteger attempts = new AtomicInteger();
+
+		DispatchReport report = dispatcher.dispatch(NotificationType.REMIND, recipients(1), batch -> {
+			attempts.incrementAndGet();
+			throw new IllegalStateException();
+		});
+
+		assertEquals(2, attempts.get());
+		assertEquals(0, report.getSent());
+		assertEquals(1, report.getFailed());
+	}
+
+	@Test
+	public void shouldSkipRunWhilePreviousOneIsInProgress() throws Exception {
+
+		dispatcher = new NotificationDispatcher(1, 10, 0, 0, 1, 0);
+
+		CountDownLatch started = new CountDownLatch(1);
+		CountDownLatch release = new CountDownLatch(1);
+
+		ExecutorService executor = Executors.newSingleThreadExecutor();
+		Future<DispatchReport> first = executor.submit(() -> dispatcher.dispatch(NotificationType.BACKUP, recipients(1), batch -> {
+			started.countDown();
+			release.await();
+			return Collections.emptyList();
+		}));
+
+		assertTrue(started.await(1, TimeUnit.SECONDS));
+
+		DispatchReport second = dispatcher.dispatch(NotificationType.BACKUP, recipients(1), batch -> Collections.emptyList());
+
+		release.countDown();
+
+		assertTrue(second.isSkipped());
+		assertFalse(first.get(1, TimeUnit.SECONDS).isSkipped());
+		assertEquals(1, first.get().getSent());
+
+		executor.shutdown();
+	}
+
+	@Test
+	public void shouldReportLatencyOfItsOwnRunOnly() {
+
+		dispatcher = new NotificationDispatcher(1, 1, 0, 0, 1, 0);
+
+		DispatchReport slow = dispatcher.dispatch(NotificationType.REMIND, recipients(1), batch -> {
+			Thread.sleep(200);
+			return Collections.emptyList();
+		});
+
+		DispatchReport fast = dispatcher.dispatch(NotificationType.REMIND, recipients(5),
+				batch -> Collections.emptyList());
+
+		assertTrue(slow.getP99() >= 200);
+		assertTrue(fast.getP99() < 200);
+	}
+
+	@Test
+	public void shouldLimitRate() throws InterruptedException {
+
+		TokenBucket bucket = new TokenBucket(100, 1);
+
+		long start = System.nanoTime();
+		for (int i = 0; i < 11; i++) {
+			bucket.acquire();
+		}
+
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+	}
+
+	private Stream<Recipient> recipients(int count) {
+		return IntStream.range(0, count).mapToObj(i -> {
+			Recipient recipient = new Recipient();
+			recipient.setAccountName("test-" + i);
+			return recipient;
+		});
+	}
+}
+
+package com.piggymetrics.notification;
+
+import com.piggymetrics.notification.repository.converter.FrequencyReaderConverter;
+import com.piggymetrics.notification.repository.converter.FrequencyWriterConverter;
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.cloud.openfeign.EnableFeignClients;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.data.mongodb.core.convert.CustomConversions;
+import org.springframework.scheduling.annotation.EnableScheduling;
+import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
+
+import java.util.Arrays;
+
+@SpringBootApplication
+@EnableDiscoveryClient
+@EnableOAuth2Client
+@EnableFeignClients
+@EnableGlobalMethodSecurity(prePostEnabled = true)
+@EnableScheduling
+public class NotificationServiceApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(NotificationServiceApplication.class, args);
+	}
+
+	@Configuration
+	static class CustomConversionsConfig {
+
+		@Bean
+		public CustomConversions customConversions() {
+			return new CustomConversions(Arrays.asList(new FrequencyReaderConverter(),
+					new FrequencyWriterConverter()));
+		}
+	}
+}
+
+package com.piggymetrics.notification.repository;
+
+import com.piggymetrics.notification.domain.Recipient;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface RecipientRepository extends CrudRepository<Recipient, String>, RecipientRepositoryCustom {
+
+	Recipient findByAccountName(String name);
+
+}
+
+package com.piggymetrics.notification.repository;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+public interface RecipientRepositoryCustom {
+
+	/**
+	 * Finds a page of recipients with active notification of given type,
+	 * which has been due before given moment. Recipients are ordered by
+	 * {@code nextDueAt} and account name, so pages could be requested
+	 * after the last recipient of the previous one.
+	 *
+	 * @param type notification type
+	 * @param moment upper bound (exclusive) of {@code nextDueAt}
+	 * @param afterDueAt {@code nextDueAt} of the last recipient of the previous page, or {@code null} for the first page
+	 * @param afterAccountName account name of the last recipient of the previous page
+	 * @param limit page size
+	 * @return recipients to notify
+	 */
+	List<Recipient> findReadyToNotify(NotificationType type, Date moment,
+									  Date afterDueAt, String afterAccountName, int limit);
+
+	/**
+	 * Finds recipients with notification settings of given type,
+	 * which has no {@code nextDueAt} computed yet (i.e. saved
+	 * before it has been introduced)
+	 *
+	 * @param type notification type
+	 * @param limit page size
+	 * @return recipients to reschedule
+	 */
+	List<Recipient> findUnscheduled(NotificationType type, int limit);
+
+	/**
+	 * Writes {@code lastNotified} and {@code nextDueAt} of given notification
+	 * type for each recipient, leaving the rest of the document as is
+	 *
+	 * @param type notification type
+	 * @param recipients recipients with updated settings
+	 */
+	void updateSchedule(NotificationType type, Collection<Recipient> recipients);
+}
+
+package com.piggymetrics.notification.repository;
+
+import com.piggymetrics.notification.domain.NotificationSettings;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.data.domain.Sort;
+import org.springframework.data.mongodb.core.BulkOperations;
+import org.springframework.data.mongodb.core.MongoTemplate;
+import org.springframework.data.mongodb.core.query.Criteria;
+import org.springframework.data.mongodb.core.query.Update;
+
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+import static org.springframework.data.mongodb.core.query.Criteria.where;
+import static org.springframework.data.mongodb.core.query.Query.query;
+
+public class RecipientRepositoryImpl implements RecipientRepositoryCustom {
+
+	@Autowired
+	private MongoTemplate mongoTemplate;
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Recipient> findReadyToNotify(NotificationType type, Date moment,
+											 Date afterDueAt, String afterAccountName, int limit) {
+
+		String active = settingsPath(type) + ".active";
+		String nextDueAt = settingsPath(type) + ".nextDueAt";
+
+		Criteria criteria = where(active).is(true);
+
+		if (afterDueAt == null) {
+			criteria.and(nextDueAt).lt(moment);
+		} else {
+			criteria.orOperator(
+					where(nextDueAt).gt(afterDueAt).lt(moment),
+					where(nextDueAt).is(afterDueAt).and("_id").gt(afterAccountName));
+		}
+
+		return mongoTemplate.find(query(criteria)
+				.with(Sort.by(nextDueAt, "_id"))
+				.limit(limit), Recipient.class);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public List<Recipient> findUnscheduled(NotificationType type, int limit) {
+		return mongoTemplate.find(query(where(settingsPath(type)).exists(true)
+				.and(settingsPath(type) + ".nextDueAt").exists(false))
+				.limit(limit), Recipient.class);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void updateSchedule(NotificationType type, Collection<Recipient> recipients) {
+
+		if (recipients.isEmpty()) {
+			return;
+		}
+
+		BulkOperations operations = mongoTemplate.bulkOps(BulkOperations.BulkMode.UNORDERED, Recipient.class);
+
+		for (Recipient recipient : recipients) {
+
+			NotificationSettings settings = recipient.getScheduledNotifications().get(type);
+
+			operations.updateOne(query(where("_id").is(recipient.getAccountName())), new Update()
+					.set(settingsPath(type) + ".lastNotified", settings.getLastNotified())
+					.set(settingsPath(type) + ".nextDueAt", settings.getNextDueAt()));
+		}
+
+		operations.execute();
+	}
+
+	private String settingsPath(NotificationType type) {
+		return "scheduledNotifications." + type.name();
+	}
+}
+
+package com.piggymetrics.notification.repository.converter;
+
+import com.piggymetrics.notification.domain.Frequency;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.stereotype.Component;
+
+@Component
+public class FrequencyReaderConverter implements Converter<Integer, Frequency> {
+
+	@Override
+	public Frequency convert(Integer days) {
+		return Frequency.withDays(days);
+	}
+}
+
+package com.piggymetrics.notification.repository.converter;
+
+import com.piggymetrics.notification.domain.Frequency;
+import org.springframework.core.convert.converter.Converter;
+import org.springframework.stereotype.Component;
+
+@Component
+public class FrequencyWriterConverter implements Converter<Frequency, Integer> {
+
+	@Override
+	public Integer convert(Frequency frequency) {
+		return frequency.getDays();
+	}
+}
+
+package com.piggymetrics.notification.config;
+
+import com.piggymetrics.notification.service.security.CachingTokenServices;
+import com.piggymetrics.notification.service.security.CustomUserInfoTokenServices;
+import com.piggymetrics.notification.service.security.SignedTokenServices;
+import feign.RequestInterceptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.ResourceServerProperties;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.cloud.security.oauth2.client.feign.OAuth2FeignRequestInterceptor;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
+import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestTemplate;
+
+/**
+ * @author cdov
+ */
+@Configuration
+@EnableResourceServer
+public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
+
+    @Autowired
+    private ResourceServerProperties sso;
+
+    @Bean
+    @ConfigurationProperties(prefix = "security.oauth2.client")
+    public ClientCredentialsResourceDetails clientCredentialsResourceDetails() {
+        return new ClientCredentialsResourceDetails();
+    }
+    @Bean
+    public RequestInterceptor oauth2FeignRequestInterceptor(){
+        return new OAuth2FeignRequestInterceptor(new DefaultOAuth2ClientContext(), clientCredentialsResourceDetails());
+    }
+
+    @Bean
+    public OAuth2RestTemplate clientCredentialsRestTemplate() {
+        return new OAuth2RestTemplate(clientCredentialsResourceDetails());
+    }
+
+    @Bean
+    public ResourceServerTokenServices tokenServices(@Value("${security.oauth2.token.mode:opaque}") String tokenMode,
+                                                     @Value("${security.oauth2.resource.jwt.key-refresh-interval:60000}") long keyRefreshInterval,
+                                                     @Value("${security.oauth2.resource.cache.ttl:60000}") long ttl,
+                                                     @Value("${security.oauth2.resource.cache.negative-ttl:10000}") long negativeTtl,
+                                                     @Value("${security.oauth2.resource.cache.max-size:10000}") int maxSize) {
+        if ("jwt".equals(tokenMode)) {
+            return new SignedTokenServices(sso.getJwt().getKeyUri(), new RestTemplate(), keyRefreshInterval);
+        }
+        return new CachingTokenServices(new CustomUserInfoTokenServices(sso.getUserInfoUri(), sso.getClientId()),
+                ttl, negativeTtl, maxSize);
+    }
+}
+
+package com.piggymetrics.notification.controller;
+
+import com.piggymetrics.notification.domain.Recipient;
+import com.piggymetrics.notification.service.RecipientService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
+
+import javax.validation.Valid;
+import java.security.Principal;
+
+@RestController
+@RequestMapping("/recipients")
+public class RecipientController {
+
+	@Autowired
+	private RecipientService recipientService;
+
+	@RequestMapping(path = "/current", method = RequestMethod.GET)
+	public Object getCurrentNotificationsSettings(Principal principal) {
+		return recipientService.findByAccountName(principal.getName());
+	}
+
+	@RequestMapping(path = "/current", method = RequestMethod.PUT)
+	public Object saveCurrentNotificationsSettings(Principal principal, @Valid @RequestBody Recipient recipient) {
+		return recipientService.save(principal.getName(), recipient);
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cloud.context.config.annotation.RefreshScope;
+import org.springframework.cloud.context.scope.refresh.RefreshScopeRefreshedEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.core.env.Environment;
+import org.springframework.mail.MailException;
+import org.springframework.mail.MailSendException;
+import org.springframework.mail.javamail.JavaMailSender;
+import org.springframework.mail.javamail.MimeMessageHelper;
+import org.springframework.stereotype.Service;
+
+import javax.activation.DataHandler;
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.Part;
+import javax.mail.internet.MimeBodyPart;
+import javax.mail.internet.MimeMessage;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.text.MessageFormat;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+@Service
+@RefreshScope
+public class EmailServiceImpl implements EmailService {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private JavaMailSender mailSender;
+
+	@Autowired
+	private Environment env;
+
+	@Value("${notification.email.compress-attachments:false}")
+	private boolean compressAttachments;
+
+	private final Map<NotificationType, Template> templates = new ConcurrentHashMap<>();
+
+	@Override
+	public void send(NotificationType type, Recipient recipient, DataSource attachment) throws MessagingException, IOException {
+
+		mailSender.send(createMessage(type, recipient, attachment));
+
+		log.info("{} email notification has been send to {}", type, recipient.getEmail());
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Map<Recipient, Exception> send(NotificationType type, Map<Recipient, DataSource> attachments) {
+
+		Map<Recipient, Exception> failures = new HashMap<>();
+		Map<MimeMessage, Recipient> messages = new LinkedHashMap<>();
+
+		attachments.forEach((recipient, attachment) -> {
+			try {
+				messages.put(createMessage(type, recipient, attachment), recipient);
+			} catch (MessagingException | RuntimeException e) {
+				failures.put(recipient, e);
+			}
+		});
+
+		if (!messages.isEmpty()) {
+			try {
+				mailSender.send(messages.keySet().toArray(new MimeMessage[0]));
+			} catch (MailSendException e) {
+				if (e.getFailedMessages().isEmpty()) {
+					messages.values().forEach(recipient -> failures.put(recipient, e));
+				}
+				e.getFailedMessages().forEach((message, cause) -> failures.put(messages.get(message), cause));
+			} catch (MailException e) {
+				messages.values().forEach(recipient -> failures.put(recipient, e));
+			}
+		}
+
+		failures.forEach((recipient, cause) ->
+				log.warn("failed to send {} email notification to {}: {}", type, recipient.getEmail(), cause.getMessage()));
+
+		log.info("{} {} email notifications has been sent, {} failed",
+				attachments.size() - failures.size(), type, failures.size());
+
+		return failures;
+	}
+
+	/**
+	 * Templates are re-read from the environment, once its
+	 * properties have been refreshed
+	 */
+	@EventListener(RefreshScopeRefreshedEvent.class)
+	public void clearTemplates() {
+		templates.clear();
+	}
+
+	private MimeMessage createMessage(NotificationType type, Recipient recipient, DataSource attachment) throws MessagingException {
+
+		Template template = templates.computeIfAbsent(type, Template::new);
+
+		MimeMessage message = mailSender.createMimeMessage();
+
+		MimeMessageHelper helper = new MimeMessageHelper(message, true);
+		helper.setTo(recipient.getEmail());
+		helper.setSubject(template.subject);
+		helper.setText(template.text(recipient.getAccountName()));
+
+		if (attachment != null) {
+			helper.getRootMimeMultipart().addBodyPart(createAttachment(template, attachment));
+		}
+
+		return message;
+	}
+
+	private MimeBodyPart createAttachment(Template template, DataSource source) throws MessagingException {
+
+		MimeBodyPart part = new MimeBodyPart();
+
+		if (compressAttachments) {
+			part.setDataHandler(new DataHandler(new GzipDataSource(source)));
+			part.setFileName(template.attachment + ".gz");
+		} else {
+			part.setDataHandler(new DataHandler(source));
+			part.setFileName(template.attachment);
+		}
+
+		part.setDisposition(Part.ATTACHMENT);
+
+		// otherwise JavaMail reads the whole source once more, just to choose the encoding
+		part.setHeader("Content-Transfer-Encoding", "base64");
+
+		return part;
+	}
+
+	/**
+	 * Subject and pre-parsed text of a notification type
+	 */
+	private class Template {
+
+		private final String subject;
+
+		private final MessageFormat text;
+
+		private final String attachment;
+
+		Template(NotificationType type) {
+			this.subject = env.getProperty(type.getSubject());
+			this.text = new MessageFormat(env.getProperty(type.getText()));
+			this.attachment = type.getAttachment() == null ? null : env.getProperty(type.getAttachment());
+		}
+
+		/**
+		 * {@link MessageFormat} is not thread-safe, so each call formats a copy
+		 */
+		String text(String accountName) {
+			return ((MessageFormat) text.clone()).format(new Object[]{accountName});
+		}
+	}
+
+	private static class GzipDataSource implements DataSource {
+
+		private final DataSource source;
+
+		GzipDataSource(DataSource source) {
+			this.source = source;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return new GzipCompressingInputStream(source.getInputStream());
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			throw new IOException("compressed attachment is read-only");
+		}
+
+		@Override
+		public String getContentType() {
+			return "application/gzip";
+		}
+
+		@Override
+		public String getName() {
+			return source.getName() + ".gz";
+		}
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+
+/**
+ * Reads the source stream compressed in gzip format, i.e. the opposite of
+ * {@link java.util.zip.GZIPInputStream}. Data is compressed as it is read,
+ * so only the deflater buffers are held in memory.
+ */
+final class GzipCompressingInputStream extends SequenceInputStream {
+
+	private static final byte[] HEADER = {
+			0x1f, (byte) 0x8b, Deflater.DEFLATED, 0, 0, 0, 0, 0, 0, (byte) 0xff
+	};
+
+	private final Deflater deflater;
+
+	GzipCompressingInputStream(InputStream source) {
+		this(new CheckedInputStream(source, new CRC32()), new Deflater(Deflater.DEFAULT_COMPRESSION, true));
+	}
+
+	private GzipCompressingInputStream(CheckedInputStream source, Deflater deflater) {
+		super(Collections.enumeration(Arrays.asList(
+				new ByteArrayInputStream(HEADER),
+				new DeflaterInputStream(source, deflater),
+				new TrailerInputStream(source, deflater))));
+		this.deflater = deflater;
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			super.close();
+		} finally {
+			deflater.end();
+		}
+	}
+
+	/**
+	 * CRC and size of the uncompressed data, which are known
+	 * only once the source has been read
+	 */
+	private static class TrailerInputStream extends InputStream {
+
+		private final CheckedInputStream source;
+
+		private final Deflater deflater;
+
+		private InputStream trailer;
+
+		TrailerInputStream(CheckedInputStream source, Deflater deflater) {
+			this.source = source;
+			this.deflater = deflater;
+		}
+
+		@Override
+		public int read() throws IOException {
+			return trailer().read();
+		}
+
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			return trailer().read(b, off, len);
+		}
+
+		private InputStream trailer() {
+			if (trailer == null) {
+				long crc = source.getChecksum().getValue();
+				long size = deflater.getBytesRead();
+				trailer = new ByteArrayInputStream(new byte[]{
+						(byte) crc, (byte) (crc >> 8), (byte) (crc >> 16), (byte) (crc >> 24),
+						(byte) size, (byte) (size >> 8), (byte) (size >> 16), (byte) (size >> 24)
+				});
+			}
+			return trailer;
+		}
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Outcome of a single notification run.
+ *
+ * Batch latencies are recorded into a histogram of the run, so that
+ * percentiles do not include batches of other runs or other nodes.
+ */
+public class DispatchReport {
+
+	private final NotificationType type;
+
+	private final boolean skipped;
+
+	private final AtomicInteger queued = new AtomicInteger();
+
+	private final AtomicInteger sent = new AtomicInteger();
+
+	private final AtomicInteger failed = new AtomicInteger();
+
+	private final Histogram latency = new ConcurrentHistogram(3);
+
+	DispatchReport(NotificationType type, boolean skipped) {
+		this.type = type;
+		this.skipped = skipped;
+	}
+
+	void queued(int count) {
+		queued.addAndGet(count);
+	}
+
+	void sent(int count) {
+		sent.addAndGet(count);
+	}
+
+	void failed(int count) {
+		failed.addAndGet(count);
+	}
+
+	void latency(long nanos) {
+		latency.recordValue(nanos);
+	}
+
+	public NotificationType getType() {
+		return type;
+	}
+
+	/**
+	 * @return {@code true}, if the run has not been started,
+	 * because the previous one of the same type was still in progress
+	 */
+	public boolean isSkipped() {
+		return skipped;
+	}
+
+	public int getQueued() {
+		return queued.get();
+	}
+
+	public int getSent() {
+		return sent.get();
+	}
+
+	public int getFailed() {
+		return failed.get();
+	}
+
+	/**
+	 * @return 99th percentile of batch latency within the run, ms
+	 */
+	public double getP99() {
+		return latency.getTotalCount() == 0 ? 0
+				: (double) latency.getValueAtPercentile(99) / TimeUnit.MILLISECONDS.toNanos(1);
+	}
+
+	@Override
+	public String toString() {
+		return "DispatchReport{" +
+				"type=" + type +
+				", skipped=" + skipped +
+				", queued=" + queued +
+				", sent=" + sent +
+				", failed=" + failed +
+				", p99=" + getP99() +
+				'}';
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Sends notifications in batches of {@code batch-size} recipients on a dedicated
+ * pool with at most {@code concurrency} batches in flight. Failed notifications
+ * are retried with exponential backoff, calls to account-service and SMTP relay
+ * are rate-limited by token buckets.
+ *
+ * A run returns only when all its notifications are done, and a run of
+ * a type is skipped while the previous one of the same type is in progress.
+ */
+@Component
+public class NotificationDispatcher {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final int batchSize;
+
+	private final int maxAttempts;
+
+	private final long backoff;
+
+	private final Semaphore inFlight;
+
+	private final TokenBucket accountService;
+
+	private final TokenBucket smtp;
+
+	private final ExecutorService executor;
+
+	private final Set<NotificationType> running = Collections.synchronizedSet(EnumSet.noneOf(NotificationType.class));
+
+	@Autowired
+	public NotificationDispatcher(@Value("${notification.dispatch.concurrency:8}") int concurrency,
+								  @Value("${notification.dispatch.batch-size:50}") int batchSize,
+								  @Value("${notification.dispatch.account-service-rate:20}") double accountServiceRate,
+								  @Value("${notification.dispatch.smtp-rate:10}") double smtpRate,
+								  @Value("${notification.dispatch.max-attempts:3}") int maxAttempts,
+								  @Value("${notification.dispatch.backoff:1000}") long backoff) {
+		this.batchSize = batchSize;
+		this.maxAttempts = maxAttempts;
+		this.backoff = backoff;
+		this.inFlight = new Semaphore(concurrency);
+		this.accountService = new TokenBucket(accountServiceRate, concurrency);
+		this.smtp = new TokenBucket(smtpRate, batchSize);
+		this.executor = Executors.newFixedThreadPool(concurrency,
+				new CustomizableThreadFactory("notification-dispatch-"));
+	}
+
+	/**
+	 * Notification of a batch of recipients
+	 */
+	@FunctionalInterface
+	public interface Notification {
+
+		/**
+		 * @return recipients of the batch, which have not been notified and should be retried
+		 * @throws Exception to retry the whole batch
+		 */
+		Collection<Recipient> send(List<Recipient> batch) throws Exception;
+	}
+
+	/**
+	 * Sends given notification to each recipient and waits until all of them are done
+	 *
+	 * @param type notification type
+	 * @param recipients recipients, consumed as the pool has capacity
+	 * @param notification notification to send
+	 * @return run report
+	 */
+	public DispatchReport dispatch(NotificationType type, Stream<Recipient> recipients, Notification notification) {
+
+		if (!running.add(type)) {
+			log.warn("previous {} notification run is still in progress, skipping", type);
+			return new DispatchReport(type, true);
+		}
+
+		DispatchReport report = new DispatchReport(type, false);
+		Timer latency = latencyOf(type);
+		Counter queued = Metrics.counter("notification.dispatch.queued", "type", type.name());
+
+		Phaser phaser = new Phaser(1);
+
+		try {
+
+			Iterator<Recipient> iterator = recipients.iterator();
+
+			while (iterator.hasNext()) {
+
+				List<Recipient> batch = new ArrayList<>(batchSize);
+				while (iterator.hasNext() && batch.size() < batchSize) {
+					batch.add(iterator.next());
+				}
+
+				inFlight.acquire();
+				phaser.register();
+
+				report.queued(batch.size());
+				queued.increment(batch.size());
+
+				try {
+					executor.execute(() -> {
+						long start = System.nanoTime();
+						try {
+							send(type, batch, notification, report);
+						} finally {
+							long elapsed = System.nanoTime() - start;
+							latency.record(elapsed, TimeUnit.NANOSECONDS);
+							report.latency(elapsed);
+							inFlight.release();
+							phaser.arriveAndDeregister();
+						}
+					});
+				} catch (RejectedExecutionException e) {
+					inFlight.release();
+					phaser.arriveAndDeregister();
+					throw e;
+				}
+			}
+
+			phaser.awaitAdvanceInterruptibly(phaser.arrive());
+
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			log.warn("{} notification run has been interrupted", type);
+		} finally {
+			running.remove(type);
+		}
+
+		return report;
+	}
+
+	/**
+	 * Blocks until a call to account-service is allowed by the rate limit
+	 */
+	public void acquireAccountService() throws InterruptedException {
+		accountService.acquire();
+	}
+
+	/**
+	 * Blocks until given number of messages to SMTP relay is allowed by the rate limit
+	 */
+	public void acquireSmtp(int messages) throws InterruptedException {
+		for (int i = 0; i < messages; i++) {
+			smtp.acquire();
+		}
+	}
+
+	@PreDestroy
+	public void close() throws InterruptedException {
+		executor.shutdown();
+		executor.awaitTermination(30, TimeUnit.SECONDS);
+	}
+
+	private void send(NotificationType type, List<Recipient> batch, Notification notification, DispatchReport report) {
+
+		List<Recipient> pending = batch;
+
+		for (int attempt = 1; ; attempt++) {
+
+			Exception cause = null;
+
+			try {
+				Collection<Recipient> failed = notification.send(pending);
+				report.sent(pending.size() - failed.size());
+				Metrics.counter("notification.dispatch.sent", "type", type.name()).increment(pending.size() - failed.size());
+				pending = new ArrayList<>(failed);
+			} catch (Exception e) {
+				cause = e;
+			}
+
+			if (pending.isEmpty()) {
+				return;
+			}
+
+			if (attempt < maxAttempts && !(cause instanceof InterruptedException)) {
+				log.warn("{} notification for {} recipients has failed, attempt {} of {}",
+						type, pending.size(), attempt, maxAttempts);
+				if (backOff(attempt)) {
+					continue;
+				}
+			}
+
+			if (cause instanceof InterruptedException) {
+				Thread.currentThread().interrupt();
+			}
+
+			report.failed(pending.size());
+			Metrics.counter("notification.dispatch.failed", "type", type.name()).increment(pending.size());
+			log.error("an error during {} notification for {}", type, pending, cause);
+			return;
+		}
+	}
+
+	/**
+	 * @return {@code false}, if the thread has been interrupted while waiting
+	 */
+	private boolean backOff(int attempt) {
+		try {
+			Thread.sleep(backoff << (attempt - 1));
+			return true;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		}
+	}
+
+	private Timer latencyOf(NotificationType type) {
+		return Timer.builder("notification.dispatch.latency")
+				.tag("type", type.name())
+				.publishPercentiles(0.99)
+				.register(Metrics.globalRegistry);
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.client.AccountBackupSource;
+import com.piggymetrics.notification.client.AccountServiceClient;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import javax.activation.DataSource;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+@Service
+public class NotificationServiceImpl implements NotificationService {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private AccountServiceClient client;
+
+	@Autowired
+	private RecipientService recipientService;
+
+	@Autowired
+	private EmailService emailService;
+
+	@Autowired
+	private NotificationDispatcher dispatcher;
+
+	@Override
+	@Scheduled(cron = "${backup.cron}")
+	public void sendBackupNotifications() {
+
+		final NotificationType type = NotificationType.BACKUP;
+
+		DispatchReport report = dispatcher.dispatch(type, recipientService.findReadyToNotify(type), batch -> {
+
+			Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+
+			for (Recipient recipient : batch) {
+				attachments.put(recipient, new AccountBackupSource(client, recipient.getAccountName(),
+						dispatcher::acquireAccountService));
+			}
+
+			return send(type, attachments);
+		});
+
+		log.info("backup notification run has been completed: {}", report);
+	}
+
+	@Override
+	@Scheduled(cron = "${remind.cron}")
+	public void sendRemindNotifications() {
+
+		final NotificationType type = NotificationType.REMIND;
+
+		DispatchReport report = dispatcher.dispatch(type, recipientService.findReadyToNotify(type), batch -> {
+
+			Map<Recipient, DataSource> attachments = new LinkedHashMap<>();
+			batch.forEach(recipient -> attachments.put(recipient, null));
+
+			return send(type, attachments);
+		});
+
+		log.info("remind notification run has been completed: {}", report);
+	}
+
+	/**
+	 * Sends given emails and marks delivered recipients as notified
+	 *
+	 * @return recipients, which the email has not been delivered to
+	 */
+	private Collection<Recipient> send(NotificationType type, Map<Recipient, DataSource> attachments) throws InterruptedException {
+
+		if (attachments.isEmpty()) {
+			return Collections.emptySet();
+		}
+
+		dispatcher.acquireSmtp(attachments.size());
+		Map<Recipient, Exception> failures = emailService.send(type, attachments);
+
+		List<Recipient> delivered = attachments.keySet().stream()
+				.filter(recipient -> !failures.containsKey(recipient))
+				.collect(Collectors.toList());
+
+		markNotified(type, delivered);
+
+		return failures.keySet();
+	}
+
+	/**
+	 * Failure is not propagated, since retrying the notification
+	 * would send the emails again
+	 */
+	private void markNotified(NotificationType type, List<Recipient> recipients) {
+
+		if (recipients.isEmpty()) {
+			return;
+		}
+
+		try {
+			recipientService.markNotified(type, recipients);
+		} catch (RuntimeException e) {
+			log.error("failed to mark {} as notified of {}", recipients, type, e);
+		}
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+
+import java.util.Collection;
+import java.util.stream.Stream;
+
+public interface RecipientService {
+
+	/**
+	 * Finds recipient by account name
+	 *
+	 * @param accountName
+	 * @return recipient
+	 */
+	Recipient findByAccountName(String accountName);
+
+	/**
+	 * Finds recipients, which are ready to be notified
+	 * at the moment. Recipients are fetched lazily page by page,
+	 * while the stream is consumed.
+	 *
+	 * @param type
+	 * @return recipients to notify
+	 */
+	Stream<Recipient> findReadyToNotify(NotificationType type);
+
+	/**
+	 * Creates or updates recipient settings
+	 *
+	 * @param accountName
+	 * @param recipient
+	 * @return updated recipient
+	 */
+	Recipient save(String accountName, Recipient recipient);
+
+	/**
+	 * Updates {@link NotificationType} {@code lastNotified} property with current date
+	 * for given recipients and reschedules their next notification.
+	 * Only the schedule of the type is written, with a single bulk write.
+	 *
+	 * @param type
+	 * @param recipients
+	 */
+	void markNotified(NotificationType type, Collection<Recipient> recipients);
+}
+
+package com.piggymetrics.notification.service;
+
+public interface NotificationService {
+
+	void sendBackupNotifications();
+
+	void sendRemindNotifications();
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationSettings;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import com.piggymetrics.notification.repository.RecipientRepository;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+@Service
+public class RecipientServiceImpl implements RecipientService {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	@Autowired
+	private RecipientRepository repository;
+
+	@Value("${notification.page-size:500}")
+	private int pageSize;
+
+	@Override
+	public Recipient findByAccountName(String accountName) {
+		Assert.hasLength(accountName);
+		return repository.findByAccountName(accountName);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Recipient save(String accountName, Recipient recipient) {
+
+		recipient.setAccountName(accountName);
+		recipient.getScheduledNotifications().values()
+				.forEach(this::schedule);
+
+		repository.save(recipient);
+
+		log.info("recipient {} settings has been updated", recipient);
+
+		return recipient;
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public Stream<Recipient> findReadyToNotify(NotificationType type) {
+		Assert.notNull(type, "notification type is required");
+		return StreamSupport.stream(Spliterators.spliteratorUnknownSize(
+				new ReadyToNotifyIterator(type, new Date()), Spliterator.ORDERED | Spliterator.NONNULL), false);
+	}
+
+	/**
+	 * {@inheritDoc}
+	 */
+	@Override
+	public void markNotified(NotificationType type, Collection<Recipient> recipients) {
+
+		Date now = new Date();
+
+		recipients.forEach(recipient -> {
+			NotificationSettings settings = recipient.getScheduledNotifications().get(type);
+			settings.setLastNotified(now);
+			settings.reschedule();
+		});
+
+		repository.updateSchedule(type, recipients);
+	}
+
+	/**
+	 * Computes {@code nextDueAt} for recipients saved before it has been
+	 * introduced, otherwise they would never be found as ready to notify
+	 */
+	@EventListener(ApplicationReadyEvent.class)
+	public void scheduleUnscheduled() {
+		for (NotificationType type : NotificationType.values()) {
+
+			List<Recipient> recipients;
+
+			while (!(recipients = repository.findUnscheduled(type, pageSize)).isEmpty()) {
+				recipients.forEach(recipient -> schedule(recipient.getScheduledNotifications().get(type)));
+				repository.updateSchedule(type, recipients);
+				log.info("{} recipients has been scheduled for {} notification", recipients.size(), type);
+			}
+		}
+	}
+
+	private void schedule(NotificationSettings settings) {
+		if (settings.getLastNotified() == null) {
+			settings.setLastNotified(new Date());
+		}
+		settings.reschedule();
+	}
+
+	/**
+	 * Iterates over recipients ready to notify, requesting the next page
+	 * after the last recipient of the current one. The position is captured
+	 * before recipients are handed out, so it does not shift if they are
+	 * rescheduled meanwhile.
+	 */
+	private class ReadyToNotifyIterator implements Iterator<Recipient> {
+
+		private final NotificationType type;
+
+		private final Date moment;
+
+		private Iterator<Recipient> page = Collections.emptyIterator();
+
+		private Date lastDueAt;
+
+		private String lastAccountName;
+
+		private boolean exhausted;
+
+		ReadyToNotifyIterator(NotificationType type, Date moment) {
+			this.type = type;
+			this.moment = moment;
+		}
+
+		@Override
+		public boolean hasNext() {
+
+			if (!page.hasNext() && !exhausted) {
+
+				List<Recipient> recipients = repository.findReadyToNotify(type, moment,
+						lastDueAt, lastAccountName, pageSize);
+
+				exhausted = recipients.size() < pageSize;
+
+				if (!recipients.isEmpty()) {
+					Recipient last = recipients.get(recipients.size() - 1);
+					lastDueAt = last.getScheduledNotifications().get(type).getNextDueAt();
+					lastAccountName = last.getAccountName();
+				}
+
+				log.debug("found {} recipients for {} notification", recipients.size(), type);
+
+				page = recipients.iterator();
+			}
+
+			return page.hasNext();
+		}
+
+		@Override
+		public Recipient next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
+			}
+			return page.next();
+		}
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket rate limiter: tokens are refilled at a constant rate
+ * up to the bucket capacity, which is the allowed burst.
+ */
+final class TokenBucket {
+
+	private final double tokensPerNano;
+
+	private final double capacity;
+
+	private double tokens;
+
+	private long refilledAt;
+
+	/**
+	 * @param permitsPerSecond refill rate, non-positive value disables the limit
+	 * @param capacity maximum burst
+	 */
+	TokenBucket(double permitsPerSecond, int capacity) {
+		this.tokensPerNano = permitsPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.capacity = Math.max(1, capacity);
+		this.tokens = this.capacity;
+		this.refilledAt = System.nanoTime();
+	}
+
+	/**
+	 * Blocks until a token is available and takes it
+	 */
+	void acquire() throws InterruptedException {
+		long wait;
+		while ((wait = tryAcquire()) > 0) {
+			TimeUnit.NANOSECONDS.sleep(wait);
+		}
+	}
+
+	/**
+	 * @return {@code 0}, if the token has been taken, otherwise
+	 * nanoseconds to wait until it will be available
+	 */
+	private synchronized long tryAcquire() {
+
+		if (tokensPerNano <= 0) {
+			return 0;
+		}
+
+		long now = System.nanoTime();
+		tokens = Math.min(capacity, tokens + (now - refilledAt) * tokensPerNano);
+		refilledAt = now;
+
+		if (tokens >= 1) {
+			tokens -= 1;
+			return 0;
+		}
+
+		return Math.max(1, (long) Math.ceil((1 - tokens) / tokensPerNano));
+	}
+}
+
+package com.piggymetrics.notification.service;
+
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import java.io.IOException;
+import java.util.Map;
+
+public interface EmailService {
+
+	void send(NotificationType type, Recipient recipient, DataSource attachment) throws MessagingException, IOException;
+
+	/**
+	 * Sends notification emails of given type over a single SMTP connection.
+	 * Attachments are read only while their message is being sent.
+	 *
+	 * @param type notification type
+	 * @param attachments attachment (or {@code null}) of each recipient
+	 * @return recipients, which the email has not been delivered to, with failure cause
+	 */
+	Map<Recipient, Exception> send(NotificationType type, Map<Recipient, DataSource> attachments);
+
+}
+
+package com.piggymetrics.notification.service.security;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.AuthoritiesExtractor;
+import org.springframework.boot.autoconfigure.security.oauth2.resource.FixedAuthoritiesExtractor;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.AuthenticationServiceException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.oauth2.client.OAuth2RestOperations;
+import org.springframework.security.oauth2.client.OAuth2RestTemplate;
+import org.springframework.security.oauth2.client.resource.BaseOAuth2ProtectedResourceDetails;
+import org.springframework.security.oauth2.common.DefaultOAuth2AccessToken;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.HttpClientErrorException;
+import org.springframework.web.client.HttpServerErrorException;
+import org.springframework.web.client.ResourceAccessException;
+
+import java.util.*;
+
+/**
+ * Extended implementation of {@link org.springframework.boot.autoconfigure.security.oauth2.resource.UserInfoTokenServices}
+ *
+ * By default, it designed to return only user details. This class provides {@link #getRequest(Map)} method, which
+ * returns clientId and scope of calling service. This information used in controller's security checks.
+ *
+ * A token is rejected with {@link InvalidTokenException} only when auth-service has answered.
+ * If it is unreachable or fails, {@link AuthenticationServiceException} is thrown instead.
+ */
+
+public class CustomUserInfoTokenServices implements ResourceServerTokenServices {
+
+	/**
+	 * Details key of the token expiry, ms since epoch, when auth-service reports it
+	 */
+	public static final String EXPIRES_AT = "expiresAt";
+
+	protected final Log logger = LogFactory.getLog(getClass());
+
+	private static final String[] PRINCIPAL_KEYS = new String[] { "user", "username",
+			"userid", "user_id", "login", "id", "name" };
+
+	private final String userInfoEndpointUrl;
+
+	private final String clientId;
+
+	private OAuth2RestOperations restTemplate;
+
+	private String tokenType = DefaultOAuth2AccessToken.BEARER_TYPE;
+
+	private AuthoritiesExtractor authoritiesExtractor = new FixedAuthoritiesExtractor();
+
+	public CustomUserInfoTokenServices(String userInfoEndpointUrl, String clientId) {
+		this.userInfoEndpointUrl = userInfoEndpointUrl;
+		this.clientId = clientId;
+	}
+
+	public void setTokenType(String tokenType) {
+		this.tokenType = tokenType;
+	}
+
+	public void setRestTemplate(OAuth2RestOperations restTemplate) {
+		this.restTemplate = restTemplate;
+	}
+
+	public void setAuthoritiesExtractor(AuthoritiesExtractor authoritiesExtractor) {
+		this.authoritiesExtractor = authoritiesExtractor;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+		Map<String, Object> map = getMap(this.userInfoEndpointUrl, accessToken);
+		if (map.containsKey("error")) {
+			this.logger.debug("userinfo returned error: " + map.get("error"));
+			throw new InvalidTokenException(accessToken);
+		}
+		return extractAuthentication(map);
+	}
+
+	private OAuth2Authentication extractAuthentication(Map<String, Object> map) {
+		Object principal = getPrincipal(map);
+		OAuth2Request request = getRequest(map);
+		List<GrantedAuthority> authorities = this.authoritiesExtractor
+				.extractAuthorities(map);
+		UsernamePasswordAuthenticationToken token = new UsernamePasswordAuthenticationToken(
+				principal, "N/A", authorities);
+		token.setDetails(map);
+		return new OAuth2Authentication(request, token);
+	}
+
+	private Object getPrincipal(Map<String, Object> map) {
+		for (String key : PRINCIPAL_KEYS) {
+			if (map.containsKey(key)) {
+				return map.get(key);
+			}
+		}
+		return "unknown";
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private OAuth2Request getRequest(Map<String, Object> map) {
+		Map<String, Object> request = (Map<String, Object>) map.get("oauth2Request");
+
+		String clientId = (String) request.get("clientId");
+		Set<String> scope = new LinkedHashSet<>(request.containsKey("scope") ?
+				(Collection<String>) request.get("scope") : Collections.<String>emptySet());
+
+		return new OAuth2Request(null, clientId, null, true, new HashSet<>(scope),
+				null, null, null, null);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		throw new UnsupportedOperationException("Not supported: read access token");
+	}
+
+	@SuppressWarnings({ "unchecked" })
+	private Map<String, Object> getMap(String path, String accessToken) {
+		this.logger.debug("Getting user info from: " + path);
+		try {
+			OAuth2RestOperations restTemplate = this.restTemplate;
+			if (restTemplate == null) {
+				BaseOAuth2ProtectedResourceDetails resource = new BaseOAuth2ProtectedResourceDetails();
+				resource.setClientId(this.clientId);
+				restTemplate = new OAuth2RestTemplate(resource);
+			}
+			OAuth2AccessToken existingToken = restTemplate.getOAuth2ClientContext()
+					.getAccessToken();
+			if (existingToken == null || !accessToken.equals(existingToken.getValue())) {
+				DefaultOAuth2AccessToken token = new DefaultOAuth2AccessToken(
+						accessToken);
+				token.setTokenType(this.tokenType);
+				restTemplate.getOAuth2ClientContext().setAccessToken(token);
+			}
+			ResponseEntity<Map> response = restTemplate.getForEntity(path, Map.class);
+			Map<String, Object> map = response.getBody();
+			long expires = response.getHeaders().getExpires();
+			if (map != null && expires > 0) {
+				map = new LinkedHashMap<>(map);
+				map.put(EXPIRES_AT, expires);
+			}
+			return map;
+		}
+		catch (ResourceAccessException | HttpServerErrorException ex) {
+			throw unavailable(ex);
+		}
+		catch (HttpClientErrorException ex) {
+			if (ex.getStatusCode() == HttpStatus.TOO_MANY_REQUESTS) {
+				throw unavailable(ex);
+			}
+			return rejected(ex);
+		}
+		catch (Exception ex) {
+			return rejected(ex);
+		}
+	}
+
+	/**
+	 * auth-service is unreachable or has failed, so nothing is known about the token
+	 */
+	private AuthenticationServiceException unavailable(Exception ex) {
+		this.logger.warn("User info endpoint is unavailable: " + ex.getClass() + ", "
+				+ ex.getMessage());
+		return new AuthenticationServiceException("Could not fetch user details", ex);
+	}
+
+	private Map<String, Object> rejected(Exception ex) {
+		this.logger.info("Could not fetch user details: " + ex.getClass() + ", "
+				+ ex.getMessage());
+		return Collections.<String, Object>singletonMap("error",
+				"Could not fetch user details");
+	}
+}
+
+package com.piggymetrics.notification.service.security;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.security.core.Authentication;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Base64;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Caches authentications resolved by the delegate, so that a token is introspected
+ * by auth-service once per {@code ttl} instead of once per request.
+ *
+ * Entries are keyed by SHA-256 of the token, concurrent lookups of the same token
+ * wait for a single delegate call, and invalid tokens are remembered for
+ * {@code negativeTtl}. Other failures (e.g. auth-service is unavailable) are not cached.
+ * Authentication is never kept past the token expiry, when the delegate reports it
+ * with {@link CustomUserInfoTokenServices#EXPIRES_AT}.
+ */
+public class CachingTokenServices implements ResourceServerTokenServices {
+
+	private final ResourceServerTokenServices delegate;
+
+	private final long ttl;
+
+	private final long negativeTtl;
+
+	private final int maxSize;
+
+	private final LongSupplier clock;
+
+	private final Map<String, Entry> entries = new ConcurrentHashMap<>();
+
+	private final Counter hits = Metrics.counter("security.token.cache.hits");
+
+	private final Counter misses = Metrics.counter("security.token.cache.misses");
+
+	/**
+	 * @param delegate token services to resolve authentication with
+	 * @param ttl time to keep resolved authentication, ms
+	 * @param negativeTtl time to keep rejection of an invalid token, ms
+	 * @param maxSize maximum number of cached tokens
+	 */
+	public CachingTokenServices(ResourceServerTokenServices delegate, long ttl, long negativeTtl, int maxSize) {
+		this(delegate, ttl, negativeTtl, maxSize, System::currentTimeMillis);
+	}
+
+	CachingTokenServices(ResourceServerTokenServices delegate, long ttl, long negativeTtl, int maxSize, LongSupplier clock) {
+		this.delegate = delegate;
+		this.ttl = ttl;
+		this.negativeTtl = negativeTtl;
+		this.maxSize = maxSize;
+		this.clock = clock;
+
+		Metrics.gauge("security.token.cache.size", entries, Map::size);
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		String key = hash(accessToken);
+		long now = clock.getAsLong();
+
+		Entry created = new Entry();
+		Entry entry = entries.compute(key, (k, existing) ->
+				existing == null || existing.isExpired(now) ? created : existing);
+
+		if (entry != created) {
+			hits.increment();
+			return entry.join();
+		}
+
+		misses.increment();
+		evictIfFull(now);
+
+		try {
+			OAuth2Authentication authentication = delegate.loadAuthentication(accessToken);
+			entry.expiresAt = Math.min(now + ttl, expiryOf(authentication));
+			entry.result.complete(authentication);
+			return authentication;
+		} catch (InvalidTokenException e) {
+			entry.expiresAt = now + negativeTtl;
+			entry.result.completeExceptionally(e);
+			throw e;
+		} catch (RuntimeException e) {
+			entries.remove(key, entry);
+			entry.result.completeExceptionally(e);
+			throw e;
+		}
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return delegate.readAccessToken(accessToken);
+	}
+
+	/**
+	 * Forgets cached authentication of given token, e.g. when it has been revoked
+	 */
+	public void evict(String accessToken) {
+		entries.remove(hash(accessToken));
+	}
+
+	public void evictAll() {
+		entries.clear();
+	}
+
+	public int size() {
+		return entries.size();
+	}
+
+	private void evictIfFull(long now) {
+
+		if (entries.size() <= maxSize) {
+			return;
+		}
+
+		entries.values().removeIf(entry -> entry.isExpired(now));
+
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
+
+	/**
+	 * @return token expiry reported by the delegate, or {@link Long#MAX_VALUE} if unknown
+	 */
+	private static long expiryOf(OAuth2Authentication authentication) {
+
+		Authentication user = authentication.getUserAuthentication();
+
+		if (user != null && user.getDetails() instanceof Map) {
+			Object expiresAt = ((Map<?, ?>) user.getDetails()).get(CustomUserInfoTokenServices.EXPIRES_AT);
+			if (expiresAt instanceof Long) {
+				return (Long) expiresAt;
+			}
+		}
+
+		return Long.MAX_VALUE;
+	}
+
+	private static String hash(String accessToken) {
+		try {
+			MessageDigest digest = MessageDigest.getInstance("SHA-256");
+			return Base64.getEncoder().encodeToString(digest.digest(accessToken.getBytes(StandardCharsets.UTF_8)));
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static class Entry {
+
+		private final CompletableFuture<OAuth2Authentication> result = new CompletableFuture<>();
+
+		/**
+		 * Unset while the token is being resolved
+		 */
+		private volatile long expiresAt = Long.MAX_VALUE;
+
+		boolean isExpired(long now) {
+			return now >= expiresAt;
+		}
+
+		OAuth2Authentication join() {
+			try {
+				return result.join();
+			} catch (CompletionException e) {
+				if (e.getCause() instanceof RuntimeException) {
+					throw (RuntimeException) e.getCause();
+				}
+				throw e;
+			}
+		}
+	}
+}
+
+package com.piggymetrics.notification.service.security;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpStatus;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.jwt.Jwt;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.InvalidSignatureException;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.jwt.crypto.sign.SignatureVerifier;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.ResourceServerTokenServices;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.client.RestOperations;
+
+import java.util.Map;
+import java.util.function.LongSupplier;
+
+/**
+ * Verifies signed access tokens of auth-service locally, instead of
+ * resolving each token with a call to auth-service.
+ *
+ * Verification key is fetched from {@code keyUri} on first use and cached.
+ * When a signature does not match, the key is fetched again to pick up
+ * a rotated one, but not more often than once per {@code keyRefreshInterval}.
+ *
+ * Until the key has been fetched for the first time, tokens are rejected with
+ * {@code 503 temporarily_unavailable}. Failed fetches are retried with a delay,
+ * which doubles after each failure up to {@code keyRefreshInterval}.
+ */
+public class SignedTokenServices implements ResourceServerTokenServices {
+
+	private static final long INITIAL_RETRY_DELAY = 1000;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final String keyUri;
+
+	private final RestOperations restTemplate;
+
+	private final long keyRefreshInterval;
+
+	private final LongSupplier clock;
+
+	private final JsonParser parser = JsonParserFactory.create();
+
+	private final AccessTokenConverter converter = new DefaultAccessTokenConverter();
+
+	private volatile SignatureVerifier verifier;
+
+	private long keyFetchedAt;
+
+	private long keyFailedAt;
+
+	private long retryDelay;
+
+	/**
+	 * @param keyUri auth-service endpoint, which serves verification key
+	 * @param restTemplate client to fetch the key with
+	 * @param keyRefreshInterval minimum time between key fetches, ms
+	 */
+	public SignedTokenServices(String keyUri, RestOperations restTemplate, long keyRefreshInterval) {
+		this(keyUri, restTemplate, keyRefreshInterval, System::currentTimeMillis);
+	}
+
+	SignedTokenServices(String keyUri, RestOperations restTemplate, long keyRefreshInterval, LongSupplier clock) {
+		this.keyUri = keyUri;
+		this.restTemplate = restTemplate;
+		this.keyRefreshInterval = keyRefreshInterval;
+		this.clock = clock;
+	}
+
+	@Override
+	public OAuth2Authentication loadAuthentication(String accessToken)
+			throws AuthenticationException, InvalidTokenException {
+
+		Map<String, Object> claims = decode(accessToken);
+
+		Object expiration = claims.get(AccessTokenConverter.EXP);
+		if (expiration instanceof Number && ((Number) expiration).longValue() * 1000 <= clock.getAsLong()) {
+			throw new InvalidTokenException("Access token expired");
+		}
+
+		return converter.extractAuthentication(claims);
+	}
+
+	@Override
+	public OAuth2AccessToken readAccessToken(String accessToken) {
+		return converter.extractAccessToken(accessToken, decode(accessToken));
+	}
+
+	private Map<String, Object> decode(String accessToken) {
+
+		Jwt jwt;
+
+		try {
+			jwt = JwtHelper.decode(accessToken);
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot decode access token", e);
+		}
+
+		SignatureVerifier current = getVerifier();
+
+		if (!isSignedWith(jwt, current)) {
+			SignatureVerifier refreshed = refreshVerifier(current);
+			if (refreshed == current || !isSignedWith(jwt, refreshed)) {
+				throw new InvalidTokenException("Access token signature does not match");
+			}
+		}
+
+		try {
+			return parser.parseMap(jwt.getClaims());
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot parse access token claims", e);
+		}
+	}
+
+	private static boolean isSignedWith(Jwt jwt, SignatureVerifier verifier) {
+		try {
+			jwt.verifySignature(verifier);
+			return true;
+		} catch (InvalidSignatureException e) {
+			return false;
+		}
+	}
+
+	private SignatureVerifier getVerifier() {
+
+		SignatureVerifier current = verifier;
+
+		if (current == null) {
+			synchronized (this) {
+				if (verifier == null) {
+					verifier = fetchInitialVerifier();
+				}
+				current = verifier;
+			}
+		}
+
+		return current;
+	}
+
+	/**
+	 * @throws KeyUnavailableException if the key cannot be fetched or the previous
+	 * attempt has failed less than retry delay ago
+	 */
+	private SignatureVerifier fetchInitialVerifier() {
+
+		long now = clock.getAsLong();
+
+		if (retryDelay > 0 && now - keyFailedAt < retryDelay) {
+			throw new KeyUnavailableException("Token verification key is unavailable", null);
+		}
+
+		try {
+			SignatureVerifier fetched = fetchVerifier();
+			retryDelay = 0;
+			return fetched;
+		} catch (RestClientException | IllegalStateException e) {
+			keyFailedAt = now;
+			retryDelay = Math.min(retryDelay == 0 ? INITIAL_RETRY_DELAY : retryDelay * 2, keyRefreshInterval);
+			log.warn("failed to fetch token verification key, next attempt in {} ms", retryDelay, e);
+			throw new KeyUnavailableException("Token verification key is unavailable", e);
+		}
+	}
+
+	/**
+	 * @return new verifier or given one, if the key has been fetched recently or cannot be fetched
+	 */
+	private synchronized SignatureVerifier refreshVerifier(SignatureVerifier stale) {
+
+		if (verifier != stale || clock.getAsLong() - keyFetchedAt < keyRefreshInterval) {
+			return verifier;
+		}
+
+		try {
+			verifier = fetchVerifier();
+		} catch (RestClientException | IllegalStateException e) {
+			keyFetchedAt = clock.getAsLong();
+			log.warn("failed to refresh token verification key, cached one is used", e);
+		}
+
+		return verifier;
+	}
+
+	private SignatureVerifier fetchVerifier() {
+
+		Map<?, ?> key = restTemplate.getForObject(keyUri, Map.class);
+
+		if (key == null || !(key.get("value") instanceof String)) {
+			throw new IllegalStateException("No token verification key at " + keyUri);
+		}
+
+		keyFetchedAt = clock.getAsLong();
+		log.info("token verification key has been fetched from {}", keyUri);
+
+		return new RsaVerifier((String) key.get("value"));
+	}
+
+	/**
+	 * Rendered with {@code 503} status by the resource server entry point, so that
+	 * clients retry instead of treating their tokens as invalid
+	 */
+	static class KeyUnavailableException extends OAuth2Exception {
+
+		KeyUnavailableException(String message, Throwable cause) {
+			super(message, cause);
+		}
+
+		@Override
+		public String getOAuth2ErrorCode() {
+			return "temporarily_unavailable";
+		}
+
+		@Override
+		public int getHttpErrorCode() {
+			return HttpStatus.SERVICE_UNAVAILABLE.value();
+		}
+	}
+}
+
+package com.piggymetrics.notification.domain;
+
+import javax.validation.constraints.NotNull;
+import java.time.ZoneId;
+import java.util.Date;
+
+public class NotificationSettings {
+
+	@NotNull
+	private Boolean active;
+
+	@NotNull
+	private Frequency frequency;
+
+	private Date lastNotified;
+
+	/**
+	 * Moment the next notification is due, materialized
+	 * so that due recipients could be found by an index scan
+	 */
+	private Date nextDueAt;
+
+	/**
+	 * Recomputes {@code nextDueAt} as {@code lastNotified} plus {@code frequency} days
+	 */
+	public void reschedule() {
+		nextDueAt = Date.from(lastNotified.toInstant()
+				.atZone(ZoneId.systemDefault())
+				.plusDays(frequency.getDays())
+				.toInstant());
+	}
+
+	public Boolean getActive() {
+		return active;
+	}
+
+	public void setActive(Boolean active) {
+		this.active = active;
+	}
+
+	public Frequency getFrequency() {
+		return frequency;
+	}
+
+	public void setFrequency(Frequency frequency) {
+		this.frequency = frequency;
+	}
+
+	public Date getLastNotified() {
+		return lastNotified;
+	}
+
+	public void setLastNotified(Date lastNotified) {
+		this.lastNotified = lastNotified;
+	}
+
+	public Date getNextDueAt() {
+		return nextDueAt;
+	}
+
+	public void setNextDueAt(Date nextDueAt) {
+		this.nextDueAt = nextDueAt;
+	}
+}
+
+package com.piggymetrics.notification.domain;
+
+import org.hibernate.validator.constraints.Email;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.CompoundIndex;
+import org.springframework.data.mongodb.core.index.CompoundIndexes;
+import org.springframework.data.mongodb.core.mapping.Document;
+
+import javax.validation.Valid;
+import javax.validation.constraints.NotNull;
+import java.util.Map;
+
+@Document(collection = "recipients")
+@CompoundIndexes({
+		@CompoundIndex(name = "backup_due", def = "{'scheduledNotifications.BACKUP.active': 1, " +
+				"'scheduledNotifications.BACKUP.nextDueAt': 1, '_id': 1}"),
+		@CompoundIndex(name = "remind_due", def = "{'scheduledNotifications.REMIND.active': 1, " +
+				"'scheduledNotifications.REMIND.nextDueAt': 1, '_id': 1}")
+})
+public class Recipient {
+
+	@Id
+	private String accountName;
+
+	@NotNull
+	@Email
+	private String email;
+
+	@Valid
+	private Map<NotificationType, NotificationSettings> scheduledNotifications;
+
+	public String getAccountName() {
+		return accountName;
+	}
+
+	public void setAccountName(String accountName) {
+		this.accountName = accountName;
+	}
+
+	public String getEmail() {
+		return email;
+	}
+
+	public void setEmail(String email) {
+		this.email = email;
+	}
+
+	public Map<NotificationType, NotificationSettings> getScheduledNotifications() {
+		return scheduledNotifications;
+	}
+
+	public void setScheduledNotifications(Map<NotificationType, NotificationSettings> scheduledNotifications) {
+		this.scheduledNotifications = scheduledNotifications;
+	}
+
+	@Override
+	public String toString() {
+		return "Recipient{" +
+				"accountName='" + accountName + '\'' +
+				", email='" + email + '\'' +
+				'}';
+	}
+}
+
+package com.piggymetrics.notification.domain;
+
+public enum NotificationType {
+
+	BACKUP("backup.email.subject", "backup.email.text", "backup.email.attachment"),
+	REMIND("remind.email.subject", "remind.email.text", null);
+
+	private String subject;
+	private String text;
+	private String attachment;
+
+	NotificationType(String subject, String text, String attachment) {
+		this.subject = subject;
+		this.text = text;
+		this.attachment = attachment;
+	}
+
+	public String getSubject() {
+		return subject;
+	}
+
+	public String getText() {
+		return text;
+	}
+
+	public String getAttachment() {
+		return attachment;
+	}
+}
+
+package com.piggymetrics.notification.domain;
+
+import java.util.stream.Stream;
+
+public enum Frequency {
+
+	WEEKLY(7), MONTHLY(30), QUARTERLY(90);
+
+	private int days;
+
+	Frequency(int days) {
+		this.days = days;
+	}
+
+	public int getDays() {
+		return days;
+	}
+
+	public static Frequency withDays(int days) {
+		return Stream.of(Frequency.values())
+				.filter(f -> f.getDays() == days)
+				.findFirst()
+				.orElseThrow(IllegalArgumentException::new);
+	}
+}
+
+package com.piggymetrics.notification.client;
+
+import feign.Response;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+
+import javax.activation.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * Account JSON as an email attachment source.
+ *
+ * The account is requested from account-service each time the stream is opened,
+ * i.e. when the message is being written to SMTP connection, and its body is
+ * copied as it arrives, so the payload is never held in memory as a whole.
+ * The rate limit of account-service calls is acquired right before each request.
+ */
+public class AccountBackupSource implements DataSource {
+
+	private final AccountServiceClient client;
+
+	private final String accountName;
+
+	private final RateLimit rateLimit;
+
+	public interface RateLimit {
+
+		/**
+		 * Blocks until a call to account-service is allowed
+		 */
+		void acquire() throws InterruptedException;
+	}
+
+	public AccountBackupSource(AccountServiceClient client, String accountName, RateLimit rateLimit) {
+		this.client = client;
+		this.accountName = accountName;
+		this.rateLimit = rateLimit;
+	}
+
+	@Override
+	public InputStream getInputStream() throws IOException {
+
+		try {
+			rateLimit.acquire();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("interrupted while waiting for account-service rate limit");
+		}
+
+		Response response = client.getAccount(accountName);
+
+		if (response.status() != HttpStatus.OK.value() || response.body() == null) {
+			response.close();
+			throw new IOException("failed to get account " + accountName + ", status " + response.status());
+		}
+
+		return response.body().asInputStream();
+	}
+
+	@Override
+	public OutputStream getOutputStream() throws IOException {
+		throw new IOException("account backup is read-only");
+	}
+
+	@Override
+	public String getContentType() {
+		return MediaType.APPLICATION_JSON_UTF8_VALUE;
+	}
+
+	@Override
+	public String getName() {
+		return accountName + ".json";
+	}
+
+	public String getAccountName() {
+		return accountName;
+	}
+}
+
+package com.piggymetrics.notification.client;
+
+import feign.Response;
+import org.springframework.cloud.openfeign.FeignClient;
+import org.springframework.http.MediaType;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+@FeignClient(name = "account-service")
+public interface AccountServiceClient {
+
+	/**
+	 * @return raw response, which body is not buffered and
+	 * must be closed by the caller
+	 */
+	@RequestMapping(method = RequestMethod.GET, value = "/accounts/{accountName}", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
+	Response getAccount(@PathVariable("accountName") String accountName);
+
+}
+
+package com.piggymetrics.notification;
+
+import com.icegreen.greenmail.util.GreenMail;
+import com.icegreen.greenmail.util.ServerSetupTest;
+import com.piggymetrics.notification.domain.NotificationType;
+import com.piggymetrics.notification.domain.Recipient;
+import com.piggymetrics.notification.service.EmailServiceImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.beans.DirectFieldAccessor;
+import org.springframework.core.env.MapPropertySource;
+import org.springframework.core.env.StandardEnvironment;
+import org.springframework.mail.javamail.JavaMailSenderImpl;
+
+import javax.activation.DataSource;
+import javax.mail.MessagingException;
+import javax.mail.util.ByteArrayDataSource;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Backup notifications of a dispatch batch sent one by one, each over its own
+ * SMTP connection, against sending them with a single batched call, which
+ * reuses one connection. Emails are delivered to a local GreenMail server,
+ * so the difference is the connection and handshake cost per message.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class EmailBatchingBenchmark {
+
+	@Param({"1", "10", "50"})
+	private int recipients;
+
+	private GreenMail greenMail;
+
+	private EmailServiceImpl emailService;
+
+	private Map<Recipient, DataSource> attachments;
+
+	@Setup
+	public void setup() throws IOException {
+
+		greenMail = new GreenMail(ServerSetupTest.SMTP);
+		greenMail.start();
+
+		JavaMailSenderImpl mailSender = new JavaMailSenderImpl();
+		mailSender.setHost("localhost");
+		mailSender.setPort(ServerSetupTest.SMTP.getPort());
+
+		Map<String, Object> properties = new HashMap<>();
+		properties.put(NotificationType.BACKUP.getSubject(), "backup");
+		properties.put(NotificationType.BACKUP.getText(), "hello, {0}");
+		properties.put(NotificationType.BACKUP.getAttachment(), "backup.json");
+
+		StandardEnvironment env = new StandardEnvironment();
+		env.getPropertySources().addFirst(new MapPropertySource("benchmark", properties));
+
+		emailService = new EmailServiceImpl();
+		DirectFieldAccessor accessor = new DirectFieldAccessor(emailService);
+		accessor.setPropertyValue("mailSender", mailSender);
+		accessor.setPropertyValue("env", env);
+
+		byte[] account = new byte[16 * 1024];
+		new Random(42).nextBytes(account);
+
+		attachments = new LinkedHashMap<>();
+		for (int i = 0; i < recipients; i++) {
+			Recipient recipient = new Recipient();
+			recipient.setAccountName("account" + i);
+			recipient.setEmail("account" + i + "@test.com");
+			attachments.put(recipient, new ByteArrayDataSource(account, "application/json"));
+		}
+	}
+
+	@TearDown(Level.Iteration)
+	public void purge() throws Exception {
+		greenMail.purgeEmailFromAllMailboxes();
+	}
+
+	@TearDown
+	public void teardown() {
+		greenMail.stop();
+	}
+
+	@Benchmark
+	public int perMessage() throws MessagingException, IOException {
+		for (Map.Entry<Recipient, DataSource> entry : attachments.entrySet()) {
+			emailService.send(NotificationType.BACKUP, entry.getKey(), entry.getValue());
+		}
+		return attachments.size();
+	}
+
+	@Benchmark
+	public Map<Recipient, Exception> batched() {
+		return emailService.send(NotificationType.BACKUP, attachments);
+	}
+}
+
+package com.piggymetrics.config;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.config.server.EnableConfigServer;
+
+@SpringBootApplication
+@EnableConfigServer
+public class ConfigApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(ConfigApplication.class, args);
+	}
+}
+
+package com.piggymetrics.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+
+/**
+ * @author cdov
+ */
+@Configuration
+public class SecurityConfig extends WebSecurityConfigurerAdapter {
+
+    @Override
+    protected void configure(HttpSecurity http) throws Exception {
+        http.csrf().disable();
+        http
+            .authorizeRequests()
+                .antMatchers("/actuator/**").permitAll()
+                .anyRequest().authenticated()
+            .and()
+                .httpBasic()
+                ;
+    }
+}
+
+package com.piggymetrics.turbine;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class TurbineStreamServiceApplicationTests {
+
+	@Test
+	public void contextLoads() {
+	}
+
+}
+
+package com.piggymetrics.turbine;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.cloud.netflix.turbine.stream.EnableTurbineStream;
+
+@SpringBootApplication
+@EnableTurbineStream
+@EnableDiscoveryClient
+public class TurbineStreamServiceApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(TurbineStreamServiceApplication.class, args);
+	}
+}
+
+package com.piggymetrics.registry;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.netflix.eureka.server.EnableEurekaServer;
+
+@SpringBootApplication
+@EnableEurekaServer
+public class RegistryApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(RegistryApplication.class, args);
+	}
+}
+
+package com.piggymetrics.monitoring;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class MonitoringApplicationTests {
+
+	@Test
+	public void contextLoads() {
+	}
+
+}
+
+package com.piggymetrics.monitoring;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.netflix.hystrix.dashboard.EnableHystrixDashboard;
+
+@SpringBootApplication
+@EnableHystrixDashboard
+public class MonitoringApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(MonitoringApplication.class, args);
+	}
+}
+
+package com.piggymetrics.auth;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class AuthServiceApplicationTests {
+
+	@Test
+	public void contextLoads() {
+	}
+
+}
+
+package com.piggymetrics.auth.repository;
+
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.service.security.MongoUserDetailsService;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration;
+import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(SpringRunner.class)
+@DataMongoTest
+public class UserRepositoryTest {
+
+	@Autowired
+	private UserRepository repository;
+
+	@Test
+	public void shouldSaveAndFindUserByName() {
+
+		User user = new User();
+		user.setUsername("name");
+		user.setPassword("password");
+		repository.save(user);
+
+		Optional<User> found = repository.findById(user.getUsername());
+		assertTrue(found.isPresent());
+		assertEquals(user.getUsername(), found.get().getUsername());
+		assertEquals(user.getPassword(), found.get().getPassword());
+	}
+}
+
+package com.piggymetrics.auth.controller;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.service.UserService;
+import com.sun.security.auth.UserPrincipal;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+
+import static org.mockito.MockitoAnnotations.initMocks;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class UserControllerTest {
+
+	private static final ObjectMapper mapper = new ObjectMapper();
+
+	@InjectMocks
+	private UserController accountController;
+
+	@Mock
+	private UserService userService;
+
+	private MockMvc mockMvc;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		this.mockMvc = MockMvcBuilders.standaloneSetup(accountController).build();
+	}
+
+	@Test
+	public void shouldCreateNewUser() throws Exception {
+
+		final User user = new User();
+		user.setUsername("test");
+		user.setPassword("password");
+
+		String json = mapper.writeValueAsString(user);
+
+		mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content(json))
+				.andExpect(status().isOk());
+	}
+
+	@Test
+	public void shouldFailWhenUserIsNotValid() throws Exception {
+
+		final User user = new User();
+		user.setUsername("t");
+		user.setPassword("p");
+
+		mockMvc.perform(post("/users"))
+				.andExpect(status().isBadRequest());
+	}
+
+	@Test
+	public void shouldReturnCurrentUser() throws Exception {
+		mockMvc.perform(get("/users/current").principal(new UserPrincipal("test")))
+				.andExpect(jsonPath("$.name").value("test"))
+				.andExpect(status().isOk());
+	}
+}
+
+package com.piggymetrics.auth.service;
+
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.repository.UserRepository;
+import com.piggymetrics.auth.service.security.PooledBCryptPasswordEncoder;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.security.core.userdetails.UserCache;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.*;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class UserServiceTest {
+
+	@InjectMocks
+	private UserServiceImpl userService;
+
+	@Mock
+	private UserRepository repository;
+
+	@Mock
+	private PooledBCryptPasswordEncoder encoder;
+
+	@Mock
+	private UserCache userCache;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+	}
+
+	@Test
+	public void shouldCreateUser() {
+
+		User user = new User();
+		user.setUsername("name");
+		user.setPassword("password");
+
+		when(encoder.encode("password")).thenReturn("hash");
+
+		userService.create(user);
+		verify(repository, times(1)).save(user);
+		assertEquals("hash", user.getPassword());
+		verify(userCache, times(1)).removeUserFromCache("name");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldFailWhenUserAlreadyExists() {
+
+		User user = new User();
+		user.setUsername("name");
+		user.setPassword("password");
+
+		when(repository.findById(user.getUsername())).thenReturn(Optional.of(new User()));
+		userService.create(user);
+	}
+}
+
+package com.piggymetrics.auth.service.security;
+
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.repository.UserRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+
+import java.util.Optional;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class MongoUserDetailsServiceTest {
+
+	@InjectMocks
+	private MongoUserDetailsService service;
+
+	@Mock
+	private UserRepository repository;
+
+	@Mock
+	private UserCache cache;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+	}
+
+	@Test
+	public void shouldLoadByUsernameWhenUserExists() {
+
+		final User user = new User();
+
+		when(repository.findById(any())).thenReturn(Optional.of(user));
+		UserDetails loaded = service.loadUserByUsername("name");
+
+		assertEquals(user, loaded);
+		verify(cache).putUserInCache(user);
+	}
+
+	@Test
+	public void shouldLoadCachedUserWithoutLookup() {
+
+		final User user = new User();
+
+		when(cache.getUserFromCache("name")).thenReturn(user);
+		UserDetails loaded = service.loadUserByUsername("name");
+
+		assertEquals(user, loaded);
+		verify(repository, never()).findById(any());
+	}
+
+	@Test
+	public void shouldEvictUserWhenPasswordIsUpdated() {
+
+		final User user = new User();
+		user.setUsername("name");
+
+		service.updatePassword(user, "hash");
+
+		assertEquals("hash", user.getPassword());
+		verify(repository).save(user);
+		verify(cache).removeUserFromCache("name");
+	}
+
+	@Test(expected = UsernameNotFoundException.class)
+	public void shouldFailToLoadByUsernameWhenUserNotExists() {
+		service.loadUserByUsername("name");
+	}
+}
+package com.piggymetrics.auth.service.security;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PooledBCryptPasswordEncoderTest {
+
+	private ThreadPoolExecutor executor;
+
+	private PooledBCryptPasswordEncoder encoder;
+
+	@Before
+	public void setup() {
+		executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1));
+		encoder = new PooledBCryptPasswordEncoder(5, executor);
+	}
+
+	@After
+	public void teardown() {
+		encoder.close();
+	}
+
+	@Test
+	public void shouldEncodeWithConfiguredCost() {
+
+		String hash = encoder.encode("password");
+
+		assertTrue(hash.startsWith("$2a$05$"));
+		assertTrue(encoder.matches("password", hash));
+		assertFalse(encoder.matches("wrong", hash));
+	}
+
+	@Test
+	public void shouldNotMatchWhenHashIsNotBCrypt() {
+		assertFalse(encoder.matches("password", "password"));
+		assertFalse(encoder.matches("password", null));
+	}
+
+	@Test
+	public void shouldRequireRehashWhenCostDiffers() {
+		assertTrue(encoder.needsRehash(BCrypt.hashpw("password", BCrypt.gensalt(4))));
+		assertFalse(encoder.needsRehash(BCrypt.hashpw("password", BCrypt.gensalt(5))));
+		assertFalse(encoder.needsRehash("password"));
+	}
+
+	@Test
+	public void shouldRejectHashingWhenPoolIsSaturated() throws InterruptedException {
+
+		CountDownLatch release = new CountDownLatch(1);
+		CountDownLatch started = new CountDownLatch(1);
+
+		executor.execute(() -> {
+			started.countDown();
+			awaitQuietly(release);
+		});
+		executor.execute(() -> awaitQuietly(release));
+		started.await();
+
+		try {
+			encoder.encode("password");
+			fail("hashing should be rejected");
+		} catch (PasswordHashingRejectedException e) {
+			// expected
+		} finally {
+			release.countDown();
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void shouldRejectCostOutOfBCryptRange() {
+		new PooledBCryptPasswordEncoder(3, executor);
+	}
+
+	private static void awaitQuietly(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
+
+package com.piggymetrics.auth.service.security;
+
+import com.piggymetrics.auth.domain.User;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class BoundedUserCacheTest {
+
+	private final AtomicLong now = new AtomicLong();
+
+	private BoundedUserCache cache;
+
+	@Before
+	public void setup() {
+		cache = new BoundedUserCache(2, 1000, now::get);
+	}
+
+	@Test
+	public void shouldReturnCachedUserUntilExpired() {
+
+		User user = createUser("test");
+		cache.putUserInCache(user);
+
+		now.set(999);
+		assertSame(user, cache.getUserFromCache("test"));
+
+		now.set(1000);
+		assertNull(cache.getUserFromCache("test"));
+		assertEquals(0, cache.size());
+	}
+
+	@Test
+	public void shouldEvictLeastRecentlyUsedUser() {
+
+		cache.putUserInCache(createUser("first"));
+		cache.putUserInCache(createUser("second"));
+		cache.getUserFromCache("first");
+		cache.putUserInCache(createUser("third"));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.getUserFromCache("second"));
+	}
+
+	@Test
+	public void shouldRemoveUser() {
+		cache.putUserInCache(createUser("test"));
+		cache.removeUserFromCache("test");
+		assertNull(cache.getUserFromCache("test"));
+	}
+
+	private User createUser(String username) {
+		User user = new User();
+		user.setUsername(username);
+		return user;
+	}
+}
+
+package com.piggymetrics.auth.service.security;
+
+import org.junit.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.InternalAuthenticationServiceException;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+
+import static org.junit.Assert.assertEquals;
+
+public class HashingRejectedExceptionTranslatorTest {
+
+	private final HashingRejectedExceptionTranslator translator = new HashingRejectedExceptionTranslator();
+
+	@Test
+	public void shouldTranslateRejectedHashingToServiceUnavailable() throws Exception {
+
+		ResponseEntity<OAuth2Exception> response = translator.translate(new InternalAuthenticationServiceException(
+				"authentication failed", new PasswordHashingRejectedException("password hashing pool is saturated")));
+
+		assertEquals(HttpStatus.SERVICE_UNAVAILABLE, response.getStatusCode());
+		assertEquals("1", response.getHeaders().getFirst(HttpHeaders.RETRY_AFTER));
+		assertEquals("temporarily_unavailable", response.getBody().getOAuth2ErrorCode());
+	}
+
+	@Test
+	public void shouldTranslateOtherExceptionsAsUsual() throws Exception {
+
+		ResponseEntity<OAuth2Exception> response = translator.translate(new BadCredentialsException("bad credentials"));
+
+		assertEquals(HttpStatus.UNAUTHORIZED, response.getStatusCode());
+	}
+}
+
+package com.piggymetrics.auth.service.security;
+
+import com.piggymetrics.auth.domain.User;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.springframework.security.authentication.BadCredentialsException;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class RehashingAuthenticationProviderTest {
+
+	@Mock
+	private MongoUserDetailsService userDetailsService;
+
+	private PooledBCryptPasswordEncoder encoder;
+
+	private RehashingAuthenticationProvider provider;
+
+	@Before
+	public void setup() {
+		initMocks(this);
+		encoder = new PooledBCryptPasswordEncoder(5,
+				new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(1)));
+		provider = new RehashingAuthenticationProvider(userDetailsService, encoder);
+	}
+
+	@After
+	public void teardown() {
+		encoder.close();
+	}
+
+	@Test
+	public void shouldRehashPasswordWithOutdatedCost() {
+
+		User user = createUser(BCrypt.hashpw("password", BCrypt.gensalt(4)));
+
+		provider.authenticate(new UsernamePasswordAuthenticationToken("test", "password"));
+
+		ArgumentCaptor<String> captor = ArgumentCaptor.forClass(String.class);
+		verify(userDetailsService, times(1)).updatePassword(eq(user), captor.capture());
+		assertTrue(captor.getValue().startsWith("$2a$05$"));
+		assertTrue(encoder.matches("password", captor.getValue()));
+	}
+
+	@Test
+	public void shouldNotRehashPasswordWithCurrentCost() {
+
+		createUser(BCrypt.hashpw("password", BCrypt.gensalt(5)));
+
+		provider.authenticate(new UsernamePasswordAuthenticationToken("test", "password"));
+
+		verify(userDetailsService, never()).updatePassword(any(User.class), anyString());
+	}
+
+	@Test(expected = BadCredentialsException.class)
+	public void shouldNotRehashWhenPasswordIsWrong() {
+
+		createUser(BCrypt.hashpw("password", BCrypt.gensalt(4)));
+
+		try {
+			provider.authenticate(new UsernamePasswordAuthenticationToken("test", "wrong"));
+		} finally {
+			verify(userDetailsService, never()).updatePassword(any(User.class), anyString());
+		}
+	}
+
+	private User createUser(String hash) {
+		User user = new User();
+		user.setUsername("test");
+		user.setPassword(hash);
+		when(userDetailsService.loadUserByUsername("test")).thenReturn(user);
+		return user;
+	}
+}
+
+package com.piggymetrics.auth.service.security;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.piggymetrics.auth.domain.StoredRefreshToken;
+import com.piggymetrics.auth.repository.StoredRefreshTokenRepository;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.oauth2.common.DefaultExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.mockito.MockitoAnnotations.initMocks;
+
+public class PersistentRefreshJwtTokenStoreTest {
+
+	@Mock
+	private StoredRefreshTokenRepository repository;
+
+	private KeyPair keyPair;
+
+	private PersistentRefreshJwtTokenStore tokenStore;
+
+	@Before
+	public void setup() throws Exception {
+		initMocks(this);
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		keyPair = generator.generateKeyPair();
+
+		JwtAccessTokenConverter converter = new JwtAccessTokenConverter();
+		converter.setKeyPair(keyPair);
+		converter.afterPropertiesSet();
+
+		tokenStore = new PersistentRefreshJwtTokenStore(converter, repository);
+	}
+
+	@Test
+	public void shouldStoreRefreshTokenId() throws Exception {
+
+		Date expiration = new Date(System.currentTimeMillis() + 60_000);
+		OAuth2RefreshToken token = new DefaultExpiringOAuth2RefreshToken(createRefreshToken("id"), expiration);
+
+		OAuth2Request request = mock(OAuth2Request.class);
+		when(request.getClientId()).thenReturn("browser");
+
+		OAuth2Authentication authentication = mock(OAuth2Authentication.class);
+		when(authentication.getName()).thenReturn("test");
+		when(authentication.getOAuth2Request()).thenReturn(request);
+
+		tokenStore.storeRefreshToken(token, authentication);
+
+		ArgumentCaptor<StoredRefreshToken> captor = ArgumentCaptor.forClass(StoredRefreshToken.class);
+		verify(repository).save(captor.capture());
+
+		assertEquals("id", captor.getValue().getId());
+		assertEquals("test", captor.getValue().getUsername());
+		assertEquals("browser", captor.getValue().getClientId());
+		assertEquals(expiration, captor.getValue().getExpiresAt());
+	}
+
+	@Test
+	public void shouldReadStoredRefreshToken() throws Exception {
+
+		String value = createRefreshToken("id");
+		when(repository.existsById("id")).thenReturn(true);
+
+		OAuth2RefreshToken token = tokenStore.readRefreshToken(value);
+
+		assertNotNull(token);
+		assertEquals(value, token.getValue());
+	}
+
+	@Test
+	public void shouldNotReadRevokedRefreshToken() throws Exception {
+		when(repository.existsById("id")).thenReturn(false);
+		assertNull(tokenStore.readRefreshToken(createRefreshToken("id")));
+	}
+
+	@Test
+	public void shouldRevokeRefreshTokenById() throws Exception {
+		String value = createRefreshToken("id");
+		tokenStore.removeRefreshToken(new DefaultExpiringOAuth2RefreshToken(value, new Date()));
+		verify(repository).deleteById("id");
+	}
+
+	private String createRefreshToken(String id) throws Exception {
+
+		Map<String, Object> claims = new HashMap<>();
+		claims.put("jti", id);
+		claims.put("ati", "access");
+		claims.put("user_name", "test");
+		claims.put("client_id", "browser");
+
+		String content = new ObjectMapper().writeValueAsString(claims);
+		return JwtHelper.encode(content, new RsaSigner((RSAPrivateKey) keyPair.getPrivate())).getEncoded();
+	}
+}
+
+package com.piggymetrics.auth;
+
+import com.sun.net.httpserver.HttpServer;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.http.HttpEntity;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.jwt.crypto.sign.RsaSigner;
+import org.springframework.security.jwt.crypto.sign.RsaVerifier;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.DefaultAccessTokenConverter;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.interfaces.RSAPrivateKey;
+import java.security.interfaces.RSAPublicKey;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares authentication of a request by resource server in both token modes:
+ * local verification of a signed token against the userinfo round-trip to auth-service.
+ *
+ * Userinfo endpoint is served on loopback, so the remote figures are a lower bound
+ * of a real call, which also pays for network, discovery and auth-service token store lookup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class TokenVerificationBenchmark {
+
+	private static final String CLAIMS = "{\"user_name\":\"test\",\"client_id\":\"browser\",\"scope\":[\"ui\"],"
+			+ "\"exp\":4102444800,\"jti\":\"6d2a1c6e-8c1b-4c5e-9b2f-3d1f0e6a7b8c\"}";
+
+	private static final String USER_INFO = "{\"name\":\"test\",\"authenticated\":true,\"oauth2Request\":"
+			+ "{\"clientId\":\"browser\",\"scope\":[\"ui\"]},\"principal\":{\"username\":\"test\"}}";
+
+	private final JsonParser parser = JsonParserFactory.create();
+
+	private final DefaultAccessTokenConverter converter = new DefaultAccessTokenConverter();
+
+	private final RestTemplate restTemplate = new RestTemplate();
+
+	private RsaVerifier verifier;
+
+	private String signedToken;
+
+	private HttpServer server;
+
+	private String userInfoUri;
+
+	@Setup
+	public void setup() throws Exception {
+
+		KeyPairGenerator generator = KeyPairGenerator.getInstance("RSA");
+		generator.initialize(2048);
+		KeyPair keyPair = generator.generateKeyPair();
+
+		verifier = new RsaVerifier((RSAPublicKey) keyPair.getPublic());
+		signedToken = JwtHelper.encode(CLAIMS, new RsaSigner((RSAPrivateKey) keyPair.getPrivate())).getEncoded();
+
+		byte[] body = USER_INFO.getBytes(StandardCharsets.UTF_8);
+
+		server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+		server.createContext("/uaa/users/current", exchange -> {
+			exchange.getResponseHeaders().add("Content-Type", "application/json");
+			exchange.sendResponseHeaders(200, body.length);
+			try (OutputStream out = exchange.getResponseBody()) {
+				out.write(body);
+			}
+		});
+		server.start();
+
+		userInfoUri = "http://localhost:" + server.getAddress().getPort() + "/uaa/users/current";
+	}
+
+	@TearDown
+	public void teardown() {
+		server.stop(0);
+	}
+
+	@Benchmark
+	public OAuth2Authentication localVerification() {
+		Map<String, Object> claims = parser.parseMap(JwtHelper.decodeAndVerify(signedToken, verifier).getClaims());
+		return converter.extractAuthentication(claims);
+	}
+
+	@Benchmark
+	@SuppressWarnings("rawtypes")
+	public Map remoteUserInfo() {
+		HttpHeaders headers = new HttpHeaders();
+		headers.set(HttpHeaders.AUTHORIZATION, "Bearer opaque-token");
+		return restTemplate.exchange(userInfoUri, HttpMethod.GET, new HttpEntity<>(headers), Map.class).getBody();
+	}
+}
+
+package com.piggymetrics.auth;
+
+import com.piggymetrics.auth.service.security.PooledBCryptPasswordEncoder;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Login verification cost per BCrypt cost, hashing on the caller thread
+ * against hashing on the bounded pool. Run with more threads than cores
+ * to see the pool keeping latency flat while rejecting the excess.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(Threads.MAX)
+@Fork(1)
+public class PasswordHashingBenchmark {
+
+	private static final String PASSWORD = "correct horse battery staple";
+
+	@Param({"10", "11", "12"})
+	private int cost;
+
+	private String hash;
+
+	private PooledBCryptPasswordEncoder encoder;
+
+	@Setup
+	public void setup() {
+		hash = BCrypt.hashpw(PASSWORD, BCrypt.gensalt(cost));
+		encoder = new PooledBCryptPasswordEncoder(cost, 0, 1024);
+	}
+
+	@TearDown
+	public void teardown() {
+		encoder.close();
+	}
+
+	@Benchmark
+	public boolean callerThread() {
+		return BCrypt.checkpw(PASSWORD, hash);
+	}
+
+	@Benchmark
+	public boolean boundedPool() {
+		return encoder.matches(PASSWORD, hash);
+	}
+}
+
+package com.piggymetrics.auth;
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.BACKUP, backup,
-				NotificationType.REMIND, remind
-		));
+import org.springframework.security.crypto.bcrypt.BCrypt;
 
-		return recipient;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Finds the BCrypt cost to configure as {@code auth.password.cost}, when run
+ * on the hardware of auth-service instances. Cost must be the same on all
+ * instances, so it is calibrated offline rather than on startup.
+ */
+public class PasswordCostCalibration {
+
+	private static final String CALIBRATION_PASSWORD = "calibration";
+
+	/**
+	 * @param args target latency of a single hash, ms, and optional bounds of the cost
+	 */
+	public static void main(String[] args) {
+
+		long targetLatency = args.length > 0 ? Long.parseLong(args[0]) : 250;
+		int minCost = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int maxCost = args.length > 2 ? Integer.parseInt(args[2]) : 14;
+
+		System.out.println(calibrate(targetLatency, minCost, maxCost));
+	}
+
+	/**
+	 * @return the highest cost within {@code [minCost, maxCost]}, hashing within given latency.
+	 * Each cost increment doubles hashing time
+	 */
+	static int calibrate(long targetLatency, int minCost, int maxCost) {
+
+		BCrypt.hashpw(CALIBRATION_PASSWORD, BCrypt.gensalt(minCost));
+
+		long start = System.nanoTime();
+		BCrypt.hashpw(CALIBRATION_PASSWORD, BCrypt.gensalt(minCost));
+		long elapsed = System.nanoTime() - start;
+
+		long target = TimeUnit.MILLISECONDS.toNanos(targetLatency);
+		int cost = minCost;
+
+		while (cost < maxCost && elapsed * 2 <= target) {
+			cost++;
+			elapsed *= 2;
+		}
+
+		return cost;
 	}
 }
-package com.piggymetrics.notification.service;
 
-import com.google.common.collect.ImmutableList;
-import com.piggymetrics.notification.client.AccountServiceClient;
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
+package com.piggymetrics.auth;
 
-import javax.mail.MessagingException;
-import java.io.IOException;
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.repository.UserRepository;
+import com.piggymetrics.auth.service.security.BoundedUserCache;
+import com.piggymetrics.auth.service.security.MongoUserDetailsService;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.security.authentication.ProviderManager;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetailsByNameServiceWrapper;
+import org.springframework.security.core.userdetails.cache.NullUserCache;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.OAuth2Request;
+import org.springframework.security.oauth2.provider.TokenRequest;
+import org.springframework.security.oauth2.provider.token.DefaultTokenServices;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+import org.springframework.security.web.authentication.preauth.PreAuthenticatedAuthenticationProvider;
+
+import java.lang.reflect.Proxy;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Throughput of refresh token grant, which loads the user on each refresh,
+ * with and without user cache.
+ *
+ * Mongo lookup is simulated by a repository responding after {@code lookupLatency},
+ * which should be set to the round-trip observed in the target environment.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(8)
+@Fork(1)
+public class RefreshGrantBenchmark {
+
+	@Param({"false", "true"})
+	private boolean cached;
+
+	@Param({"500"})
+	private long lookupLatencyMicros;
+
+	private DefaultTokenServices tokenServices;
+
+	private String refreshToken;
+
+	private TokenRequest tokenRequest;
+
+	@Setup
+	public void setup() {
+
+		User user = new User();
+		user.setUsername("test");
+		user.setPassword("hash");
+
+		UserRepository repository = (UserRepository) Proxy.newProxyInstance(getClass().getClassLoader(),
+				new Class<?>[]{UserRepository.class}, (proxy, method, args) -> {
+					if (!method.getName().equals("findById")) {
+						throw new UnsupportedOperationException(method.getName());
+					}
+					LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(lookupLatencyMicros));
+					return Optional.of(user);
+				});
+
+		UserCache cache = cached ? new BoundedUserCache(1000, 60_000) : new NullUserCache();
+		MongoUserDetailsService userDetailsService = new MongoUserDetailsService(repository, cache);
+
+		PreAuthenticatedAuthenticationProvider provider = new PreAuthenticatedAuthenticationProvider();
+		provider.setPreAuthenticatedUserDetailsService(new UserDetailsByNameServiceWrapper<>(userDetailsService));
+
+		tokenServices = new DefaultTokenServices();
+		tokenServices.setTokenStore(new InMemoryTokenStore());
+		tokenServices.setSupportRefreshToken(true);
+		tokenServices.setReuseRefreshToken(true);
+		tokenServices.setAuthenticationManager(new ProviderManager(Collections.singletonList(provider)));
+
+		OAuth2Request request = new OAuth2Request(Collections.emptyMap(), "browser", Collections.emptyList(),
+				true, Collections.singleton("ui"), Collections.emptySet(), null, Collections.emptySet(), Collections.emptyMap());
+		OAuth2AccessToken token = tokenServices.createAccessToken(new OAuth2Authentication(request,
+				new UsernamePasswordAuthenticationToken(user, "N/A", Collections.emptyList())));
+
+		refreshToken = token.getRefreshToken().getValue();
+		tokenRequest = new TokenRequest(Collections.emptyMap(), "browser", Collections.singleton("ui"), "refresh_token");
+	}
+
+	@Benchmark
+	public OAuth2AccessToken refreshGrant() {
+		return tokenServices.refreshAccessToken(refreshToken, tokenRequest);
+	}
+}
+
+package com.piggymetrics.auth;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
+
+@SpringBootApplication
+@EnableResourceServer
+@EnableDiscoveryClient
+@EnableGlobalMethodSecurity(prePostEnabled = true)
+public class AuthApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(AuthApplication.class, args);
+	}
+
+}
+
+package com.piggymetrics.auth.repository;
+
+import com.piggymetrics.auth.domain.User;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface UserRepository extends CrudRepository<User, String> {
+
+}
+
+package com.piggymetrics.auth.repository;
+
+import com.piggymetrics.auth.domain.StoredRefreshToken;
+import org.springframework.data.repository.CrudRepository;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface StoredRefreshTokenRepository extends CrudRepository<StoredRefreshToken, String> {
+
+	void deleteByUsername(String username);
+
+}
+
+package com.piggymetrics.auth.config;
+
+import com.piggymetrics.auth.service.security.PooledBCryptPasswordEncoder;
+import com.piggymetrics.auth.service.security.MongoUserDetailsService;
+import com.piggymetrics.auth.service.security.RehashingAuthenticationProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
+import org.springframework.security.config.annotation.web.builders.HttpSecurity;
+import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+
+/**
+ * @author cdov
+ */
+@Configuration
+public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
+
+    @Autowired
+    private MongoUserDetailsService userDetailsService;
+
+    @Autowired
+    private PooledBCryptPasswordEncoder passwordEncoder;
+
+    @Override
+    protected void configure(HttpSecurity http) throws Exception {
+        // @formatter:off
+        http
+                .authorizeRequests().anyRequest().authenticated()
+                .and()
+                .csrf().disable();
+        // @formatter:on
+    }
+
+    @Override
+    protected void configure(AuthenticationManagerBuilder auth) throws Exception {
+        auth.authenticationProvider(new RehashingAuthenticationProvider(userDetailsService, passwordEncoder));
+    }
+
+    @Override
+    @Bean
+    public AuthenticationManager authenticationManagerBean() throws Exception {
+        return super.authenticationManagerBean();
+    }
+}
+package com.piggymetrics.auth.config;
+
+import com.piggymetrics.auth.service.security.HashingRejectedExceptionTranslator;
+import com.piggymetrics.auth.service.security.MongoUserDetailsService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.env.Environment;
+import org.springframework.security.authentication.AuthenticationManager;
+import org.springframework.security.crypto.password.NoOpPasswordEncoder;
+import org.springframework.security.oauth2.config.annotation.configurers.ClientDetailsServiceConfigurer;
+import org.springframework.security.oauth2.config.annotation.web.configuration.AuthorizationServerConfigurerAdapter;
+import org.springframework.security.oauth2.config.annotation.web.configuration.EnableAuthorizationServer;
+import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerEndpointsConfigurer;
+import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerSecurityConfigurer;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+
+/**
+ * @author cdov
+ */
+@Configuration
+@EnableAuthorizationServer
+public class OAuth2AuthorizationConfig extends AuthorizationServerConfigurerAdapter {
+
+    /**
+     * Replaced by {@link JwtTokenConfig} in signed token mode
+     */
+    @Autowired(required = false)
+    private TokenStore tokenStore = new InMemoryTokenStore();
+
+    @Autowired(required = false)
+    private JwtAccessTokenConverter accessTokenConverter;
+
+    @Value("${security.oauth2.access-token-validity:43200}")
+    private int accessTokenValidity;
+
+    private final String NOOP_PASSWORD_ENCODE = "{noop}";
+
+    @Autowired
+    @Qualifier("authenticationManagerBean")
+    private AuthenticationManager authenticationManager;
+
+    @Autowired
+    private MongoUserDetailsService userDetailsService;
+
+    @Autowired
+    private Environment env;
+
+    @Override
+    public void configure(ClientDetailsServiceConfigurer clients) throws Exception {
+
+        // TODO persist clients details
+
+        // @formatter:off
+        clients.inMemory()
+                .withClient("browser")
+                .authorizedGrantTypes("refresh_token", "password")
+                .scopes("ui")
+                .accessTokenValiditySeconds(accessTokenValidity)
+                .and()
+                .withClient("account-service")
+                .secret(env.getProperty("ACCOUNT_SERVICE_PASSWORD"))
+                .authorizedGrantTypes("client_credentials", "refresh_token")
+                .scopes("server")
+                .accessTokenValiditySeconds(accessTokenValidity)
+                .and()
+                .withClient("statistics-service")
+                .secret(env.getProperty("STATISTICS_SERVICE_PASSWORD"))
+                .authorizedGrantTypes("client_credentials", "refresh_token")
+                .scopes("server")
+                .accessTokenValiditySeconds(accessTokenValidity)
+                .and()
+                .withClient("notification-service")
+                .secret(env.getProperty("NOTIFICATION_SERVICE_PASSWORD"))
+                .authorizedGrantTypes("client_credentials", "refresh_token")
+                .scopes("server")
+                .accessTokenValiditySeconds(accessTokenValidity);
+        // @formatter:on
+    }
+
+    @Override
+    public void configure(AuthorizationServerEndpointsConfigurer endpoints) throws Exception {
+        endpoints
+                .tokenStore(tokenStore)
+                .authenticationManager(authenticationManager)
+                .userDetailsService(userDetailsService)
+                .exceptionTranslator(new HashingRejectedExceptionTranslator());
+
+        if (accessTokenConverter != null) {
+            endpoints.accessTokenConverter(accessTokenConverter);
+        }
+    }
+
+    @Override
+    public void configure(AuthorizationServerSecurityConfigurer oauthServer) throws Exception {
+        oauthServer
+                .tokenKeyAccess("permitAll()")
+                .checkTokenAccess("isAuthenticated()")
+                .passwordEncoder(NoOpPasswordEncoder.getInstance());
+    }
+
+}
+
+package com.piggymetrics.auth.config;
+
+import com.piggymetrics.auth.repository.StoredRefreshTokenRepository;
+import com.piggymetrics.auth.service.security.PersistentRefreshJwtTokenStore;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.core.io.Resource;
+import org.springframework.security.oauth2.provider.token.TokenStore;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.KeyStoreKeyFactory;
 
-import static org.mockito.Mockito.*;
-import static org.mockito.MockitoAnnotations.initMocks;
+/**
+ * Signed token mode, enabled with {@code security.oauth2.token.mode=jwt}.
+ *
+ * Access tokens carry username, client, scopes and expiry and are signed with the key pair
+ * from a keystore shared by all auth-service instances. Resource servers verify them
+ * with the public key, served at {@code /oauth/token_key}.
+ */
+@Configuration
+@ConditionalOnProperty(name = "security.oauth2.token.mode", havingValue = "jwt")
+public class JwtTokenConfig {
 
-public class NotificationServiceImplTest {
+    @Value("${security.oauth2.jwt.key-store}")
+    private Resource keyStore;
 
-	@InjectMocks
-	private NotificationServiceImpl notificationService;
+    @Value("${security.oauth2.jwt.key-store-password}")
+    private String keyStorePassword;
 
-	@Mock
-	private RecipientService recipientService;
+    @Value("${security.oauth2.jwt.key-alias:auth-service}")
+    private String keyAlias;
 
-	@Mock
-	private AccountServiceClient client;
+    @Bean
+    public JwtAccessTokenConverter accessTokenConverter() {
+        JwtAccessTokenConverter converter = new JwtAccessTokenConverter();
+        converter.setKeyPair(new KeyStoreKeyFactory(keyStore, keyStorePassword.toCharArray()).getKeyPair(keyAlias));
+        return converter;
+    }
 
-	@Mock
-	private EmailService emailService;
+    @Bean
+    public TokenStore tokenStore(StoredRefreshTokenRepository repository) {
+        return new PersistentRefreshJwtTokenStore(accessTokenConverter(), repository);
+    }
+}
 
-	@Before
-	public void setup() {
-		initMocks(this);
-	}
+package com.piggymetrics.auth.controller;
 
-	@Test
-	public void shouldSendBackupNotificationsEvenWhenErrorsOccursForSomeRecipients() throws IOException, MessagingException, InterruptedException {
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.service.UserService;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.HttpHeaders;
+import org.springframework.security.access.prepost.PreAuthorize;
+import org.springframework.security.oauth2.common.OAuth2AccessToken;
+import org.springframework.security.oauth2.config.annotation.web.configuration.AuthorizationServerEndpointsConfiguration;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.authentication.OAuth2AuthenticationDetails;
+import org.springframework.web.bind.annotation.RequestBody;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+import org.springframework.web.bind.annotation.RestController;
 
-		final String attachment = "json";
+import javax.servlet.http.HttpServletResponse;
+import javax.validation.Valid;
+import java.security.Principal;
 
-		Recipient withError = new Recipient();
-		withError.setAccountName("with-error");
+@RestController
+@RequestMapping("/users")
+public class UserController {
 
-		Recipient withNoError = new Recipient();
-		withNoError.setAccountName("with-no-error");
+	@Autowired
+	private UserService userService;
 
-		when(client.getAccount(withError.getAccountName())).thenThrow(new RuntimeException());
-		when(client.getAccount(withNoError.getAccountName())).thenReturn(attachment);
+	@Autowired
+	private AuthorizationServerEndpointsConfiguration endpoints;
 
-		when(recipientService.findReadyToNotify(NotificationType.BACKUP)).thenReturn(ImmutableList.of(withNoError, withError));
+	/**
+	 * Returns the principal of the access token. Resource servers
+	 * cache it, so the response {@code Expires} with the token
+	 */
+	@RequestMapping(value = "/current", method = RequestMethod.GET)
+	public Principal getUser(Principal principal, HttpServletResponse response) {
 
-		notificationService.sendBackupNotifications();
+		if (principal instanceof OAuth2Authentication
+				&& ((OAuth2Authentication) principal).getDetails() instanceof OAuth2AuthenticationDetails) {
 
-		// TODO test concurrent code in a right way
+			String tokenValue = ((OAuth2AuthenticationDetails) ((OAuth2Authentication) principal).getDetails()).getTokenValue();
+			OAuth2AccessToken token = endpoints.getEndpointsConfigurer().getTokenStore().readAccessToken(tokenValue);
 
-		verify(emailService, timeout(100)).send(NotificationType.BACKUP, withNoError, attachment);
-		verify(recipientService, timeout(100)).markNotified(NotificationType.BACKUP, withNoError);
+			if (token != null && token.getExpiration() != null) {
+				response.setDateHeader(HttpHeaders.EXPIRES, token.getExpiration().getTime());
+			}
+		}
 
-		verify(recipientService, never()).markNotified(NotificationType.BACKUP, withError);
+		return principal;
 	}
 
-	@Test
-	public void shouldSendRemindNotificationsEvenWhenErrorsOccursForSomeRecipients() throws IOException, MessagingException, InterruptedException {
-
-		final String attachment = "json";
+	@PreAuthorize("#oauth2.hasScope('server')")
+	@RequestMapping(method = RequestMethod.POST)
+	public void createUser(@Valid @RequestBody User user) {
+		userService.create(user);
+	}
+}
 
-		Recipient withError = new Recipient();
-		withError.setAccountName("with-error");
+package com.piggymetrics.auth.controller;
 
-		Recipient withNoError = new Recipient();
-		withNoError.setAccountName("with-no-error");
+import com.piggymetrics.auth.service.security.PasswordHashingRejectedException;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+import org.springframework.web.bind.annotation.ResponseStatus;
 
-		when(recipientService.findReadyToNotify(NotificationType.REMIND)).thenReturn(ImmutableList.of(withNoError, withError));
-		doThrow(new RuntimeException()).when(emailService).send(NotificationType.REMIND, withError, null);
+import javax.servlet.http.HttpServletResponse;
 
-		notificationService.sendRemindNotifications();
+@ControllerAdvice
+public class ErrorHandler {
 
-		// TODO test concurrent code in a right way
+	private static final String RETRY_AFTER_SECONDS = "1";
 
-		verify(emailService, timeout(100)).send(NotificationType.REMIND, withNoError, null);
-		verify(recipientService, timeout(100)).markNotified(NotificationType.REMIND, withNoError);
+	private final Logger log = LoggerFactory.getLogger(getClass());
 
-		verify(recipientService, never()).markNotified(NotificationType.REMIND, withError);
+	@ExceptionHandler(PasswordHashingRejectedException.class)
+	@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+	public void processHashingRejected(PasswordHashingRejectedException e, HttpServletResponse response) {
+		log.warn("Returning HTTP 503 Service Unavailable: {}", e.getMessage());
+		response.setHeader(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
 	}
 }
-package com.piggymetrics.notification.service;
 
-import com.google.common.collect.ImmutableList;
-import com.google.common.collect.ImmutableMap;
-import com.piggymetrics.notification.domain.Frequency;
-import com.piggymetrics.notification.domain.NotificationSettings;
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import com.piggymetrics.notification.repository.RecipientRepository;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
+package com.piggymetrics.auth.service;
 
-import java.util.Date;
-import java.util.List;
+import com.piggymetrics.auth.domain.User;
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertNotNull;
-import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
-import static org.mockito.MockitoAnnotations.initMocks;
+public interface UserService {
 
-public class RecipientServiceImplTest {
+	void create(User user);
 
-	@InjectMocks
-	private RecipientServiceImpl recipientService;
+}
 
-	@Mock
-	private RecipientRepository repository;
+package com.piggymetrics.auth.service;
 
-	@Before
-	public void setup() {
-		initMocks(this);
-	}
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.repository.UserRepository;
+import com.piggymetrics.auth.service.security.PooledBCryptPasswordEncoder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.stereotype.Service;
+import org.springframework.util.Assert;
 
-	@Test
-	public void shouldFindByAccountName() {
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
+import java.util.Optional;
 
-		when(repository.findByAccountName(recipient.getAccountName())).thenReturn(recipient);
-		Recipient found = recipientService.findByAccountName(recipient.getAccountName());
+@Service
+public class UserServiceImpl implements UserService {
 
-		assertEquals(recipient, found);
-	}
+	private final Logger log = LoggerFactory.getLogger(getClass());
 
-	@Test(expected = IllegalArgumentException.class)
-	public void shouldFailToFindRecipientWhenAccountNameIsEmpty() {
-		recipientService.findByAccountName("");
-	}
+	@Autowired
+	private PooledBCryptPasswordEncoder encoder;
 
-	@Test
-	public void shouldSaveRecipient() {
+	@Autowired
+	private UserRepository repository;
 
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(true);
-		remind.setFrequency(Frequency.WEEKLY);
-		remind.setLastNotified(null);
+	@Autowired
+	private UserCache userCache;
 
-		NotificationSettings backup = new NotificationSettings();
-		backup.setActive(false);
-		backup.setFrequency(Frequency.MONTHLY);
-		backup.setLastNotified(new Date());
+	@Override
+	public void create(User user) {
 
-		Recipient recipient = new Recipient();
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.BACKUP, backup,
-				NotificationType.REMIND, remind
-		));
+		Optional<User> existing = repository.findById(user.getUsername());
+		existing.ifPresent(it-> {throw new IllegalArgumentException("user already exists: " + it.getUsername());});
 
-		Recipient saved = recipientService.save("test", recipient);
+		String hash = encoder.encode(user.getPassword());
+		user.setPassword(hash);
 
-		verify(repository).save(recipient);
-		assertNotNull(saved.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified());
-		assertEquals("test", saved.getAccountName());
+		repository.save(user);
+		userCache.removeUserFromCache(user.getUsername());
+
+		log.info("new user has been created: {}", user.getUsername());
 	}
+}
 
-	@Test
-	public void shouldFindReadyToNotifyWhenNotificationTypeIsBackup() {
-		final List<Recipient> recipients = ImmutableList.of(new Recipient());
-		when(repository.findReadyForBackup()).thenReturn(recipients);
+package com.piggymetrics.auth.service.security;
 
-		List<Recipient> found = recipientService.findReadyToNotify(NotificationType.BACKUP);
-		assertEquals(recipients, found);
-	}
+import com.piggymetrics.auth.domain.User;
+import com.piggymetrics.auth.repository.UserRepository;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.security.core.userdetails.UserDetailsService;
+import org.springframework.security.core.userdetails.UsernameNotFoundException;
+import org.springframework.stereotype.Service;
 
-	@Test
-	public void shouldFindReadyToNotifyWhenNotificationTypeIsRemind() {
-		final List<Recipient> recipients = ImmutableList.of(new Recipient());
-		when(repository.findReadyForRemind()).thenReturn(recipients);
+/**
+ * Loads users for password and refresh token grants, the latter
+ * happening on each browser session refresh, so users are cached
+ */
+@Service
+public class MongoUserDetailsService implements UserDetailsService {
 
-		List<Recipient> found = recipientService.findReadyToNotify(NotificationType.REMIND);
-		assertEquals(recipients, found);
+	private final UserRepository repository;
+
+	private final UserCache cache;
+
+	@Autowired
+	public MongoUserDetailsService(UserRepository repository, UserCache cache) {
+		this.repository = repository;
+		this.cache = cache;
 	}
 
-	@Test
-	public void shouldMarkAsNotified() {
+	@Override
+	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
 
-		NotificationSettings remind = new NotificationSettings();
-		remind.setActive(true);
-		remind.setFrequency(Frequency.WEEKLY);
-		remind.setLastNotified(null);
+		UserDetails cached = cache.getUserFromCache(username);
+		if (cached != null) {
+			return cached;
+		}
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
-		recipient.setScheduledNotifications(ImmutableMap.of(
-				NotificationType.REMIND, remind
-		));
+		User user = repository.findById(username).orElseThrow(()->new UsernameNotFoundException(username));
+		cache.putUserInCache(user);
 
-		recipientService.markNotified(NotificationType.REMIND, recipient);
-		assertNotNull(recipient.getScheduledNotifications().get(NotificationType.REMIND).getLastNotified());
-		verify(repository).save(recipient);
+		return user;
+	}
+
+	/**
+	 * Replaces password hash of given user
+	 *
+	 * @param user user to update
+	 * @param encodedPassword new password hash
+	 */
+	public void updatePassword(User user, String encodedPassword) {
+		user.setPassword(encodedPassword);
+		repository.save(user);
+		cache.removeUserFromCache(user.getUsername());
 	}
 }
-package com.piggymetrics.notification.service;
 
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.ArgumentCaptor;
-import org.mockito.Captor;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
-import org.springframework.core.env.Environment;
-import org.springframework.mail.javamail.JavaMailSender;
+package com.piggymetrics.auth.service.security;
 
-import javax.mail.MessagingException;
-import javax.mail.Session;
-import javax.mail.internet.MimeMessage;
-import java.io.IOException;
-import java.util.Properties;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.concurrent.CustomizableThreadFactory;
+import org.springframework.security.crypto.bcrypt.BCrypt;
+import org.springframework.security.crypto.password.PasswordEncoder;
+import org.springframework.stereotype.Component;
 
-import static org.junit.Assert.assertEquals;
-import static org.mockito.Mockito.verify;
-import static org.mockito.Mockito.when;
-import static org.mockito.MockitoAnnotations.initMocks;
+import javax.annotation.PreDestroy;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
-public class EmailServiceImplTest {
+/**
+ * BCrypt encoder, which hashes on a dedicated pool sized to CPU cores.
+ *
+ * Caller waits for the result, but at most {@code threads} hashes burn CPU at once
+ * and at most {@code queue-capacity} wait for it. Beyond that a request is rejected
+ * immediately with {@link PasswordHashingRejectedException}, instead of piling up.
+ *
+ * Cost must be the same on all instances, otherwise each of them would rehash passwords
+ * hashed by the others, so it is configured rather than measured on startup.
+ * {@code PasswordCostCalibration} among the benchmarks calibrates it offline
+ * on the target hardware.
+ */
+@Component
+public class PooledBCryptPasswordEncoder implements PasswordEncoder {
+
+	private static final Pattern BCRYPT = Pattern.compile("\\A\\$2a?\\$(\\d\\d)\\$[./0-9A-Za-z]{53}");
+
+	private static final int MIN_COST = 4;
+
+	private static final int MAX_COST = 31;
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
+
+	private final int cost;
 
-	@InjectMocks
-	private EmailServiceImpl emailService;
+	private final ThreadPoolExecutor executor;
 
-	@Mock
-	private JavaMailSender mailSender;
+	private final Timer hashTimer = Metrics.timer("auth.password.hash");
 
-	@Mock
-	private Environment env;
+	private final Counter rejected = Metrics.counter("auth.password.rejected");
 
-	@Captor
-	private ArgumentCaptor<MimeMessage> captor;
+	/**
+	 * @param cost BCrypt log rounds, shared by all instances
+	 * @param threads hashing threads, or {@code 0} for the number of cores
+	 * @param queueCapacity hashes allowed to wait for a thread
+	 */
+	@Autowired
+	public PooledBCryptPasswordEncoder(@Value("${auth.password.cost:10}") int cost,
+									   @Value("${auth.password.threads:0}") int threads,
+									   @Value("${auth.password.queue-capacity:64}") int queueCapacity) {
 
-	@Before
-	public void setup() {
-		initMocks(this);
-		when(mailSender.createMimeMessage())
-				.thenReturn(new MimeMessage(Session.getDefaultInstance(new Properties())));
+		this(cost, createExecutor(threads, queueCapacity));
 	}
 
-	@Test
-	public void shouldSendBackupEmail() throws MessagingException, IOException {
+	PooledBCryptPasswordEncoder(int cost, ThreadPoolExecutor executor) {
 
-		final String subject = "subject";
-		final String text = "text";
-		final String attachment = "attachment.json";
+		if (cost < MIN_COST || cost > MAX_COST) {
+			throw new IllegalArgumentException("BCrypt cost must be within [" + MIN_COST + ", " + MAX_COST + "]: " + cost);
+		}
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
+		this.cost = cost;
+		this.executor = executor;
 
-		when(env.getProperty(NotificationType.BACKUP.getSubject())).thenReturn(subject);
-		when(env.getProperty(NotificationType.BACKUP.getText())).thenReturn(text);
-		when(env.getProperty(NotificationType.BACKUP.getAttachment())).thenReturn(attachment);
+		Metrics.gauge("auth.password.queued", executor, e -> e.getQueue().size());
 
-		emailService.send(NotificationType.BACKUP, recipient, "{\"name\":\"test\"");
+		log.info("password hashing cost is {}, pool size is {}", cost, executor.getMaximumPoolSize());
+	}
 
-		verify(mailSender).send(captor.capture());
+	private static ThreadPoolExecutor createExecutor(int threads, int queueCapacity) {
+		int poolSize = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+		return new ThreadPoolExecutor(poolSize, poolSize, 0, TimeUnit.MILLISECONDS,
+				new ArrayBlockingQueue<>(queueCapacity), new CustomizableThreadFactory("password-hashing-"));
+	}
 
-		MimeMessage message = captor.getValue();
-		assertEquals(subject, message.getSubject());
-		// TODO check other fields
+	@Override
+	public String encode(CharSequence rawPassword) {
+		return submit(() -> BCrypt.hashpw(rawPassword.toString(), BCrypt.gensalt(cost)));
 	}
 
-	@Test
-	public void shouldSendRemindEmail() throws MessagingException, IOException {
+	@Override
+	public boolean matches(CharSequence rawPassword, String encodedPassword) {
 
-		final String subject = "subject";
-		final String text = "text";
+		if (encodedPassword == null || !BCRYPT.matcher(encodedPassword).matches()) {
+			log.warn("encoded password does not look like BCrypt");
+			return false;
+		}
 
-		Recipient recipient = new Recipient();
-		recipient.setAccountName("test");
-		recipient.setEmail("test@test.com");
+		return submit(() -> BCrypt.checkpw(rawPassword.toString(), encodedPassword));
+	}
 
-		when(env.getProperty(NotificationType.REMIND.getSubject())).thenReturn(subject);
-		when(env.getProperty(NotificationType.REMIND.getText())).thenReturn(text);
+	/**
+	 * @return {@code true}, if given hash has been made with another cost
+	 * and should be replaced once the raw password is known
+	 */
+	public boolean needsRehash(String encodedPassword) {
 
-		emailService.send(NotificationType.REMIND, recipient, null);
+		if (encodedPassword == null) {
+			return false;
+		}
 
-		verify(mailSender).send(captor.capture());
+		Matcher matcher = BCRYPT.matcher(encodedPassword);
+		return matcher.matches() && Integer.parseInt(matcher.group(1)) != cost;
+	}
 
-		MimeMessage message = captor.getValue();
-		assertEquals(subject, message.getSubject());
-		// TODO check other fields
+	public int getCost() {
+		return cost;
 	}
-}
-package com.piggymetrics.notification;
 
-import com.piggymetrics.notification.repository.converter.FrequencyReaderConverter;
-import com.piggymetrics.notification.repository.converter.FrequencyWriterConverter;
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
-import org.springframework.cloud.openfeign.EnableFeignClients;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.data.mongodb.core.convert.CustomConversions;
-import org.springframework.scheduling.annotation.EnableScheduling;
-import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableOAuth2Client;
+	private <T> T submit(Callable<T> task) {
 
-import java.util.Arrays;
+		Future<T> future;
 
-@SpringBootApplication
-@EnableDiscoveryClient
-@EnableOAuth2Client
-@EnableFeignClients
-@EnableGlobalMethodSecurity(prePostEnabled = true)
-@EnableScheduling
-public class NotificationServiceApplication {
+		try {
+			future = executor.submit(() -> hashTimer.recordCallable(task));
+		} catch (RejectedExecutionException e) {
+			rejected.increment();
+			throw new PasswordHashingRejectedException("password hashing pool is saturated");
+		}
 
-	public static void main(String[] args) {
-		SpringApplication.run(NotificationServiceApplication.class, args);
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("interrupted while waiting for password hashing", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException(e.getCause());
+		}
 	}
 
-	@Configuration
-	static class CustomConversionsConfig {
-
-		@Bean
-		public CustomConversions customConversions() {
-			return new CustomConversions(Arrays.asList(new FrequencyReaderConverter(),
-					new FrequencyWriterConverter()));
-		}
+	@PreDestroy
+	public void close() {
+		executor.shutdownNow();
 	}
 }
 
-package com.piggymetrics.notification.repository;
+package com.piggymetrics.auth.service.security;
 
-import com.piggymetrics.notification.domain.Recipient;
-import org.springframework.data.mongodb.repository.Query;
-import org.springframework.data.repository.CrudRepository;
-import org.springframework.stereotype.Repository;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.security.core.userdetails.UserCache;
+import org.springframework.security.core.userdetails.UserDetails;
+import org.springframework.stereotype.Component;
 
-import java.util.List;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongSupplier;
 
-@Repository
-public interface RecipientRepository extends CrudRepository<Recipient, String> {
+/**
+ * Keeps recently loaded users for {@code ttl}, evicting the least
+ * recently used ones above {@code max-size}.
+ *
+ * Entries are removed by this instance writes, while {@code ttl} bounds
+ * staleness of a password changed by another instance.
+ */
+@Component
+public class BoundedUserCache implements UserCache {
 
-	Recipient findByAccountName(String name);
+	private final int maxSize;
 
-	@Query("{ $and: [ {'scheduledNotifications.BACKUP.active': true }, { $where: 'this.scheduledNotifications.BACKUP.lastNotified < " +
-			"new Date(new Date().setDate(new Date().getDate() - this.scheduledNotifications.BACKUP.frequency ))' }] }")
-	List<Recipient> findReadyForBackup();
+	private final long ttl;
 
-	@Query("{ $and: [ {'scheduledNotifications.REMIND.active': true }, { $where: 'this.scheduledNotifications.REMIND.lastNotified < " +
-			"new Date(new Date().setDate(new Date().getDate() - this.scheduledNotifications.REMIND.frequency ))' }] }")
-	List<Recipient> findReadyForRemind();
+	private final LongSupplier clock;
 
-}
+	/**
+	 * Access ordered, guarded by {@code this}
+	 */
+	private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
 
-package com.piggymetrics.notification.repository.converter;
+	private final Counter hits = Metrics.counter("auth.user.cache.hits");
 
-import com.piggymetrics.notification.domain.Frequency;
-import org.springframework.core.convert.converter.Converter;
-import org.springframework.stereotype.Component;
+	private final Counter misses = Metrics.counter("auth.user.cache.misses");
 
-@Component
-public class FrequencyReaderConverter implements Converter<Integer, Frequency> {
+	private final Counter evictions = Metrics.counter("auth.user.cache.evictions");
 
-	@Override
-	public Frequency convert(Integer days) {
-		return Frequency.withDays(days);
+	@Autowired
+	public BoundedUserCache(@Value("${auth.user-cache.max-size:1000}") int maxSize,
+							@Value("${auth.user-cache.ttl:60000}") long ttl) {
+		this(maxSize, ttl, System::currentTimeMillis);
 	}
-}
-
-package com.piggymetrics.notification.repository.converter;
 
-import com.piggymetrics.notification.domain.Frequency;
-import org.springframework.core.convert.converter.Converter;
-import org.springframework.stereotype.Component;
+	BoundedUserCache(int maxSize, long ttl, LongSupplier clock) {
+		this.maxSize = maxSize;
+		this.ttl = ttl;
+		this.clock = clock;
 
-@Component
-public class FrequencyWriterConverter implements Converter<Frequency, Integer> {
+		Metrics.gauge("auth.user.cache.size", this, BoundedUserCache::size);
+	}
 
 	@Override
-	public Integer convert(Frequency frequency) {
-		return frequency.getDays();
-	}
-}
+	public synchronized UserDetails getUserFromCache(String username) {
 
-package com.piggymetrics.notification.config;
+		Entry entry = entries.get(username);
 
-import feign.RequestInterceptor;
-import org.springframework.boot.context.properties.ConfigurationProperties;
-import org.springframework.cloud.security.oauth2.client.feign.OAuth2FeignRequestInterceptor;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.security.oauth2.client.DefaultOAuth2ClientContext;
-import org.springframework.security.oauth2.client.OAuth2RestTemplate;
-import org.springframework.security.oauth2.client.token.grant.client.ClientCredentialsResourceDetails;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
-import org.springframework.security.oauth2.config.annotation.web.configuration.ResourceServerConfigurerAdapter;
+		if (entry == null || clock.getAsLong() >= entry.expiresAt) {
+			if (entry != null) {
+				entries.remove(username);
+			}
+			misses.increment();
+			return null;
+		}
 
-/**
- * @author cdov
- */
-@Configuration
-@EnableResourceServer
-public class ResourceServerConfig extends ResourceServerConfigurerAdapter {
-    @Bean
-    @ConfigurationProperties(prefix = "security.oauth2.client")
-    public ClientCredentialsResourceDetails clientCredentialsResourceDetails() {
-        return new ClientCredentialsResourceDetails();
-    }
-    @Bean
-    public RequestInterceptor oauth2FeignRequestInterceptor(){
-        return new OAuth2FeignRequestInterceptor(new DefaultOAuth2ClientContext(), clientCredentialsResourceDetails());
-    }
+		hits.increment();
+		return entry.user;
+	}
 
-    @Bean
-    public OAuth2RestTemplate clientCredentialsRestTemplate() {
-        return new OAuth2RestTemplate(clientCredentialsResourceDetails());
-    }
-}
+	@Override
+	public synchronized void putUserInCache(UserDetails user) {
 
-package com.piggymetrics.notification.controller;
+		entries.put(user.getUsername(), new Entry(user, clock.getAsLong() + ttl));
 
-import com.piggymetrics.notification.domain.Recipient;
-import com.piggymetrics.notification.service.RecipientService;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.RestController;
+		Iterator<Entry> iterator = entries.values().iterator();
+		while (entries.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+			evictions.increment();
+		}
+	}
 
-import javax.validation.Valid;
-import java.security.Principal;
+	@Override
+	public synchronized void removeUserFromCache(String username) {
+		entries.remove(username);
+	}
 
-@RestController
-@RequestMapping("/recipients")
-public class RecipientController {
+	public synchronized int size() {
+		return entries.size();
+	}
 
-	@Autowired
-	private RecipientService recipientService;
+	private static class Entry {
 
-	@RequestMapping(path = "/current", method = RequestMethod.GET)
-	public Object getCurrentNotificationsSettings(Principal principal) {
-		return recipientService.findByAccountName(principal.getName());
-	}
+		private final UserDetails user;
 
-	@RequestMapping(path = "/current", method = RequestMethod.PUT)
-	public Object saveCurrentNotificationsSettings(Principal principal, @Valid @RequestBody Recipient recipient) {
-		return recipientService.save(principal.getName(), recipient);
+		private final long expiresAt;
+
+		Entry(UserDetails user, long expiresAt) {
+			this.user = user;
+			this.expiresAt = expiresAt;
+		}
 	}
 }
 
-package com.piggymetrics.notification.service;
+package com.piggymetrics.auth.service.security;
 
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.cloud.context.config.annotation.RefreshScope;
-import org.springframework.core.env.Environment;
-import org.springframework.core.io.ByteArrayResource;
-import org.springframework.mail.javamail.JavaMailSender;
-import org.springframework.mail.javamail.MimeMessageHelper;
-import org.springframework.stereotype.Service;
-import org.springframework.util.StringUtils;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.security.oauth2.common.exceptions.OAuth2Exception;
+import org.springframework.security.oauth2.provider.error.DefaultWebResponseExceptionTranslator;
+import org.springframework.security.oauth2.provider.error.WebResponseExceptionTranslator;
 
-import javax.mail.MessagingException;
-import javax.mail.internet.MimeMessage;
-import java.io.IOException;
-import java.text.MessageFormat;
+/**
+ * Translates {@link PasswordHashingRejectedException}, thrown while a token is granted
+ * with a password, into {@code 503 temporarily_unavailable} with {@code Retry-After},
+ * same as {@link com.piggymetrics.auth.controller.ErrorHandler} does for controllers.
+ * Other exceptions are translated as usual.
+ */
+public class HashingRejectedExceptionTranslator implements WebResponseExceptionTranslator<OAuth2Exception> {
 
-@Service
-@RefreshScope
-public class EmailServiceImpl implements EmailService {
+	private static final String RETRY_AFTER_SECONDS = "1";
 
 	private final Logger log = LoggerFactory.getLogger(getClass());
 
-	@Autowired
-	private JavaMailSender mailSender;
-
-	@Autowired
-	private Environment env;
+	private final WebResponseExceptionTranslator<OAuth2Exception> delegate = new DefaultWebResponseExceptionTranslator();
 
 	@Override
-	public void send(NotificationType type, Recipient recipient, String attachment) throws MessagingException, IOException {
+	public ResponseEntity<OAuth2Exception> translate(Exception e) throws Exception {
 
-		final String subject = env.getProperty(type.getSubject());
-		final String text = MessageFormat.format(env.getProperty(type.getText()), recipient.getAccountName());
+		for (Throwable cause = e; cause != null; cause = cause.getCause()) {
+			if (cause instanceof PasswordHashingRejectedException) {
 
-		MimeMessage message = mailSender.createMimeMessage();
+				log.warn("Returning HTTP 503 Service Unavailable: {}", cause.getMessage());
 
-		MimeMessageHelper helper = new MimeMessageHelper(message, true);
-		helper.setTo(recipient.getEmail());
-		helper.setSubject(subject);
-		helper.setText(text);
+				HttpHeaders headers = new HttpHeaders();
+				headers.set(HttpHeaders.RETRY_AFTER, RETRY_AFTER_SECONDS);
 
-		if (StringUtils.hasLength(attachment)) {
-			helper.addAttachment(env.getProperty(type.getAttachment()), new ByteArrayResource(attachment.getBytes()));
+				return new ResponseEntity<>(new TemporarilyUnavailableException(cause.getMessage()),
+						headers, HttpStatus.SERVICE_UNAVAILABLE);
+			}
 		}
 
-		mailSender.send(message);
+		return delegate.translate(e);
+	}
 
-		log.info("{} email notification has been send to {}", type, recipient.getEmail());
+	private static class TemporarilyUnavailableException extends OAuth2Exception {
+
+		TemporarilyUnavailableException(String message) {
+			super(message);
+		}
+
+		@Override
+		public String getOAuth2ErrorCode() {
+			return "temporarily_unavailable";
+		}
+
+		@Override
+		public int getHttpErrorCode() {
+			return HttpStatus.SERVICE_UNAVAILABLE.value();
+		}
 	}
 }
 
-package com.piggymetrics.notification.service;
+package com.piggymetrics.auth.service.security;
 
-import com.piggymetrics.notification.client.AccountServiceClient;
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.scheduling.annotation.Scheduled;
-import org.springframework.stereotype.Service;
+/**
+ * Thrown when password hashing pool is saturated,
+ * so the caller should retry later
+ */
+public class PasswordHashingRejectedException extends RuntimeException {
 
-import java.util.List;
-import java.util.concurrent.CompletableFuture;
+	public PasswordHashingRejectedException(String message) {
+		super(message);
+	}
+}
+
+package com.piggymetrics.auth.service.security;
+
+import com.piggymetrics.auth.domain.User;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.authentication.dao.DaoAuthenticationProvider;
+import org.springframework.security.core.AuthenticationException;
+import org.springframework.security.core.userdetails.UserDetails;
 
-@Service
-public class NotificationServiceImpl implements NotificationService {
+/**
+ * Replaces hash of a user password made with outdated cost, right
+ * after it has been verified, i.e. while the raw password is known
+ */
+public class RehashingAuthenticationProvider extends DaoAuthenticationProvider {
 
 	private final Logger log = LoggerFactory.getLogger(getClass());
 
-	@Autowired
-	private AccountServiceClient client;
+	private final PooledBCryptPasswordEncoder encoder;
 
-	@Autowired
-	private RecipientService recipientService;
+	private final MongoUserDetailsService userDetailsService;
 
-	@Autowired
-	private EmailService emailService;
+	public RehashingAuthenticationProvider(MongoUserDetailsService userDetailsService,
+										   PooledBCryptPasswordEncoder encoder) {
+		this.encoder = encoder;
+		this.userDetailsService = userDetailsService;
+		setUserDetailsService(userDetailsService);
+		setPasswordEncoder(encoder);
+	}
 
 	@Override
-	@Scheduled(cron = "${backup.cron}")
-	public void sendBackupNotifications() {
+	protected void additionalAuthenticationChecks(UserDetails userDetails,
+												  UsernamePasswordAuthenticationToken authentication)
+			throws AuthenticationException {
 
-		final NotificationType type = NotificationType.BACKUP;
+		super.additionalAuthenticationChecks(userDetails, authentication);
 
-		List<Recipient> recipients = recipientService.findReadyToNotify(type);
-		log.info("found {} recipients for backup notification", recipients.size());
+		if (userDetails instanceof User && encoder.needsRehash(userDetails.getPassword())) {
+			rehash((User) userDetails, authentication.getCredentials().toString());
+		}
+	}
 
-		recipients.forEach(recipient -> CompletableFuture.runAsync(() -> {
-			try {
-				String attachment = client.getAccount(recipient.getAccountName());
-				emailService.send(type, recipient, attachment);
-				recipientService.markNotified(type, recipient);
-			} catch (Throwable t) {
-				log.error("an error during backup notification for {}", recipient, t);
-			}
-		}));
+	private void rehash(User user, String rawPassword) {
+		try {
+			userDetailsService.updatePassword(user, encoder.encode(rawPassword));
+			log.info("password of user {} has been rehashed with cost {}", user.getUsername(), encoder.getCost());
+		} catch (RuntimeException e) {
+			log.warn("failed to rehash password of user {}, will retry on next login", user.getUsername(), e);
+		}
 	}
+}
 
-	@Override
-	@Scheduled(cron = "${remind.cron}")
-	public void sendRemindNotifications() {
+package com.piggymetrics.auth.service.security;
 
-		final NotificationType type = NotificationType.REMIND;
+import com.piggymetrics.auth.domain.StoredRefreshToken;
+import com.piggymetrics.auth.repository.StoredRefreshTokenRepository;
+import org.springframework.security.jwt.JwtHelper;
+import org.springframework.security.oauth2.common.ExpiringOAuth2RefreshToken;
+import org.springframework.security.oauth2.common.OAuth2RefreshToken;
+import org.springframework.security.oauth2.common.exceptions.InvalidTokenException;
+import org.springframework.security.oauth2.common.util.JsonParser;
+import org.springframework.security.oauth2.common.util.JsonParserFactory;
+import org.springframework.security.oauth2.provider.OAuth2Authentication;
+import org.springframework.security.oauth2.provider.token.AccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtAccessTokenConverter;
+import org.springframework.security.oauth2.provider.token.store.JwtTokenStore;
 
-		List<Recipient> recipients = recipientService.findReadyToNotify(type);
-		log.info("found {} recipients for remind notification", recipients.size());
+/**
+ * Token store of signed self-contained tokens, which keeps no access tokens at all.
+ *
+ * Ids of issued refresh tokens are stored in the shared database, so that any
+ * auth-service instance accepts them, and a refresh token is revoked by removing it.
+ * Revoked access tokens stay valid until they expire, so their validity is expected to be short.
+ */
+public class PersistentRefreshJwtTokenStore extends JwtTokenStore {
 
-		recipients.forEach(recipient -> CompletableFuture.runAsync(() -> {
-			try {
-				emailService.send(type, recipient, null);
-				recipientService.markNotified(type, recipient);
-			} catch (Throwable t) {
-				log.error("an error during remind notification for {}", recipient, t);
-			}
-		}));
+	private final StoredRefreshTokenRepository repository;
+
+	private final JsonParser parser = JsonParserFactory.create();
+
+	public PersistentRefreshJwtTokenStore(JwtAccessTokenConverter converter, StoredRefreshTokenRepository repository) {
+		super(converter);
+		this.repository = repository;
 	}
-}
 
-package com.piggymetrics.notification.service;
+	@Override
+	public void storeRefreshToken(OAuth2RefreshToken refreshToken, OAuth2Authentication authentication) {
 
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
+		StoredRefreshToken stored = new StoredRefreshToken();
+		stored.setId(idOf(refreshToken.getValue()));
+		stored.setUsername(authentication.getName());
+		stored.setClientId(authentication.getOAuth2Request().getClientId());
 
-import java.util.List;
+		if (refreshToken instanceof ExpiringOAuth2RefreshToken) {
+			stored.setExpiresAt(((ExpiringOAuth2RefreshToken) refreshToken).getExpiration());
+		}
 
-public interface RecipientService {
+		repository.save(stored);
+	}
 
 	/**
-	 * Finds recipient by account name
-	 *
-	 * @param accountName
-	 * @return recipient
+	 * @return refresh token or {@code null}, if it has been revoked
 	 */
-	Recipient findByAccountName(String accountName);
+	@Override
+	public OAuth2RefreshToken readRefreshToken(String tokenValue) {
 
-	/**
-	 * Finds recipients, which are ready to be notified
-	 * at the moment
-	 *
-	 * @param type
-	 * @return recipients to notify
-	 */
-	List<Recipient> findReadyToNotify(NotificationType type);
+		OAuth2RefreshToken token = super.readRefreshToken(tokenValue);
+
+		if (token == null || !repository.existsById(idOf(tokenValue))) {
+			return null;
+		}
+
+		return token;
+	}
+
+	@Override
+	public void removeRefreshToken(OAuth2RefreshToken token) {
+		repository.deleteById(idOf(token.getValue()));
+	}
 
 	/**
-	 * Creates or updates recipient settings
-	 *
-	 * @param accountName
-	 * @param recipient
-	 * @return updated recipient
+	 * Revokes all refresh tokens issued to given user
 	 */
-	Recipient save(String accountName, Recipient recipient);
+	public void removeRefreshTokens(String username) {
+		repository.deleteByUsername(username);
+	}
 
 	/**
-	 * Updates {@link NotificationType} {@code lastNotified} property with current date
-	 * for given recipient.
-	 *
-	 * @param type
-	 * @param recipient
+	 * Refresh token value is encoded again on each refresh,
+	 * while its {@code jti} claim stays the same
 	 */
-	void markNotified(NotificationType type, Recipient recipient);
-}
+	private String idOf(String tokenValue) {
 
-package com.piggymetrics.notification.service;
+		Object id;
 
-public interface NotificationService {
+		try {
+			id = parser.parseMap(JwtHelper.decode(tokenValue).getClaims()).get(AccessTokenConverter.JTI);
+		} catch (RuntimeException e) {
+			throw new InvalidTokenException("Cannot decode refresh token", e);
+		}
 
-	void sendBackupNotifications();
+		if (id == null) {
+			throw new InvalidTokenException("Refresh token has no id");
+		}
 
-	void sendRemindNotifications();
+		return id.toString();
+	}
 }
 
-package com.piggymetrics.notification.service;
+package com.piggymetrics.auth.domain;
 
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
-import com.piggymetrics.notification.repository.RecipientRepository;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.mapping.Document;
+import org.springframework.security.core.GrantedAuthority;
+import org.springframework.security.core.userdetails.UserDetails;
 
-import java.util.Date;
 import java.util.List;
 
-@Service
-public class RecipientServiceImpl implements RecipientService {
+@Document(collection = "users")
+public class User implements UserDetails {
 
-	private final Logger log = LoggerFactory.getLogger(getClass());
+	@Id
+	private String username;
 
-	@Autowired
-	private RecipientRepository repository;
+	private String password;
 
 	@Override
-	public Recipient findByAccountName(String accountName) {
-		Assert.hasLength(accountName);
-		return repository.findByAccountName(accountName);
+	public String getPassword() {
+		return password;
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
 	@Override
-	public Recipient save(String accountName, Recipient recipient) {
-
-		recipient.setAccountName(accountName);
-		recipient.getScheduledNotifications().values()
-				.forEach(settings -> {
-					if (settings.getLastNotified() == null) {
-						settings.setLastNotified(new Date());
-					}
-				});
+	public String getUsername() {
+		return username;
+	}
 
-		repository.save(recipient);
+	@Override
+	public List<GrantedAuthority> getAuthorities() {
+		return null;
+	}
 
-		log.info("recipient {} settings has been updated", recipient);
+	public void setUsername(String username) {
+		this.username = username;
+	}
 
-		return recipient;
+	public void setPassword(String password) {
+		this.password = password;
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
 	@Override
-	public List<Recipient> findReadyToNotify(NotificationType type) {
-		switch (type) {
-			case BACKUP:
-				return repository.findReadyForBackup();
-			case REMIND:
-				return repository.findReadyForRemind();
-			default:
-				throw new IllegalArgumentException();
-		}
+	public boolean isAccountNonExpired() {
+		return true;
 	}
 
-	/**
-	 * {@inheritDoc}
-	 */
 	@Override
-	public void markNotified(NotificationType type, Recipient recipient) {
-		recipient.getScheduledNotifications().get(type).setLastNotified(new Date());
-		repository.save(recipient);
+	public boolean isAccountNonLocked() {
+		return true;
 	}
-}
 
-package com.piggymetrics.notification.service;
+	@Override
+	public boolean isCredentialsNonExpired() {
+		return true;
+	}
 
-import com.piggymetrics.notification.domain.NotificationType;
-import com.piggymetrics.notification.domain.Recipient;
+	@Override
+	public boolean isEnabled() {
+		return true;
+	}
+}
 
-import javax.mail.MessagingException;
-import java.io.IOException;
+package com.piggymetrics.auth.domain;
 
-public interface EmailService {
+import org.springframework.data.annotation.Id;
+import org.springframework.data.mongodb.core.index.Indexed;
+import org.springframework.data.mongodb.core.mapping.Document;
 
-	void send(NotificationType type, Recipient recipient, String attachment) throws MessagingException, IOException;
+import java.util.Date;
 
-}
+/**
+ * Refresh token issued in signed token mode. Token itself is self-contained,
+ * only its id is kept to tell issued tokens from revoked ones.
+ */
+@Document(collection = "refresh_tokens")
+public class StoredRefreshToken {
 
-package com.piggymetrics.notification.domain;
+	/**
+	 * Token id ({@code jti} claim)
+	 */
+	@Id
+	private String id;
 
-import javax.validation.constraints.NotNull;
-import java.util.Date;
+	@Indexed
+	private String username;
 
-public class NotificationSettings {
+	private String clientId;
 
-	@NotNull
-	private Boolean active;
+	@Indexed(expireAfterSeconds = 0)
+	private Date expiresAt;
 
-	@NotNull
-	private Frequency frequency;
+	public String getId() {
+		return id;
+	}
 
-	private Date lastNotified;
+	public void setId(String id) {
+		this.id = id;
+	}
 
-	public Boolean getActive() {
-		return active;
+	public String getUsername() {
+		return username;
 	}
 
-	public void setActive(Boolean active) {
-		this.active = active;
+	public void setUsername(String username) {
+		this.username = username;
 	}
 
-	public Frequency getFrequency() {
-		return frequency;
+	public String getClientId() {
+		return clientId;
 	}
 
-	public void setFrequency(Frequency frequency) {
-		this.frequency = frequency;
+	public void setClientId(String clientId) {
+		this.clientId = clientId;
 	}
 
-	public Date getLastNotified() {
-		return lastNotified;
+	public Date getExpiresAt() {
+		return expiresAt;
 	}
 
-	public void setLastNotified(Date lastNotified) {
-		this.lastNotified = lastNotified;
+	public void setExpiresAt(Date expiresAt) {
+		this.expiresAt = expiresAt;
 	}
 }
 
-package com.piggymetrics.notification.domain;
+package com.piggymetrics.gateway;
 
-import org.hibernate.validator.constraints.Email;
-import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.Document;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.test.context.junit4.SpringRunner;
 
-import javax.validation.Valid;
-import javax.validation.constraints.NotNull;
-import java.util.Map;
+@RunWith(SpringRunner.class)
+@SpringBootTest
+public class GatewayApplicationTests {
 
-@Document(collection = "recipients")
-public class Recipient {
+	@Test
+	public void contextLoads() {
+	}
 
-	@Id
-	private String accountName;
+	@Test
+	public void fire() {
 
-	@NotNull
-	@Email
-	private String email;
+	}
+
+}
+
+package com.piggymetrics.gateway.filter;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+
+import java.util.Collections;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
 
-	@Valid
-	private Map<NotificationType, NotificationSettings> scheduledNotifications;
+public class ResponseCacheTest {
 
-	public String getAccountName() {
-		return accountName;
-	}
+	private final AtomicLong now = new AtomicLong(1000);
 
-	public void setAccountName(String accountName) {
-		this.accountName = accountName;
-	}
+	private ResponseCache cache;
 
-	public String getEmail() {
-		return email;
+	@Before
+	public void setup() {
+		cache = new ResponseCache(Collections.singletonList("/accounts/demo"), 5000, 2, 1024, 30000, now::get);
 	}
 
-	public void setEmail(String email) {
-		this.email = email;
+	@Test
+	public void shouldServeResponseUntilExpired() {
+
+		CachedResponse response = createResponse(cache.expiresAt(null));
+		cache.put("key", response);
+
+		now.addAndGet(4999);
+		assertSame(response, cache.get("key"));
+
+		now.addAndGet(1);
+		assertNull(cache.get("key"));
+		assertEquals(0, cache.size());
 	}
 
-	public Map<NotificationType, NotificationSettings> getScheduledNotifications() {
-		return scheduledNotifications;
+	@Test
+	public void shouldHonourCacheControl() {
+		assertEquals(0, cache.expiresAt("no-store"));
+		assertEquals(0, cache.expiresAt("private, max-age=60"));
+		assertEquals(0, cache.expiresAt("max-age=0"));
+		assertEquals(now.get() + 2000, cache.expiresAt("public, max-age=2"));
+		assertEquals(now.get() + 5000, cache.expiresAt("max-age=60"));
 	}
 
-	public void setScheduledNotifications(Map<NotificationType, NotificationSettings> scheduledNotifications) {
-		this.scheduledNotifications = scheduledNotifications;
+	@Test
+	public void shouldNotCacheResponseWhichIsNotCacheable() {
+		cache.put("key", createResponse(0));
+		assertNull(cache.get("key"));
 	}
 
-	@Override
-	public String toString() {
-		return "Recipient{" +
-				"accountName='" + accountName + '\'' +
-				", email='" + email + '\'' +
-				'}';
+	@Test
+	public void shouldEvictLeastRecentlyUsedResponse() {
+
+		cache.put("first", createResponse(cache.expiresAt(null)));
+		cache.put("second", createResponse(cache.expiresAt(null)));
+		cache.get("first");
+		cache.put("third", createResponse(cache.expiresAt(null)));
+
+		assertEquals(2, cache.size());
+		assertNull(cache.get("second"));
 	}
-}
 
-package com.piggymetrics.notification.domain;
+	@Test
+	public void shouldCollapseIdenticalCalls() {
 
-public enum NotificationType {
+		CompletableFuture<CachedResponse> leader = new CompletableFuture<>();
+		CompletableFuture<CachedResponse> follower = new CompletableFuture<>();
 
-	BACKUP("backup.email.subject", "backup.email.text", "backup.email.attachment"),
-	REMIND("remind.email.subject", "remind.email.text", null);
+		assertNull(cache.join("key", leader));
+		assertSame(leader, cache.join("key", follower));
 
-	private String subject;
-	private String text;
-	private String attachment;
+		cache.leave("key", leader);
 
-	NotificationType(String subject, String text, String attachment) {
-		this.subject = subject;
-		this.text = text;
-		this.attachment = attachment;
+		assertNull(cache.join("key", follower));
 	}
 
-	public String getSubject() {
-		return subject;
-	}
+	@Test
+	public void shouldExpireCallWhichHasNotBeenLeft() {
 
-	public String getText() {
-		return text;
-	}
+		CompletableFuture<CachedResponse> abandoned = new CompletableFuture<>();
+		CompletableFuture<CachedResponse> next = new CompletableFuture<>();
 
-	public String getAttachment() {
-		return attachment;
+		assertNull(cache.join("key", abandoned));
+
+		now.addAndGet(30000);
+
+		assertNull(cache.join("key", next));
+		assertTrue(abandoned.isCompletedExceptionally());
 	}
-}
 
-package com.piggymetrics.notification.domain;
+	@Test
+	public void shouldIncludeCredentialsIntoKeyOfNonPublicRoute() {
 
-import java.util.stream.Stream;
+		MockHttpServletRequest first = createRequest("/accounts/current", "Bearer first");
+		MockHttpServletRequest second = createRequest("/accounts/current", "Bearer second");
 
-public enum Frequency {
+		assertFalse(cache.isPublic(first));
+		assertNotEquals(cache.keyOf(first, false), cache.keyOf(second, false));
+	}
 
-	WEEKLY(7), MONTHLY(30), QUARTERLY(90);
+	@Test
+	public void shouldShareKeyOfPublicRoute() {
 
-	private int days;
+		MockHttpServletRequest first = createRequest("/accounts/demo", "Bearer first");
+		MockHttpServletRequest second = createRequest("/accounts/demo", null);
 
-	Frequency(int days) {
-		this.days = days;
+		assertTrue(cache.isPublic(first));
+		assertEquals(cache.keyOf(first, true), cache.keyOf(second, true));
 	}
 
-	public int getDays() {
-		return days;
+	private CachedResponse createResponse(long expiresAt) {
+		return new CachedResponse(200, Collections.emptyList(), new byte[0], false, "\"etag\"", expiresAt);
 	}
 
-	public static Frequency withDays(int days) {
-		return Stream.of(Frequency.values())
-				.filter(f -> f.getDays() == days)
-				.findFirst()
-				.orElseThrow(IllegalArgumentException::new);
+	private MockHttpServletRequest createRequest(String uri, String authorization) {
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+		if (authorization != null) {
+			request.addHeader("Authorization", authorization);
+		}
+		return request;
 	}
 }
 
-package com.piggymetrics.notification.client;
-
-import org.springframework.cloud.openfeign.FeignClient;
-import org.springframework.http.MediaType;
-import org.springframework.web.bind.annotation.PathVariable;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
-
-@FeignClient(name = "account-service")
-public interface AccountServiceClient {
+package com.piggymetrics.gateway.filter;
 
-	@RequestMapping(method = RequestMethod.GET, value = "/accounts/{accountName}", consumes = MediaType.APPLICATION_JSON_UTF8_VALUE)
-	String getAccount(@PathVariable("accountName") String accountName);
+import com.netflix.zuul.context.RequestContext;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.StreamUtils;
 
-}
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
-package com.piggymetrics.config;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.config.server.EnableConfigServer;
+public class ResponseCacheFiltersTest {
 
-@SpringBootApplication
-@EnableConfigServer
-public class ConfigApplication {
+	private static final byte[] BODY = "{\"name\":\"demo\"}".getBytes();
 
-	public static void main(String[] args) {
-		SpringApplication.run(ConfigApplication.class, args);
-	}
-}
+	private final AtomicLong now = new AtomicLong(1000);
 
-package com.piggymetrics.config;
+	private volatile Thread followerThread;
 
-import org.springframework.context.annotation.Configuration;
-import org.springframework.security.config.annotation.web.builders.HttpSecurity;
-import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
+	private final ExecutorService executor = Executors.newSingleThreadExecutor(
+			runnable -> followerThread = new Thread(runnable));
 
-/**
- * @author cdov
- */
-@Configuration
-public class SecurityConfig extends WebSecurityConfigurerAdapter {
+	private ResponseCache cache;
 
-    @Override
-    protected void configure(HttpSecurity http) throws Exception {
-        http.csrf().disable();
-        http
-            .authorizeRequests()
-                .antMatchers("/actuator/**").permitAll()
-                .anyRequest().authenticated()
-            .and()
-                .httpBasic()
-                ;
-    }
-}
+	private ResponseCachePreFilter preFilter;
 
-package com.piggymetrics.turbine;
+	private ResponseCachePostFilter postFilter;
 
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
+	@Before
+	public void setup() {
+		cache = new ResponseCache(Collections.singletonList("/accounts/demo"), 5000, 10, 1024, 30000, now::get);
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class TurbineStreamServiceApplicationTests {
+		preFilter = new ResponseCachePreFilter();
+		ReflectionTestUtils.setField(preFilter, "cache", cache);
+		ReflectionTestUtils.setField(preFilter, "collapseTimeout", 5000L);
 
-	@Test
-	public void contextLoads() {
+		postFilter = new ResponseCachePostFilter();
+		ReflectionTestUtils.setField(postFilter, "cache", cache);
 	}
 
-}
+	@After
+	public void teardown() {
+		executor.shutdownNow();
+		RequestContext.getCurrentContext().unset();
+	}
 
-package com.piggymetrics.turbine;
+	@Test
+	public void shouldServeCachedResponseOfPublicRoute() throws IOException {
 
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
-import org.springframework.cloud.netflix.turbine.stream.EnableTurbineStream;
+		RequestContext leader = route("/accounts/demo", null);
+		respond(leader, 200, BODY);
 
-@SpringBootApplication
-@EnableTurbineStream
-@EnableDiscoveryClient
-public class TurbineStreamServiceApplication {
+		RequestContext next = route("/accounts/demo", null);
 
-	public static void main(String[] args) {
-		SpringApplication.run(TurbineStreamServiceApplication.class, args);
+		assertFalse(next.sendZuulResponse());
+		assertEquals(200, next.getResponseStatusCode());
+		assertArrayEquals(BODY, StreamUtils.copyToByteArray(next.getResponseDataStream()));
 	}
-}
 
-package com.piggymetrics.registry;
+	@Test
+	public void shouldNotCacheNotModifiedResponse() {
 
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.netflix.eureka.server.EnableEurekaServer;
+		RequestContext leader = route("/accounts/demo", "\"etag\"");
+		respond(leader, 304, new byte[0]);
 
-@SpringBootApplication
-@EnableEurekaServer
-public class RegistryApplication {
+		RequestContext next = route("/accounts/demo", null);
 
-	public static void main(String[] args) {
-		SpringApplication.run(RegistryApplication.class, args);
+		assertTrue(next.sendZuulResponse());
 	}
-}
 
-package com.piggymetrics.monitoring;
+	@Test
+	public void shouldNotCacheErrorResponse() {
 
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
+		RequestContext leader = route("/accounts/demo", null);
+		respond(leader, 404, BODY);
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class MonitoringApplicationTests {
+		RequestContext next = route("/accounts/demo", null);
 
-	@Test
-	public void contextLoads() {
+		assertTrue(next.sendZuulResponse());
 	}
 
-}
-
-package com.piggymetrics.monitoring;
+	@Test
+	public void shouldShareResponseWithCollapsedRequest() throws Exception {
 
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.netflix.hystrix.dashboard.EnableHystrixDashboard;
+		RequestContext leader = route("/accounts/current", null);
+		Future<Boolean> follower = executor.submit(() -> route("/accounts/current", null).sendZuulResponse());
 
-@SpringBootApplication
-@EnableHystrixDashboard
-public class MonitoringApplication {
+		awaitFollower();
+		RequestContext.testSetCurrentContext(leader);
+		respond(leader, 200, BODY);
 
-	public static void main(String[] args) {
-		SpringApplication.run(MonitoringApplication.class, args);
+		assertFalse(follower.get(1, TimeUnit.SECONDS));
 	}
-}
 
-package com.piggymetrics.auth;
+	@Test
+	public void shouldRouteCollapsedRequestOnItsOwnWhenResponseIsNotShareable() throws Exception {
 
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
+		RequestContext leader = route("/accounts/current", null);
+		Future<Boolean> follower = executor.submit(() -> route("/accounts/current", null).sendZuulResponse());
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class AuthServiceApplicationTests {
+		awaitFollower();
+		RequestContext.testSetCurrentContext(leader);
+		respond(leader, 401, new byte[0]);
 
-	@Test
-	public void contextLoads() {
+		assertTrue(follower.get(1, TimeUnit.SECONDS));
 	}
 
-}
+	/**
+	 * Runs pre filter in a fresh request context of the current thread
+	 */
+	private RequestContext route(String uri, String ifNoneMatch) {
 
-package com.piggymetrics.auth.repository;
+		MockHttpServletRequest request = new MockHttpServletRequest("GET", uri);
+		if (ifNoneMatch != null) {
+			request.addHeader("If-None-Match", ifNoneMatch);
+		}
 
-import com.piggymetrics.auth.domain.User;
-import com.piggymetrics.auth.service.security.MongoUserDetailsService;
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.boot.autoconfigure.mongo.embedded.EmbeddedMongoAutoConfiguration;
-import org.springframework.boot.test.autoconfigure.data.mongo.DataMongoTest;
-import org.springframework.boot.test.mock.mockito.MockBean;
-import org.springframework.test.context.junit4.SpringRunner;
+		RequestContext ctx = new RequestContext();
+		ctx.setRequest(request);
+		ctx.setResponse(new MockHttpServletResponse());
+		RequestContext.testSetCurrentContext(ctx);
 
-import java.util.Optional;
+		if (preFilter.shouldFilter()) {
+			preFilter.run();
+		}
 
-import static org.junit.Assert.assertEquals;
-import static org.junit.Assert.assertTrue;
+		return ctx;
+	}
 
-@RunWith(SpringRunner.class)
-@DataMongoTest
-public class UserRepositoryTest {
+	/**
+	 * Completes upstream call of the current request and runs post filter
+	 */
+	private void respond(RequestContext ctx, int status, byte[] body) {
 
-	@Autowired
-	private UserRepository repository;
+		ctx.setResponseStatusCode(status);
+		ctx.setResponseDataStream(new ByteArrayInputStream(body));
 
-	@Test
-	public void shouldSaveAndFindUserByName() {
+		if (postFilter.shouldFilter()) {
+			postFilter.run();
+		}
+	}
 
-		User user = new User();
-		user.setUsername("name");
-		user.setPassword("password");
-		repository.save(user);
+	/**
+	 * Waits until the collapsed request blocks on the call in flight
+	 */
+	private void awaitFollower() throws InterruptedException {
+		for (int i = 0; i < 100; i++) {
+			Thread thread = followerThread;
+			if (thread != null && thread.getState() == Thread.State.TIMED_WAITING) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+}
 
-		Optional<User> found = repository.findById(user.getUsername());
-		assertTrue(found.isPresent());
-		assertEquals(user.getUsername(), found.get().getUsername());
-		assertEquals(user.getPassword(), found.get().getPassword());
+package com.piggymetrics.gateway;
+
+import org.springframework.boot.SpringApplication;
+import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
+import org.springframework.cloud.netflix.zuul.EnableZuulProxy;
+
+@SpringBootApplication
+@EnableDiscoveryClient
+@EnableZuulProxy
+public class GatewayApplication {
+
+	public static void main(String[] args) {
+		SpringApplication.run(GatewayApplication.class, args);
 	}
 }
 
-package com.piggymetrics.auth.controller;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
-import com.piggymetrics.auth.domain.User;
-import com.piggymetrics.auth.service.UserService;
-import com.sun.security.auth.UserPrincipal;
-import org.junit.Before;
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.http.MediaType;
-import org.springframework.test.context.junit4.SpringRunner;
-import org.springframework.test.web.servlet.MockMvc;
-import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+package com.piggymetrics.gateway.filter;
 
-import static org.mockito.MockitoAnnotations.initMocks;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
-import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.post;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
-import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+import com.netflix.util.Pair;
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class UserControllerTest {
+import java.util.Collections;
+import java.util.List;
 
-	private static final ObjectMapper mapper = new ObjectMapper();
+/**
+ * Upstream response, shared with collapsed requests and served from {@link ResponseCache}
+ */
+public class CachedResponse {
 
-	@InjectMocks
-	private UserController accountController;
+	private final int status;
 
-	@Mock
-	private UserService userService;
+	private final List<Pair<String, String>> headers;
 
-	private MockMvc mockMvc;
+	private final byte[] body;
 
-	@Before
-	public void setup() {
-		initMocks(this);
-		this.mockMvc = MockMvcBuilders.standaloneSetup(accountController).build();
+	private final boolean gzipped;
+
+	private final String etag;
+
+	/**
+	 * Moment the response becomes stale, or {@code 0}, if it should not be cached
+	 */
+	private final long expiresAt;
+
+	public CachedResponse(int status, List<Pair<String, String>> headers, byte[] body,
+						  boolean gzipped, String etag, long expiresAt) {
+		this.status = status;
+		this.headers = Collections.unmodifiableList(headers);
+		this.body = body;
+		this.gzipped = gzipped;
+		this.etag = etag;
+		this.expiresAt = expiresAt;
 	}
 
-	@Test
-	public void shouldCreateNewUser() throws Exception {
+	public boolean isCacheable() {
+		return expiresAt > 0;
+	}
 
-		final User user = new User();
-		user.setUsername("test");
-		user.setPassword("password");
+	public boolean isExpired(long now) {
+		return now >= expiresAt;
+	}
 
-		String json = mapper.writeValueAsString(user);
+	public int getStatus() {
+		return status;
+	}
 
-		mockMvc.perform(post("/users").contentType(MediaType.APPLICATION_JSON).content(json))
-				.andExpect(status().isOk());
+	public List<Pair<String, String>> getHeaders() {
+		return headers;
 	}
 
-	@Test
-	public void shouldFailWhenUserIsNotValid() throws Exception {
+	public byte[] getBody() {
+		return body;
+	}
 
-		final User user = new User();
-		user.setUsername("t");
-		user.setPassword("p");
+	public boolean isGzipped() {
+		return gzipped;
+	}
 
-		mockMvc.perform(post("/users"))
-				.andExpect(status().isBadRequest());
+	public String getEtag() {
+		return etag;
 	}
 
-	@Test
-	public void shouldReturnCurrentUser() throws Exception {
-		mockMvc.perform(get("/users/current").principal(new UserPrincipal("test")))
-				.andExpect(jsonPath("$.name").value("test"))
-				.andExpect(status().isOk());
+	public long getExpiresAt() {
+		return expiresAt;
 	}
 }
 
-package com.piggymetrics.auth.service;
+package com.piggymetrics.gateway.filter;
 
-import com.piggymetrics.auth.domain.User;
-import com.piggymetrics.auth.repository.UserRepository;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.stereotype.Component;
+import org.springframework.util.AntPathMatcher;
+import org.springframework.util.PathMatcher;
 
-import java.util.Optional;
+import javax.servlet.http.HttpServletRequest;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
 
-import static org.mockito.Mockito.*;
-import static org.mockito.MockitoAnnotations.initMocks;
+/**
+ * Responses of public routes, cached for a short {@code ttl}, and upstream calls
+ * in flight, which identical GET requests could wait for instead of calling again.
+ *
+ * Public routes are the ones every anonymous visitor reads, so their responses do
+ * not depend on the caller. Requests to other routes are collapsed only with
+ * requests bearing the same credentials, and their responses are not cached.
+ *
+ * A call in flight, which has not been left within {@code in-flight-timeout}
+ * (e.g. because an error filter skipped the post filters), is failed and removed,
+ * so that its waiting requests and later ones route on their own.
+ */
+@Component
+public class ResponseCache {
 
-public class UserServiceTest {
+	private final PathMatcher matcher = new AntPathMatcher();
 
-	@InjectMocks
-	private UserServiceImpl userService;
+	private final List<String> publicRoutes;
 
-	@Mock
-	private UserRepository repository;
+	private final long ttl;
 
-	@Before
-	public void setup() {
-		initMocks(this);
-	}
+	private final int maxSize;
 
-	@Test
-	public void shouldCreateUser() {
+	private final int maxBodySize;
 
-		User user = new User();
-		user.setUsername("name");
-		user.setPassword("password");
+	private final long inFlightTimeout;
 
-		userService.create(user);
-		verify(repository, times(1)).save(user);
-	}
+	private final LongSupplier clock;
 
-	@Test(expected = IllegalArgumentException.class)
-	public void shouldFailWhenUserAlreadyExists() {
+	private final AtomicLong nextExpiration = new AtomicLong();
 
-		User user = new User();
-		user.setUsername("name");
-		user.setPassword("password");
+	/**
+	 * Access ordered, guarded by {@code this}
+	 */
+	private final Map<String, CachedResponse> responses = new LinkedHashMap<>(16, 0.75f, true);
 
-		when(repository.findById(user.getUsername())).thenReturn(Optional.of(new User()));
-		userService.create(user);
-	}
-}
+	private final Map<String, InFlightCall> inFlight = new ConcurrentHashMap<>();
 
-package com.piggymetrics.auth.service.security;
+	private final Counter hits = Metrics.counter("gateway.cache.hits");
 
-import com.piggymetrics.auth.domain.User;
-import com.piggymetrics.auth.repository.UserRepository;
-import org.junit.Before;
-import org.junit.Test;
-import org.mockito.InjectMocks;
-import org.mockito.Mock;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UsernameNotFoundException;
+	private final Counter misses = Metrics.counter("gateway.cache.misses");
 
-import java.util.Optional;
+	private final Counter leaders = Metrics.counter("gateway.collapse.leaders");
 
-import static org.junit.Assert.assertEquals;
-import static org.mockito.Matchers.any;
-import static org.mockito.Mockito.when;
-import static org.mockito.MockitoAnnotations.initMocks;
+	private final Counter followers = Metrics.counter("gateway.collapse.followers");
 
-public class MongoUserDetailsServiceTest {
+	private final Counter expired = Metrics.counter("gateway.collapse.expired");
 
-	@InjectMocks
-	private MongoUserDetailsService service;
+	@Autowired
+	public ResponseCache(@Value("${gateway.cache.public-routes:/accounts/demo,/statistics/demo}") String[] publicRoutes,
+						 @Value("${gateway.cache.ttl:5000}") long ttl,
+						 @Value("${gateway.cache.max-size:1000}") int maxSize,
+						 @Value("${gateway.cache.max-body-size:262144}") int maxBodySize,
+						 @Value("${gateway.cache.in-flight-timeout:30000}") long inFlightTimeout) {
+		this(Arrays.asList(publicRoutes), ttl, maxSize, maxBodySize, inFlightTimeout, System::currentTimeMillis);
+	}
 
-	@Mock
-	private UserRepository repository;
+	ResponseCache(List<String> publicRoutes, long ttl, int maxSize, int maxBodySize,
+				  long inFlightTimeout, LongSupplier clock) {
+		this.publicRoutes = publicRoutes;
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+		this.maxBodySize = maxBodySize;
+		this.inFlightTimeout = inFlightTimeout;
+		this.clock = clock;
 
-	@Before
-	public void setup() {
-		initMocks(this);
+		Metrics.gauge("gateway.cache.hit-ratio", this, it -> ratio(it.hits, it.misses));
+		Metrics.gauge("gateway.collapse.ratio", this, it -> ratio(it.followers, it.leaders));
 	}
 
-	@Test
-	public void shouldLoadByUsernameWhenUserExists() {
+	public boolean isPublic(HttpServletRequest request) {
+		return publicRoutes.stream().anyMatch(route -> matcher.match(route, request.getRequestURI()));
+	}
 
-		final User user = new User();
+	/**
+	 * @return key of identical requests, which includes credentials for non-public routes
+	 */
+	public String keyOf(HttpServletRequest request, boolean publicRoute) {
 
-		when(repository.findById(any())).thenReturn(Optional.of(user));
-		UserDetails loaded = service.loadUserByUsername("name");
+		StringBuilder key = new StringBuilder(request.getMethod()).append(' ').append(request.getRequestURI());
 
-		assertEquals(user, loaded);
-	}
+		if (request.getQueryString() != null) {
+			key.append('?').append(request.getQueryString());
+		}
 
-	@Test(expected = UsernameNotFoundException.class)
-	public void shouldFailToLoadByUsernameWhenUserNotExists() {
-		service.loadUserByUsername("name");
+		key.append(" accept=").append(request.getHeader(HttpHeaders.ACCEPT));
+
+		if (!publicRoute) {
+			key.append(" authorization=").append(request.getHeader(HttpHeaders.AUTHORIZATION));
+		}
+
+		return key.toString();
 	}
-}
-package com.piggymetrics.auth;
 
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
-import org.springframework.security.config.annotation.method.configuration.EnableGlobalMethodSecurity;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableResourceServer;
+	/**
+	 * @return fresh cached response or {@code null}
+	 */
+	public synchronized CachedResponse get(String key) {
 
-@SpringBootApplication
-@EnableResourceServer
-@EnableDiscoveryClient
-@EnableGlobalMethodSecurity(prePostEnabled = true)
-public class AuthApplication {
+		CachedResponse response = responses.get(key);
 
-	public static void main(String[] args) {
-		SpringApplication.run(AuthApplication.class, args);
-	}
+		if (response == null || response.isExpired(clock.getAsLong())) {
+			responses.remove(key);
+			misses.increment();
+			return null;
+		}
 
-}
+		hits.increment();
+		return response;
+	}
 
-package com.piggymetrics.auth.repository;
+	public synchronized void put(String key, CachedResponse response) {
 
-import com.piggymetrics.auth.domain.User;
-import org.springframework.data.repository.CrudRepository;
-import org.springframework.stereotype.Repository;
+		if (!response.isCacheable()) {
+			return;
+		}
 
-@Repository
-public interface UserRepository extends CrudRepository<User, String> {
+		responses.put(key, response);
 
-}
+		Iterator<CachedResponse> iterator = responses.values().iterator();
+		while (responses.size() > maxSize && iterator.hasNext()) {
+			iterator.next();
+			iterator.remove();
+		}
+	}
 
-package com.piggymetrics.auth.config;
+	/**
+	 * Registers given upstream call as in flight, unless there is one already
+	 *
+	 * @param key request key
+	 * @param call upstream call to complete with the response
+	 * @return call in flight to wait for, or {@code null}, if given call has been registered
+	 */
+	public CompletableFuture<CachedResponse> join(String key, CompletableFuture<CachedResponse> call) {
 
-import com.piggymetrics.auth.service.security.MongoUserDetailsService;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.context.annotation.Bean;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.security.authentication.AuthenticationManager;
-import org.springframework.security.config.annotation.authentication.builders.AuthenticationManagerBuilder;
-import org.springframework.security.config.annotation.web.builders.HttpSecurity;
-import org.springframework.security.config.annotation.web.configuration.WebSecurityConfigurerAdapter;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
+		long now = clock.getAsLong();
+		expireInFlight(now);
 
-/**
- * @author cdov
- */
-@Configuration
-public class WebSecurityConfig extends WebSecurityConfigurerAdapter {
+		InFlightCall existing = inFlight.putIfAbsent(key, new InFlightCall(call, now));
 
-    @Autowired
-    private MongoUserDetailsService userDetailsService;
+		if (existing == null) {
+			leaders.increment();
+			return null;
+		}
 
-    @Override
-    protected void configure(HttpSecurity http) throws Exception {
-        // @formatter:off
-        http
-                .authorizeRequests().anyRequest().authenticated()
-                .and()
-                .csrf().disable();
-        // @formatter:on
-    }
+		followers.increment();
+		return existing.call;
+	}
 
-    @Override
-    protected void configure(AuthenticationManagerBuilder auth) throws Exception {
-        auth.userDetailsService(userDetailsService)
-                .passwordEncoder(new BCryptPasswordEncoder());
-    }
+	public void leave(String key, CompletableFuture<CachedResponse> call) {
+		inFlight.computeIfPresent(key, (k, existing) -> existing.call == call ? null : existing);
+	}
 
-    @Override
-    @Bean
-    public AuthenticationManager authenticationManagerBean() throws Exception {
-        return super.authenticationManagerBean();
-    }
-}
-package com.piggymetrics.auth.config;
+	/**
+	 * Fails and removes calls in flight for longer than {@code in-flight-timeout}.
+	 * Runs at most twice per timeout, so that joining stays cheap.
+	 */
+	private void expireInFlight(long now) {
 
-import com.piggymetrics.auth.service.security.MongoUserDetailsService;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Qualifier;
-import org.springframework.context.annotation.Configuration;
-import org.springframework.core.env.Environment;
-import org.springframework.security.authentication.AuthenticationManager;
-import org.springframework.security.crypto.password.NoOpPasswordEncoder;
-import org.springframework.security.oauth2.config.annotation.configurers.ClientDetailsServiceConfigurer;
-import org.springframework.security.oauth2.config.annotation.web.configuration.AuthorizationServerConfigurerAdapter;
-import org.springframework.security.oauth2.config.annotation.web.configuration.EnableAuthorizationServer;
-import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerEndpointsConfigurer;
-import org.springframework.security.oauth2.config.annotation.web.configurers.AuthorizationServerSecurityConfigurer;
-import org.springframework.security.oauth2.provider.token.TokenStore;
-import org.springframework.security.oauth2.provider.token.store.InMemoryTokenStore;
+		long next = nextExpiration.get();
 
-/**
- * @author cdov
- */
-@Configuration
-@EnableAuthorizationServer
-public class OAuth2AuthorizationConfig extends AuthorizationServerConfigurerAdapter {
+		if (now < next || !nextExpiration.compareAndSet(next, now + inFlightTimeout / 2)) {
+			return;
+		}
 
-    private TokenStore tokenStore = new InMemoryTokenStore();
-    private final String NOOP_PASSWORD_ENCODE = "{noop}";
+		inFlight.values().removeIf(existing -> {
+			if (now - existing.startedAt < inFlightTimeout) {
+				return false;
+			}
+			existing.call.completeExceptionally(new TimeoutException("upstream call has not been left in time"));
+			expired.increment();
+			return true;
+		});
+	}
 
-    @Autowired
-    @Qualifier("authenticationManagerBean")
-    private AuthenticationManager authenticationManager;
+	/**
+	 * @return moment, when a response with given {@code Cache-Control} becomes stale,
+	 * or {@code 0}, if it should not be cached
+	 */
+	public long expiresAt(String cacheControl) {
+
+		long maxAge = ttl;
+
+		if (cacheControl != null) {
+			for (String directive : cacheControl.toLowerCase().split(",")) {
+				directive = directive.trim();
+				if (directive.equals("no-store") || directive.equals("no-cache") || directive.equals("private")) {
+					return 0;
+				}
+				if (directive.startsWith("max-age=")) {
+					try {
+						maxAge = Math.min(maxAge, Long.parseLong(directive.substring(8)) * 1000);
+					} catch (NumberFormatException e) {
+						return 0;
+					}
+				}
+			}
+		}
 
-    @Autowired
-    private MongoUserDetailsService userDetailsService;
+		return maxAge > 0 ? clock.getAsLong() + maxAge : 0;
+	}
 
-    @Autowired
-    private Environment env;
+	public int getMaxBodySize() {
+		return maxBodySize;
+	}
 
-    @Override
-    public void configure(ClientDetailsServiceConfigurer clients) throws Exception {
+	public synchronized int size() {
+		return responses.size();
+	}
 
-        // TODO persist clients details
+	private static class InFlightCall {
 
-        // @formatter:off
-        clients.inMemory()
-                .withClient("browser")
-                .authorizedGrantTypes("refresh_token", "password")
-                .scopes("ui")
-                .and()
-                .withClient("account-service")
-                .secret(env.getProperty("ACCOUNT_SERVICE_PASSWORD"))
-                .authorizedGrantTypes("client_credentials", "refresh_token")
-                .scopes("server")
-                .and()
-                .withClient("statistics-service")
-                .secret(env.getProperty("STATISTICS_SERVICE_PASSWORD"))
-                .authorizedGrantTypes("client_credentials", "refresh_token")
-                .scopes("server")
-                .and()
-                .withClient("notification-service")
-                .secret(env.getProperty("NOTIFICATION_SERVICE_PASSWORD"))
-                .authorizedGrantTypes("client_credentials", "refresh_token")
-                .scopes("server");
-        // @formatter:on
-    }
+		private final CompletableFuture<CachedResponse> call;
 
-    @Override
-    public void configure(AuthorizationServerEndpointsConfigurer endpoints) throws Exception {
-        endpoints
-                .tokenStore(tokenStore)
-                .authenticationManager(authenticationManager)
-                .userDetailsService(userDetailsService);
-    }
+		private final long startedAt;
 
-    @Override
-    public void configure(AuthorizationServerSecurityConfigurer oauthServer) throws Exception {
-        oauthServer
-                .tokenKeyAccess("permitAll()")
-                .checkTokenAccess("isAuthenticated()")
-                .passwordEncoder(NoOpPasswordEncoder.getInstance());
-    }
+		InFlightCall(CompletableFuture<CachedResponse> call, long startedAt) {
+			this.call = call;
+			this.startedAt = startedAt;
+		}
+	}
 
+	private static double ratio(Counter part, Counter rest) {
+		double total = part.count() + rest.count();
+		return total == 0 ? 0 : part.count() / total;
+	}
 }
 
-package com.piggymetrics.auth.controller;
+package com.piggymetrics.gateway.filter;
 
-import com.piggymetrics.auth.domain.User;
-import com.piggymetrics.auth.service.UserService;
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.access.prepost.PreAuthorize;
-import org.springframework.web.bind.annotation.RequestBody;
-import org.springframework.web.bind.annotation.RequestMapping;
-import org.springframework.web.bind.annotation.RequestMethod;
-import org.springframework.web.bind.annotation.RestController;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
 
-import javax.validation.Valid;
-import java.security.Principal;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
-@RestController
-@RequestMapping("/users")
-public class UserController {
+import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.POST_TYPE;
+import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.SEND_RESPONSE_FILTER_ORDER;
+
+/**
+ * Shares upstream response of a request, which has been routed on behalf of identical
+ * ones, with the waiting requests, and caches it, if the route is public and upstream
+ * {@code Cache-Control} allows. Only {@code 200} responses are shared and cached:
+ * others, e.g. {@code 304} to a conditional request or {@code 401}, depend on the
+ * request and make the waiting requests route on their own.
+ */
+@Component
+public class ResponseCachePostFilter extends ZuulFilter {
+
+	private final Logger log = LoggerFactory.getLogger(getClass());
 
 	@Autowired
-	private UserService userService;
+	private ResponseCache cache;
 
-	@RequestMapping(value = "/current", method = RequestMethod.GET)
-	public Principal getUser(Principal principal) {
-		return principal;
+	@Override
+	public String filterType() {
+		return POST_TYPE;
 	}
 
-	@PreAuthorize("#oauth2.hasScope('server')")
-	@RequestMapping(method = RequestMethod.POST)
-	public void createUser(@Valid @RequestBody User user) {
-		userService.create(user);
+	@Override
+	public int filterOrder() {
+		return SEND_RESPONSE_FILTER_ORDER - 1;
 	}
-}
 
-package com.piggymetrics.auth.service;
+	@Override
+	public boolean shouldFilter() {
+		return RequestContext.getCurrentContext().containsKey(ResponseCachePreFilter.CALL);
+	}
 
-import com.piggymetrics.auth.domain.User;
+	@Override
+	@SuppressWarnings("unchecked")
+	public Object run() {
 
-public interface UserService {
+		RequestContext ctx = RequestContext.getCurrentContext();
 
-	void create(User user);
+		String key = (String) ctx.get(ResponseCachePreFilter.KEY);
+		CompletableFuture<CachedResponse> call = (CompletableFuture<CachedResponse>) ctx.get(ResponseCachePreFilter.CALL);
 
-}
+		try {
+			CachedResponse response = capture(ctx);
 
-package com.piggymetrics.auth.service;
+			if (response == null) {
+				call.completeExceptionally(new IllegalStateException("upstream response is not shareable"));
+				return null;
+			}
 
-import com.piggymetrics.auth.domain.User;
-import com.piggymetrics.auth.repository.UserRepository;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.crypto.bcrypt.BCryptPasswordEncoder;
-import org.springframework.stereotype.Service;
-import org.springframework.util.Assert;
+			if (Boolean.TRUE.equals(ctx.get(ResponseCachePreFilter.PUBLIC_ROUTE))) {
+				cache.put(key, response);
+			}
 
-import java.util.Optional;
+			call.complete(response);
 
-@Service
-public class UserServiceImpl implements UserService {
+		} catch (IOException | RuntimeException e) {
+			log.warn("failed to share upstream response of {}", key, e);
+			call.completeExceptionally(e);
+		} finally {
+			cache.leave(key, call);
+		}
 
-	private final Logger log = LoggerFactory.getLogger(getClass());
+		return null;
+	}
 
-	private static final BCryptPasswordEncoder encoder = new BCryptPasswordEncoder();
+	/**
+	 * Buffers upstream response body, so that it could be sent to this request and shared
+	 *
+	 * @return response or {@code null}, if it is not {@code 200} or is too large to share
+	 */
+	private CachedResponse capture(RequestContext ctx) throws IOException {
 
-	@Autowired
-	private UserRepository repository;
+		int status = ctx.getResponseStatusCode();
 
-	@Override
-	public void create(User user) {
+		if (ctx.getThrowable() != null || status != HttpStatus.OK.value()) {
+			return null;
+		}
 
-		Optional<User> existing = repository.findById(user.getUsername());
-		existing.ifPresent(it-> {throw new IllegalArgumentException("user already exists: " + it.getUsername());});
+		byte[] body;
 
-		String hash = encoder.encode(user.getPassword());
-		user.setPassword(hash);
+		if (ctx.getResponseDataStream() != null) {
 
-		repository.save(user);
+			InputStream stream = ctx.getResponseDataStream();
+			body = StreamUtils.copyToByteArray(new LimitedInputStream(stream, cache.getMaxBodySize() + 1));
 
-		log.info("new user has been created: {}", user.getUsername());
+			if (body.length > cache.getMaxBodySize()) {
+				ctx.setResponseDataStream(new SequenceInputStream(new ByteArrayInputStream(body), stream));
+				return null;
+			}
+
+			ctx.setResponseDataStream(new ByteArrayInputStream(body));
+
+		} else if (ctx.getResponseBody() != null) {
+			body = ctx.getResponseBody().getBytes(StandardCharsets.UTF_8);
+		} else {
+			body = new byte[0];
+		}
+
+		List<Pair<String, String>> headers = new ArrayList<>(ctx.getZuulResponseHeaders());
+		String cacheControl = null;
+		String etag = null;
+		boolean varies = false;
+
+		for (Pair<String, String> header : headers) {
+			if (HttpHeaders.CACHE_CONTROL.equalsIgnoreCase(header.first())) {
+				cacheControl = header.second();
+			} else if (HttpHeaders.ETAG.equalsIgnoreCase(header.first())) {
+				etag = header.second();
+			} else if (HttpHeaders.VARY.equalsIgnoreCase(header.first())) {
+				varies = !HttpHeaders.ACCEPT_ENCODING.equalsIgnoreCase(header.second().trim());
+			}
+		}
+
+		long expiresAt = varies ? 0 : cache.expiresAt(cacheControl);
+
+		return new CachedResponse(status, headers, body, ctx.getResponseGZipped(), etag, expiresAt);
 	}
-}
 
-package com.piggymetrics.auth.service.security;
+	/**
+	 * Reads at most given number of bytes, leaving the rest in the underlying stream
+	 */
+	private static class LimitedInputStream extends InputStream {
 
-import com.piggymetrics.auth.repository.UserRepository;
-import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.security.core.userdetails.UserDetails;
-import org.springframework.security.core.userdetails.UserDetailsService;
-import org.springframework.security.core.userdetails.UsernameNotFoundException;
-import org.springframework.stereotype.Service;
+		private final InputStream stream;
 
-@Service
-public class MongoUserDetailsService implements UserDetailsService {
+		private int remaining;
 
-	@Autowired
-	private UserRepository repository;
+		LimitedInputStream(InputStream stream, int limit) {
+			this.stream = stream;
+			this.remaining = limit;
+		}
 
-	@Override
-	public UserDetails loadUserByUsername(String username) throws UsernameNotFoundException {
+		@Override
+		public int read() throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int b = stream.read();
+			if (b >= 0) {
+				remaining--;
+			}
+			return b;
+		}
 
-		return repository.findById(username).orElseThrow(()->new UsernameNotFoundException(username));
+		@Override
+		public int read(byte[] buffer, int offset, int length) throws IOException {
+			if (remaining <= 0) {
+				return -1;
+			}
+			int read = stream.read(buffer, offset, Math.min(length, remaining));
+			if (read > 0) {
+				remaining -= read;
+			}
+			return read;
+		}
 	}
 }
 
-package com.piggymetrics.auth.domain;
+package com.piggymetrics.gateway.filter;
 
-import org.springframework.data.annotation.Id;
-import org.springframework.data.mongodb.core.mapping.Document;
-import org.springframework.security.core.GrantedAuthority;
-import org.springframework.security.core.userdetails.UserDetails;
+import com.netflix.util.Pair;
+import com.netflix.zuul.ZuulFilter;
+import com.netflix.zuul.context.RequestContext;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.stereotype.Component;
 
-import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import java.io.ByteArrayInputStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
-@Document(collection = "users")
-public class User implements UserDetails {
+import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.PRE_DECORATION_FILTER_ORDER;
+import static org.springframework.cloud.netflix.zuul.filters.support.FilterConstants.PRE_TYPE;
 
-	@Id
-	private String username;
+/**
+ * Serves GET requests from {@link ResponseCache}, or makes them wait for an identical
+ * request in flight. A request, which finds no call in flight, is routed upstream as
+ * usual, and its response is shared by {@link ResponseCachePostFilter}.
+ *
+ * Requests with {@code Cache-Control: no-cache} always go upstream.
+ *
+ * If the call in flight fails or does not complete within {@code collapse-timeout},
+ * a waiting request is routed upstream on its own.
+ */
+@Component
+public class ResponseCachePreFilter extends ZuulFilter {
 
-	private String password;
+	static final String KEY = "responseCacheKey";
 
-	@Override
-	public String getPassword() {
-		return password;
-	}
+	static final String CALL = "responseCacheCall";
 
-	@Override
-	public String getUsername() {
-		return username;
-	}
+	static final String PUBLIC_ROUTE = "responseCachePublicRoute";
 
-	@Override
-	public List<GrantedAuthority> getAuthorities() {
-		return null;
-	}
+	private final Logger log = LoggerFactory.getLogger(getClass());
 
-	public void setUsername(String username) {
-		this.username = username;
-	}
+	@Autowired
+	private ResponseCache cache;
 
-	public void setPassword(String password) {
-		this.password = password;
-	}
+	@Value("${gateway.cache.collapse-timeout:5000}")
+	private long collapseTimeout;
 
 	@Override
-	public boolean isAccountNonExpired() {
-		return true;
+	public String filterType() {
+		return PRE_TYPE;
 	}
 
 	@Override
-	public boolean isAccountNonLocked() {
-		return true;
+	public int filterOrder() {
+		return PRE_DECORATION_FILTER_ORDER + 1;
 	}
 
 	@Override
-	public boolean isCredentialsNonExpired() {
-		return true;
+	public boolean shouldFilter() {
+		RequestContext ctx = RequestContext.getCurrentContext();
+		return ctx.sendZuulResponse() && HttpMethod.GET.matches(ctx.getRequest().getMethod());
 	}
 
 	@Override
-	public boolean isEnabled() {
-		return true;
-	}
-}
+	public Object run() {
 
-package com.piggymetrics.gateway;
+		RequestContext ctx = RequestContext.getCurrentContext();
+		HttpServletRequest request = ctx.getRequest();
 
-import org.junit.Test;
-import org.junit.runner.RunWith;
-import org.springframework.boot.test.context.SpringBootTest;
-import org.springframework.test.context.junit4.SpringRunner;
+		if ("no-cache".equalsIgnoreCase(request.getHeader(HttpHeaders.CACHE_CONTROL))) {
+			return null;
+		}
 
-@RunWith(SpringRunner.class)
-@SpringBootTest
-public class GatewayApplicationTests {
+		boolean publicRoute = cache.isPublic(request);
+		String key = cache.keyOf(request, publicRoute);
 
-	@Test
-	public void contextLoads() {
-	}
+		if (publicRoute) {
+			CachedResponse cached = cache.get(key);
+			if (cached != null) {
+				serve(ctx, cached);
+				return null;
+			}
+		}
 
-	@Test
-	public void fire() {
+		CompletableFuture<CachedResponse> call = new CompletableFuture<>();
+		CompletableFuture<CachedResponse> inFlight = cache.join(key, call);
 
+		if (inFlight == null) {
+			ctx.set(KEY, key);
+			ctx.set(CALL, call);
+			ctx.set(PUBLIC_ROUTE, publicRoute);
+			return null;
+		}
+
+		CachedResponse shared = await(inFlight);
+		if (shared != null) {
+			serve(ctx, shared);
+		}
+
+		return null;
 	}
 
-}
+	private CachedResponse await(CompletableFuture<CachedResponse> inFlight) {
+		try {
+			return inFlight.get(collapseTimeout, TimeUnit.MILLISECONDS);
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException | TimeoutException e) {
+			log.debug("collapsed request is routed on its own: {}", e.toString());
+			return null;
+		}
+	}
 
-package com.piggymetrics.gateway;
+	private void serve(RequestContext ctx, CachedResponse response) {
 
-import org.springframework.boot.SpringApplication;
-import org.springframework.boot.autoconfigure.SpringBootApplication;
-import org.springframework.cloud.client.discovery.EnableDiscoveryClient;
-import org.springframework.cloud.netflix.zuul.EnableZuulProxy;
+		ctx.setSendZuulResponse(false);
 
-@SpringBootApplication
-@EnableDiscoveryClient
-@EnableZuulProxy
-public class GatewayApplication {
+		String ifNoneMatch = ctx.getRequest().getHeader(HttpHeaders.IF_NONE_MATCH);
 
-	public static void main(String[] args) {
-		SpringApplication.run(GatewayApplication.class, args);
+		if (response.getEtag() != null && response.getEtag().equals(ifNoneMatch)) {
+			ctx.setResponseStatusCode(HttpStatus.NOT_MODIFIED.value());
+			ctx.addZuulResponseHeader(HttpHeaders.ETAG, response.getEtag());
+			return;
+		}
+
+		ctx.setResponseStatusCode(response.getStatus());
+		for (Pair<String, String> header : response.getHeaders()) {
+			ctx.addZuulResponseHeader(header.first(), header.second());
+		}
+		ctx.setResponseGZipped(response.isGzipped());
+		ctx.setResponseDataStream(new ByteArrayInputStream(response.getBody()));
 	}
 }
-
@@ -10,8 +10,10 @@ package io.spring;
 
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.scheduling.annotation.EnableScheduling;
 
 @SpringBootApplication
+@EnableScheduling
 public class RealWorldApplication {
 
   public static void main(String[] args) {
@@ -251,6 +253,19 @@ public interface ArticleRepository {
 
 package io.spring.core.article;
 
+import java.util.List;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/** Published when an article carrying given tags has been created or removed. */
+@Getter
+@AllArgsConstructor
+public class ArticleTagsChangedEvent {
+  private List<String> tagNames;
+}
+
+package io.spring.core.article;
+
 import java.util.UUID;
 import lombok.Data;
 import lombok.EqualsAndHashCode;
@@ -1163,7 +1178,9 @@ import io.spring.graphql.types.Comment;
 import io.spring.graphql.types.Profile;
 import io.spring.graphql.types.ProfilePayload;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import lombok.AllArgsConstructor;
+import org.dataloader.DataLoader;
 
 @DgsComponent
 @AllArgsConstructor
@@ -1172,24 +1189,28 @@ public class ProfileDatafetcher {
   private ProfileQueryService profileQueryService;
 
   @DgsData(parentType = USER.TYPE_NAME, field = USER.Profile)
-  public Profile getUserProfile(DataFetchingEnvironment dataFetchingEnvironment) {
+  public CompletableFuture<Profile> getUserProfile(
+      DataFetchingEnvironment dataFetchingEnvironment) {
     User user = dataFetchingEnvironment.getLocalContext();
     String username = user.getUsername();
-    return queryProfile(username);
+    return loadProfile(username, dataFetchingEnvironment);
   }
 
   @DgsData(parentType = ARTICLE.TYPE_NAME, field = ARTICLE.Author)
-  public Profile getAuthor(DataFetchingEnvironment dataFetchingEnvironment) {
+  public CompletableFuture<Profile> getAuthor(DataFetchingEnvironment dataFetchingEnvironment) {
     Map<String, ArticleData> map = dataFetchingEnvironment.getLocalContext();
     Article article = dataFetchingEnvironment.getSource();
-    return queryProfile(map.get(article.getSlug()).getProfileData().getUsername());
+    return loadProfile(
+        map.get(article.getSlug()).getProfileData().getUsername(), dataFetchingEnvironment);
   }
 
   @DgsData(parentType = COMMENT.TYPE_NAME, field = COMMENT.Author)
-  public Profile getCommentAuthor(DataFetchingEnvironment dataFetchingEnvironment) {
+  public CompletableFuture<Profile> getCommentAuthor(
+      DataFetchingEnvironment dataFetchingEnvironment) {
     Comment comment = dataFetchingEnvironment.getSource();
     Map<String, CommentData> map = dataFetchingEnvironment.getLocalContext();
-    return queryProfile(map.get(comment.getId()).getProfileData().getUsername());
+    return loadProfile(
+        map.get(comment.getId()).getProfileData().getUsername(), dataFetchingEnvironment);
   }
 
   @DgsData(parentType = DgsConstants.QUERY_TYPE, field = QUERY.Profile)
@@ -1199,12 +1220,31 @@ public class ProfileDatafetcher {
     return ProfilePayload.newBuilder().profile(profile).build();
   }
 
+  private CompletableFuture<Profile> loadProfile(
+      String username, DataFetchingEnvironment dataFetchingEnvironment) {
+    DataLoader<String, ProfileData> profiles =
+        dataFetchingEnvironment.getDataLoader(ProfileDataLoader.NAME);
+    return profiles
+        .load(username)
+        .thenApply(
+            profileData -> {
+              if (profileData == null) {
+                throw new ResourceNotFoundException();
+              }
+              return buildProfile(profileData);
+            });
+  }
+
   private Profile queryProfile(String username) {
     User current = SecurityUtil.getCurrentUser().orElse(null);
     ProfileData profileData =
         profileQueryService
             .findByUsername(username, current)
             .orElseThrow(ResourceNotFoundException::new);
+    return buildProfile(profileData);
+  }
+
+  private Profile buildProfile(ProfileData profileData) {
     return Profile.newBuilder()
         .username(profileData.getUsername())
         .bio(profileData.getBio())
@@ -1216,6 +1256,43 @@ public class ProfileDatafetcher {
 
 package io.spring.graphql;
 
+import com.netflix.graphql.dgs.DgsDataLoader;
+import io.spring.application.ProfileQueryService;
+import io.spring.application.data.ProfileData;
+import io.spring.core.user.User;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import lombok.AllArgsConstructor;
+import org.dataloader.MappedBatchLoader;
+
+/**
+ * Resolves all profiles requested within one GraphQL execution with a single batch, so a page of
+ * articles or comments costs one users query and one relations query instead of two queries per
+ * author. The data loader is created per request, so profiles are memoized by username for the
+ * rest of the execution.
+ *
+ * <p>The batch is loaded on the calling thread, where the current user is available.
+ */
+@DgsDataLoader(name = ProfileDataLoader.NAME)
+@AllArgsConstructor
+public class ProfileDataLoader implements MappedBatchLoader<String, ProfileData> {
+
+  public static final String NAME = "profiles";
+
+  private ProfileQueryService profileQueryService;
+
+  @Override
+  public CompletionStage<Map<String, ProfileData>> load(Set<String> usernames) {
+    User current = SecurityUtil.getCurrentUser().orElse(null);
+    return CompletableFuture.completedFuture(
+        profileQueryService.findByUsernames(usernames, current));
+  }
+}
+
+package io.spring.graphql;
+
 import com.netflix.graphql.dgs.DgsComponent;
 import com.netflix.graphql.dgs.DgsMutation;
 import com.netflix.graphql.dgs.InputArgument;
@@ -1517,13 +1594,16 @@ public class AuthenticationException extends RuntimeException {}
 
 package io.spring.api;
 
+import io.spring.application.TagCatalogue;
 import io.spring.application.TagsQueryService;
 import java.util.HashMap;
 import lombok.AllArgsConstructor;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.GetMapping;
 import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
 import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
 
 @RestController
 @RequestMapping(path = "tags")
@@ -1532,13 +1612,20 @@ public class TagsApi {
   private TagsQueryService tagsQueryService;
 
   @GetMapping
-  public ResponseEntity getTags() {
-    return ResponseEntity.ok(
-        new HashMap<String, Object>() {
-          {
-            put("tags", tagsQueryService.allTags());
-          }
-        });
+  public ResponseEntity getTags(
+      @RequestParam(value = "top", required = false) Integer top, WebRequest request) {
+    TagCatalogue catalogue = tagsQueryService.getCatalogue();
+    if (request.checkNotModified(catalogue.getEtag())) {
+      return null;
+    }
+    return ResponseEntity.ok()
+        .eTag(catalogue.getEtag())
+        .body(
+            new HashMap<String, Object>() {
+              {
+                put("tags", top == null ? catalogue.getNames() : catalogue.getTopNames(top));
+              }
+            });
   }
 }
 
@@ -2563,28 +2650,53 @@ import static java.util.stream.Collectors.toList;
 
 import io.spring.application.data.ArticleData;
 import io.spring.application.data.ArticleDataList;
+import io.spring.application.data.ArticleExtraInfo;
 import io.spring.application.data.ArticleFavoriteCount;
 import io.spring.core.user.User;
 import io.spring.infrastructure.mybatis.readservice.ArticleFavoritesReadService;
 import io.spring.infrastructure.mybatis.readservice.ArticleReadService;
+import io.spring.infrastructure.mybatis.readservice.FeedReadService;
 import io.spring.infrastructure.mybatis.readservice.UserRelationshipQueryService;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Optional;
 import java.util.Set;
-import lombok.AllArgsConstructor;
 import org.joda.time.DateTime;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 
 @Service
-@AllArgsConstructor
 public class ArticleQueryService {
   private ArticleReadService articleReadService;
   private UserRelationshipQueryService userRelationshipQueryService;
   private ArticleFavoritesReadService articleFavoritesReadService;
+  private FeedReadService feedReadService;
+  private boolean windowFunctions;
+  private boolean materializedFavoritesCount;
+  private int timelineSize;
+
+  @Autowired
+  public ArticleQueryService(
+      ArticleReadService articleReadService,
+      UserRelationshipQueryService userRelationshipQueryService,
+      ArticleFavoritesReadService articleFavoritesReadService,
+      FeedReadService feedReadService,
+      @Value("${article.query.window-functions:true}") boolean windowFunctions,
+      @Value("${article.favorites-count.materialized:false}") boolean materializedFavoritesCount,
+      @Value("${feed.timeline.max-size:1000}") int timelineSize) {
+    this.articleReadService = articleReadService;
+    this.userRelationshipQueryService = userRelationshipQueryService;
+    this.articleFavoritesReadService = articleFavoritesReadService;
+    this.feedReadService = feedReadService;
+    this.windowFunctions = windowFunctions;
+    this.materializedFavoritesCount = materializedFavoritesCount;
+    this.timelineSize = timelineSize;
+  }
 
   public Optional<ArticleData> findById(String id, User user) {
     ArticleData articleData = articleReadService.findById(id);
@@ -2636,8 +2748,49 @@ public class ArticleQueryService {
     }
   }
 
+  /**
+   * Reads the feed from the materialized timeline of the user, merged with the articles of followed
+   * celebrity authors, which are not copied into timelines. Falls back to querying the articles of
+   * all followed authors, if the timeline has not been built or the page reaches past its size
+   * limit.
+   */
   public CursorPager<ArticleData> findUserFeedWithCursor(
       User user, CursorPageParameter<DateTime> page) {
+    List<String> articleIds = feedReadService.findTimelineWithCursor(user.getId(), page);
+    if (articleIds.size() < page.getQueryLimit() && !isTimelineComplete(user)) {
+      return findFeedOfAuthorsWithCursor(user, page);
+    }
+    Map<String, ArticleData> articleMap = new HashMap<>();
+    if (articleIds.size() > 0) {
+      articleReadService
+          .findArticles(articleIds)
+          .forEach(articleData -> articleMap.put(articleData.getId(), articleData));
+    }
+    List<String> celebrities = feedReadService.followedCelebrities(user.getId());
+    if (celebrities.size() > 0) {
+      articleReadService
+          .findArticlesOfAuthorsWithCursor(celebrities, page)
+          .forEach(articleData -> articleMap.putIfAbsent(articleData.getId(), articleData));
+    }
+    Comparator<ArticleData> order = Comparator.comparing(ArticleData::getUpdatedAt);
+    List<ArticleData> articles =
+        articleMap.values().stream()
+            .sorted(page.isNext() ? order.reversed() : order)
+            .limit(page.getQueryLimit())
+            .collect(toList());
+    boolean hasExtra = articles.size() > page.getLimit();
+    if (hasExtra) {
+      articles.remove(page.getLimit());
+    }
+    if (!page.isNext()) {
+      Collections.reverse(articles);
+    }
+    fillExtraInfo(articles, user);
+    return new CursorPager<>(articles, page.getDirection(), hasExtra);
+  }
+
+  private CursorPager<ArticleData> findFeedOfAuthorsWithCursor(
+      User user, CursorPageParameter<DateTime> page) {
     List<String> followdUsers = userRelationshipQueryService.followedUsers(user.getId());
     if (followdUsers.size() == 0) {
       return new CursorPager<>(new ArrayList<>(), page.getDirection(), false);
@@ -2658,6 +2811,40 @@ public class ArticleQueryService {
 
   public ArticleDataList findRecentArticles(
       String tag, String author, String favoritedBy, Page page, User currentUser) {
+    if (!windowFunctions) {
+      return findRecentArticlesSeparately(tag, author, favoritedBy, page, currentUser);
+    }
+    List<ArticleExtraInfo> extraInfos =
+        articleReadService.queryArticlesWithExtraInfo(
+            tag,
+            author,
+            favoritedBy,
+            currentUser == null ? null : currentUser.getId(),
+            materializedFavoritesCount,
+            page);
+    if (extraInfos.size() == 0) {
+      // the window count is unknown for a page past the end
+      int articleCount =
+          page.getOffset() == 0 ? 0 : articleReadService.countArticle(tag, author, favoritedBy);
+      return new ArticleDataList(new ArrayList<>(), articleCount);
+    }
+    Map<String, ArticleExtraInfo> extraInfoMap = new HashMap<>();
+    extraInfos.forEach(extraInfo -> extraInfoMap.put(extraInfo.getId(), extraInfo));
+    List<ArticleData> articles =
+        articleReadService.findArticles(
+            extraInfos.stream().map(ArticleExtraInfo::getId).collect(toList()));
+    articles.forEach(
+        articleData -> {
+          ArticleExtraInfo extraInfo = extraInfoMap.get(articleData.getId());
+          articleData.setFavoritesCount(extraInfo.getFavoritesCount());
+          articleData.setFavorited(extraInfo.isFavorited());
+          articleData.getProfileData().setFollowing(extraInfo.isFollowing());
+        });
+    return new ArticleDataList(articles, extraInfos.get(0).getTotalCount());
+  }
+
+  private ArticleDataList findRecentArticlesSeparately(
+      String tag, String author, String favoritedBy, Page page, User currentUser) {
     List<String> articleIds = articleReadService.queryArticles(tag, author, favoritedBy, page);
     int articleCount = articleReadService.countArticle(tag, author, favoritedBy);
     if (articleIds.size() == 0) {
@@ -2669,16 +2856,53 @@ public class ArticleQueryService {
     }
   }
 
+  /**
+   * Reads the feed from the materialized timeline of the user, unless the timeline has not been
+   * built yet, the user follows a celebrity author (see {@link #findUserFeedWithCursor}) or the page
+   * reaches past the timeline size limit. The total of a timeline, which has reached the limit, is
+   * counted from the followed authors. Both sources order articles by {@code updated_at}.
+   */
   public ArticleDataList findUserFeed(User user, Page page) {
+    if (page.getOffset() + page.getLimit() > timelineSize
+        || !feedReadService.isTimelineBuilt(user.getId())
+        || feedReadService.followedCelebrities(user.getId()).size() > 0) {
+      return findFeedOfAuthors(user, page);
+    }
+    int count = feedReadService.countTimeline(user.getId());
+    if (count >= timelineSize) {
+      count =
+          articleReadService.countFeedSize(
+              userRelationshipQueryService.followedUsers(user.getId()));
+    }
+    List<String> articleIds = feedReadService.findTimeline(user.getId(), page);
+    if (articleIds.size() == 0) {
+      return new ArticleDataList(new ArrayList<>(), count);
+    }
+    List<ArticleData> articles = articleReadService.findArticles(articleIds);
+    articles.sort(Comparator.comparing(ArticleData::getUpdatedAt).reversed());
+    fillExtraInfo(articles, user);
+    return new ArticleDataList(articles, count);
+  }
+
+  private boolean isTimelineComplete(User user) {
+    return feedReadService.isTimelineBuilt(user.getId())
+        && feedReadService.countTimeline(user.getId()) < timelineSize;
+  }
+
+  private ArticleDataList findFeedOfAuthors(User user, Page page) {
     List<String> followdUsers = userRelationshipQueryService.followedUsers(user.getId());
     if (followdUsers.size() == 0) {
       return new ArticleDataList(new ArrayList<>(), 0);
-    } else {
-      List<ArticleData> articles = articleReadService.findArticlesOfAuthors(followdUsers, page);
-      fillExtraInfo(articles, user);
-      int count = articleReadService.countFeedSize(followdUsers);
-      return new ArticleDataList(articles, count);
     }
+    int count = articleReadService.countFeedSize(followdUsers);
+    List<String> articleIds = articleReadService.findArticleIdsOfAuthors(followdUsers, page);
+    if (articleIds.size() == 0) {
+      return new ArticleDataList(new ArrayList<>(), count);
+    }
+    List<ArticleData> articles = articleReadService.findArticles(articleIds);
+    articles.sort(Comparator.comparing(ArticleData::getUpdatedAt).reversed());
+    fillExtraInfo(articles, user);
+    return new ArticleDataList(articles, count);
   }
 
   private void fillExtraInfo(List<ArticleData> articles, User currentUser) {
@@ -2705,9 +2929,11 @@ public class ArticleQueryService {
   }
 
   private void setFavoriteCount(List<ArticleData> articles) {
+    List<String> ids = articles.stream().map(ArticleData::getId).collect(toList());
     List<ArticleFavoriteCount> favoritesCounts =
-        articleFavoritesReadService.articlesFavoriteCount(
-            articles.stream().map(ArticleData::getId).collect(toList()));
+        materializedFavoritesCount
+            ? articleFavoritesReadService.articlesFavoriteCountFromRow(ids)
+            : articleFavoritesReadService.articlesFavoriteCount(ids);
     Map<String, Integer> countMap = new HashMap<>();
     favoritesCounts.forEach(
         item -> {
@@ -2733,7 +2959,10 @@ public class ArticleQueryService {
 
   private void fillExtraInfo(String id, User user, ArticleData articleData) {
     articleData.setFavorited(articleFavoritesReadService.isUserFavorite(user.getId(), id));
-    articleData.setFavoritesCount(articleFavoritesReadService.articleFavoriteCount(id));
+    articleData.setFavoritesCount(
+        materializedFavoritesCount
+            ? articleFavoritesReadService.articleFavoriteCountFromRow(id)
+            : articleFavoritesReadService.articleFavoriteCount(id));
     articleData
         .getProfileData()
         .setFollowing(
@@ -2744,12 +2973,20 @@ public class ArticleQueryService {
 
 package io.spring.application;
 
+import static java.util.stream.Collectors.toList;
+
 import io.spring.application.data.ProfileData;
 import io.spring.application.data.UserData;
 import io.spring.core.user.User;
 import io.spring.infrastructure.mybatis.readservice.UserReadService;
 import io.spring.infrastructure.mybatis.readservice.UserRelationshipQueryService;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.Set;
 import lombok.AllArgsConstructor;
 import org.springframework.stereotype.Component;
 
@@ -2776,22 +3013,111 @@ public class ProfileQueryService {
       return Optional.of(profileData);
     }
   }
+
+  /**
+   * Loads profiles of all given users with one query for the users and, if there is a current
+   * user, one query for the follow relations.
+   *
+   * @return profiles by username, without usernames that do not exist
+   */
+  public Map<String, ProfileData> findByUsernames(Collection<String> usernames, User currentUser) {
+    if (usernames.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    List<UserData> users = userReadService.findByUsernames(usernames);
+    Set<String> followings =
+        currentUser == null || users.isEmpty()
+            ? Collections.emptySet()
+            : userRelationshipQueryService.followingAuthors(
+                currentUser.getId(), users.stream().map(UserData::getId).collect(toList()));
+    Map<String, ProfileData> profiles = new HashMap<>();
+    for (UserData userData : users) {
+      profiles.put(
+          userData.getUsername(),
+          new ProfileData(
+              userData.getId(),
+              userData.getUsername(),
+              userData.getBio(),
+              userData.getImage(),
+              followings.contains(userData.getId())));
+    }
+    return profiles;
+  }
 }
 
 package io.spring.application;
 
+import io.spring.core.article.ArticleTagsChangedEvent;
 import io.spring.infrastructure.mybatis.readservice.TagReadService;
 import java.util.List;
-import lombok.AllArgsConstructor;
+import java.util.concurrent.atomic.AtomicReference;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.scheduling.annotation.Scheduled;
 import org.springframework.stereotype.Service;
-
+import org.springframework.transaction.event.TransactionalEventListener;
+
+/**
+ * Serves tags from an in-memory {@link TagCatalogue}. The catalogue is loaded on first use, tags of
+ * created and removed articles are recounted after each commit and the whole catalogue is reloaded
+ * periodically, which repairs changes made by other instances.
+ *
+ * <p>Reloads and recounts read the database under the same lock, so a recount is either seen by
+ * the reload or applied on top of it.
+ */
 @Service
-@AllArgsConstructor
 public class TagsQueryService {
   private TagReadService tagReadService;
+  private AtomicReference<TagCatalogue> catalogue = new AtomicReference<>();
+  private final Object lock = new Object();
+
+  @Autowired
+  public TagsQueryService(TagReadService tagReadService) {
+    this.tagReadService = tagReadService;
+  }
 
   public List<String> allTags() {
-    return tagReadService.all();
+    return getCatalogue().getNames();
+  }
+
+  public List<String> topTags(int limit) {
+    return getCatalogue().getTopNames(limit);
+  }
+
+  public TagCatalogue getCatalogue() {
+    TagCatalogue current = catalogue.get();
+    if (current == null) {
+      current = reload();
+    }
+    return current;
+  }
+
+  @Scheduled(
+      initialDelayString = "${tags.catalogue.refresh-interval:600000}",
+      fixedDelayString = "${tags.catalogue.refresh-interval:600000}")
+  public void refresh() {
+    reload();
+  }
+
+  private TagCatalogue reload() {
+    synchronized (lock) {
+      TagCatalogue loaded = TagCatalogue.of(tagReadService.allWithCounts());
+      catalogue.set(loaded);
+      return loaded;
+    }
+  }
+
+  /** Recounts tags of a created or removed article once its transaction commits. */
+  @TransactionalEventListener(fallbackExecution = true)
+  public void articleTagsChanged(ArticleTagsChangedEvent event) {
+    if (event.getTagNames().isEmpty()) {
+      return;
+    }
+    synchronized (lock) {
+      TagCatalogue current = catalogue.get();
+      if (current != null) {
+        catalogue.set(current.withCounts(tagReadService.countsOf(event.getTagNames())));
+      }
+    }
   }
 }
 
@@ -2861,6 +3187,76 @@ public abstract class PageCursor<T> {
 
 package io.spring.application;
 
+import static java.util.stream.Collectors.toList;
+
+import io.spring.application.data.TagCount;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.springframework.util.DigestUtils;
+
+/**
+ * Immutable snapshot of all tags with the number of articles carrying each of them. Changes produce
+ * a new snapshot.
+ */
+public final class TagCatalogue {
+  private final Map<String, Integer> counts;
+  private final List<String> names;
+  private final List<String> namesByCount;
+  private final String etag;
+
+  private TagCatalogue(Map<String, Integer> counts) {
+    this.counts = Collections.unmodifiableMap(counts);
+    this.names = Collections.unmodifiableList(counts.keySet().stream().collect(toList()));
+    this.namesByCount =
+        Collections.unmodifiableList(
+            counts.entrySet().stream()
+                .sorted(
+                    Map.Entry.<String, Integer>comparingByValue(Comparator.reverseOrder())
+                        .thenComparing(Map.Entry.comparingByKey()))
+                .map(Map.Entry::getKey)
+                .collect(toList()));
+    this.etag = etagOf(counts);
+  }
+
+  public static TagCatalogue of(List<TagCount> tagCounts) {
+    Map<String, Integer> counts = new LinkedHashMap<>();
+    tagCounts.forEach(tagCount -> counts.put(tagCount.getName(), tagCount.getCount()));
+    return new TagCatalogue(counts);
+  }
+
+  /** @param tagCounts current counts of some tags, new tags are added to the catalogue */
+  public TagCatalogue withCounts(List<TagCount> tagCounts) {
+    Map<String, Integer> counts = new LinkedHashMap<>(this.counts);
+    tagCounts.forEach(tagCount -> counts.put(tagCount.getName(), tagCount.getCount()));
+    return new TagCatalogue(counts);
+  }
+
+  public List<String> getNames() {
+    return names;
+  }
+
+  public List<String> getTopNames(int limit) {
+    return namesByCount.subList(0, Math.min(Math.max(limit, 0), namesByCount.size()));
+  }
+
+  public String getEtag() {
+    return etag;
+  }
+
+  private static String etagOf(Map<String, Integer> counts) {
+    StringBuilder content = new StringBuilder();
+    counts.forEach((name, count) -> content.append(name).append('\n').append(count).append('\n'));
+    return "\"" + DigestUtils.md5DigestAsHex(content.toString().getBytes(StandardCharsets.UTF_8))
+        + "\"";
+  }
+}
+
+package io.spring.application;
+
 import io.spring.application.data.CommentData;
 import io.spring.core.user.User;
 import io.spring.infrastructure.mybatis.readservice.CommentReadService;
@@ -3356,6 +3752,16 @@ package io.spring.application.data;
 
 import lombok.Value;
 
+@Value
+public class TagCount {
+  private String name;
+  private Integer count;
+}
+
+package io.spring.application.data;
+
+import lombok.Value;
+
 @Value
 public class ArticleFavoriteCount {
   private String id;
@@ -3470,6 +3876,21 @@ public class ArticleDataList {
 
 package io.spring.application.data;
 
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+@Data
+@NoArgsConstructor
+public class ArticleExtraInfo {
+  private String id;
+  private int favoritesCount;
+  private boolean favorited;
+  private boolean following;
+  private int totalCount;
+}
+
+package io.spring.application.data;
+
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
@@ -3494,14 +3915,17 @@ import io.spring.infrastructure.mybatis.mapper.UserMapper;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public class MyBatisUserRepository implements UserRepository {
   private final UserMapper userMapper;
+  private final FeedTimeline feedTimeline;
 
   @Autowired
-  public MyBatisUserRepository(UserMapper userMapper) {
+  public MyBatisUserRepository(UserMapper userMapper, FeedTimeline feedTimeline) {
     this.userMapper = userMapper;
+    this.feedTimeline = feedTimeline;
   }
 
   @Override
@@ -3529,9 +3953,11 @@ public class MyBatisUserRepository implements UserRepository {
   }
 
   @Override
+  @Transactional
   public void saveRelation(FollowRelation followRelation) {
     if (!findRelation(followRelation.getUserId(), followRelation.getTargetId()).isPresent()) {
       userMapper.saveRelation(followRelation);
+      feedTimeline.followingsChanged(followRelation.getUserId());
     }
   }
 
@@ -3541,8 +3967,10 @@ public class MyBatisUserRepository implements UserRepository {
   }
 
   @Override
+  @Transactional
   public void removeRelation(FollowRelation followRelation) {
     userMapper.deleteRelation(followRelation);
+    feedTimeline.followingsChanged(followRelation.getUserId());
   }
 }
 
@@ -3553,21 +3981,31 @@ import io.spring.core.favorite.ArticleFavoriteRepository;
 import io.spring.infrastructure.mybatis.mapper.ArticleFavoriteMapper;
 import java.util.Optional;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public class MyBatisArticleFavoriteRepository implements ArticleFavoriteRepository {
   private ArticleFavoriteMapper mapper;
+  private boolean materializedCount;
 
   @Autowired
-  public MyBatisArticleFavoriteRepository(ArticleFavoriteMapper mapper) {
+  public MyBatisArticleFavoriteRepository(
+      ArticleFavoriteMapper mapper,
+      @Value("${article.favorites-count.materialized:false}") boolean materializedCount) {
     this.mapper = mapper;
+    this.materializedCount = materializedCount;
   }
 
   @Override
+  @Transactional
   public void save(ArticleFavorite articleFavorite) {
     if (mapper.find(articleFavorite.getArticleId(), articleFavorite.getUserId()) == null) {
       mapper.insert(articleFavorite);
+      if (materializedCount) {
+        mapper.updateFavoritesCount(articleFavorite.getArticleId(), 1);
+      }
     }
   }
 
@@ -3577,8 +4015,11 @@ public class MyBatisArticleFavoriteRepository implements ArticleFavoriteReposito
   }
 
   @Override
+  @Transactional
   public void remove(ArticleFavorite favorite) {
-    mapper.delete(favorite);
+    if (mapper.delete(favorite) > 0 && materializedCount) {
+      mapper.updateFavoritesCount(favorite.getArticleId(), -1);
+    }
   }
 }
 
@@ -3618,20 +4059,33 @@ public class MyBatisCommentRepository implements CommentRepository {
 
 package io.spring.infrastructure.repository;
 
+import static java.util.stream.Collectors.toList;
+
 import io.spring.core.article.Article;
 import io.spring.core.article.ArticleRepository;
+import io.spring.core.article.ArticleTagsChangedEvent;
 import io.spring.core.article.Tag;
 import io.spring.infrastructure.mybatis.mapper.ArticleMapper;
+import java.util.Collections;
+import java.util.List;
 import java.util.Optional;
+import org.springframework.context.ApplicationEventPublisher;
 import org.springframework.stereotype.Repository;
 import org.springframework.transaction.annotation.Transactional;
 
 @Repository
 public class MyBatisArticleRepository implements ArticleRepository {
   private ArticleMapper articleMapper;
+  private FeedTimeline feedTimeline;
+  private ApplicationEventPublisher eventPublisher;
 
-  public MyBatisArticleRepository(ArticleMapper articleMapper) {
+  public MyBatisArticleRepository(
+      ArticleMapper articleMapper,
+      FeedTimeline feedTimeline,
+      ApplicationEventPublisher eventPublisher) {
     this.articleMapper = articleMapper;
+    this.feedTimeline = feedTimeline;
+    this.eventPublisher = eventPublisher;
   }
 
   @Override
@@ -3641,6 +4095,7 @@ public class MyBatisArticleRepository implements ArticleRepository {
       createNew(article);
     } else {
       articleMapper.update(article);
+      feedTimeline.articleUpdated(article);
     }
   }
 
@@ -3656,6 +4111,8 @@ public class MyBatisArticleRepository implements ArticleRepository {
       articleMapper.insertArticleTagRelation(article.getId(), targetTag.getId());
     }
     articleMapper.insert(article);
+    feedTimeline.articleCreated(article);
+    eventPublisher.publishEvent(new ArticleTagsChangedEvent(tagNamesOf(article)));
   }
 
   @Override
@@ -3669,8 +4126,141 @@ public class MyBatisArticleRepository implements ArticleRepository {
   }
 
   @Override
+  @Transactional
   public void remove(Article article) {
     articleMapper.delete(article.getId());
+    feedTimeline.articleRemoved(article.getId());
+    eventPublisher.publishEvent(new ArticleTagsChangedEvent(tagNamesOf(article)));
+  }
+
+  private static List<String> tagNamesOf(Article article) {
+    return article.getTags() == null
+        ? Collections.emptyList()
+        : article.getTags().stream().map(Tag::getName).collect(toList());
+  }
+}
+
+package io.spring.infrastructure.repository;
+
+import io.spring.core.article.Article;
+import io.spring.infrastructure.mybatis.mapper.FeedMapper;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+/**
+ * Maintains the materialized home feed of every user: the {@code feed.timeline.max-size} most
+ * recently updated articles of the authors the user follows. Feed items are ordered and trimmed by
+ * {@code updated_at}, the column of feed cursors.
+ *
+ * <p>Articles of authors with more than {@code feed.fan-out.max-followers} followers are not
+ * copied. Such authors are recorded as celebrities, and feed reads query their articles directly.
+ * Callers are expected to run within the transaction of the change they mirror.
+ *
+ * <p>A timeline is only complete once it has been built, which is recorded in {@code
+ * feed_timelines}. Timelines are built when followings change and by {@link
+ * io.spring.infrastructure.service.FeedTimelineMaintainer} for users, who have not changed their
+ * followings since feeds have been materialized:
+ *
+ * <pre>
+ * create table feed_timelines (user_id varchar(255) primary key);
+ * </pre>
+ *
+ * Fan-out may grow timelines past the size limit. Followers of authors, whose articles have been
+ * fanned out, are trimmed after the commit by {@link #trimPending()}, outside of the transaction of
+ * the author.
+ */
+@Component
+public class FeedTimeline {
+  private FeedMapper feedMapper;
+  private int maxSize;
+  private int maxFollowers;
+  private final Set<String> trimPending = ConcurrentHashMap.newKeySet();
+
+  @Autowired
+  public FeedTimeline(
+      FeedMapper feedMapper,
+      @Value("${feed.timeline.max-size:1000}") int maxSize,
+      @Value("${feed.fan-out.max-followers:10000}") int maxFollowers) {
+    this.feedMapper = feedMapper;
+    this.maxSize = maxSize;
+    this.maxFollowers = maxFollowers;
+  }
+
+  public void articleCreated(Article article) {
+    if (feedMapper.isCelebrity(article.getUserId())) {
+      return;
+    }
+    if (feedMapper.countFollowers(article.getUserId()) > maxFollowers) {
+      feedMapper.insertCelebrity(article.getUserId());
+      return;
+    }
+    if (feedMapper.fanOut(article) > 0) {
+      trimAfterCommit(article.getUserId());
+    }
+  }
+
+  /**
+   * Moves the article to the top of the feeds, copying it back into feeds it has been trimmed
+   * from.
+   */
+  public void articleUpdated(Article article) {
+    if (feedMapper.isCelebrity(article.getUserId())) {
+      return;
+    }
+    feedMapper.refresh(article);
+    if (feedMapper.fanOut(article) > 0) {
+      trimAfterCommit(article.getUserId());
+    }
+  }
+
+  public void articleRemoved(String articleId) {
+    feedMapper.deleteArticle(articleId);
+  }
+
+  /**
+   * Rebuilds the feed of the user, whose followings have changed, from scratch, so it stays
+   * complete up to its size limit.
+   */
+  public void followingsChanged(String userId) {
+    build(userId);
+  }
+
+  /** Builds the feed of the user from scratch and marks it complete. */
+  @Transactional
+  public void build(String userId) {
+    feedMapper.deleteTimeline(userId);
+    feedMapper.rebuild(userId, maxSize);
+    feedMapper.markBuilt(userId);
+  }
+
+  /** Trims the feeds of the followers of authors, whose articles have been fanned out, to size. */
+  public void trimPending() {
+    for (String authorId : trimPending) {
+      trimPending.remove(authorId);
+      for (String userId : feedMapper.findOverfullFollowers(authorId, maxSize)) {
+        feedMapper.trim(userId, maxSize - 1);
+      }
+    }
+  }
+
+  private void trimAfterCommit(String authorId) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      trimPending.add(authorId);
+      return;
+    }
+    TransactionSynchronizationManager.registerSynchronization(
+        new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            trimPending.add(authorId);
+          }
+        });
   }
 }
 
@@ -3736,9 +4326,94 @@ public interface CommentMapper {
 
 package io.spring.infrastructure.mybatis.mapper;
 
+import io.spring.core.article.Article;
+import java.util.List;
+import org.apache.ibatis.annotations.Delete;
+import org.apache.ibatis.annotations.Insert;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+import org.apache.ibatis.annotations.Update;
+
+@Mapper
+public interface FeedMapper {
+  @Select("select count(*) from follows where follow_id = #{authorId}")
+  int countFollowers(@Param("authorId") String authorId);
+
+  @Select("select count(*) > 0 from feed_celebrities where author_id = #{authorId}")
+  boolean isCelebrity(@Param("authorId") String authorId);
+
+  @Insert("insert into feed_celebrities (author_id) values (#{authorId})")
+  void insertCelebrity(@Param("authorId") String authorId);
+
+  @Insert({
+    "insert into feed_items (user_id, article_id, created_at, updated_at)",
+    "select F.user_id, #{article.id}, #{article.createdAt}, #{article.updatedAt}",
+    "from follows F where F.follow_id = #{article.userId}",
+    "and not exists (select 1 from feed_items I",
+    "where I.user_id = F.user_id and I.article_id = #{article.id})"
+  })
+  int fanOut(@Param("article") Article article);
+
+  @Insert({
+    "insert into feed_items (user_id, article_id, created_at, updated_at)",
+    "select #{userId}, A.id, A.created_at, A.updated_at from articles A",
+    "join follows F on F.follow_id = A.user_id",
+    "where F.user_id = #{userId}",
+    "and A.user_id not in (select C.author_id from feed_celebrities C)",
+    "and not exists (select 1 from feed_items I",
+    "where I.user_id = #{userId} and I.article_id = A.id)",
+    "order by A.updated_at desc limit #{maxSize}"
+  })
+  void rebuild(@Param("userId") String userId, @Param("maxSize") int maxSize);
+
+  @Update("update feed_items set updated_at = #{article.updatedAt} where article_id = #{article.id}")
+  void refresh(@Param("article") Article article);
+
+  @Delete("delete from feed_items where article_id = #{articleId}")
+  void deleteArticle(@Param("articleId") String articleId);
+
+  @Delete("delete from feed_items where user_id = #{userId}")
+  void deleteTimeline(@Param("userId") String userId);
+
+  @Insert({
+    "insert into feed_timelines (user_id)",
+    "select U.id from users U where U.id = #{userId}",
+    "and not exists (select 1 from feed_timelines T where T.user_id = U.id)"
+  })
+  void markBuilt(@Param("userId") String userId);
+
+  @Select({
+    "select U.id from users U",
+    "where not exists (select 1 from feed_timelines T where T.user_id = U.id)",
+    "limit #{limit}"
+  })
+  List<String> findUnbuiltTimelines(@Param("limit") int limit);
+
+  @Select({
+    "select I.user_id from feed_items I",
+    "join follows F on F.user_id = I.user_id",
+    "where F.follow_id = #{authorId}",
+    "group by I.user_id having count(*) > #{maxSize}"
+  })
+  List<String> findOverfullFollowers(
+      @Param("authorId") String authorId, @Param("maxSize") int maxSize);
+
+  @Delete({
+    "delete from feed_items where user_id = #{userId} and updated_at < (",
+    "select N.updated_at from (select I.updated_at from feed_items I",
+    "where I.user_id = #{userId}",
+    "order by I.updated_at desc limit 1 offset #{last}) N)"
+  })
+  void trim(@Param("userId") String userId, @Param("last") int last);
+}
+
+package io.spring.infrastructure.mybatis.mapper;
+
 import io.spring.core.favorite.ArticleFavorite;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Update;
 
 @Mapper
 public interface ArticleFavoriteMapper {
@@ -3746,7 +4421,24 @@ public interface ArticleFavoriteMapper {
 
   void insert(@Param("articleFavorite") ArticleFavorite articleFavorite);
 
-  void delete(@Param("favorite") ArticleFavorite favorite);
+  int delete(@Param("favorite") ArticleFavorite favorite);
+
+  @Update(
+      "update articles set favorites_count = favorites_count + #{delta} where id = #{articleId}")
+  void updateFavoritesCount(@Param("articleId") String articleId, @Param("delta") int delta);
+
+  /**
+   * Sets favorites_count of every article, which has drifted, to the actual number of favorites.
+   *
+   * @return number of repaired articles
+   */
+  @Update({
+    "update articles set favorites_count =",
+    "(select count(*) from article_favorites F where F.article_id = articles.id)",
+    "where favorites_count <>",
+    "(select count(*) from article_favorites F where F.article_id = articles.id)"
+  })
+  int reconcileFavoritesCounts();
 }
 
 package io.spring.infrastructure.mybatis.mapper;
@@ -3822,9 +4514,62 @@ public interface CommentReadService {
 
 package io.spring.infrastructure.mybatis.readservice;
 
+import io.spring.application.CursorPageParameter;
+import io.spring.application.Page;
+import java.util.List;
+import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
+
+@Mapper
+public interface FeedReadService {
+  @Select({
+    "select article_id from feed_items where user_id = #{userId}",
+    "order by updated_at desc limit #{page.offset}, #{page.limit}"
+  })
+  List<String> findTimeline(@Param("userId") String userId, @Param("page") Page page);
+
+  @Select({
+    "<script>",
+    "select article_id from feed_items where user_id = #{userId}",
+    "<choose>",
+    "<when test='page.next'>",
+    "<if test='page.cursor != null'>and updated_at &lt; #{page.cursor}</if>",
+    "order by updated_at desc",
+    "</when>",
+    "<otherwise>",
+    "<if test='page.cursor != null'>and updated_at &gt; #{page.cursor}</if>",
+    "order by updated_at asc",
+    "</otherwise>",
+    "</choose>",
+    "limit #{page.queryLimit}",
+    "</script>"
+  })
+  List<String> findTimelineWithCursor(
+      @Param("userId") String userId, @Param("page") CursorPageParameter page);
+
+  @Select("select count(*) from feed_items where user_id = #{userId}")
+  int countTimeline(@Param("userId") String userId);
+
+  @Select("select count(*) > 0 from feed_timelines where user_id = #{userId}")
+  boolean isTimelineBuilt(@Param("userId") String userId);
+
+  @Select({
+    "select F.follow_id from follows F",
+    "join feed_celebrities C on C.author_id = F.follow_id",
+    "where F.user_id = #{userId}"
+  })
+  List<String> followedCelebrities(@Param("userId") String userId);
+}
+
+package io.spring.infrastructure.mybatis.readservice;
+
 import io.spring.application.data.UserData;
+import java.util.Collection;
+import java.util.List;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 
 @Mapper
 public interface UserReadService {
@@ -3832,6 +4577,16 @@ public interface UserReadService {
   UserData findByUsername(@Param("username") String username);
 
   UserData findById(@Param("id") String id);
+
+  @Select({
+    "<script>",
+    "select id, email, username, bio, image from users where username in",
+    "<foreach collection='usernames' item='username' open='(' separator=',' close=')'>",
+    "#{username}",
+    "</foreach>",
+    "</script>"
+  })
+  List<UserData> findByUsernames(@Param("usernames") Collection<String> usernames);
 }
 
 package io.spring.infrastructure.mybatis.readservice;
@@ -3839,9 +4594,11 @@ package io.spring.infrastructure.mybatis.readservice;
 import io.spring.application.CursorPageParameter;
 import io.spring.application.Page;
 import io.spring.application.data.ArticleData;
+import io.spring.application.data.ArticleExtraInfo;
 import java.util.List;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 
 @Mapper
 public interface ArticleReadService {
@@ -3860,11 +4617,69 @@ public interface ArticleReadService {
       @Param("author") String author,
       @Param("favoritedBy") String favoritedBy);
 
+  /**
+   * Selects a page of article ids together with their favorites count, the favorited and following
+   * flags of given user and the total count of matching articles, computed by a window function.
+   */
+  @Select({
+    "<script>",
+    "select A.id id,",
+    "<choose>",
+    "<when test='materializedCounts'>A.favorites_count</when>",
+    "<otherwise>(select count(*) from article_favorites F where F.article_id = A.id)</otherwise>",
+    "</choose>",
+    "favoritesCount,",
+    "exists(select 1 from article_favorites F",
+    "  where F.article_id = A.id and F.user_id = #{userId}) favorited,",
+    "exists(select 1 from follows FL",
+    "  where FL.user_id = #{userId} and FL.follow_id = A.user_id) following,",
+    "count(*) over () totalCount",
+    "from articles A",
+    "left join users AU on AU.id = A.user_id",
+    "<where>",
+    "<if test='tag != null'>",
+    "A.id in (select AT.article_id from article_tags AT",
+    "  join tags T on T.id = AT.tag_id where T.name = #{tag})",
+    "</if>",
+    "<if test='author != null'>",
+    "AND AU.username = #{author}",
+    "</if>",
+    "<if test='favoritedBy != null'>",
+    "AND A.id in (select AF.article_id from article_favorites AF",
+    "  join users AFU on AFU.id = AF.user_id where AFU.username = #{favoritedBy})",
+    "</if>",
+    "</where>",
+    "order by A.created_at desc",
+    "limit #{page.offset}, #{page.limit}",
+    "</script>"
+  })
+  List<ArticleExtraInfo> queryArticlesWithExtraInfo(
+      @Param("tag") String tag,
+      @Param("author") String author,
+      @Param("favoritedBy") String favoritedBy,
+      @Param("userId") String userId,
+      @Param("materializedCounts") boolean materializedCounts,
+      @Param("page") Page page);
+
   List<ArticleData> findArticles(@Param("articleIds") List<String> articleIds);
 
   List<ArticleData> findArticlesOfAuthors(
       @Param("authors") List<String> authors, @Param("page") Page page);
 
+  /** Selects a page of article ids of given authors in the order of feed timelines. */
+  @Select({
+    "<script>",
+    "select A.id from articles A where A.user_id in",
+    "<foreach index='index' collection='authors' item='id' open='(' separator=',' close=')'>",
+    "#{id}",
+    "</foreach>",
+    "order by A.updated_at desc",
+    "limit #{page.offset}, #{page.limit}",
+    "</script>"
+  })
+  List<String> findArticleIdsOfAuthors(
+      @Param("authors") List<String> authors, @Param("page") Page page);
+
   List<ArticleData> findArticlesOfAuthorsWithCursor(
       @Param("authors") List<String> authors, @Param("page") CursorPageParameter page);
 
@@ -3879,12 +4694,43 @@ public interface ArticleReadService {
 
 package io.spring.infrastructure.mybatis.readservice;
 
+import io.spring.application.data.TagCount;
 import java.util.List;
+import org.apache.ibatis.annotations.Arg;
+import org.apache.ibatis.annotations.ConstructorArgs;
 import org.apache.ibatis.annotations.Mapper;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 
 @Mapper
 public interface TagReadService {
-  List<String> all();
+  @Select({
+    "select T.name, count(AT.article_id) article_count from tags T",
+    "left join article_tags AT on AT.tag_id = T.id",
+    "group by T.id, T.name"
+  })
+  @ConstructorArgs({
+    @Arg(column = "name", javaType = String.class),
+    @Arg(column = "article_count", javaType = Integer.class)
+  })
+  List<TagCount> allWithCounts();
+
+  @Select({
+    "<script>",
+    "select T.name, count(AT.article_id) article_count from tags T",
+    "left join article_tags AT on AT.tag_id = T.id",
+    "where T.name in",
+    "<foreach index='index' collection='names' item='name' open='(' separator=',' close=')'>",
+    "#{name}",
+    "</foreach>",
+    "group by T.id, T.name",
+    "</script>"
+  })
+  @ConstructorArgs({
+    @Arg(column = "name", javaType = String.class),
+    @Arg(column = "article_count", javaType = Integer.class)
+  })
+  List<TagCount> countsOf(@Param("names") List<String> names);
 }
 
 package io.spring.infrastructure.mybatis.readservice;
@@ -3893,8 +4739,11 @@ import io.spring.application.data.ArticleFavoriteCount;
 import io.spring.core.user.User;
 import java.util.List;
 import java.util.Set;
+import org.apache.ibatis.annotations.Arg;
+import org.apache.ibatis.annotations.ConstructorArgs;
 import org.apache.ibatis.annotations.Mapper;
 import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.annotations.Select;
 
 @Mapper
 public interface ArticleFavoritesReadService {
@@ -3904,6 +4753,24 @@ public interface ArticleFavoritesReadService {
 
   List<ArticleFavoriteCount> articlesFavoriteCount(@Param("ids") List<String> ids);
 
+  /** Reads the materialized articles.favorites_count instead of counting favorites. */
+  @Select("select favorites_count from articles where id = #{articleId}")
+  int articleFavoriteCountFromRow(@Param("articleId") String articleId);
+
+  @Select({
+    "<script>",
+    "select id, favorites_count from articles where id in",
+    "<foreach collection='ids' item='id' open='(' separator=',' close=')'>",
+    "#{id}",
+    "</foreach>",
+    "</script>"
+  })
+  @ConstructorArgs({
+    @Arg(column = "id", javaType = String.class),
+    @Arg(column = "favorites_count", javaType = Integer.class)
+  })
+  List<ArticleFavoriteCount> articlesFavoriteCountFromRow(@Param("ids") List<String> ids);
+
   Set<String> userFavorites(@Param("ids") List<String> ids, @Param("currentUser") User currentUser);
 }
 
@@ -3979,3 +4846,252 @@ public class DefaultJwtService implements JwtService {
   }
 }
 
+
+package io.spring.infrastructure.service;
+
+import io.spring.infrastructure.mybatis.mapper.ArticleFavoriteMapper;
+import javax.annotation.PostConstruct;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Repairs drift of the denormalized articles.favorites_count, e.g. after favorites have been
+ * written or deleted outside of {@link
+ * io.spring.infrastructure.repository.MyBatisArticleFavoriteRepository}.
+ *
+ * <p>Only active with {@code article.favorites-count.materialized=true}, which requires the column:
+ *
+ * <pre>
+ * alter table articles add column favorites_count integer not null default 0;
+ * </pre>
+ *
+ * The column is backfilled by {@link #backfill()} while the application context starts, so reads of
+ * the column are only served once it holds the counts of the existing favorites. Startup fails, if
+ * the backfill does.
+ */
+@Slf4j
+@Component
+@ConditionalOnProperty(name = "article.favorites-count.materialized", havingValue = "true")
+public class FavoritesCountReconciler {
+  private ArticleFavoriteMapper mapper;
+
+  @Autowired
+  public FavoritesCountReconciler(ArticleFavoriteMapper mapper) {
+    this.mapper = mapper;
+  }
+
+  @PostConstruct
+  public void backfill() {
+    int backfilled = mapper.reconcileFavoritesCounts();
+    log.info("backfilled favorites count of {} articles", backfilled);
+  }
+
+  @Scheduled(
+      initialDelayString = "${article.favorites-count.reconcile-interval:3600000}",
+      fixedDelayString = "${article.favorites-count.reconcile-interval:3600000}")
+  public void reconcile() {
+    int repaired = mapper.reconcileFavoritesCounts();
+    if (repaired > 0) {
+      log.warn("repaired favorites count of {} articles", repaired);
+    }
+  }
+}
+
+package io.spring.infrastructure.service;
+
+import io.spring.infrastructure.mybatis.mapper.FeedMapper;
+import io.spring.infrastructure.repository.FeedTimeline;
+import java.util.List;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+
+/**
+ * Builds materialized feeds of users, who have none yet, e.g. followed authors before feeds have
+ * been materialized, and trims feeds grown by fan-out. Feeds are not trusted by reads until they
+ * have been built, so building runs in background.
+ */
+@Slf4j
+@Component
+public class FeedTimelineMaintainer {
+  private FeedMapper feedMapper;
+  private FeedTimeline feedTimeline;
+  private int batchSize;
+
+  @Autowired
+  public FeedTimelineMaintainer(
+      FeedMapper feedMapper,
+      FeedTimeline feedTimeline,
+      @Value("${feed.timeline.backfill-batch-size:100}") int batchSize) {
+    this.feedMapper = feedMapper;
+    this.feedTimeline = feedTimeline;
+    this.batchSize = batchSize;
+  }
+
+  @Scheduled(fixedDelayString = "${feed.timeline.backfill-interval:60000}")
+  public void backfill() {
+    int built = 0;
+    List<String> userIds;
+    while (!(userIds = feedMapper.findUnbuiltTimelines(batchSize)).isEmpty()) {
+      userIds.forEach(feedTimeline::build);
+      built += userIds.size();
+    }
+    if (built > 0) {
+      log.info("built feed timelines of {} users", built);
+    }
+  }
+
+  @Scheduled(fixedDelayString = "${feed.timeline.trim-interval:10000}")
+  public void trim() {
+    feedTimeline.trimPending();
+  }
+}
+
+package io.spring.graphql;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.netflix.graphql.dgs.DgsQueryExecutor;
+import io.spring.core.article.Article;
+import io.spring.core.article.ArticleRepository;
+import io.spring.core.user.FollowRelation;
+import io.spring.core.user.User;
+import io.spring.core.user.UserRepository;
+import io.spring.infrastructure.mybatis.readservice.UserReadService;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import org.apache.ibatis.executor.Executor;
+import org.apache.ibatis.mapping.MappedStatement;
+import org.apache.ibatis.plugin.Interceptor;
+import org.apache.ibatis.plugin.Intercepts;
+import org.apache.ibatis.plugin.Invocation;
+import org.apache.ibatis.plugin.Signature;
+import org.apache.ibatis.session.ResultHandler;
+import org.apache.ibatis.session.RowBounds;
+import org.joda.time.DateTime;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.security.authentication.UsernamePasswordAuthenticationToken;
+import org.springframework.security.core.context.SecurityContextHolder;
+import org.springframework.transaction.annotation.Transactional;
+
+@SpringBootTest
+@Transactional
+@Import(ProfileDataLoaderTest.StatementCounterConfig.class)
+public class ProfileDataLoaderTest {
+  private static final String ARTICLES_QUERY =
+      "{ articles(first: %d) { edges { node { slug author { username following } } } } }";
+
+  @Autowired private DgsQueryExecutor dgsQueryExecutor;
+
+  @Autowired private UserRepository userRepository;
+
+  @Autowired private ArticleRepository articleRepository;
+
+  @Autowired private StatementCounter statementCounter;
+
+  @BeforeEach
+  public void setUp() {
+    User current = new User("reader@test.com", "reader", "123", "", "");
+    userRepository.save(current);
+    SecurityContextHolder.getContext()
+        .setAuthentication(
+            new UsernamePasswordAuthenticationToken(current, null, Collections.emptyList()));
+
+    DateTime now = new DateTime();
+    for (int i = 0; i < 50; i++) {
+      User author = new User("author" + i + "@test.com", "author" + i, "123", "", "");
+      userRepository.save(author);
+      articleRepository.save(
+          new Article(
+              "title " + i,
+              "desc",
+              "body",
+              Collections.emptyList(),
+              author.getId(),
+              now.plusSeconds(i)));
+      if (i % 2 == 0) {
+        userRepository.saveRelation(new FollowRelation(current.getId(), author.getId()));
+      }
+    }
+  }
+
+  @AfterEach
+  public void tearDown() {
+    SecurityContextHolder.clearContext();
+  }
+
+  @Test
+  public void should_load_authors_of_a_page_with_one_users_query() {
+    statementCounter.reset();
+
+    List<Boolean> following =
+        dgsQueryExecutor.executeAndExtractJsonPath(
+            String.format(ARTICLES_QUERY, 50), "data.articles.edges[*].node.author.following");
+
+    assertEquals(50, following.size());
+    assertEquals(25, following.stream().filter(Boolean::booleanValue).count());
+    assertEquals(1, statementCounter.count(UserReadService.class.getName() + "."));
+  }
+
+  @Test
+  public void should_not_issue_statements_per_article() {
+    statementCounter.reset();
+    dgsQueryExecutor.executeAndExtractJsonPath(
+        String.format(ARTICLES_QUERY, 1), "data.articles.edges[*].node.slug");
+    int single = statementCounter.count("");
+
+    statementCounter.reset();
+    List<String> slugs =
+        dgsQueryExecutor.executeAndExtractJsonPath(
+            String.format(ARTICLES_QUERY, 50), "data.articles.edges[*].node.slug");
+
+    assertEquals(50, slugs.size());
+    assertEquals(single, statementCounter.count(""));
+  }
+
+  @TestConfiguration
+  static class StatementCounterConfig {
+    @Bean
+    public StatementCounter statementCounter() {
+      return new StatementCounter();
+    }
+  }
+
+  /** Records the id of every mapped statement issued through MyBatis. */
+  @Intercepts({
+    @Signature(
+        type = Executor.class,
+        method = "query",
+        args = {MappedStatement.class, Object.class, RowBounds.class, ResultHandler.class})
+  })
+  static class StatementCounter implements Interceptor {
+    private final List<String> statements = new CopyOnWriteArrayList<>();
+
+    @Override
+    public Object intercept(Invocation invocation) throws Throwable {
+      statements.add(((MappedStatement) invocation.getArgs()[0]).getId());
+      return invocation.proceed();
+    }
+
+    void reset() {
+      statements.clear();
+    }
+
+    int count(String prefix) {
+      return (int) statements.stream().filter(id -> id.startsWith(prefix)).count();
+    }
+  }
+}